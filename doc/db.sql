@@ -1,4 +1,4 @@
--- sql是全量创建数据库脚本，不是增量更新脚本，迭代更新的请自行对照好表结构，避免遗漏更新
+-- sql是全量创建数据库脚本，不是增量更新脚本，已有数据库升级请执行upgrade.sql，并自行对照好表结构，避免遗漏更新
 -- 菜单
 CREATE TABLE `sys_menu` (
   `menu_id` bigint NOT NULL AUTO_INCREMENT,
@@ -398,6 +398,7 @@ CREATE TABLE `test_stress_case_file` (
   `report_status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：保存测试报告原始文件  1：不需要测试报告',
   `webchart_status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：需要前端监控  1：不需要前端监控',
   `debug_status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：关闭debug  1：开始debug调试模式',
+  `compress_status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：不压缩测试结果  1：压缩测试结果文件',
   `duration` int NOT NULL DEFAULT 14400 COMMENT '期间，执行时间，单位秒，脚本执行多久停止，0代表永远执行',
   `add_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `add_by` bigint(20) COMMENT '提交用户id',
@@ -436,7 +437,7 @@ CREATE TABLE `test_stress_slave` (
   `ssh_port` INT NOT NULL DEFAULT 22 COMMENT 'ssh链接端口号',
   `home_dir` varchar(200) COMMENT '子节点的Jmeter路径',
   `status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：禁用   1：正常',
-  `weight` int NOT NULL DEFAULT 100 COMMENT 'slave节点机的权重，取值在1-99999，slave的权重可以大于或者小于master',
+  `weight` int NOT NULL DEFAULT 100 COMMENT 'slave节点机的权重，取值在1-99999，slave的权重可以大于或者小于master，-1表示备用节点',
   `add_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `add_by` bigint(20) COMMENT '提交用户id',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '修改时间',
@@ -456,6 +457,10 @@ INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('5',
 INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('6', 'MASTER_JMETER_GENERATE_REPORT_KEY', 'true', '1', 'true:本地web程序进程生成测试报告，可以多线程并发生成。false:使用Jmeter_home中的命令生成测试报告。');
 INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('7', 'JMETER_THREADGROUP_SET_KEY', 'false', '1', 'true：开启线程组管理功能，上传脚本时线程组配置将入库管理，默认false。');
 INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('8', 'SCRIPT_SCHEDULER_DURATION_KEY', 'true', '1', 'true:脚本限时执行生效，具体时间由脚本单独配置，是默认值 false:取消脚本限时执行');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('9', 'MASTER_JMETER_RESULT_BINARY_KEY', 'false', '1', 'true:测试结果保存为紧凑二进制格式，下载时转换为csv。false:保存为csv格式，是默认值');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('10', 'MASTER_JMETER_INCREMENTAL_REPORT_KEY', 'false', '1', 'true:压测过程中增量统计测试报告数据，结束后直接导出报告（多占用内存）。false:生成报告时读取结果文件，是默认值');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('11', 'MASTER_JMETER_SLAVE_AGGREGATE_KEY', 'false', '1', 'true:分布式压测时节点机每秒汇总监控数据再发送，原始结果保存在节点机上，压测结束后取回合并（需重启节点）。false:每个请求结果都发送到master，是默认值');
+INSERT INTO `sys_config` (`id`, `key`, `value`, `status`, `remark`) VALUES ('12', 'MASTER_JMETER_VIRTUAL_THREADS_KEY', 'false', '1', 'true:普通线程组使用虚拟线程执行（JDK21及以上，否则使用小栈的平台线程），单机可以支持更多用户（节点机需重启）。false:每个用户一个平台线程，是默认值');
 
 -- 调试/接口测试报告文件表(smooth 20181205)
 CREATE TABLE `test_debug_case_reports` (
@@ -0,0 +1,4 @@
+-- 增量更新脚本，已有数据库升级时按顺序执行，新安装直接执行db.sql即可（已经包含以下变更）
+
+-- 测试结果文件压缩
+ALTER TABLE `test_stress_case_file` ADD COLUMN `compress_status` tinyint NOT NULL DEFAULT 0 COMMENT '状态  0：不压缩测试结果  1：压缩测试结果文件' AFTER `debug_status`;
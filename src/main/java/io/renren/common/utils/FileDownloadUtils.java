@@ -0,0 +1,163 @@
+package io.renren.common.utils;
+
+import io.renren.common.exception.RRException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 文件下载，脚本、参数化文件、测试结果、测试报告的下载都走这里。
+ * <p>
+ * 文件内容不经过Java堆：Tomcat支持sendfile时交给Tomcat直接从文件发送到socket，
+ * 否则使用FileChannel.transferTo输出。
+ * 支持单个Range的断点续传，ETag优先使用保存的文件MD5，If-Range和ETag或者修改时间不一致时返回整个文件。
+ */
+public class FileDownloadUtils {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * 下载文件
+     *
+     * @param fileName 下载时的文件名
+     * @param md5      文件的MD5，没有时传null，按文件大小和修改时间生成ETag
+     */
+    public static void download(HttpServletRequest request, HttpServletResponse response,
+                                File file, String fileName, String md5) throws IOException {
+        if (file == null || !file.isFile()) {
+            throw new RRException("文件不存在或已删除！");
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + (md5 != null && !md5.isEmpty() ? md5 : Long.toHexString(length) + "-"
+                + Long.toHexString(lastModified)) + "\"";
+
+        response.setHeader("Cache-Control", "no-cache,no-store,must-revalidate");
+        response.setHeader("Pragma", "no-cache");
+        response.setDateHeader("Expires", 0);
+        response.setHeader("Content-Disposition", "attachment;filename=" + fileName);
+        response.setContentType("application/octet-stream");
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader("Range");
+        if (range != null && isRangeValid(request, etag, lastModified)) {
+            long[] parsed = parseRange(range, length);
+            if (parsed == null) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (parsed.length > 0) {
+                start = parsed[0];
+                end = parsed[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        long count = end - start + 1;
+        response.setContentLengthLong(count);
+        if ("HEAD".equalsIgnoreCase(request.getMethod()) || count <= 0) {
+            return;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long n = channel.transferTo(position, remaining, out);
+                if (n <= 0) {
+                    //文件在下载过程中被截短
+                    break;
+                }
+                position += n;
+                remaining -= n;
+            }
+        }
+        response.flushBuffer();
+    }
+
+    /**
+     * 没有If-Range，或者If-Range和当前的ETag、修改时间一致时Range才有效
+     */
+    private static boolean isRangeValid(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            //HTTP日期只精确到秒
+            return request.getDateHeader("If-Range") / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 解析单个Range，返回{start, end}。
+     * 多个Range或者无法识别时返回空数组（按整个文件返回），范围超出文件时返回null。
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith(BYTES_UNIT) || range.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        String spec = range.substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                //bytes=-500，最后500个字节
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1
+                        : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private FileDownloadUtils() {
+    }
+}
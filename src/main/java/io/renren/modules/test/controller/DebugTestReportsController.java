@@ -1,6 +1,7 @@
 package io.renren.modules.test.controller;
 
 import io.renren.common.annotation.SysLog;
+import io.renren.common.utils.FileDownloadUtils;
 import io.renren.common.utils.PageUtils;
 import io.renren.common.utils.Query;
 import io.renren.common.utils.R;
@@ -11,12 +12,10 @@ import io.renren.modules.test.utils.StressTestUtils;
 import org.apache.shiro.authz.annotation.RequiresPermissions;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
@@ -113,23 +112,12 @@ public class DebugTestReportsController {
     @SysLog("下载调试测试报告")
     @RequestMapping("/downloadReport/{reportId}")
     @RequiresPermissions("test:debug:reportDownload")
-    public ResponseEntity<InputStreamResource> downloadReport(@PathVariable("reportId") Long reportId) throws IOException {
+    public void downloadReport(@PathVariable("reportId") Long reportId, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
         DebugTestReportsEntity reportsEntity = debugTestReportsService.queryObject(reportId);
         FileSystemResource fileResource = debugTestReportsService.getReportFile(reportsEntity);
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Cache-Control", "no-cache,no-store,must-revalidate");
-        headers.add("Content-Disposition",
-                "attachment;filename=" + reportsEntity.getOriginName() + ".html");
-        headers.add("Pragma", "no-cache");
-        headers.add("Expires", "0");
-        headers.setContentType(MediaType.parseMediaType("application/octest-stream"));
-
-        return ResponseEntity
-                .ok()
-                .headers(headers)
-                .contentLength(fileResource.contentLength())
-                .body(new InputStreamResource(fileResource.getInputStream()));
+        FileDownloadUtils.download(request, response, fileResource.getFile(),
+                reportsEntity.getOriginName() + ".html", null);
     }
 
 
@@ -1,25 +1,28 @@
 package io.renren.modules.test.controller;
 
 import io.renren.common.annotation.SysLog;
+import io.renren.common.utils.FileDownloadUtils;
 import io.renren.common.utils.PageUtils;
 import io.renren.common.utils.Query;
 import io.renren.common.utils.R;
 import io.renren.common.validator.ValidatorUtils;
 import io.renren.modules.test.entity.StressTestFileEntity;
 import io.renren.modules.test.jmeter.JmeterStatEntity;
+import io.renren.modules.test.jmeter.stats.LiveStatsAggregator;
 import io.renren.modules.test.service.StressTestFileService;
+import io.renren.modules.test.service.StressTestStatPushService;
 import io.renren.modules.test.utils.StressTestUtils;
 import org.apache.shiro.authz.annotation.RequiresPermissions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +38,9 @@ public class StressTestFileController {
     @Autowired
     private StressTestFileService stressTestFileService;
 
+    @Autowired
+    private StressTestStatPushService stressTestStatPushService;
+
     /**
      * 参数化文件，用例文件列表
      */
@@ -142,12 +148,17 @@ public class StressTestFileController {
      * 定时查询执行结果。
      * 只有在本地执行性能测试时，才会被调用。
      * 不要求权限校验了，频繁操作不用每次都调用数据库。
+     * window是窗口百分位统计的最近秒数，不传则使用默认值。
+     * since是上次拿到的秒级数据的最后时间戳，传入则只返回之后新增的秒级数据。
      */
     @RequestMapping("/statInfo/{fileId}")
-    public R statInfo(@PathVariable("fileId") Long fileId) {
+    public R statInfo(@PathVariable("fileId") Long fileId,
+                      @RequestParam(value = "window", required = false) Integer window,
+                      @RequestParam(value = "since", required = false) Long since) {
         logger.debug("请求url：" + "test/stressFile/statInfo/" + fileId);
+        int windowSeconds = window == null ? LiveStatsAggregator.DEFAULT_WINDOW_SECONDS : window;
         //频率不是特别高，可以是new一个对象
-        JmeterStatEntity jmeterStatEntity = stressTestFileService.getJmeterStatEntity(fileId);
+        JmeterStatEntity jmeterStatEntity = stressTestFileService.getJmeterStatEntity(fileId, windowSeconds, since);
         logger.debug("jmeterStatEntity: " + jmeterStatEntity);
 //        logger.debug("jmeterStatEntity:" + jmeterStatEntity.getResponseTimeMap());
 //        logger.debug("jmeterStatEntity:" + jmeterStatEntity.getResponseTimeMap().size());
@@ -155,14 +166,28 @@ public class StressTestFileController {
         return R.ok().put("statInfo",jmeterStatEntity);
     }
 
+    /**
+     * 前端监控数据推送，替代statInfo的轮询。
+     * 每个推送周期服务端只计算一次，推送给所有订阅者，推送内容是增量的。
+     * window和statInfo一样，是窗口百分位统计的最近秒数。
+     */
+    @RequestMapping(value = "/statStream/{fileId}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter statStream(@PathVariable("fileId") Long fileId,
+                                 @RequestParam(value = "window", required = false) Integer window) {
+        int windowSeconds = window == null ? LiveStatsAggregator.DEFAULT_WINDOW_SECONDS : window;
+        return stressTestStatPushService.subscribe(fileId, windowSeconds);
+    }
+
     /**
      * 将参数化文件同步到指定分布式slave节点机的指定目录下
      */
     @SysLog("将参数化文件同步到指定分布式slave节点机的指定目录")
     @RequestMapping("/synchronizeFile")
     @RequiresPermissions("test:stress:synchronizeFile")
-    public R synchronizeFile(@RequestBody Long[] fileIds) {
-        stressTestFileService.synchronizeFile(fileIds);
+    public R synchronizeFile(@RequestBody Long[] fileIds,
+                             @RequestParam(value = "shardMode", required = false) String shardMode,
+                             @RequestParam(value = "shardHeader", defaultValue = "false") boolean shardHeader) {
+        stressTestFileService.synchronizeFile(fileIds, shardMode, shardHeader);
         return R.ok();
     }
 
@@ -171,38 +196,12 @@ public class StressTestFileController {
      */
     @RequestMapping("/downloadFile/{fileId}")
     @RequiresPermissions("test:stress:fileDownLoad")
-    public ResponseEntity<InputStreamResource> downloadFile(@PathVariable("fileId") Long fileId) throws IOException {
+    public void downloadFile(@PathVariable("fileId") Long fileId, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
         StressTestFileEntity stressTestFile = stressTestFileService.queryObject(fileId);
-        FileSystemResource fileResource = new FileSystemResource(stressTestFileService.getFilePath(stressTestFile));
-
-        HttpHeaders headers = new HttpHeaders();
-        /**
-         * HTTP1.1中启用Cache-Control 来控制页面的缓存与否
-         * no-cache，浏览器和缓存服务器都不应该缓存页面信息；
-         * no-store，请求和响应的信息都不应该被存储在对方的磁盘系统中；
-         * must-revalidate，对于客户机的每次请求，代理服务器必须想服务器验证缓存是否过时
-         *
-         * Content-Disposition为属性名 disposition-type是以什么方式下载，如attachment为以附件方式下载
-         * 当响应类型为application/octet- stream时使用了这个头信息的话，就意味着你不想直接显示内容，而是弹出一个"文件下载"的对话框
-         * Pragma: no-cache：跟Cache-Control: no-cache相同，Pragma: no-cache兼容http 1.0 ，Cache-Control: no-cache是http 1.1提供的。
-         * 注意事项：https://blog.csdn.net/qq_29347295/article/details/53066857
-         *
-         * Content-Type:MediaType，即是Internet Media Type，互联网媒体类型；也叫做MIME类型，
-         * 在Http协议消息头中，使用Content-Type来表示具体请求中的媒体类型信息。
-         * "application/octet-stream" 表示二进制流数据（如常见的文件下载）
-         */
-        headers.add("Cache-Control", "no-cache,no-store,must-revalidate");
-        headers.add("Content-Disposition","attachment;filename=" + stressTestFile.getOriginName());
-        headers.add("Pragma", "no-cache");
-        headers.add("Expires", "0");
-        headers.setContentType(MediaType.parseMediaType("application/octet-stream"));
-
-
-        return ResponseEntity.ok()
-                .headers(headers)
-                .contentLength(fileResource.contentLength())
-                .body(new InputStreamResource(fileResource.getInputStream()));
-
+        File file = new File(stressTestFileService.getFilePath(stressTestFile));
+        //以附件方式下载，不缓存；上传时计算的MD5作为ETag，支持断点续传
+        FileDownloadUtils.download(request, response, file, stressTestFile.getOriginName(), stressTestFile.getFileMd5());
     }
 
 }
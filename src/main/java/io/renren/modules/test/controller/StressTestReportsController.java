@@ -2,6 +2,7 @@ package io.renren.modules.test.controller;
 
 import io.renren.common.annotation.SysLog;
 import io.renren.common.exception.RRException;
+import io.renren.common.utils.FileDownloadUtils;
 import io.renren.common.utils.PageUtils;
 import io.renren.common.utils.Query;
 import io.renren.common.utils.R;
@@ -14,12 +15,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
@@ -129,23 +129,35 @@ public class StressTestReportsController {
     @SysLog("下载测试报告zip包")
     @RequestMapping("/downloadReport/{reportId}")
     @RequiresPermissions("test:stress:reportDownLoad")
-    public ResponseEntity<InputStreamResource> downloadReport(@PathVariable("reportId") Long reportId) throws IOException {
+    public void downloadReport(@PathVariable("reportId") Long reportId, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
         StressTestReportsEntity reportsEntity = stressTestReportsService.queryObject(reportId);
         FileSystemResource zipFile = stressTestReportsService.getZipFile(reportsEntity);
+        //zip文件较大，支持断点续传
+        FileDownloadUtils.download(request, response, zipFile.getFile(),
+                reportsEntity.getOriginName() + ".zip", null);
+    }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Cache-Control", "no-cache,no-store,must-revalidate");
-        headers.add("Content-Disposition",
-                "attachment;filename=" + reportsEntity.getOriginName() + ".zip");
-        headers.add("Pragma", "no-cache");
-        headers.add("Expires", "0");
-        headers.setContentType(MediaType.parseMediaType("application/octet-stream"));
-
-        return ResponseEntity
-                .ok()
-                .headers(headers)
-                .contentLength(zipFile.contentLength())
-                .body(new InputStreamResource(zipFile.getInputStream()));
+    /**
+     * 下载测试结果文件，二进制格式的结果按需转换成csv输出
+     */
+    @SysLog("下载测试结果文件")
+    @RequestMapping("/downloadCsv/{reportId}")
+    @RequiresPermissions("test:stress:reportDownLoad")
+    public void downloadCsv(@PathVariable("reportId") Long reportId, HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        StressTestReportsEntity reportsEntity = stressTestReportsService.queryObject(reportId);
+        String fileName = reportsEntity.getOriginName() + ".csv";
+        //本身就是csv的直接下载，支持断点续传
+        File csvFile = stressTestReportsService.getCsvFile(reportsEntity);
+        if (csvFile != null) {
+            FileDownloadUtils.download(request, response, csvFile, fileName, null);
+            return;
+        }
+        response.setHeader("Cache-Control", "no-cache,no-store,must-revalidate");
+        response.setHeader("Content-Disposition", "attachment;filename=" + fileName);
+        response.setContentType("application/octet-stream");
+        stressTestReportsService.exportCsv(reportsEntity, response.getOutputStream());
     }
 
 }
@@ -103,9 +103,7 @@ public class StressTestSlaveController {
     @RequiresPermissions("test:stress:slaveStatusUpdate")
     public R batchUpdateStatus(@RequestParam(value = "slaveIds[]") List<Long> slaveIds,
                                @RequestParam(value = "status") Integer status) {
-        for (Long slaveId : slaveIds) {
-            stressTestSlaveService.updateBatchStatus(slaveId,status);
-        }
+        stressTestSlaveService.updateBatchStatus(slaveIds, status);
         return R.ok();
     }
 
@@ -128,10 +126,7 @@ public class StressTestSlaveController {
     @RequestMapping("/batchRestart")
     @RequiresPermissions("test:stress:slaveRestart")
     public R batchRestart(@RequestParam(value = "slaveIds[]") List<Long> slaveIds) {
-
-        for (Long slaveId : slaveIds) {
-            stressTestSlaveService.restartSingle(slaveId);
-        }
+        stressTestSlaveService.batchRestart(slaveIds);
         return R.ok();
     }
 
@@ -141,8 +136,8 @@ public class StressTestSlaveController {
     @SysLog("校准当前各节点状态")
     @RequestMapping("/batchReload")
     public R batchReload() {
-        stressTestSlaveService.batchReloadStatus();
-        return R.ok();
+        String report = stressTestSlaveService.batchReloadStatus();
+        return R.ok().put("report", report);
     }
 
 
@@ -71,6 +71,11 @@ public class StressTestFileEntity implements Serializable {
      */
     private Integer debugStatus;
 
+    /**
+     * 状态   0：不压缩测试结果   1：压缩测试结果文件（gzip）
+     */
+    private Integer compressStatus;
+
     /**
      * 脚本最长定时执行多少秒，默认是4小时
      */
@@ -229,6 +234,14 @@ public class StressTestFileEntity implements Serializable {
         this.debugStatus = debugStatus;
     }
 
+    public Integer getCompressStatus() {
+        return compressStatus;
+    }
+
+    public void setCompressStatus(Integer compressStatus) {
+        this.compressStatus = compressStatus;
+    }
+
     public Long[] getFileIdList() {
         return fileIdList;
     }
@@ -259,6 +272,7 @@ public class StressTestFileEntity implements Serializable {
         clone.setReportStatus(this.getReportStatus());
         clone.setWebchartStatus(this.getWebchartStatus());
         clone.setDebugStatus(this.getDebugStatus());
+        clone.setCompressStatus(this.getCompressStatus());
         clone.setSlaveId(this.getSlaveId());
         clone.setFileIdList(this.getFileIdList());
         return clone;
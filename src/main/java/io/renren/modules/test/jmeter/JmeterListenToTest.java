@@ -14,6 +14,8 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -31,6 +33,13 @@ public class JmeterListenToTest implements TestStateListener,Runnable, Remoteabl
     //使用给定的初始值创建新的AtomicInteger
     private final AtomicInteger started = new AtomicInteger(0); // keep track of remote tests
 
+    /**
+     * 开始和已经结束（包括失联）的节点，同一个节点只计数一次
+     */
+    private final Set<String> startedHosts = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> endedHosts = ConcurrentHashMap.newKeySet();
+
     private final List<JMeterEngine> engines;
 
     private final ReportGenerator reportGenerator;
@@ -56,14 +65,50 @@ public class JmeterListenToTest implements TestStateListener,Runnable, Remoteabl
     public void testEnded(String host) {
         final Long now = System.currentTimeMillis();
         log.info("Finished remote host: {} ({})",host,now);
+        hostFinished(host);
+    }
+
+    /**
+     * 节点失联，不会再收到它的testEnded（包括它的结果收集器），按已结束处理
+     */
+    public void hostLost(String host) {
+        log.error("Lost remote host: {} ({})", host, System.currentTimeMillis());
+        JmeterRunEntity jmeterRunEntity = StressTestUtils.jMeterEntity4file.get(fileId);
+        if (jmeterRunEntity != null) {
+            jmeterRunEntity.collectorEnded(host);
+        }
+        hostFinished(host);
+    }
+
+    /**
+     * 压测过程中加入的节点（备用节点接管），在它的testStarted回调之前先计数，
+     * 避免失联节点先结束时所有节点都已结束，压测提前停止。
+     */
+    public void expectHost(String host) {
+        if (startedHosts.add(host)) {
+            started.incrementAndGet();
+        }
+    }
+
+    public boolean hasEnded(String host) {
+        return endedHosts.contains(host);
+    }
+
+    /**
+     * 所有节点都结束后才停止，部分节点结束（或失联）时其他节点继续压测
+     */
+    private void hostFinished(String host) {
+        if (!startedHosts.contains(host) || !endedHosts.add(host)) {
+            return;
+        }
         if (started.decrementAndGet() <= 0) {
             Thread stopSoon = new Thread(this);
             //the calling thread is a daemon; this thread must not be
             //see Bug 59391
             stopSoon.setDaemon(false);
             stopSoon.start();
+            updateEndStatus();
         }
-        updateEndStatus();
     }
 
     @Override
@@ -82,7 +127,9 @@ public class JmeterListenToTest implements TestStateListener,Runnable, Remoteabl
 
     @Override
     public void testStarted(String host) {
-        started.incrementAndGet();
+        if (startedHosts.add(host)) {
+            started.incrementAndGet();
+        }
         final long now = System.currentTimeMillis();
         log.info("Started remote host:  {} ({})",host,now);
     }
@@ -1,18 +1,14 @@
 package io.renren.modules.test.jmeter;
 
 import io.renren.modules.test.entity.StressTestFileEntity;
+import io.renren.modules.test.jmeter.stats.LiveStatsAggregator;
+import io.renren.modules.test.jmeter.writer.SampleResultWriter;
 import io.renren.modules.test.utils.StressTestUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.jmeter.reporters.ResultCollector;
 import org.apache.jmeter.samplers.SampleEvent;
-import org.apache.jmeter.samplers.SampleResult;
-import org.apache.jmeter.visualizers.SamplingStatCalculator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Jmeter执行程序的结果收集类，Jmeter每次执行完都会调用到这里。
  * 相当于观察者模式的观察类，钩子程序
@@ -23,37 +19,30 @@ public class JmeterResultCollector extends ResultCollector {
     protected static final long serialVersionUID = 240L;
 
     /**
-     * 分布式压测时脚本文件共用同一个标识位来标识是否需要测试结果文件或者前端监控。
-     * 所以如果多个脚本文件同时压测这些标识会出现问题。
-     * 因为RMI回调时本地stressTestFile为null。
+     * 所属执行的runId，作为TestElement的属性保存。
+     * 分布式压测时脚本会被克隆（TreeCloner），克隆只保留属性，不保留成员变量，
+     * 所以RMI回调到的是克隆出来的收集器，需要通过runId找到所属的执行。
+     * 原来是所有分布式脚本共用同一个标识位（fileId为0L），多个脚本同时压测会互相覆盖。
      */
-    public static final String SLAVE_NEED_REPORT = "slave_need_report";
-    public static final String SLAVE_NEED_CHART = "slave_need_chart";
-
-    private StressTestFileEntity stressTestFile;
+    public static final String RUN_ID = "JmeterResultCollector.runId";
 
     /**
-     * SamplingStatCalculator 聚合示例数据容器
+     * 所属的执行，第一次用到时根据runId从注册表中获取。
      */
-    private Map<String, SamplingStatCalculator> samplingStatCalculatorMap;
+    private transient volatile JmeterRunEntity jmeterRunEntity;
 
     /**
-     * 为分布式反射使用
+     * 克隆时反射使用
      */
-    public JmeterResultCollector(StressTestFileEntity stressTestFile) {
-        logger.info("进入Jmeter结果收集");
-        samplingStatCalculatorMap = new HashMap<>();
-        this.stressTestFile = stressTestFile;
-        if (StringUtils.isNotEmpty(stressTestFile.getSlaveStr())) {//true表示使用分布式压测
-            logger.info("正在使用分布式压测");
-            StressTestUtils.jMeterStatuses.put(SLAVE_NEED_REPORT,stressTestFile.getReportStatus().toString());
-            StressTestUtils.jMeterStatuses.put(SLAVE_NEED_CHART,stressTestFile.getWebchartStatus().toString());
-            //对于分布式，不再按照脚本文件来区分前端监控，分布式压测不支持master同时压测多个脚本文件的前端区分监控。
-            StressTestUtils.samplingStatCalculator4File.put(0L,samplingStatCalculatorMap);
-        } else {
-            logger.info("未使用分布式压测");
-            StressTestUtils.samplingStatCalculator4File.put(stressTestFile.getFileId(),samplingStatCalculatorMap);
-        }
+    public JmeterResultCollector() {
+        super();
+    }
+
+    public JmeterResultCollector(JmeterRunEntity jmeterRunEntity) {
+        super();
+        logger.info("进入Jmeter结果收集，runId：" + jmeterRunEntity.getRunId());
+        this.jmeterRunEntity = jmeterRunEntity;
+        setProperty(RUN_ID, jmeterRunEntity.getRunId());
     }
 
     /**
@@ -63,49 +52,72 @@ public class JmeterResultCollector extends ResultCollector {
      */
     @Override
     public void sampleOccurred(SampleEvent sampleEvent) {
-        if (stressTestFile != null && StringUtils.isEmpty(stressTestFile.getSlaveStr())) { //单节点压测
-            // 使用父类默认的保存csv/xml结果的方法。未来可能会优化，保存到性能更高的地方。
-            // csv最终的实现是来一个结果，使用PrintWriter写一行(有锁)，保证时序性。
-            // 本质是将信息保存到操作系统的文件内存里，默认是不实时刷新操作系统的文件buffer（Jmeter源码写的）。
-            // 保证时序性+性能交给操作系统，性能应该还OK。毕竟造成的压力和实时锁相比不是一个数量级的。
-            if (StressTestUtils.NEED_REPORT.equals(stressTestFile.getReportStatus())) {
+        JmeterRunEntity runEntity = getJmeterRunEntity();
+        if (runEntity == null) {
+            //所属的执行已经被删除
+            return;
+        }
+        StressTestFileEntity stressTestFile = runEntity.getStressTestFile();
+
+        // csv结果交给本次执行的异步写入，采样线程只是入队，格式化和写文件在写入线程内完成。
+        // 调试模式保存xml格式，量不大，仍然使用父类PrintWriter(有锁)的保存方式。
+        if (StressTestUtils.NEED_REPORT.equals(stressTestFile.getReportStatus())) {
+            SampleResultWriter resultWriter = runEntity.getResultWriter();
+            if (resultWriter != null) {
+                if (isSampleWanted(sampleEvent.getResult().isSuccessful())) {
+                    resultWriter.write(sampleEvent);
+                }
+            } else {
                 super.sampleOccurred(sampleEvent);//父类-->当收到测试结果时，显示并保存它
             }
+        }
 
-            if (StressTestUtils.NEED_WEB_CHART.equals(stressTestFile.getWebchartStatus())) {
-                addSample(sampleEvent);
-            }
-        } else {//分布式压测
-            if (StressTestUtils.NEED_REPORT.toString().equals(StressTestUtils.jMeterStatuses.get(SLAVE_NEED_REPORT))) {
-                super.sampleOccurred(sampleEvent);
-            }
-            if (StressTestUtils.NEED_WEB_CHART.toString().equals(StressTestUtils.jMeterStatuses.get(SLAVE_NEED_CHART))) {
-                samplingStatCalculatorMap = StressTestUtils.samplingStatCalculator4File.get(0L);
-                //全部停止脚本后，samplingStatCalculator4File整个会被清空。
-                addSample(sampleEvent);
-            }
+        if (StressTestUtils.NEED_WEB_CHART.equals(stressTestFile.getWebchartStatus())) {
+            addSample(sampleEvent, runEntity);
         }
     }
 
     /**
-     * 添加sampleResult到监控计算中
-     * 请求的标题，如果压测的项目很多，那么label的数量也一样很多。
+     * 分布式时每个节点的克隆收集器都会调用一次，本机执行调用一次。
      */
-    private void addSample(SampleEvent sampleEvent) {
-        //获取到请求的label，注意不是jmx脚本文件的label，是其中的请求的label，可能包含汉字。
-        SampleResult sampleResult = sampleEvent.getResult();
-        String label = sampleResult.getSampleLabel();
+    @Override
+    public void testStarted(String host) {
+        super.testStarted(host);
+        JmeterRunEntity runEntity = getJmeterRunEntity();
+        if (runEntity != null) {
+            runEntity.collectorStarted(host, getSaveConfig());
+        }
+    }
 
-        //全部停止脚本后，samplingStatCalculator4File整个会被清空。
-        if (samplingStatCalculatorMap != null) {
-            if (samplingStatCalculatorMap.get(label) == null) {
-                samplingStatCalculatorMap.put(label,new SamplingStatCalculator(label));
-            }
-            SamplingStatCalculator samplingStatCalculator = samplingStatCalculatorMap.get(label);
+    @Override
+    public void testEnded(String host) {
+        super.testEnded(host);
+        JmeterRunEntity runEntity = getJmeterRunEntity();
+        if (runEntity != null) {
+            runEntity.collectorEnded(host);
+        }
+    }
 
-            //记录sample 这个计算的过程会消耗CPU,一切为了前端绘图。
-            samplingStatCalculator.addSample(sampleResult);
+    /**
+     * 添加sampleResult到监控计算中
+     * 请求的标题，如果压测的项目很多，那么label的数量也一样很多。
+     */
+    private void addSample(SampleEvent sampleEvent, JmeterRunEntity runEntity) {
+        //停止脚本后，本次执行的监控数据会被清空。
+        LiveStatsAggregator aggregator = runEntity.getLiveStatsAggregator();
+        if (aggregator != null) {
+            //label是其中的请求的label，不是jmx脚本文件的label，可能包含汉字。
+            //采样线程之间不再争抢同一把锁，计算只是原子累加。
+            aggregator.addSample(sampleEvent.getResult());
         }
     }
 
+    private JmeterRunEntity getJmeterRunEntity() {
+        JmeterRunEntity runEntity = jmeterRunEntity;
+        if (runEntity == null) {
+            runEntity = StressTestUtils.jMeterRuns.get(getPropertyAsString(RUN_ID));
+            jmeterRunEntity = runEntity;
+        }
+        return runEntity;
+    }
 }
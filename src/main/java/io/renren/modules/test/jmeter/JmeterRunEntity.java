@@ -4,24 +4,42 @@ import io.renren.common.exception.RRException;
 import io.renren.modules.test.entity.StressTestFileEntity;
 import io.renren.modules.test.entity.StressTestReportsEntity;
 import io.renren.modules.test.jmeter.engine.LocalStandardJMeterEngine;
+import io.renren.modules.test.jmeter.stats.LiveStatsAggregator;
+import io.renren.modules.test.jmeter.stats.RemoteSummaryReceiver;
+import io.renren.modules.test.jmeter.report.IncrementalReport;
+import io.renren.modules.test.jmeter.runner.RemoteEngineMonitor;
+import io.renren.modules.test.jmeter.writer.AsyncCsvResultWriter;
+import io.renren.modules.test.jmeter.writer.AsyncResultWriter;
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.BinaryResultWriter;
+import io.renren.modules.test.jmeter.writer.SampleResultWriter;
 import io.renren.modules.test.utils.StressTestUtils;
 import org.apache.jmeter.engine.JMeterEngine;
 import org.apache.jmeter.engine.StandardJMeterEngine;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
 import org.apache.jmeter.threads.AbstractThreadGroup;
 import org.apache.jmeter.threads.JMeterContextService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
 
 /**
- * 为了执行Jmeter用例而设计的类，每一个脚本文件对应一个JmeterRunEntity对象
+ * 为了执行Jmeter用例而设计的类，脚本文件的每一次执行对应一个JmeterRunEntity对象。
+ * 每次执行都有自己的runId、结果收集及监控数据，多个分布式脚本同时执行时互不影响。
  */
 public class JmeterRunEntity {
     Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * 本次执行的唯一标识，分布式回调时结果收集器据此找到所属的执行。
+     */
+    private final String runId = UUID.randomUUID().toString().replace("-", "");
+
     private StressTestFileEntity stressTestFile;
     private StressTestReportsEntity stressTestReports;
     /**
@@ -29,16 +47,57 @@ public class JmeterRunEntity {
      */
     private JmeterResultCollector jmeterResultCollector;
 
+    /**
+     * 本次执行的前端监控数据，不需要前端监控时为null。
+     */
+    private volatile LiveStatsAggregator liveStatsAggregator;
+
+    /**
+     * 本次执行的测试结果写入，不需要测试报告或者调试模式（xml格式）时为null。
+     */
+    private volatile SampleResultWriter resultWriter;
+
+    /**
+     * 压测过程中增量统计的测试报告数据，没有开启时为null。
+     */
+    private IncrementalReport incrementalReport;
+
+    /**
+     * 已经开始还没有结束的结果收集器所在的节点，分布式时每个节点一个克隆出来的收集器。
+     * 节点失联时收不到它的testEnded，按节点移除，最后一个节点结束或失联时关闭测试结果文件。
+     */
+    private final Set<String> collectorHosts = new HashSet<>();
+
     /**
      * 进行状态，为了和stop配合使用，还是放到了这个对象里。
      */
-    private Integer runStatus = StressTestUtils.INITIAL;
+    private volatile Integer runStatus = StressTestUtils.INITIAL;
 
     /**
      * JMeterEngine是由可以运行jmeter测试的类实现的接口
      */
     private List<JMeterEngine> engines = new LinkedList<>();
 
+    /**
+     * 分布式执行时监控节点机，节点失联时由备用节点接管，本机执行时为null。
+     */
+    private volatile RemoteEngineMonitor remoteEngineMonitor;
+
+    /**
+     * 节点机预聚合时接收各节点的每秒汇总，没有开启时为null。
+     */
+    private volatile RemoteSummaryReceiver summaryReceiver;
+
+    /**
+     * 节点机预聚合时各节点原始结果文件的路径（相对于节点机的stressTestCases目录），没有开启时为null。
+     */
+    private String slaveResultFile;
+
+    /**
+     * 节点机结果文件正在取回合并，合并完成之前脚本保持运行中状态
+     */
+    private volatile boolean slaveResultMerging;
+
     /**
      * 脚本文件所使用的文件名的集合，历史"classinfo.txt"
      */
@@ -73,6 +132,10 @@ public class JmeterRunEntity {
         logger.info("开始停止当前脚本的压力引擎");
         //缓存中变更状态为成功执行
         runStatus = StressTestUtils.RUN_SUCCESS;
+        //先停止监控，停止过程中节点不再被当作失联
+        if (remoteEngineMonitor != null) {
+            remoteEngineMonitor.close();
+        }
         engines.forEach(engine -> {
             if (engine != null) {
                 if (engine instanceof StandardJMeterEngine) {
@@ -93,6 +156,109 @@ public class JmeterRunEntity {
         });
     }
 
+    /**
+     * 不再需要本次执行的监控数据时调用
+     */
+    public void closeLiveStats() {
+        RemoteSummaryReceiver receiver = summaryReceiver;
+        summaryReceiver = null;
+        if (receiver != null) {
+            receiver.close();
+        }
+        LiveStatsAggregator aggregator = liveStatsAggregator;
+        liveStatsAggregator = null;
+        if (aggregator != null) {
+            aggregator.close();
+        }
+    }
+
+    /**
+     * 结果收集器testStarted时调用，第一个收集器开始时打开测试结果文件。
+     */
+    public synchronized void collectorStarted(String host, SampleSaveConfiguration saveConfig) {
+        boolean first = collectorHosts.isEmpty();
+        collectorHosts.add(host);
+        if (!first || resultWriter != null) {
+            return;
+        }
+        if (!StressTestUtils.NEED_REPORT.equals(stressTestFile.getReportStatus())
+                || stressTestReports == null || saveConfig.saveAsXml()) {
+            discardIncrementalReport();
+            return;
+        }
+        File resultFile = stressTestReports.getFile();
+        AsyncResultWriter writer;
+        try {
+            writer = BinaryResultFormat.isBinary(resultFile) ? new BinaryResultWriter(resultFile)
+                    : new AsyncCsvResultWriter(resultFile, saveConfig);
+        } catch (IOException e) {
+            discardIncrementalReport();
+            throw new RRException("打开测试结果文件失败：" + resultFile.getPath(), e);
+        }
+        //写入线程刚启动，还没有测试结果，在这里设置不会漏掉
+        if (incrementalReport != null) {
+            writer.setListener(incrementalReport);
+            StressTestUtils.registerIncrementalReport(resultFile, incrementalReport);
+        }
+        resultWriter = writer;
+    }
+
+    private void discardIncrementalReport() {
+        if (incrementalReport != null) {
+            incrementalReport.discard();
+            incrementalReport = null;
+        }
+    }
+
+    /**
+     * 结果收集器testEnded时或者节点失联时调用，最后一个收集器结束时写完并关闭测试结果文件。
+     */
+    public synchronized void collectorEnded(String host) {
+        if (collectorHosts.remove(host) && collectorHosts.isEmpty()) {
+            closeResultWriter();
+        }
+    }
+
+    /**
+     * 等待已经收到的测试结果全部写入文件。
+     */
+    public void flushResultWriter() {
+        SampleResultWriter writer = resultWriter;
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * 关闭后仍然保留，前端监控还能看到最终的写入情况。
+     */
+    public void closeResultWriter() {
+        SampleResultWriter writer = resultWriter;
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    public void setIncrementalReport(IncrementalReport incrementalReport) {
+        this.incrementalReport = incrementalReport;
+    }
+
+    public SampleResultWriter getResultWriter() {
+        return resultWriter;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public LiveStatsAggregator getLiveStatsAggregator() {
+        return liveStatsAggregator;
+    }
+
+    public void setLiveStatsAggregator(LiveStatsAggregator liveStatsAggregator) {
+        this.liveStatsAggregator = liveStatsAggregator;
+    }
+
     public StressTestFileEntity getStressTestFile() {
         return stressTestFile;
     }
@@ -117,6 +283,51 @@ public class JmeterRunEntity {
         this.engines = engines;
     }
 
+    public RemoteSummaryReceiver getSummaryReceiver() {
+        return summaryReceiver;
+    }
+
+    public void setSummaryReceiver(RemoteSummaryReceiver summaryReceiver) {
+        this.summaryReceiver = summaryReceiver;
+    }
+
+    public synchronized String getSlaveResultFile() {
+        return slaveResultFile;
+    }
+
+    public synchronized void setSlaveResultFile(String slaveResultFile) {
+        this.slaveResultFile = slaveResultFile;
+    }
+
+    /**
+     * 取出节点机结果文件的路径并清空，手动停止和压测结束都会调用stopLocal，只合并一次。
+     * 取出后到合并完成之前isSlaveResultMerging()返回true。
+     */
+    public synchronized String takeSlaveResultFile() {
+        String file = slaveResultFile;
+        slaveResultFile = null;
+        if (file != null) {
+            slaveResultMerging = true;
+        }
+        return file;
+    }
+
+    public boolean isSlaveResultMerging() {
+        return slaveResultMerging;
+    }
+
+    public void slaveResultMerged() {
+        slaveResultMerging = false;
+    }
+
+    public RemoteEngineMonitor getRemoteEngineMonitor() {
+        return remoteEngineMonitor;
+    }
+
+    public void setRemoteEngineMonitor(RemoteEngineMonitor remoteEngineMonitor) {
+        this.remoteEngineMonitor = remoteEngineMonitor;
+    }
+
     public Integer getRunStatus() {
         return runStatus;
     }
@@ -144,7 +355,7 @@ public class JmeterRunEntity {
     /**
      * 返回当前脚本所有的engine的正在活跃的或者已经启动的线程数量
      */
-    public Map getNumberOfActiveThreads() {
+    public Map<String, Integer> getNumberOfActiveThreads() {
         //当前脚本正在执行的active状态的线程数，是以脚本为单位，脚本内如果包含多个请求，则统计整体数量。
         int numberOfActiveThreads = 0;
         int numberOfStartedThreads = 0;
@@ -1,11 +1,16 @@
 package io.renren.modules.test.jmeter;
 
+import io.renren.modules.test.jmeter.stats.LabelSnapshot;
+import io.renren.modules.test.jmeter.stats.LiveStatsAggregator;
+import io.renren.modules.test.jmeter.stats.SecondBucket;
+import io.renren.modules.test.jmeter.writer.ResultWriterStatus;
+import io.renren.modules.test.jmeter.writer.SampleResultWriter;
 import io.renren.modules.test.utils.StressTestUtils;
-import org.apache.jmeter.visualizers.SamplingStatCalculator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -19,16 +24,42 @@ public class JmeterStatEntity {
 
     /**
      * key值是label，即每个请求的名称。
-     * value值是计算值的对象，里面包含每个label所对应的监控计算数据
-     * statMap是在回调时，填充数据
+     * value值是每个label所对应的监控计算数据的快照
+     * 快照在构造时一次性生成，后面各个get方法读到的是同一时刻的数据。
      */
-    private Map<String, SamplingStatCalculator> statMap;
+    private Map<String, LabelSnapshot> statMap;
 
     /**
      * 响应时间相关的监控数据
      */
     private Map<String,String> responseTimesMap = new HashMap<>();
 
+    /**
+     * 最近windowSeconds秒的响应时间百分位，反映当前的响应情况。
+     */
+    private Map<String,String> percentilesMap = new HashMap<>();
+
+    /**
+     * 从压测开始累计的响应时间百分位
+     */
+    private Map<String,String> cumulativePercentilesMap = new HashMap<>();
+
+    /**
+     * 窗口百分位统计的秒数
+     */
+    private int windowSeconds;
+
+    /**
+     * 每个label在since之后新增的秒级数据，是每一秒的增量而不是累计值。
+     * 只有前端传了since才返回，长时间的压测也只传送新增的部分。
+     */
+    private Map<String, List<SecondBucket>> seriesMap = new HashMap<>();
+
+    /**
+     * 本次返回的秒级数据中最后的时间戳，前端下次请求时作为since传入。
+     */
+    private Long lastBucketTime;
+
     /**
      * 每秒通过数（RPS）相关的监控数据
      */
@@ -67,6 +98,11 @@ public class JmeterStatEntity {
      */
     private Map<String,String> totalCountsMap = new HashMap<>();
 
+    /**
+     * 测试结果文件的写入情况，排队、等待和丢弃的数量，丢弃大于0说明测试报告不完整。
+     */
+    private Map<String,String> resultWriterMap = new HashMap<>();
+
     /**
      * 当前是否正在运行
      */
@@ -74,28 +110,42 @@ public class JmeterStatEntity {
 
     private JmeterRunEntity jmeterRunEntity;
 
+    public JmeterStatEntity(Long fileId) {
+        this(fileId, LiveStatsAggregator.DEFAULT_WINDOW_SECONDS, null);
+    }
+
     /**
-     * 对于分布式场景，取到的statMap是总的，即包含了所有脚本执行的label的数据。
+     * 分布式和单机都取脚本最近一次执行的统计数据，分布式时包含了所有节点的数据。
+     *
+     * @param windowSeconds 窗口百分位统计最近多少秒，最多LabelStats.WINDOW_CAPACITY秒
+     * @param since         返回该时间戳之后的秒级数据，为null则不返回秒级数据
      */
-    public JmeterStatEntity(Long fileId, Long fileIdZero) {
-        if (fileIdZero != null) {//分布式情况下
-            this.fileId = fileIdZero;
-            statMap = StressTestUtils.samplingStatCalculator4File.get(fileIdZero);
-        } else { //单机模式下
-            this.fileId = fileId;
-            logger.debug("本测试用例fileId：" + fileId);
-            statMap = StressTestUtils.samplingStatCalculator4File.get(fileId);
-            logger.debug("statMap:" + statMap);
+    public JmeterStatEntity(Long fileId, int windowSeconds, Long since) {
+        this.fileId = fileId;
+        this.windowSeconds = windowSeconds;
+        this.lastBucketTime = since;
+        logger.debug("本测试用例fileId：" + fileId);
+
+        //StressTestUtils.jMeterEntity4file 中保存的是脚本最近一次的执行
+        jmeterRunEntity = StressTestUtils.jMeterEntity4file.get(fileId);
+        LiveStatsAggregator aggregator = jmeterRunEntity == null ? null : jmeterRunEntity.getLiveStatsAggregator();
+        if (aggregator != null) {
+            //生成快照不会阻塞正在写入的采样线程
+            statMap = aggregator.snapshot(windowSeconds);
             logger.debug("statMap.size():" + statMap.size());
-            for (Map.Entry<String,SamplingStatCalculator> m: statMap.entrySet()) {
-                logger.debug("key:" + m.getKey() + " value:" + m.getValue());
+            if (since != null) {
+                seriesMap = aggregator.series(since);
+                for (List<SecondBucket> buckets : seriesMap.values()) {
+                    if (!buckets.isEmpty()) {
+                        long time = buckets.get(buckets.size() - 1).getTime();
+                        if (lastBucketTime == null || time > lastBucketTime) {
+                            lastBucketTime = time;
+                        }
+                    }
+                }
             }
-
-
         }
 
-        //StressTestUtils.jMeterEntity4file 中保存的都是真实的脚本文件信息
-        jmeterRunEntity = StressTestUtils.jMeterEntity4file.get(fileId);
         if (jmeterRunEntity != null) {
             runStatus = jmeterRunEntity.getRunStatus();
             logger.debug("jmeterRunEntity.runStatus=" + runStatus);
@@ -126,17 +176,72 @@ public class JmeterStatEntity {
         this.responseTimesMap = responseTimesMap;
     }
 
+    /**
+     * 窗口百分位是最近windowSeconds秒内的分布，压测中途响应变慢时能马上体现出来，
+     * 累计的百分位则会被之前的大量请求平均掉。
+     */
+    public Map<String, String> getPercentilesMap() {
+        if (statMap != null) {
+            statMap.forEach((k,v)->{
+                percentilesMap.put(k + "_P90(ms)", String.valueOf(v.getWindowP90()));
+                percentilesMap.put(k + "_P95(ms)", String.valueOf(v.getWindowP95()));
+                percentilesMap.put(k + "_P99(ms)", String.valueOf(v.getWindowP99()));
+                percentilesMap.put(k + "_Max(ms)", String.valueOf(v.getWindowMax()));
+            });
+        }
+        return percentilesMap;
+    }
+
+    public void setPercentilesMap(Map<String, String> percentilesMap) {
+        this.percentilesMap = percentilesMap;
+    }
+
+    public Map<String, String> getCumulativePercentilesMap() {
+        if (statMap != null) {
+            statMap.forEach((k,v)->{
+                cumulativePercentilesMap.put(k + "_P90(ms)", String.valueOf(v.getP90()));
+                cumulativePercentilesMap.put(k + "_P95(ms)", String.valueOf(v.getP95()));
+                cumulativePercentilesMap.put(k + "_P99(ms)", String.valueOf(v.getP99()));
+                cumulativePercentilesMap.put(k + "_Max(ms)", String.valueOf(v.getMax()));
+                cumulativePercentilesMap.put(k + "_Min(ms)", String.valueOf(v.getMin()));
+            });
+        }
+        return cumulativePercentilesMap;
+    }
+
+    public void setCumulativePercentilesMap(Map<String, String> cumulativePercentilesMap) {
+        this.cumulativePercentilesMap = cumulativePercentilesMap;
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    public void setWindowSeconds(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+    public Map<String, List<SecondBucket>> getSeriesMap() {
+        return seriesMap;
+    }
+
+    public void setSeriesMap(Map<String, List<SecondBucket>> seriesMap) {
+        this.seriesMap = seriesMap;
+    }
+
+    public Long getLastBucketTime() {
+        return lastBucketTime;
+    }
+
+    public void setLastBucketTime(Long lastBucketTime) {
+        this.lastBucketTime = lastBucketTime;
+    }
+
     public Map<String,String> getThroughputMap() {
         if (statMap != null) {
             statMap.forEach((k,v) -> {
                 throughputMap.put(k + "_Rps(OK)",String.format("%.2f",v.getRate()));
-
-                double howLongRunning = 0.0;
-                if (v.getRate() > -1e-6) {//double大于0
-                    howLongRunning = (1000.0 * v.getCount()) / v.getRate();
-                }
-                double errorRps =((double)v.getErrorCount()/howLongRunning) *1000.0;
-                throughputMap.put(k + "_Rps(KO)",String.format("%.2f",errorRps));
+                throughputMap.put(k + "_Rps(KO)",String.format("%.2f",v.getErrorRate()));
             });
         }
         return throughputMap;
@@ -150,7 +255,7 @@ public class JmeterStatEntity {
     public Map<String,String> getNetworkSentMap() {
         if (statMap != null) {
             for (String key : statMap.keySet()) {
-                SamplingStatCalculator calculator = statMap.get(key);
+                LabelSnapshot calculator = statMap.get(key);
                 networkSentMap.put(key + "(Sent)",String.format("%.2f",calculator.getSentKBPerSecond()));
             }
         }
@@ -164,8 +269,8 @@ public class JmeterStatEntity {
     public Map<String,String> getNetworkReceiveMap() {
         if (statMap != null) {
             for (String key : statMap.keySet()) {
-                SamplingStatCalculator calculator = statMap.get(key);
-                networkReceiveMap.put(key + "(Received)",String.format("%.2f",calculator.getKBPerSecond()));
+                LabelSnapshot calculator = statMap.get(key);
+                networkReceiveMap.put(key + "(Received)",String.format("%.2f",calculator.getReceivedKBPerSecond()));
             }
         }
         return networkReceiveMap;
@@ -184,11 +289,11 @@ public class JmeterStatEntity {
         double successPercent = 1.0;
         if (statMap != null) {
             for (String key : statMap.keySet()) {
-                SamplingStatCalculator calculator = statMap.get(key);
+                LabelSnapshot calculator = statMap.get(key);
                 totalCount += calculator.getCount();
             }
             for (String key : statMap.keySet()) {
-                SamplingStatCalculator calculator = statMap.get(key);
+                LabelSnapshot calculator = statMap.get(key);
                 long errorCount = calculator.getErrorCount();
                 double errorPercent = Double.parseDouble(String.format("%.2f", ((double) errorCount / (double) totalCount)));
                 successPercentageMap.put(key + "_ErrorPercent",String.valueOf(errorPercent));
@@ -206,7 +311,7 @@ public class JmeterStatEntity {
     public Map<String, String> getErrorPercentageMap() {
         if (statMap != null) {
             for (String key : statMap.keySet()) {
-                SamplingStatCalculator calculator = statMap.get(key);
+                LabelSnapshot calculator = statMap.get(key);
                 errorPercentageMap.put(key + "_ErrorPercent", String.format("%.2f", calculator.getErrorPercentage()));
             }
         }
@@ -243,7 +348,7 @@ public class JmeterStatEntity {
     public Map<String, String> getTotalCountsMap() {
         if (statMap != null) {
             for (String key : statMap.keySet()) {
-                SamplingStatCalculator calculator = statMap.get(key);
+                LabelSnapshot calculator = statMap.get(key);
                 long totalCount = calculator.getCount();
                 totalCountsMap.put(key + "_总请求数", String.valueOf(totalCount));
             }
@@ -255,6 +360,23 @@ public class JmeterStatEntity {
         this.totalCountsMap = totalCountsMap;
     }
 
+    public Map<String, String> getResultWriterMap() {
+        SampleResultWriter resultWriter = jmeterRunEntity == null ? null : jmeterRunEntity.getResultWriter();
+        if (resultWriter != null) {
+            ResultWriterStatus status = resultWriter.getStatus();
+            resultWriterMap.put("Written", String.valueOf(status.getWritten()));
+            resultWriterMap.put("Queued", String.valueOf(status.getQueued()));
+            resultWriterMap.put("Capacity", String.valueOf(status.getCapacity()));
+            resultWriterMap.put("Waited", String.valueOf(status.getWaited()));
+            resultWriterMap.put("Dropped", String.valueOf(status.getDropped()));
+        }
+        return resultWriterMap;
+    }
+
+    public void setResultWriterMap(Map<String, String> resultWriterMap) {
+        this.resultWriterMap = resultWriterMap;
+    }
+
     public Integer getRunStatus() {
         return runStatus;
     }
@@ -0,0 +1,105 @@
+package io.renren.modules.test.jmeter;
+
+import org.apache.jmeter.JMeter;
+import org.apache.jmeter.engine.TreeCloner;
+import org.apache.jmeter.save.SaveService;
+import org.apache.jorphan.collections.HashTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 解析并转换（JMeter.convertSubTree）之后的脚本缓存。
+ * 定时任务、反复启动同一个脚本时不再重新解析XML，每次执行拿到的是TreeCloner深度克隆的副本，
+ * 执行过程中对脚本的修改（结果收集器、线程组的持续时间等）不会影响缓存。
+ * <p>
+ * key是文件的MD5加上文件大小、修改时间，文件被替换后自然不再命中。
+ * 按最近使用淘汰，条数和脚本文件的总大小（近似内存占用）都有上限。
+ * Include控制器引用的外部脚本在转换时已经合并，只修改外部脚本不会让缓存失效。
+ */
+public class JmxTreeCache {
+
+    private static final Logger log = LoggerFactory.getLogger(JmxTreeCache.class);
+
+    private static final int MAX_ENTRIES = 32;
+
+    /**
+     * 缓存的脚本文件总大小上限，超过的单个脚本不缓存
+     */
+    private static final long MAX_TOTAL_BYTES = 32L * 1024 * 1024;
+
+    private static final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long totalBytes;
+
+    /**
+     * 获取脚本的一份可修改的副本
+     *
+     * @param fileMd5 脚本文件的MD5，为空时只按文件路径、大小、修改时间缓存
+     */
+    public static HashTree load(File jmxFile, String fileMd5) throws IOException {
+        String key = (fileMd5 == null ? jmxFile.getAbsolutePath() : fileMd5)
+                + "|" + jmxFile.length() + "|" + jmxFile.lastModified();
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        if (entry == null) {
+            HashTree tree = SaveService.loadTree(jmxFile);
+            //删除禁用的元素,用目标子树替换可替换控制器
+            JMeter.convertSubTree(tree);
+            entry = new Entry(tree, jmxFile.length());
+            put(key, entry);
+        } else {
+            log.debug("脚本命中缓存：" + jmxFile.getName());
+        }
+        //false 是如果test Element的类型node,也会clone.
+        TreeCloner cloner = new TreeCloner(false);
+        synchronized (entry) {
+            entry.tree.traverse(cloner);
+        }
+        return cloner.getClonedTree();
+    }
+
+    private static void put(String key, Entry entry) {
+        if (entry.bytes > MAX_TOTAL_BYTES) {
+            return;
+        }
+        synchronized (cache) {
+            Entry previous = cache.put(key, entry);
+            if (previous != null) {
+                totalBytes -= previous.bytes;
+            }
+            totalBytes += entry.bytes;
+            Iterator<Entry> it = cache.values().iterator();
+            while ((cache.size() > MAX_ENTRIES || totalBytes > MAX_TOTAL_BYTES) && it.hasNext()) {
+                Entry eldest = it.next();
+                if (eldest == entry) {
+                    continue;
+                }
+                totalBytes -= eldest.bytes;
+                it.remove();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final HashTree tree;
+
+        private final long bytes;
+
+        Entry(HashTree tree, long bytes) {
+            this.tree = tree;
+            this.bytes = bytes;
+        }
+    }
+
+    private JmxTreeCache() {
+    }
+}
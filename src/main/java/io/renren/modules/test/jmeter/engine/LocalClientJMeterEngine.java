@@ -0,0 +1,239 @@
+package io.renren.modules.test.jmeter.engine;
+
+import org.apache.jmeter.engine.ClientJMeterEngine;
+import org.apache.jmeter.engine.ConvertListeners;
+import org.apache.jmeter.engine.JMeterEngine;
+import org.apache.jmeter.engine.JMeterEngineException;
+import org.apache.jmeter.engine.PreCompiler;
+import org.apache.jmeter.engine.RemoteJMeterEngine;
+import org.apache.jmeter.engine.TreeCloner;
+import org.apache.jmeter.engine.TurnElementsOn;
+import org.apache.jmeter.rmi.RmiUtils;
+import org.apache.jmeter.services.FileServer;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jorphan.collections.HashTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 从Jmeter源码ClientJMeterEngine复制来的，为的是分布式启动时各节点同时开始压测。
+ * <p>
+ * 源码的runTest()一次完成预编译、发送脚本（rconfigure）、发送属性和启动（rrunTest），
+ * 节点多时最后一个节点要等前面所有节点的脚本都发送完才启动。
+ * 这里拆成prepare()和runTest()：prepare()在初始化阶段完成启动前的所有远程调用，
+ * runTest()只剩下一次很小的rrunTest调用，由LocalDistributedRunner在所有节点准备好之后同时调用。
+ */
+public class LocalClientJMeterEngine implements JMeterEngine {
+    private static final Logger log = LoggerFactory.getLogger(LocalClientJMeterEngine.class);
+
+    /**
+     * 和RemoteJMeterEngineImpl.JMETER_ENGINE_RMI_NAME相同，源码中不是public的
+     */
+    private static final String JMETER_ENGINE_RMI_NAME = "JMeterEngine"; // $NON-NLS-1$
+
+    /**
+     * 和源码一样加锁，See https://bz.apache.org/bugzilla/show_bug.cgi?id=48350
+     * 预编译、JMeterContextService、FileServer都是静态的全局状态，多个节点并行准备时只锁这一部分，
+     * 网络调用rconfigure不在锁内，各节点并行发送。
+     */
+    private static final Object LOCK = new Object();
+
+    private RemoteJMeterEngine remote;
+
+    private HashTree test;
+
+    private final String host;
+
+    private Properties savep;
+
+    private volatile boolean prepared;
+
+    private static RemoteJMeterEngine getEngine(String h) throws RemoteException, NotBoundException {
+        final String name = JMETER_ENGINE_RMI_NAME;
+        String host = h;
+        int port = RmiUtils.DEFAULT_RMI_PORT;
+        int indexOfSeparator = h.indexOf(':');
+        if (indexOfSeparator >= 0) {
+            host = h.substring(0, indexOfSeparator);
+            String portAsString = h.substring(indexOfSeparator + 1);
+            port = Integer.parseInt(portAsString);
+        }
+        Registry registry = LocateRegistry.getRegistry(
+                host,
+                port,
+                RmiUtils.createClientSocketFactory());
+        Remote remobj = registry.lookup(name);
+        if (remobj instanceof RemoteJMeterEngine) {
+            return (RemoteJMeterEngine) remobj;
+        }
+        throw new RemoteException("Could not find " + name);
+    }
+
+    public LocalClientJMeterEngine(String host) throws NotBoundException, RemoteException {
+        this.remote = getEngine(host);
+        this.host = host;
+    }
+
+    @Override
+    public void configure(HashTree testTree) {
+        TreeCloner cloner = new TreeCloner(false);
+        testTree.traverse(cloner);
+        test = cloner.getClonedTree();
+    }
+
+    /**
+     * 启动前的准备：预编译脚本，把脚本和属性发送到节点机。
+     */
+    public void prepare() throws JMeterEngineException {
+        log.info("preparing client engine for {}", host);
+        HashTree testTree = test;
+
+        String methodName = "unknown";
+        try {
+            File baseDirRelative;
+            String scriptName;
+            synchronized (LOCK) {
+                PreCompiler compiler = new PreCompiler(true);
+                testTree.traverse(compiler);  // limit the changes to client only test elements
+                JMeterContextService.initClientSideVariables(compiler.getClientSideVariables());
+                testTree.traverse(new TurnElementsOn());
+                testTree.traverse(new ConvertListeners());
+
+                JMeterContextService.startTest();
+                baseDirRelative = FileServer.getFileServer().getBaseDirRelative();
+                scriptName = FileServer.getFileServer().getScriptName();
+            }
+            //每个节点都有自己克隆的脚本，发送时不需要加锁
+            methodName = "rconfigure()"; // NOSONAR Used for tracing
+            remote.rconfigure(testTree, host, baseDirRelative, scriptName);
+            log.info("sent test to {} basedir='{}'", host, baseDirRelative); // $NON-NLS-1$
+            if (savep == null) {
+                savep = new Properties();
+            }
+            log.info("Sending properties {}", savep);
+            try {
+                methodName = "rsetProperties()";// NOSONAR Used for tracing
+                remote.rsetProperties(toHashMapOfString(savep));
+            } catch (RemoteException e) {
+                log.warn("Could not set properties: {}, error:{}", savep, e.getMessage(), e);
+            }
+            prepared = true;
+        } catch (IllegalStateException ex) {
+            log.error("Error in {} method ", methodName, ex); // $NON-NLS-1$ $NON-NLS-2$
+            ClientJMeterEngine.tidyRMI(log);
+            throw ex; // Don't wrap this error - display it as is
+        } catch (Exception ex) {
+            log.error("Error in {} method", methodName, ex); // $NON-NLS-1$ $NON-NLS-2$
+            ClientJMeterEngine.tidyRMI(log);
+            throw new JMeterEngineException("Error in " + methodName + " method " + ex, ex); // $NON-NLS-1$ $NON-NLS-2$
+        }
+    }
+
+    private static HashMap<String, String> toHashMapOfString(Properties properties) {
+        HashMap<String, String> map = new HashMap<>(properties.size());
+        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+            map.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+        }
+        return map;
+    }
+
+    /**
+     * 已经prepare()时只发送启动命令，否则和源码一样全部完成。
+     */
+    @Override
+    public void runTest() throws JMeterEngineException {
+        if (!prepared) {
+            // See https://bz.apache.org/bugzilla/show_bug.cgi?id=55510
+            JMeterContextService.clearTotalThreads();
+            prepare();
+        }
+        try {
+            remote.rrunTest();
+            log.info("sent run command to {}", host);
+        } catch (IllegalStateException ex) {
+            log.error("Error in rrunTest() method ", ex); // $NON-NLS-1$ $NON-NLS-2$
+            ClientJMeterEngine.tidyRMI(log);
+            throw ex;
+        } catch (Exception ex) {
+            log.error("Error in rrunTest() method", ex); // $NON-NLS-1$ $NON-NLS-2$
+            ClientJMeterEngine.tidyRMI(log);
+            throw new JMeterEngineException("Error in rrunTest() method " + ex, ex); // $NON-NLS-1$ $NON-NLS-2$
+        }
+    }
+
+    @Override
+    public void stopTest(boolean now) {
+        log.info("about to {} remote test on {}", now ? "stop" : "shutdown", host);
+        try {
+            remote.rstopTest(now);
+        } catch (Exception ex) {
+            log.error("", ex); // $NON-NLS-1$
+        }
+    }
+
+    @Override
+    public void reset() {
+        try {
+            try {
+                remote.rreset();
+            } catch (java.rmi.ConnectException e) {
+                log.info("Retry reset after: {}", e.getMessage());
+                remote = getEngine(host);
+                remote.rreset();
+            }
+        } catch (Exception ex) {
+            log.error("Failed to reset remote engine", ex); // $NON-NLS-1$
+        }
+    }
+
+    @Override
+    public void exit() {
+        log.info("about to exit remote server on {}", host);
+        try {
+            remote.rexit();
+        } catch (RemoteException e) {
+            log.warn("Could not perform remote exit: {}", e.toString());
+        }
+    }
+
+    @Override
+    public void setProperties(Properties p) {
+        savep = p;
+        // Sent later
+    }
+
+    @Override
+    public boolean isActive() {
+        return true;
+    }
+
+    /**
+     * 节点机的Jmeter进程是否还在：重新查找远程对象，和当前使用的是同一个对象。
+     * 进程退出、网络不通时查找失败，进程重启过时查找到的是新的对象，都说明正在执行的压测已经没有了。
+     */
+    public boolean isAlive() {
+        try {
+            return remote.equals(getEngine(host));
+        } catch (RemoteException | NotBoundException e) {
+            log.warn("remote engine {} is not reachable: {}", host, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * @return host the engine will run on
+     */
+    public String getHost() {
+        return host;
+    }
+}
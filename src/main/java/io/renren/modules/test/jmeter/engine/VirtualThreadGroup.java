@@ -0,0 +1,363 @@
+package io.renren.modules.test.jmeter.engine;
+
+import org.apache.jmeter.engine.StandardJMeterEngine;
+import org.apache.jmeter.engine.TreeCloner;
+import org.apache.jmeter.testelement.property.PropertyIterator;
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.JMeterThread;
+import org.apache.jmeter.threads.ListenerNotifier;
+import org.apache.jmeter.threads.ThreadGroup;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.collections.HashTree;
+import org.apache.jorphan.collections.ListedHashTree;
+import org.apache.jorphan.util.JMeterStopTestException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用虚拟线程执行JMeterThread的线程组，配置和Jmeter的ThreadGroup完全相同。
+ * <p>
+ * ThreadGroup为每个虚拟用户创建一个平台线程，单机几千个用户时线程栈内存和线程切换先成为瓶颈。
+ * ThreadGroup创建线程的方法都是私有的，所以这里重新实现了启动、停止和等待线程结束，线程的创建交给Factory：
+ * JDK支持虚拟线程（21及以上）时使用虚拟线程；否则退回到平台线程，线程栈使用较小的virtualthread.fallback_stack_size。
+ * 每个用户都是阻塞执行到结束的JMeterThread，没有虚拟线程时不能多个用户共用一个线程，所以退回的不是线程池。
+ * <p>
+ * 执行前由replaceThreadGroups替换脚本中的普通线程组，本机和节点机都使用同一个类，
+ * 节点机上的类由SlaveAgentJar部署，和SlaveSummaryCollector一样只能依赖Jmeter和JDK，不能使用匿名内部类。
+ */
+public class VirtualThreadGroup extends ThreadGroup {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadGroup.class);
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long WAIT_TO_DIE = JMeterUtils.getPropDefault("jmeterengine.threadstop.wait", 5 * 1000); // $NON-NLS-1$
+
+    private transient Map<JMeterThread, Thread> allThreads = new ConcurrentHashMap<>();
+
+    private transient volatile boolean running;
+
+    private transient volatile Thread threadStarter;
+
+    private transient int groupNumber;
+
+    private transient ListenerNotifier notifier;
+
+    private transient ListedHashTree threadGroupTree;
+
+    /**
+     * 把脚本中的普通线程组（不包括setUp/tearDown线程组和插件的线程组）替换为VirtualThreadGroup
+     *
+     * @return 替换的线程组数量
+     */
+    public static int replaceThreadGroups(HashTree tree) {
+        int count = 0;
+        for (Object key : new ArrayList<>(tree.list())) {
+            if (key != null && key.getClass() == ThreadGroup.class) {
+                tree.replaceKey(key, copyOf((ThreadGroup) key));
+                count++;
+            } else {
+                count += replaceThreadGroups(tree.getTree(key));
+            }
+        }
+        return count;
+    }
+
+    private static VirtualThreadGroup copyOf(ThreadGroup group) {
+        VirtualThreadGroup virtualThreadGroup = new VirtualThreadGroup();
+        PropertyIterator iterator = group.propertyIterator();
+        while (iterator.hasNext()) {
+            virtualThreadGroup.setProperty(iterator.next().clone());
+        }
+        return virtualThreadGroup;
+    }
+
+    @Override
+    public void start(int groupNum, ListenerNotifier notifier, ListedHashTree threadGroupTree,
+                      StandardJMeterEngine engine) {
+        this.running = true;
+        this.groupNumber = groupNum;
+        this.notifier = notifier;
+        this.threadGroupTree = threadGroupTree;
+        int numThreads = getNumThreads();
+        float perThreadDelayInMillis = (float) (getRampUp() * 1000) / (float) numThreads;
+        JMeterContext context = JMeterContextService.getContext();
+        long now = System.currentTimeMillis();
+        //ThreadGroup.isDelayedStartup()是私有的
+        boolean delayedStartup = getPropertyAsBoolean(DELAYED_START);
+        log.info("Starting virtual thread group... number={} threads={} ramp-up={} delayedStart={} virtual={}",
+                groupNumber, numThreads, getRampUp(), delayedStartup, Factory.isVirtual());
+        if (delayedStartup) {
+            //按启动时间依次创建，没到时间的用户不占用内存
+            Thread starter = Factory.newThread(() -> startDelayed(engine, context, now, perThreadDelayInMillis),
+                    getName() + "-ThreadStarter");
+            threadStarter = starter;
+            starter.start();
+        } else {
+            for (int threadNum = 0; running && threadNum < numThreads; threadNum++) {
+                startNewThread(engine, threadNum, context, now, (int) (threadNum * perThreadDelayInMillis));
+            }
+        }
+    }
+
+    private void startDelayed(StandardJMeterEngine engine, JMeterContext context, long start,
+                              float perThreadDelayInMillis) {
+        JMeterContextService.getContext().setVariables(context.getVariables());
+        long delay = getScheduler() ? getDelay() * 1000 : 0L;
+        int numThreads = getNumThreads();
+        try {
+            for (int threadNum = 0; running && threadNum < numThreads; threadNum++) {
+                long wait = start + delay + (long) (threadNum * perThreadDelayInMillis) - System.currentTimeMillis();
+                if (wait > 0) {
+                    TimeUnit.MILLISECONDS.sleep(wait);
+                }
+                if (running) {
+                    startNewThread(engine, threadNum, context, start, 0);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private JMeterThread startNewThread(StandardJMeterEngine engine, int threadNum, JMeterContext context,
+                                        long now, int delay) {
+        JMeterThread jmThread = makeThread(engine, threadNum, context);
+        scheduleThread(jmThread, now);
+        jmThread.setInitialDelay(delay);
+        Thread newThread = Factory.newThread(jmThread, jmThread.getThreadName());
+        allThreads.put(jmThread, newThread);
+        newThread.start();
+        return jmThread;
+    }
+
+    private JMeterThread makeThread(StandardJMeterEngine engine, int threadNum, JMeterContext context) {
+        JMeterThread jmeterThread = new JMeterThread(cloneTree(threadGroupTree), this, notifier);
+        jmeterThread.setThreadNum(threadNum);
+        jmeterThread.setThreadGroup(this);
+        jmeterThread.setInitialContext(context);
+        jmeterThread.setThreadName(getName() + " " + groupNumber + "-" + (threadNum + 1));
+        jmeterThread.setEngine(engine);
+        jmeterThread.setOnErrorStopTest(getOnErrorStopTest());
+        jmeterThread.setOnErrorStopTestNow(getOnErrorStopTestNow());
+        jmeterThread.setOnErrorStopThread(getOnErrorStopThread());
+        jmeterThread.setOnErrorStartNextLoop(getOnErrorStartNextLoop());
+        return jmeterThread;
+    }
+
+    /**
+     * 和ThreadGroup一致，调度器的开始时间从线程组启动时算起
+     */
+    private void scheduleThread(JMeterThread thread, long now) {
+        if (!getScheduler()) {
+            return;
+        }
+        if (getDelay() < 0) {
+            throw new JMeterStopTestException("Invalid delay " + getDelay() + " set in Thread Group:" + getName());
+        }
+        thread.setStartTime(getDelay() * 1000 + now);
+        if (getDuration() <= 0) {
+            throw new JMeterStopTestException("Invalid duration " + getDuration() + " set in Thread Group:" + getName());
+        }
+        thread.setEndTime(getDuration() * 1000 + thread.getStartTime());
+        thread.setScheduled(true);
+    }
+
+    private ListedHashTree cloneTree(ListedHashTree tree) {
+        TreeCloner cloner = new TreeCloner(true);
+        tree.traverse(cloner);
+        return cloner.getClonedTree();
+    }
+
+    @Override
+    public JMeterThread addNewThread(int delay, StandardJMeterEngine engine) {
+        long now = System.currentTimeMillis();
+        JMeterContext context = JMeterContextService.getContext();
+        int numThreads;
+        synchronized (this) {
+            numThreads = getNumThreads();
+            setNumThreads(numThreads + 1);
+        }
+        JMeterThread newJmThread = startNewThread(engine, numThreads, context, now, delay);
+        JMeterContextService.addTotalThreads(1);
+        log.info("Started new thread in group {}", groupNumber);
+        return newJmThread;
+    }
+
+    @Override
+    public boolean stopThread(String threadName, boolean now) {
+        for (Map.Entry<JMeterThread, Thread> entry : allThreads.entrySet()) {
+            if (entry.getKey().getThreadName().equals(threadName)) {
+                stopThread(entry.getKey(), entry.getValue(), now);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void stopThread(JMeterThread jmeterThread, Thread jvmThread, boolean interrupt) {
+        jmeterThread.stop();
+        jmeterThread.interrupt();
+        if (interrupt && jvmThread != null) {
+            jvmThread.interrupt();
+        }
+    }
+
+    @Override
+    public void threadFinished(JMeterThread thread) {
+        allThreads.remove(thread);
+    }
+
+    @Override
+    public void tellThreadsToStop() {
+        running = false;
+        interruptStarter();
+        for (Map.Entry<JMeterThread, Thread> entry : allThreads.entrySet()) {
+            stopThread(entry.getKey(), entry.getValue(), true);
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        interruptStarter();
+        for (JMeterThread item : allThreads.keySet()) {
+            item.stop();
+        }
+    }
+
+    private void interruptStarter() {
+        Thread starter = threadStarter;
+        if (starter != null) {
+            starter.interrupt();
+        }
+    }
+
+    @Override
+    public int numberOfActiveThreads() {
+        return allThreads.size();
+    }
+
+    @Override
+    public boolean verifyThreadsStopped() {
+        boolean stoppedAll = verifyThreadStopped(threadStarter);
+        for (Thread thread : allThreads.values()) {
+            stoppedAll = verifyThreadStopped(thread) && stoppedAll;
+        }
+        return stoppedAll;
+    }
+
+    private boolean verifyThreadStopped(Thread thread) {
+        if (thread != null && thread.isAlive()) {
+            try {
+                thread.join(WAIT_TO_DIE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                log.warn("Thread won't exit: {}", thread.getName());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void waitThreadsStopped() {
+        waitThreadStopped(threadStarter);
+        for (Thread thread : allThreads.values()) {
+            waitThreadStopped(thread);
+        }
+    }
+
+    private void waitThreadStopped(Thread thread) {
+        if (thread != null) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join(WAIT_TO_DIE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * 反序列化（发送到节点机）不会执行字段的初始化
+     */
+    private Object readResolve() {
+        allThreads = new ConcurrentHashMap<>();
+        return this;
+    }
+
+    /**
+     * 创建执行JMeterThread的线程。项目按Java 8编译，虚拟线程的API通过反射调用。
+     */
+    public static final class Factory {
+
+        /**
+         * 没有虚拟线程时平台线程的栈大小，0表示使用JVM的默认值（-Xss）
+         */
+        public static final String FALLBACK_STACK_SIZE = "virtualthread.fallback_stack_size"; // $NON-NLS-1$
+
+        private static final long STACK_SIZE = JMeterUtils.getPropDefault(FALLBACK_STACK_SIZE, 256 * 1024);
+
+        private static final Method OF_VIRTUAL;
+
+        private static final Method NAME;
+
+        private static final Method UNSTARTED;
+
+        static {
+            Method ofVirtual = null;
+            Method name = null;
+            Method unstarted = null;
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                //JDK 19、20上是预览特性，没有--enable-preview时这里抛出异常
+                unstarted.invoke(name.invoke(ofVirtual.invoke(null), "virtual-thread-check"), (Runnable) () -> {
+                });
+            } catch (Exception | LinkageError e) {
+                log.info("virtual threads are not available, falling back to platform threads: {}", e.toString());
+                ofVirtual = null;
+            }
+            OF_VIRTUAL = ofVirtual;
+            NAME = name;
+            UNSTARTED = unstarted;
+        }
+
+        public static boolean isVirtual() {
+            return OF_VIRTUAL != null;
+        }
+
+        /**
+         * @return 未启动的线程
+         */
+        public static Thread newThread(Runnable runnable, String name) {
+            if (OF_VIRTUAL != null) {
+                try {
+                    return (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), runnable);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("cannot create virtual thread", e);
+                }
+            }
+            Thread thread = new Thread(null, runnable, name, STACK_SIZE);
+            thread.setDaemon(false);
+            return thread;
+        }
+
+        private Factory() {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.BinaryResultReader;
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleException;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.report.processor.SampleConsumer;
+import org.apache.jmeter.report.processor.SampleContext;
+import org.apache.jmeter.report.processor.SampleSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 直接读取二进制测试结果文件的SampleSource，替代CsvFileSampleSource。
+ * 不需要再做csv的分词、去引号，读出来就是按列的数据。
+ */
+public class BinaryFileSampleSource implements SampleSource {
+
+    private static final Logger log = LoggerFactory.getLogger(BinaryFileSampleSource.class);
+
+    private final File file;
+
+    private final SampleMetadata metadata;
+
+    private SampleContext sampleContext;
+
+    private List<SampleConsumer> sampleConsumers = new ArrayList<>();
+
+    public BinaryFileSampleSource(File file, char separator) {
+        this.file = file;
+        this.metadata = new SampleMetadata(separator, BinaryResultFormat.COLUMNS);
+    }
+
+    @Override
+    public void run() {
+        for (SampleConsumer consumer : sampleConsumers) {
+            consumer.setSampleContext(sampleContext);
+            consumer.setConsumedMetadata(metadata, 0);
+            consumer.startConsuming();
+        }
+        long row = 0;
+        long start = System.currentTimeMillis();
+        try (BinaryResultReader reader = new BinaryResultReader(file)) {
+            String[] data;
+            while ((data = reader.next()) != null) {
+                Sample sample = new Sample(row++, metadata, data);
+                for (SampleConsumer consumer : sampleConsumers) {
+                    consumer.consume(sample, 0);
+                }
+            }
+        } catch (IOException e) {
+            throw new SampleException("读取二进制测试结果文件失败：" + file.getPath(), e);
+        }
+        for (SampleConsumer consumer : sampleConsumers) {
+            consumer.stopConsuming();
+        }
+        log.info("二进制测试结果读取完成，共" + row + "条，耗时" + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    @Override
+    public SampleContext getSampleContext() {
+        return sampleContext;
+    }
+
+    @Override
+    public void setSampleContext(SampleContext sampleContext) {
+        this.sampleContext = sampleContext;
+    }
+
+    @Override
+    public void setSampleConsumers(List<SampleConsumer> consumers) {
+        this.sampleConsumers = consumers;
+    }
+
+    @Override
+    public void addSampleConsumer(SampleConsumer consumer) {
+        sampleConsumers.add(consumer);
+    }
+
+    @Override
+    public void removeSampleConsumer(SampleConsumer consumer) {
+        sampleConsumers.remove(consumer);
+    }
+}
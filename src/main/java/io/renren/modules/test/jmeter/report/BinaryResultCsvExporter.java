@@ -0,0 +1,82 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.BinaryResultReader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 把二进制测试结果按需转换成Jmeter的csv/jtl格式。
+ * 边读边写，不落临时文件，不占用内存，用于下载和Jmeter命令行生成报告。
+ */
+public class BinaryResultCsvExporter {
+
+    private final char separator;
+
+    public BinaryResultCsvExporter(char separator) {
+        this.separator = separator;
+    }
+
+    /**
+     * 输出流由调用方关闭
+     *
+     * @return 转换的记录数
+     */
+    public long export(File binaryFile, OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), 256 * 1024);
+        writeRow(writer, BinaryResultFormat.COLUMNS);
+        long count = 0;
+        try (BinaryResultReader reader = new BinaryResultReader(binaryFile)) {
+            String[] row;
+            while ((row = reader.next()) != null) {
+                writeRow(writer, row);
+                count++;
+            }
+        }
+        writer.flush();
+        return count;
+    }
+
+    private void writeRow(Writer writer, String[] row) throws IOException {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                writer.write(separator);
+            }
+            writeField(writer, row[i]);
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * 和CSVSaveService一致，包含分隔符、引号、换行的字段用引号括起来，引号写两次。
+     */
+    private void writeField(Writer writer, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == separator || c == '"' || c == '\n' || c == '\r') {
+                quote = true;
+                break;
+            }
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,123 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.CompressedResultFormat;
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleException;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.report.processor.SampleConsumer;
+import org.apache.jmeter.report.processor.SampleContext;
+import org.apache.jmeter.report.processor.SampleSource;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.save.CSVSaveService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 边解压边读取压缩csv测试结果文件（.csv.gz）的SampleSource，替代CsvFileSampleSource。
+ * CsvSampleReader只能从文件读取，这里按它的方式解析表头和每一行，不需要先解压到磁盘。
+ */
+public class CompressedCsvSampleSource implements SampleSource {
+
+    private static final Logger log = LoggerFactory.getLogger(CompressedCsvSampleSource.class);
+
+    private static final int BUF_SIZE = 1024 * 1024;
+
+    private final File file;
+
+    private final char separator;
+
+    private SampleContext sampleContext;
+
+    private List<SampleConsumer> sampleConsumers = new ArrayList<>();
+
+    public CompressedCsvSampleSource(File file, char separator) {
+        this.file = file;
+        this.separator = separator;
+    }
+
+    @Override
+    public void run() {
+        long row = 0;
+        long start = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                CompressedResultFormat.openInputStream(file), ParallelCsvSampleSource.fileCharset()), BUF_SIZE)) {
+            SampleMetadata metadata = readMetadata(reader);
+            for (SampleConsumer consumer : sampleConsumers) {
+                consumer.setSampleContext(sampleContext);
+                consumer.setConsumedMetadata(metadata, 0);
+                consumer.startConsuming();
+            }
+            try {
+                String[] data;
+                while ((data = CSVSaveService.csvReadFile(reader, separator)).length > 0) {
+                    if (data.length < metadata.getColumnCount()) {
+                        throw new SampleException("测试结果第" + (row + 1) + "行的列数和表头不一致：" + file.getPath());
+                    }
+                    Sample sample = new Sample(row++, metadata, data);
+                    for (SampleConsumer consumer : sampleConsumers) {
+                        consumer.consume(sample, 0);
+                    }
+                }
+            } catch (EOFException e) {
+                //修复前的文件末尾可能有不完整的压缩块
+                log.warn("压缩测试结果文件末尾不完整，已忽略：" + file.getPath());
+            }
+            for (SampleConsumer consumer : sampleConsumers) {
+                consumer.stopConsuming();
+            }
+        } catch (IOException e) {
+            throw new SampleException("读取压缩测试结果文件失败：" + file.getPath(), e);
+        }
+        log.info("压缩测试结果读取完成，共" + row + "条，耗时" + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * 和CsvSampleReader一致，第一行是表头就按表头取列，否则按Jmeter默认的保存配置。
+     */
+    private SampleMetadata readMetadata(BufferedReader reader) throws IOException {
+        reader.mark(BUF_SIZE);
+        String line = reader.readLine();
+        if (line == null) {
+            throw new SampleException("压缩测试结果文件为空：" + file.getPath());
+        }
+        SampleMetadata metadata = ParallelCsvSampleSource.headerMetadata(line, file, separator);
+        if (metadata == null) {
+            reader.reset();
+            return new SampleMetadata(SampleSaveConfiguration.staticConfig());
+        }
+        return metadata;
+    }
+
+    @Override
+    public SampleContext getSampleContext() {
+        return sampleContext;
+    }
+
+    @Override
+    public void setSampleContext(SampleContext sampleContext) {
+        this.sampleContext = sampleContext;
+    }
+
+    @Override
+    public void setSampleConsumers(List<SampleConsumer> consumers) {
+        this.sampleConsumers = consumers;
+    }
+
+    @Override
+    public void addSampleConsumer(SampleConsumer consumer) {
+        sampleConsumers.add(consumer);
+    }
+
+    @Override
+    public void removeSampleConsumer(SampleConsumer consumer) {
+        sampleConsumers.remove(consumer);
+    }
+}
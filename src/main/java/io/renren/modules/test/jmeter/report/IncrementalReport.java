@@ -0,0 +1,123 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.SampleResultListener;
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.report.dashboard.GenerationException;
+import org.apache.jmeter.report.processor.SampleConsumer;
+import org.apache.jmeter.report.processor.SampleContext;
+import org.apache.jmeter.samplers.SampleResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 压测过程中增量生成测试报告。
+ * 测试结果写入文件的同时交给和LocalReportGenerator相同的consumer链，
+ * 汇总、APDEX、错误、Top5错误及各个图表的统计数据一直在内存中更新，
+ * 压测结束后生成报告只需要导出，不再重新读取整个结果文件。
+ * <p>
+ * sampleOccurred、writerClosed在结果写入线程内调用，generate在写入线程结束后调用。
+ * 统计过程出错、写入线程没有正常结束时不能使用，生成报告时仍然读取结果文件。
+ */
+public class IncrementalReport implements SampleResultListener {
+
+    private static final Logger log = LoggerFactory.getLogger(IncrementalReport.class);
+
+    private final LocalReportGenerator generator;
+
+    private final SampleConsumer consumer;
+
+    private final SampleContext sampleContext;
+
+    private final boolean tmpDirCreated;
+
+    private final SampleMetadata metadata;
+
+    private long row;
+
+    private boolean started;
+
+    private volatile boolean failed;
+
+    private volatile boolean completed;
+
+    /**
+     * 已经导出或者放弃
+     */
+    private boolean finished;
+
+    IncrementalReport(LocalReportGenerator generator, SampleConsumer consumer, SampleContext sampleContext,
+                      boolean tmpDirCreated) {
+        this.generator = generator;
+        this.consumer = consumer;
+        this.sampleContext = sampleContext;
+        this.tmpDirCreated = tmpDirCreated;
+        this.metadata = new SampleMetadata(LocalReportGenerator.getCsvDefaultSeparator(), BinaryResultFormat.COLUMNS);
+    }
+
+    @Override
+    public void sampleOccurred(SampleResult result) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (!started) {
+                consumer.setConsumedMetadata(metadata, 0);
+                consumer.startConsuming();
+                started = true;
+            }
+            consumer.consume(new Sample(row++, metadata, BinaryResultFormat.toColumns(result)), 0);
+        } catch (RuntimeException e) {
+            failed = true;
+            log.error("增量统计测试报告数据失败，生成报告时将重新读取结果文件", e);
+        }
+    }
+
+    @Override
+    public void writerClosed() {
+        if (!started) {
+            return;
+        }
+        //统计出错时也要结束，并行处理的线程随之结束
+        try {
+            consumer.stopConsuming();
+            if (!failed) {
+                completed = true;
+                log.info("增量统计测试报告数据完成，共" + row + "条");
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            log.error("增量统计测试报告数据失败，生成报告时将重新读取结果文件", e);
+        }
+    }
+
+    /**
+     * 全部测试结果都已经统计，可以直接导出报告
+     */
+    public boolean isCompleted() {
+        return completed && !failed;
+    }
+
+    /**
+     * 导出测试报告，只能调用一次
+     */
+    public synchronized void generate(String reportPathDir) throws GenerationException {
+        if (finished || !isCompleted()) {
+            throw new IllegalStateException("增量统计的测试报告数据不可用");
+        }
+        finished = true;
+        generator.finishIncremental(sampleContext, reportPathDir, tmpDirCreated);
+    }
+
+    /**
+     * 不再使用时释放，未结束的统计线程在写入线程结束时随之结束
+     */
+    public synchronized void discard() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        generator.discardIncremental(sampleContext, tmpDirCreated);
+    }
+}
@@ -27,6 +27,8 @@ import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.CompressedResultFormat;
 import org.apache.commons.io.FileUtils;
 import org.apache.jmeter.JMeter;
 import org.apache.jmeter.report.config.ConfigurationException;
@@ -41,7 +43,6 @@ import org.apache.jmeter.report.core.StringConverter;
 import org.apache.jmeter.report.dashboard.DataExporter;
 import org.apache.jmeter.report.dashboard.ExportException;
 import org.apache.jmeter.report.dashboard.GenerationException;
-import org.apache.jmeter.report.processor.AbstractSampleConsumer;
 import org.apache.jmeter.report.processor.AggregateConsumer;
 import org.apache.jmeter.report.processor.ApdexSummaryConsumer;
 import org.apache.jmeter.report.processor.ApdexThresholdsInfo;
@@ -162,6 +163,52 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
         }
         this.resultCollector = resultCollector;
         this.testFile = file;
+        configuration = loadConfiguration();
+        log.info("最终configuration:" + configuration);
+    }
+
+    /**
+     * 压测过程中增量生成报告时使用，此时结果文件还没有写入。
+     */
+    private LocalReportGenerator(File file) throws ConfigurationException {
+        this.resultCollector = null;
+        this.testFile = file;
+        this.configuration = loadConfiguration();
+    }
+
+    /**
+     * 压测开始时调用，返回的IncrementalReport在结果写入的同时更新报告需要的统计数据，
+     * 压测结束后生成报告只需要导出，不再读取结果文件。
+     */
+    public static IncrementalReport startIncremental(String resultsFile)
+            throws ConfigurationException, GenerationException {
+        LocalReportGenerator generator = new LocalReportGenerator(new File(resultsFile));
+        File tmpDir = generator.configuration.getTempDirectory();
+        boolean tmpDirCreated = generator.createTempDir(tmpDir);
+        SampleContext sampleContext = new SampleContext();
+        sampleContext.setWorkingDirectory(tmpDir);
+        SampleConsumer consumer = generator.createConsumerChain();
+        consumer.setSampleContext(sampleContext);
+        return new IncrementalReport(generator, consumer, sampleContext, tmpDirCreated);
+    }
+
+    /**
+     * 增量统计的数据已经全部处理完，导出测试报告
+     */
+    void finishIncremental(SampleContext sampleContext, String reportPathDir, boolean tmpDirCreated)
+            throws GenerationException {
+        exportAll(sampleContext, reportPathDir);
+        removeTempDir(sampleContext.getWorkingDirectory(), tmpDirCreated);
+    }
+
+    /**
+     * 放弃增量统计的数据
+     */
+    void discardIncremental(SampleContext sampleContext, boolean tmpDirCreated) {
+        removeTempDir(sampleContext.getWorkingDirectory(), tmpDirCreated);
+    }
+
+    private static ReportGeneratorConfiguration loadConfiguration() throws ConfigurationException {
         final Properties merged = new Properties();
         File rgp = new File(JMeterUtils.getJMeterBinDir(), REPORTGENERATOR_PROPERTIES);
         if(log.isInfoEnabled()) {
@@ -170,8 +217,14 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
         merged.putAll(loadProps(rgp));
         log.info("Merging with JMeter properties");
         merged.putAll(JMeterUtils.getJMeterProperties());
-        configuration = ReportGeneratorConfiguration.loadFromProperties(merged);
-        log.info("最终configuration:" + configuration);
+        return ReportGeneratorConfiguration.loadFromProperties(merged);
+    }
+
+    /**
+     * 生成报告时csv使用的分隔符，二进制结果转换成csv时也使用它。
+     */
+    public static char getCsvDefaultSeparator() {
+        return CSV_DEFAULT_SEPARATOR;
     }
 
     private static Properties loadProps(File file) {
@@ -228,9 +281,42 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
         // Build consumers chain
         SampleContext sampleContext = new SampleContext();
         sampleContext.setWorkingDirectory(tmpDir);
-        SampleSource source = new CsvFileSampleSource(testFile, CSV_DEFAULT_SEPARATOR);
+        //二进制结果文件直接按列读取，不再做csv解析；压缩的csv边解压边读取；大的csv文件分段并行解析
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        SampleSource source;
+        if (BinaryResultFormat.isBinary(testFile)) {
+            source = new BinaryFileSampleSource(testFile, CSV_DEFAULT_SEPARATOR);
+        } else if (CompressedResultFormat.isCompressed(testFile)) {
+            source = new CompressedCsvSampleSource(testFile, CSV_DEFAULT_SEPARATOR);
+        } else if (ParallelCsvSampleSource.isSplittable(testFile, CSV_DEFAULT_SEPARATOR)) {
+            source = new ParallelCsvSampleSource(testFile, CSV_DEFAULT_SEPARATOR, parallelism);
+        } else {
+            source = new CsvFileSampleSource(testFile, CSV_DEFAULT_SEPARATOR);
+        }
         source.setSampleContext(sampleContext);
+        source.addSampleConsumer(createConsumerChain());
 
+        // Generate data
+        log.debug("Start samples processing");
+        try {
+            source.run(); // NOSONAR
+        } catch (SampleException ex) {
+            throw new GenerationException("Error while processing samples:"+ex.getMessage(), ex);
+        }
+        log.debug("End of samples processing");
+
+        exportAll(sampleContext, reportPathDir);
+
+        removeTempDir(tmpDir, tmpDirCreated);
+
+        log.debug("End of report generation");
+
+    }
+
+    /**
+     * 创建处理样本的consumer链，返回链的入口
+     */
+    private SampleConsumer createConsumerChain() throws GenerationException {
         NormalizerSampleConsumer normalizer = new NormalizerSampleConsumer();
         normalizer.setName(NORMALIZER_CONSUMER_NAME);
 
@@ -238,18 +324,20 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
         dateRangeConsumer.addSampleConsumer(createBeginDateConsumer());
         dateRangeConsumer.addSampleConsumer(createEndDateConsumer());
 
-        FilterConsumer nameFilter = createNameFilter();
+        //汇总和图表的consumer互相独立，分到多个线程并行处理
+        ParallelSampleConsumer parallelConsumer = new ParallelSampleConsumer(Runtime.getRuntime().availableProcessors());
+
+        FilterConsumer nameFilter = createNameFilter(parallelConsumer);
 
         FilterConsumer excludeControllerFilter = createExcludeControllerFilter();
+        excludeControllerFilter.addSampleConsumer(createErrorsSummaryConsumer());
 
-        nameFilter.addSampleConsumer(excludeControllerFilter);
+        parallelConsumer.addSampleConsumer(excludeControllerFilter);
 
         dateRangeConsumer.addSampleConsumer(nameFilter);
 
         normalizer.addSampleConsumer(dateRangeConsumer);
 
-        source.addSampleConsumer(normalizer);
-
         // Get graph configurations
         Map<String, GraphConfiguration> graphConfigurations = configuration
                 .getGraphConfigurations();
@@ -258,18 +346,12 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
         log.info("Jmeter Engine Version: v"+JMeterUtils.getJMeterVersion());
         // Process configuration to build graph consumers
         for (Map.Entry<String, GraphConfiguration> entryGraphCfg : graphConfigurations.entrySet()) {
-            addGraphConsumer(nameFilter, excludeControllerFilter, entryGraphCfg);
-        }
-
-        // Generate data
-        log.debug("Start samples processing");
-        try {
-            source.run(); // NOSONAR
-        } catch (SampleException ex) {
-            throw new GenerationException("Error while processing samples:"+ex.getMessage(), ex);
+            addGraphConsumer(parallelConsumer, entryGraphCfg);
         }
-        log.debug("End of samples processing");
+        return normalizer;
+    }
 
+    private void exportAll(SampleContext sampleContext, String reportPathDir) throws GenerationException {
         log.debug("Start data exporting");
 
         // Process configuration to build data exporters
@@ -289,11 +371,6 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
         }
 
         log.debug("End of data exporting");
-
-        removeTempDir(tmpDir, tmpDirCreated);
-
-        log.debug("End of report generation");
-
     }
 
     /**
@@ -356,8 +433,7 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
         return tmpDirCreated;
     }
     // smooth00 fix
-    private void addGraphConsumer(FilterConsumer nameFilter,
-                                  FilterConsumer excludeControllerFilter,
+    private void addGraphConsumer(ParallelSampleConsumer parallelConsumer,
                                   Map.Entry<String, GraphConfiguration> entryGraphCfg)
             throws GenerationException {
         String graphName = entryGraphCfg.getKey();
@@ -391,10 +467,14 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
             }
 
             // Choose which entry point to use to plug the graph
-            AbstractSampleConsumer entryPoint = graphConfiguration
-                    .excludesControllers() ? excludeControllerFilter
-                    : nameFilter;
-            entryPoint.addSampleConsumer(graph);
+            //排除控制器的图表各自套一个过滤器，这样可以分到不同的线程
+            if (graphConfiguration.excludesControllers()) {
+                FilterConsumer excludeControllerFilter = createExcludeControllerFilter();
+                excludeControllerFilter.addSampleConsumer(graph);
+                parallelConsumer.addSampleConsumer(excludeControllerFilter);
+            } else {
+                parallelConsumer.addSampleConsumer(graph);
+            }
         } catch (ClassCastException | IllegalArgumentException |  ReflectiveOperationException | SecurityException ex) {
             String error = String.format(INVALID_CLASS_FMT, className);
             log.error(error, ex);
@@ -437,7 +517,6 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
         excludeControllerFilter
                 .setSamplePredicate(new ControllerSamplePredicate());
         excludeControllerFilter.setReverseFilter(true);
-        excludeControllerFilter.addSampleConsumer(createErrorsSummaryConsumer());
         return excludeControllerFilter;
     }
 
@@ -505,7 +584,7 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
     /**
      * @return a {@link FilterConsumer} that filters samplers based on their name
      */
-    private FilterConsumer createNameFilter() {
+    private FilterConsumer createNameFilter(ParallelSampleConsumer parallelConsumer) {
         FilterConsumer nameFilter = new FilterConsumer();
         nameFilter.setName(NAME_FILTER_CONSUMER_NAME);
         nameFilter.setSamplePredicate(sample -> {
@@ -517,10 +596,11 @@ private static final Logger log = LoggerFactory.getLogger(LocalReportGenerator.c
             return filteredSamplesPattern == null
                     || filteredSamplesPattern.matcher(sample.getName()).matches();
         });
-        nameFilter.addSampleConsumer(createApdexSummaryConsumer());
-        nameFilter.addSampleConsumer(createRequestsSummaryConsumer());
-        nameFilter.addSampleConsumer(createStatisticsSummaryConsumer());
-        nameFilter.addSampleConsumer(createTop5ErrorsConsumer(configuration));
+        parallelConsumer.addSampleConsumer(createApdexSummaryConsumer());
+        parallelConsumer.addSampleConsumer(createRequestsSummaryConsumer());
+        parallelConsumer.addSampleConsumer(createStatisticsSummaryConsumer());
+        parallelConsumer.addSampleConsumer(createTop5ErrorsConsumer(configuration));
+        nameFilter.addSampleConsumer(parallelConsumer);
         return nameFilter;
     }
 
@@ -0,0 +1,281 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleException;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.report.processor.SampleConsumer;
+import org.apache.jmeter.report.processor.SampleContext;
+import org.apache.jmeter.report.processor.SampleSource;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.save.CSVSaveService;
+import org.apache.jmeter.save.SaveService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Pattern;
+
+/**
+ * 多线程解析csv测试结果文件的SampleSource，替代CsvFileSampleSource。
+ * 文件按CHUNK_BYTES切成若干段，段的起点对齐到记录的行首，
+ * 每段在fork/join线程池内解析，解析结果按文件顺序交给consumer，样本的顺序和行号都和原来一致。
+ * 同时在解析的段数有上限，内存占用和文件大小无关。
+ * <p>
+ * 行首的判断依据是时间戳列为毫秒数（Jmeter默认），换行后面是数字加分隔符即认为是新的记录，
+ * 不满足的文件（如自定义了时间格式）由isSplittable判断后仍使用CsvFileSampleSource。
+ */
+public class ParallelCsvSampleSource implements SampleSource {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelCsvSampleSource.class);
+
+    private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 读取表头、判断行首时一次读取的字节数
+     */
+    private static final int PROBE_BYTES = 64 * 1024;
+
+    /**
+     * 毫秒时间戳至少的位数
+     */
+    private static final int MIN_TIMESTAMP_DIGITS = 10;
+
+    private final File file;
+
+    private final char separator;
+
+    private final int parallelism;
+
+    private final Charset charset;
+
+    private SampleContext sampleContext;
+
+    private List<SampleConsumer> sampleConsumers = new ArrayList<>();
+
+    public ParallelCsvSampleSource(File file, char separator, int parallelism) {
+        this.file = file;
+        this.separator = separator;
+        this.parallelism = Math.max(1, parallelism);
+        this.charset = fileCharset();
+    }
+
+    /**
+     * 文件足够大并且能够按行首切分时才值得并行解析
+     */
+    public static boolean isSplittable(File file, char separator) {
+        if (separator > 0x7F || file.length() < 2L * CHUNK_BYTES) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long headerEnd = firstLineEnd(channel);
+            if (headerEnd < 0) {
+                return false;
+            }
+            String line = readFirstLine(channel, headerEnd, fileCharset());
+            long dataStart = headerMetadata(line, file, separator) != null ? headerEnd + 1 : 0L;
+            return isRecordStart(channel, dataStart, (byte) separator);
+        } catch (IOException e) {
+            log.warn("测试结果文件无法并行解析：" + file.getPath(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 和CsvSampleReader一致，第一行是表头则按表头取列，否则返回null（按Jmeter默认的保存配置取列）。
+     */
+    static SampleMetadata headerMetadata(String line, File file, char separator) {
+        if (CSVSaveService.getSampleSaveConfiguration(line, file.getAbsolutePath()) == null) {
+            return null;
+        }
+        return new SampleMetadata(separator, line.split(Pattern.quote(String.valueOf(separator))));
+    }
+
+    static Charset fileCharset() {
+        return Charset.forName(SaveService.getFileEncoding(StandardCharsets.UTF_8.name()));
+    }
+
+    @Override
+    public void run() {
+        long row = 0;
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long headerEnd = firstLineEnd(channel);
+            if (headerEnd < 0) {
+                throw new SampleException("测试结果文件为空或者第一行过长：" + file.getPath());
+            }
+            SampleMetadata metadata = headerMetadata(readFirstLine(channel, headerEnd, charset), file, separator);
+            long dataStart = headerEnd + 1;
+            if (metadata == null) {
+                metadata = new SampleMetadata(SampleSaveConfiguration.staticConfig());
+                dataStart = 0L;
+            }
+            for (SampleConsumer consumer : sampleConsumers) {
+                consumer.setSampleContext(sampleContext);
+                consumer.setConsumedMetadata(metadata, 0);
+                consumer.startConsuming();
+            }
+
+            List<long[]> chunks = split(channel, dataStart, size);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                Deque<ForkJoinTask<List<String[]>>> pending = new ArrayDeque<>();
+                int next = 0;
+                while (next < chunks.size() || !pending.isEmpty()) {
+                    while (next < chunks.size() && pending.size() < parallelism + 2) {
+                        long[] chunk = chunks.get(next++);
+                        pending.add(pool.submit(() -> parse(channel, chunk[0], chunk[1])));
+                    }
+                    for (String[] data : pending.poll().join()) {
+                        if (data.length < metadata.getColumnCount()) {
+                            throw new SampleException("测试结果第" + (row + 1) + "行的列数和表头不一致：" + file.getPath());
+                        }
+                        Sample sample = new Sample(row++, metadata, data);
+                        for (SampleConsumer consumer : sampleConsumers) {
+                            consumer.consume(sample, 0);
+                        }
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+
+            for (SampleConsumer consumer : sampleConsumers) {
+                consumer.stopConsuming();
+            }
+            log.info("测试结果并行解析完成，共" + row + "条，" + chunks.size() + "段，耗时"
+                    + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException e) {
+            throw new SampleException("读取测试结果文件失败：" + file.getPath(), e);
+        }
+    }
+
+    /**
+     * 切分成若干段，每段的起点都是一条记录的行首
+     */
+    private List<long[]> split(FileChannel channel, long dataStart, long size) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long chunkStart = dataStart;
+        while (chunkStart < size) {
+            long chunkEnd = nextRecordStart(channel, chunkStart + CHUNK_BYTES, size);
+            chunks.add(new long[]{chunkStart, chunkEnd});
+            chunkStart = chunkEnd;
+        }
+        return chunks;
+    }
+
+    /**
+     * 从position开始往后找下一条记录的行首，找不到则返回文件末尾
+     */
+    private long nextRecordStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PROBE_BYTES);
+        while (position < size) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n' && isRecordStart(channel, position + i + 1, (byte) separator)) {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return size;
+    }
+
+    private static boolean isRecordStart(FileChannel channel, long position, byte separator) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        int n = channel.read(buffer, position);
+        int digits = 0;
+        for (int i = 0; i < n; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                digits++;
+            } else {
+                return b == separator && digits >= MIN_TIMESTAMP_DIGITS;
+            }
+        }
+        return false;
+    }
+
+    private List<String[]> parse(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(buffer.array(), 0, buffer.position()), charset))) {
+            String[] data;
+            while ((data = CSVSaveService.csvReadFile(reader, separator)).length > 0) {
+                rows.add(data);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 第一个换行符的位置，只在文件开头PROBE_BYTES字节内查找
+     */
+    private static long firstLineEnd(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PROBE_BYTES);
+        int n = channel.read(buffer, 0L);
+        for (int i = 0; i < n; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1L;
+    }
+
+    private static String readFirstLine(FileChannel channel, long lineEnd, Charset charset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) lineEnd);
+        channel.read(buffer, 0L);
+        String line = new String(buffer.array(), 0, buffer.position(), charset);
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    @Override
+    public SampleContext getSampleContext() {
+        return sampleContext;
+    }
+
+    @Override
+    public void setSampleContext(SampleContext sampleContext) {
+        this.sampleContext = sampleContext;
+    }
+
+    @Override
+    public void setSampleConsumers(List<SampleConsumer> consumers) {
+        this.sampleConsumers = consumers;
+    }
+
+    @Override
+    public void addSampleConsumer(SampleConsumer consumer) {
+        sampleConsumers.add(consumer);
+    }
+
+    @Override
+    public void removeSampleConsumer(SampleConsumer consumer) {
+        sampleConsumers.remove(consumer);
+    }
+}
@@ -0,0 +1,198 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.apache.jmeter.report.core.Sample;
+import org.apache.jmeter.report.core.SampleException;
+import org.apache.jmeter.report.core.SampleMetadata;
+import org.apache.jmeter.report.processor.SampleConsumer;
+import org.apache.jmeter.report.processor.SampleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 把样本分发给多个下级consumer并行处理的consumer。
+ * Jmeter的图表、汇总consumer互相独立，但内部的聚合（如百分位）无法拆分后合并，
+ * 所以这里不拆分数据，而是把下级consumer分到几个工作线程上，每个线程按原来的顺序处理全部样本，
+ * 单个consumer始终只在一个线程内执行，不需要线程安全。
+ * <p>
+ * 样本按批次发给工作线程，队列有界，读取速度超过处理速度时读取线程等待。
+ * startConsuming和stopConsuming都在调用线程内按添加顺序执行，
+ * 各consumer在stopConsuming时写入SampleContext，不会并发修改。
+ */
+public class ParallelSampleConsumer implements SampleConsumer {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelSampleConsumer.class);
+
+    private static final int BATCH_SIZE = 4096;
+
+    /**
+     * 每个工作线程最多积压的批次数
+     */
+    private static final int QUEUE_BATCHES = 16;
+
+    private static final List<Sample> END = Collections.emptyList();
+
+    private final int parallelism;
+
+    private final List<SampleConsumer> sampleConsumers = new ArrayList<>();
+
+    private final Map<String, Object> channelAttributes = new HashMap<>();
+
+    private SampleContext sampleContext;
+
+    private SampleMetadata metadata;
+
+    private List<Worker> workers;
+
+    private List<Sample> batch;
+
+    public ParallelSampleConsumer(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public void addSampleConsumer(SampleConsumer consumer) {
+        sampleConsumers.add(consumer);
+    }
+
+    @Override
+    public SampleContext getSampleContext() {
+        return sampleContext;
+    }
+
+    @Override
+    public void setSampleContext(SampleContext sampleContext) {
+        this.sampleContext = sampleContext;
+        for (SampleConsumer consumer : sampleConsumers) {
+            consumer.setSampleContext(sampleContext);
+        }
+    }
+
+    @Override
+    public void setChannelAttribute(int channel, String key, Object value) {
+        channelAttributes.put(channel + "." + key, value);
+    }
+
+    @Override
+    public Object getChannelAttribute(int channel, String key) {
+        return channelAttributes.get(channel + "." + key);
+    }
+
+    @Override
+    public void setConsumedMetadata(SampleMetadata sampleMetadata, int channel) {
+        this.metadata = sampleMetadata;
+    }
+
+    @Override
+    public void startConsuming() {
+        for (SampleConsumer consumer : sampleConsumers) {
+            consumer.setConsumedMetadata(metadata, 0);
+            consumer.startConsuming();
+        }
+        int count = Math.min(parallelism, sampleConsumers.size());
+        workers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            workers.add(new Worker(i));
+        }
+        //按顺序轮流分配，相邻的（通常计算量相近的）图表分到不同的线程
+        for (int i = 0; i < sampleConsumers.size(); i++) {
+            workers.get(i % count).consumers.add(sampleConsumers.get(i));
+        }
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        batch = new ArrayList<>(BATCH_SIZE);
+        log.info("测试报告的" + sampleConsumers.size() + "个consumer分配到" + count + "个线程并行处理");
+    }
+
+    @Override
+    public void consume(Sample sample, int channel) {
+        batch.add(sample);
+        if (batch.size() >= BATCH_SIZE) {
+            publish(batch);
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    @Override
+    public void stopConsuming() {
+        if (!batch.isEmpty()) {
+            publish(batch);
+        }
+        publish(END);
+        Throwable failure = null;
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SampleException("等待测试报告处理线程结束时被中断", e);
+            }
+            if (failure == null) {
+                failure = worker.failure;
+            }
+        }
+        if (failure != null) {
+            throw new SampleException("测试报告处理样本失败：" + failure.getMessage(), failure);
+        }
+        for (SampleConsumer consumer : sampleConsumers) {
+            consumer.stopConsuming();
+        }
+    }
+
+    private void publish(List<Sample> samples) {
+        for (Worker worker : workers) {
+            try {
+                worker.queue.put(samples);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SampleException("分发测试报告样本时被中断", e);
+            }
+        }
+    }
+
+    private static class Worker extends Thread {
+
+        private final BlockingQueue<List<Sample>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+
+        private final List<SampleConsumer> consumers = new ArrayList<>();
+
+        private volatile Throwable failure;
+
+        Worker(int index) {
+            super("report-consumer-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<Sample> samples;
+                while ((samples = queue.take()) != END) {
+                    //失败后继续取走后面的批次，避免读取线程一直等待
+                    if (failure != null) {
+                        continue;
+                    }
+                    try {
+                        for (Sample sample : samples) {
+                            for (SampleConsumer consumer : consumers) {
+                                consumer.consume(sample, 0);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("测试报告处理样本失败", e);
+                        failure = e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package io.renren.modules.test.jmeter.report;
+
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 测试报告目录打包成zip。
+ * 各个文件在多个线程内同时压缩，最后按目录顺序合并成一个zip，超过4GB时自动使用zip64。
+ * <p>
+ * 生成的zip作为缓存保留，zip的注释里记录报告目录的指纹（文件路径、大小、修改时间），
+ * 报告重新生成或者目录内容变化后指纹不一致，下次下载时重新打包。
+ * 先写到临时文件再替换，同时下载的请求不会读到写了一半的zip。
+ */
+public class ReportZipBuilder {
+
+    private static final Logger log = LoggerFactory.getLogger(ReportZipBuilder.class);
+
+    private static final String FINGERPRINT_PREFIX = "renren-report:";
+
+    /**
+     * 和原来一样按GBK保存文件名，Windows自带的解压工具不会乱码
+     */
+    private static final String ENCODING = "GBK";
+
+    private static final int MAX_THREADS = 8;
+
+    private static final Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * 返回和报告目录一致的zip文件，没有或者已经过期时重新打包。
+     */
+    public static File getOrBuild(File reportDir, File zipFile) throws IOException {
+        synchronized (LOCKS.computeIfAbsent(zipFile.getAbsolutePath(), key -> new Object())) {
+            String fingerprint = fingerprint(reportDir);
+            if (fingerprint.equals(readFingerprint(zipFile))) {
+                return zipFile;
+            }
+            long start = System.currentTimeMillis();
+            File tmpFile = new File(zipFile.getPath() + ".tmp");
+            try {
+                build(reportDir, tmpFile, fingerprint);
+                Files.move(tmpFile.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+            log.info("测试报告打包完成：" + zipFile.getName() + "，大小" + zipFile.length() + "字节，耗时"
+                    + (System.currentTimeMillis() - start) + "ms");
+            return zipFile;
+        }
+    }
+
+    private static void build(File reportDir, File target, String fingerprint) throws IOException {
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ZipThreadFactory());
+        try {
+            ParallelScatterZipCreator creator = new ParallelScatterZipCreator(pool);
+            addEntries(creator, reportDir, reportDir.getName() + "/");
+            try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(target)) {
+                out.setEncoding(ENCODING);
+                out.setComment(fingerprint);
+                creator.writeTo(out);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("打包测试报告时被中断", e);
+            } catch (ExecutionException e) {
+                throw new IOException("打包测试报告失败：" + e.getCause().getMessage(), e.getCause());
+            }
+        } finally {
+            //writeTo正常结束时已经关闭，出错时这里关闭
+            pool.shutdownNow();
+        }
+    }
+
+    private static void addEntries(ParallelScatterZipCreator creator, File dir, String name) {
+        ZipArchiveEntry dirEntry = new ZipArchiveEntry(name);
+        dirEntry.setMethod(ZipEntry.STORED);
+        creator.addArchiveEntry(dirEntry, () -> new ByteArrayInputStream(new byte[0]));
+        for (File file : listSorted(dir)) {
+            if (file.isDirectory()) {
+                addEntries(creator, file, name + file.getName() + "/");
+                continue;
+            }
+            ZipArchiveEntry entry = new ZipArchiveEntry(name + file.getName());
+            entry.setMethod(ZipEntry.DEFLATED);
+            entry.setTime(file.lastModified());
+            creator.addArchiveEntry(entry, () -> {
+                try {
+                    return new FileInputStream(file);
+                } catch (FileNotFoundException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * 报告目录的指纹：所有文件和目录的相对路径、大小、修改时间的CRC，加上文件个数
+     */
+    static String fingerprint(File reportDir) {
+        CRC32 crc32 = new CRC32();
+        int count = fingerprint(reportDir, "", crc32);
+        return FINGERPRINT_PREFIX + count + "-" + Long.toHexString(crc32.getValue());
+    }
+
+    private static int fingerprint(File dir, String path, CRC32 crc32) {
+        int count = 0;
+        for (File file : listSorted(dir)) {
+            String name = path + "/" + file.getName();
+            String entry = name + "|" + (file.isDirectory() ? -1L : file.length()) + "|" + file.lastModified() + "\n";
+            crc32.update(entry.getBytes(StandardCharsets.UTF_8));
+            count++;
+            if (file.isDirectory()) {
+                count += fingerprint(file, name, crc32);
+            }
+        }
+        return count;
+    }
+
+    private static String readFingerprint(File zipFile) {
+        if (!zipFile.isFile()) {
+            return null;
+        }
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            return zip.getComment();
+        } catch (IOException e) {
+            //以前生成的或者损坏的zip，重新打包
+            return null;
+        }
+    }
+
+    private static File[] listSorted(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        return files;
+    }
+
+    private static class ZipThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger index = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "report-zip-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private ReportZipBuilder() {
+    }
+}
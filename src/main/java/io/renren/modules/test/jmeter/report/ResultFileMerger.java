@@ -0,0 +1,165 @@
+package io.renren.modules.test.jmeter.report;
+
+import io.renren.modules.test.jmeter.writer.CompressedResultFormat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 把多个节点机的csv测试结果按时间戳多路归并成一个文件，用于节点机预聚合结束后生成测试报告。
+ * 每个节点机的文件本身按写入顺序基本有序，归并时每个文件只保留当前一条记录，内存占用和文件大小无关。
+ * 输入和输出文件以.gz结尾时透明压缩。
+ */
+public class ResultFileMerger {
+
+    /**
+     * Jmeter csv表头中时间戳的列名，时间戳总是第一列
+     */
+    private static final String TIME_STAMP = "timeStamp";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final char delimiter;
+
+    public ResultFileMerger(char delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * 表头只写一次，时间戳相同时按输入文件的顺序。
+     * 时间戳不是毫秒数（配置了日期格式）时沿用同一文件上一条记录的时间戳，保持文件内的顺序。
+     *
+     * @return 合并的记录数
+     */
+    public long merge(List<File> inputs, File target) throws IOException {
+        List<Cursor> cursors = new ArrayList<>(inputs.size());
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, inputs.size()),
+                Comparator.comparingLong((Cursor cursor) -> cursor.timestamp).thenComparingInt(cursor -> cursor.index));
+        long count = 0;
+        try {
+            String header = null;
+            for (File input : inputs) {
+                Cursor cursor = new Cursor(cursors.size(), input);
+                cursors.add(cursor);
+                String first = cursor.readRecord();
+                if (first != null && first.startsWith(TIME_STAMP)) {
+                    if (header == null) {
+                        header = first;
+                    }
+                    first = cursor.readRecord();
+                }
+                if (first != null) {
+                    cursor.setRecord(first);
+                    queue.add(cursor);
+                }
+            }
+
+            try (Writer writer = openWriter(target)) {
+                if (header != null) {
+                    writer.write(header);
+                    writer.write('\n');
+                }
+                Cursor cursor;
+                while ((cursor = queue.poll()) != null) {
+                    writer.write(cursor.record);
+                    writer.write('\n');
+                    count++;
+                    String next = cursor.readRecord();
+                    if (next != null) {
+                        cursor.setRecord(next);
+                        queue.add(cursor);
+                    }
+                }
+            }
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+        return count;
+    }
+
+    private Writer openWriter(File target) throws IOException {
+        OutputStream out = new FileOutputStream(target);
+        if (CompressedResultFormat.isCompressed(target)) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * 单个输入文件的读取位置
+     */
+    private class Cursor implements Closeable {
+
+        private final int index;
+
+        private final BufferedReader reader;
+
+        private String record;
+
+        private long timestamp = Long.MIN_VALUE;
+
+        Cursor(int index, File file) throws IOException {
+            this.index = index;
+            this.reader = new BufferedReader(new InputStreamReader(CompressedResultFormat.openInputStream(file),
+                    StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        /**
+         * 读取一条记录，引号内的换行（如响应信息中的换行）属于同一条记录
+         */
+        String readRecord() throws IOException {
+            String line = reader.readLine();
+            if (line == null || quotes(line) % 2 == 0) {
+                return line;
+            }
+            StringBuilder builder = new StringBuilder(line);
+            int quotes = quotes(line);
+            while (quotes % 2 != 0 && (line = reader.readLine()) != null) {
+                builder.append('\n').append(line);
+                quotes += quotes(line);
+            }
+            return builder.toString();
+        }
+
+        void setRecord(String record) {
+            this.record = record;
+            int end = record.indexOf(delimiter);
+            try {
+                timestamp = Long.parseLong(end < 0 ? record : record.substring(0, end));
+            } catch (NumberFormatException e) {
+                //沿用上一条记录的时间戳
+            }
+        }
+
+        private int quotes(String line) {
+            int count = 0;
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == '"') {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
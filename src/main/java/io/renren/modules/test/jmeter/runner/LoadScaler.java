@@ -0,0 +1,25 @@
+package io.renren.modules.test.jmeter.runner;
+
+import org.apache.jmeter.testelement.TestElement;
+
+import java.util.List;
+
+/**
+ * 按节点拆分脚本负载时，负责一种决定负载的脚本元素（线程组、吞吐量定时器等）。
+ * 新的线程组、定时器插件实现这个接口后注册到LoadSplitter即可。
+ */
+public interface LoadScaler {
+
+    /**
+     * 是否处理这个元素
+     */
+    boolean supports(TestElement element);
+
+    /**
+     * 修改各节点脚本副本中的同一个元素，各节点的负载加起来等于脚本负载乘以shares之和。
+     *
+     * @param elements 同一个元素在各节点脚本副本中的对象，和shares一一对应
+     * @param shares   各节点承担的脚本负载比例，1表示完整的脚本负载
+     */
+    void scale(List<TestElement> elements, double[] shares);
+}
@@ -0,0 +1,373 @@
+package io.renren.modules.test.jmeter.runner;
+
+import org.apache.jmeter.engine.TreeCloner;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jmeter.testelement.property.CollectionProperty;
+import org.apache.jmeter.testelement.property.DoubleProperty;
+import org.apache.jmeter.testelement.property.FloatProperty;
+import org.apache.jmeter.testelement.property.IntegerProperty;
+import org.apache.jmeter.testelement.property.JMeterProperty;
+import org.apache.jmeter.testelement.property.LongProperty;
+import org.apache.jorphan.collections.HashTree;
+import org.apache.jorphan.collections.HashTreeTraverser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按节点权重拆分脚本的负载。
+ * 每个节点一份脚本副本，所有决定负载的元素（线程数、吞吐量、阶梯/计划表）按各节点的比例修改，
+ * 整数（线程数）按最大余数法分配，各节点加起来正好等于脚本的负载乘以比例之和，不会因为各自向上取整而偏多。
+ * <p>
+ * 比例为1的节点承担完整的脚本负载（和Jmeter默认的分布式一样），权重100对应比例1。
+ * 加载用时、持续时间、循环次数不修改：线程数拆分后总的迭代次数自然按比例拆分，各节点的加载过程同时开始同时结束。
+ * 值是函数或者变量（如${__P(threads)}）的属性无法计算，保持不变。
+ */
+public class LoadSplitter {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadSplitter.class);
+
+    private final List<LoadScaler> scalers = new ArrayList<>();
+
+    public LoadSplitter() {
+        //setUp/tearDown线程组不拆分，每个节点都要执行
+        scalers.add(new PropertyScaler("org.apache.jmeter.threads.ThreadGroup")
+                .intProperties("ThreadGroup.num_threads"));
+        scalers.add(new PropertyScaler("kg.apc.jmeter.threads.SteppingThreadGroup")
+                .intProperties("ThreadGroup.num_threads", "Start users count", "Start users count burst",
+                        "Stop users count"));
+        scalers.add(new PropertyScaler("kg.apc.jmeter.threads.UltimateThreadGroup")
+                .intColumns("ultimatethreadgroupdata", 0));
+        scalers.add(new PropertyScaler("com.blazemeter.jmeter.threads.concurrency.ConcurrencyThreadGroup")
+                .intProperties("TargetLevel"));
+        scalers.add(new PropertyScaler("com.blazemeter.jmeter.threads.arrivals.ArrivalsThreadGroup")
+                .doubleProperties("TargetLevel").intProperties("ConcurrencyLimit"));
+        scalers.add(new PropertyScaler("com.blazemeter.jmeter.threads.arrivals.FreeFormArrivalsThreadGroup")
+                .doubleColumns("Schedule", 0, 1).intProperties("ConcurrencyLimit"));
+        scalers.add(new ConstantThroughputScaler());
+        scalers.add(new PropertyScaler("org.apache.jmeter.timers.poissonarrivals.PreciseThroughputTimer")
+                .doubleProperties("throughput"));
+        scalers.add(new PropertyScaler("kg.apc.jmeter.timers.VariableThroughputTimer")
+                .doubleColumns("load_profile", 0, 1));
+    }
+
+    /**
+     * 注册新的元素类型，优先于内置的处理
+     */
+    public LoadSplitter register(LoadScaler scaler) {
+        scalers.add(0, scaler);
+        return this;
+    }
+
+    /**
+     * 为每个节点生成拆分了负载的脚本副本，原脚本不变。
+     *
+     * @param shares 节点地址 -> 承担的脚本负载比例
+     * @return 节点地址 -> 脚本副本，顺序和shares一致
+     */
+    public Map<String, HashTree> split(HashTree tree, Map<String, Double> shares) {
+        List<String> addresses = new ArrayList<>(shares.keySet());
+        double[] shareArray = new double[addresses.size()];
+        List<HashTree> trees = new ArrayList<>(addresses.size());
+        List<List<TestElement>> elements = new ArrayList<>(addresses.size());
+        for (int i = 0; i < addresses.size(); i++) {
+            shareArray[i] = shares.get(addresses.get(i));
+            //false 是如果test Element的类型node,也会clone.
+            TreeCloner cloner = new TreeCloner(false);
+            tree.traverse(cloner);
+            HashTree clone = cloner.getClonedTree();
+            trees.add(clone);
+            elements.add(collect(clone));
+        }
+
+        Map<String, HashTree> result = new LinkedHashMap<>();
+        if (addresses.isEmpty()) {
+            return result;
+        }
+        //各副本的遍历顺序相同，同一个下标是同一个元素
+        int count = elements.get(0).size();
+        List<TestElement> column = new ArrayList<>(addresses.size());
+        for (int k = 0; k < count; k++) {
+            TestElement first = elements.get(0).get(k);
+            for (LoadScaler scaler : scalers) {
+                if (scaler.supports(first)) {
+                    column.clear();
+                    for (List<TestElement> list : elements) {
+                        column.add(list.get(k));
+                    }
+                    scaler.scale(column, shareArray);
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < addresses.size(); i++) {
+            result.put(addresses.get(i), trees.get(i));
+        }
+        return result;
+    }
+
+    static List<TestElement> collect(HashTree tree) {
+        List<TestElement> list = new ArrayList<>();
+        tree.traverse(new HashTreeTraverser() {
+            @Override
+            public void addNode(Object node, HashTree subTree) {
+                if (node instanceof TestElement) {
+                    list.add((TestElement) node);
+                }
+            }
+
+            @Override
+            public void subtractNode() {
+            }
+
+            @Override
+            public void processPath() {
+            }
+        });
+        return list;
+    }
+
+    /**
+     * 最大余数法分配整数：先按比例向下取整，差额按小数部分从大到小每个加1，
+     * 结果之和等于total乘以比例之和四舍五入。
+     */
+    public static long[] apportion(long total, double[] shares) {
+        int n = shares.length;
+        long[] result = new long[n];
+        double[] remainders = new double[n];
+        double sum = 0d;
+        long assigned = 0L;
+        for (int i = 0; i < n; i++) {
+            double exact = total * shares[i];
+            //避免0.29*10=2.9000000000000004这样的误差影响取整
+            result[i] = (long) Math.floor(exact + 1e-9);
+            remainders[i] = exact - result[i];
+            assigned += result[i];
+            sum += exact;
+        }
+        long missing = Math.round(sum) - assigned;
+        if (missing <= 0L) {
+            return result;
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        //小数部分相同时靠前的节点优先，结果是确定的
+        Arrays.sort(order, (a, b) -> Double.compare(remainders[b], remainders[a]));
+        for (int j = 0; j < missing; j++) {
+            result[order[j % n]]++;
+        }
+        return result;
+    }
+
+    /**
+     * 按类名匹配，修改元素上的数值属性和计划表的列
+     */
+    public static class PropertyScaler implements LoadScaler {
+
+        private final Set<String> classNames;
+
+        private final List<String> intProperties = new ArrayList<>();
+
+        private final List<String> doubleProperties = new ArrayList<>();
+
+        private final Map<String, int[]> intColumns = new LinkedHashMap<>();
+
+        private final Map<String, int[]> doubleColumns = new LinkedHashMap<>();
+
+        public PropertyScaler(String... classNames) {
+            this.classNames = new HashSet<>(Arrays.asList(classNames));
+        }
+
+        /**
+         * 整数属性（线程数、并发数），按最大余数法分配
+         */
+        public PropertyScaler intProperties(String... names) {
+            Collections.addAll(intProperties, names);
+            return this;
+        }
+
+        /**
+         * 小数属性（吞吐量），按比例计算
+         */
+        public PropertyScaler doubleProperties(String... names) {
+            Collections.addAll(doubleProperties, names);
+            return this;
+        }
+
+        /**
+         * 计划表（每行一个CollectionProperty）中的整数列
+         */
+        public PropertyScaler intColumns(String table, int... columns) {
+            intColumns.put(table, columns);
+            return this;
+        }
+
+        /**
+         * 计划表中的小数列
+         */
+        public PropertyScaler doubleColumns(String table, int... columns) {
+            doubleColumns.put(table, columns);
+            return this;
+        }
+
+        @Override
+        public boolean supports(TestElement element) {
+            return classNames.contains(element.getClass().getName())
+                    || classNames.contains(element.getPropertyAsString(TestElement.TEST_CLASS));
+        }
+
+        @Override
+        public void scale(List<TestElement> elements, double[] shares) {
+            for (String name : intProperties) {
+                scaleInt(elements, name, shares);
+            }
+            for (String name : doubleProperties) {
+                scaleDouble(elements, name, shares);
+            }
+            for (Map.Entry<String, int[]> entry : intColumns.entrySet()) {
+                scaleTable(elements, entry.getKey(), entry.getValue(), shares, true);
+            }
+            for (Map.Entry<String, int[]> entry : doubleColumns.entrySet()) {
+                scaleTable(elements, entry.getKey(), entry.getValue(), shares, false);
+            }
+        }
+    }
+
+    /**
+     * Constant Throughput Timer：按线程计算（this thread only）时吞吐量随线程数拆分，不修改；
+     * 其他方式是所有线程共同的目标，按比例修改。
+     */
+    static class ConstantThroughputScaler extends PropertyScaler {
+
+        ConstantThroughputScaler() {
+            super("org.apache.jmeter.timers.ConstantThroughputTimer");
+            doubleProperties("throughput");
+        }
+
+        @Override
+        public void scale(List<TestElement> elements, double[] shares) {
+            if ("0".equals(elements.get(0).getPropertyAsString("calcMode", "0").trim())) {
+                return;
+            }
+            super.scale(elements, shares);
+        }
+    }
+
+    static void scaleInt(List<TestElement> elements, String name, double[] shares) {
+        JMeterProperty property = elements.get(0).getProperty(name);
+        Long value = parseLong(property.getStringValue());
+        if (value == null) {
+            skip(elements.get(0), name, property.getStringValue());
+            return;
+        }
+        long[] values = apportion(value, shares);
+        for (int i = 0; i < elements.size(); i++) {
+            setNumber(elements.get(i), name, values[i]);
+        }
+    }
+
+    static void scaleDouble(List<TestElement> elements, String name, double[] shares) {
+        JMeterProperty property = elements.get(0).getProperty(name);
+        Double value = parseDouble(property.getStringValue());
+        if (value == null) {
+            skip(elements.get(0), name, property.getStringValue());
+            return;
+        }
+        for (int i = 0; i < elements.size(); i++) {
+            setNumber(elements.get(i), name, value * shares[i]);
+        }
+    }
+
+    static void scaleTable(List<TestElement> elements, String name, int[] columns, double[] shares, boolean integer) {
+        if (!(elements.get(0).getProperty(name) instanceof CollectionProperty)) {
+            return;
+        }
+        List<CollectionProperty> tables = new ArrayList<>(elements.size());
+        for (TestElement element : elements) {
+            tables.add((CollectionProperty) element.getProperty(name));
+        }
+        CollectionProperty table = tables.get(0);
+        for (int row = 0; row < table.size(); row++) {
+            if (!(table.get(row) instanceof CollectionProperty)) {
+                continue;
+            }
+            CollectionProperty firstRow = (CollectionProperty) table.get(row);
+            for (int column : columns) {
+                if (column >= firstRow.size()) {
+                    continue;
+                }
+                String text = firstRow.get(column).getStringValue();
+                if (integer) {
+                    Long value = parseLong(text);
+                    if (value == null) {
+                        skip(elements.get(0), name, text);
+                        continue;
+                    }
+                    long[] values = apportion(value, shares);
+                    for (int i = 0; i < tables.size(); i++) {
+                        ((CollectionProperty) tables.get(i).get(row)).set(column, String.valueOf(values[i]));
+                    }
+                } else {
+                    Double value = parseDouble(text);
+                    if (value == null) {
+                        skip(elements.get(0), name, text);
+                        continue;
+                    }
+                    for (int i = 0; i < tables.size(); i++) {
+                        ((CollectionProperty) tables.get(i).get(row)).set(column, String.valueOf(value * shares[i]));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 保持原来的属性类型，TestBean按属性类型转换
+     */
+    private static void setNumber(TestElement element, String name, Number value) {
+        JMeterProperty property = element.getProperty(name);
+        if (property instanceof IntegerProperty) {
+            element.setProperty(new IntegerProperty(name, value.intValue()));
+        } else if (property instanceof LongProperty) {
+            element.setProperty(new LongProperty(name, value.longValue()));
+        } else if (property instanceof DoubleProperty) {
+            element.setProperty(new DoubleProperty(name, value.doubleValue()));
+        } else if (property instanceof FloatProperty) {
+            element.setProperty(new FloatProperty(name, value.floatValue()));
+        } else {
+            element.setProperty(name, String.valueOf(value));
+        }
+    }
+
+    private static Long parseLong(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    private static Double parseDouble(String text) {
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    private static void skip(TestElement element, String name, String value) {
+        if (value != null && !value.isEmpty()) {
+            log.warn("{}的{}不是数值（{}），拆分负载时保持不变", element.getName(), name, value);
+        }
+    }
+}
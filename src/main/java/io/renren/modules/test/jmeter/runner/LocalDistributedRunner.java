@@ -1,10 +1,9 @@
 package io.renren.modules.test.jmeter.runner;
 
-import org.apache.jmeter.engine.ClientJMeterEngine;
+import io.renren.modules.test.jmeter.engine.LocalClientJMeterEngine;
 import org.apache.jmeter.engine.JMeterEngine;
 import org.apache.jmeter.engine.JMeterEngineException;
-import org.apache.jmeter.engine.TreeCloner;
-import org.apache.jmeter.threads.ThreadGroup;
+import org.apache.jmeter.threads.JMeterContextService;
 import org.apache.jmeter.util.JMeterUtils;
 import org.apache.jorphan.collections.HashTree;
 import org.slf4j.Logger;
@@ -16,6 +15,16 @@ import java.io.PrintStream;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -37,13 +46,35 @@ public class LocalDistributedRunner {
     public static final String RETRIES_DELAY = "client.retries_delay"; // $NON-NLS-1$
     public static final String CONTINUE_ON_FAIL = "client.continue_on_fail"; // $NON-NLS-1$
 
+    /**
+     * 单个节点每次初始化的超时时间
+     */
+    public static final String INIT_TIMEOUT = "client.init_timeout"; // $NON-NLS-1$
+
+    /**
+     * 发送启动命令的超时时间
+     */
+    public static final String START_TIMEOUT = "client.start_timeout"; // $NON-NLS-1$
+
+    /**
+     * 总的等待时间在所有尝试的超时时间之外多等一会，让节点自己的超时先生效
+     */
+    private static final long INIT_GRACE = 5000L;
+
     private final Properties remoteProps;
     private final boolean continueOnFail;
     private final int retriesDelay;
     private final int retriesNumber;
+    private final int initTimeout;
+    private final int startTimeout;
     private PrintStream stdout = new PrintStream(new LocalDistributedRunner.SilentOutputStream());
     private PrintStream stderr = new PrintStream(new LocalDistributedRunner.SilentOutputStream());
-    private final Map<String, JMeterEngine> engines = new HashMap<>();
+    private final Map<String, JMeterEngine> engines = new ConcurrentHashMap<>();
+    /**
+     * 各节点实际执行的脚本（已按权重拆分），节点失联时备用节点接管同样的负载
+     */
+    private final Map<String, HashTree> trees = new ConcurrentHashMap<>();
+    private LoadSplitter loadSplitter = new LoadSplitter();
 
     public LocalDistributedRunner() {
         this(new Properties());
@@ -54,78 +85,75 @@ public class LocalDistributedRunner {
         retriesNumber = JMeterUtils.getPropDefault(RETRIES_NUMBER,1);
         continueOnFail = JMeterUtils.getPropDefault(CONTINUE_ON_FAIL,false);
         retriesDelay = JMeterUtils.getPropDefault(RETRIES_DELAY,5000);
+        initTimeout = JMeterUtils.getPropDefault(INIT_TIMEOUT,60000);
+        startTimeout = JMeterUtils.getPropDefault(START_TIMEOUT,30000);
     }
 
     /**
      * 为了不破坏源生的代码，仅做增量修改
+     * <p>
+     * 各节点并行初始化（查找远程对象、修改并克隆脚本、发送脚本），每个节点单独重试，
+     * 单个节点每次尝试超过client.init_timeout还没有完成按失败处理，不再拖慢其他节点。
      */
     public void init(List<String> addresses, HashTree tree,Map<String,Integer> addrWeight) {
-        //converting list into mutable version
-        List<String> addrs = new LinkedList<>(addresses);
-
-        for (int tryNo = 0; tryNo < retriesNumber; tryNo++) {
-            if (tryNo > 0) {
-                println("Following remote engines will retry configuring:" + addrs);
-                println("Pausing before retry for " + retriesDelay + "ms");
-                try {
-                    Thread.sleep(retriesDelay);
-                } catch (InterruptedException e) { // NOSONAR
-                    throw new RuntimeException("Interrupted while initializing remote",e);
-                }
+        // See https://bz.apache.org/bugzilla/show_bug.cgi?id=55510
+        JMeterContextService.clearTotalThreads();
+
+        //smooth add
+        //在进程内存内把HashTree即脚本文件的内容按照权重修改，线程数、吞吐量、阶梯/计划表都按比例拆分到各节点。
+        //权重都是100（或没有设置）时和Jmeter默认一样，每个节点执行完整的脚本。
+        Map<String, Double> shares = new LinkedHashMap<>();
+        boolean scaled = false;
+        for (String address : addresses) {
+            Integer weight = addrWeight.get(address);
+            double share = weight != null && weight > 0 ? weight / 100d : 1d;
+            scaled |= share != 1d;
+            shares.put(address, share);
+        }
+        Map<String, HashTree> addrTrees;
+        if (scaled) {
+            addrTrees = loadSplitter.split(tree, shares);
+        } else {
+            addrTrees = new LinkedHashMap<>();
+            for (String address : addresses) {
+                addrTrees.put(address, tree);
             }
-
-            int idx = 0;
-            while (idx < addrs.size()) {
-                String address = addrs.get(idx);
-                println("Configuring remote engine: " + address);
-
-                //smooth add
-                //在进程内存内把HashTree即脚本文件的内容修改，主要改两部分，线程数和加载虚拟用户数用时，都是按照比例增加或者缩减。
-                //将脚本内所有的线程组都要修改。
-                Integer weight = addrWeight.get(address);
-                //需要将原始的tree clone，因为可能会存在多个分布式节点权重不一样的情况。
-                HashTree treeClone = null;
-
-                if (weight != null && weight > 0 && weight != 100) {
-                    //需要时再clone，clone的消耗会稍微多一些。
-                    //false 是如果test Element的类型node,也会clone.
-                    TreeCloner cloner = new TreeCloner(false);
-                    tree.traverse(cloner);
-                    treeClone = cloner.getClonedTree();
-
-                    for (HashTree item : treeClone.values()) {
-                        Set treeKeys = item.keySet();
-                        for (Object key : treeKeys) {
-                            if (key instanceof ThreadGroup) {
-                                int originThreadNum = Integer.parseInt(((ThreadGroup) key).getPropertyAsString(ThreadGroup.NUM_THREADS));
-                                //假如脚本内原来虚拟用户数是100，权重是90，则脚本的虚拟用户数要修改为90，加载用时要修改为原来的90%。
-                                //修改的数值向上取整(避免为0的情况)。
-                                int threadNumFix = (int) Math.ceil(originThreadNum * weight / 100d);
-                                ((ThreadGroup) key).setProperty(ThreadGroup.NUM_THREADS,"" + threadNumFix);
-
-                                //修改加载用户数的用时
-                                int originRampTime = Integer.parseInt(((ThreadGroup) key).getPropertyAsString(ThreadGroup.RAMP_TIME));
-                                int rampTimeFix = (int) Math.ceil(originRampTime * weight / 100d);
-                                ((ThreadGroup) key).setProperty(ThreadGroup.RAMP_TIME,"" + rampTimeFix);
-
-
-                            }
-                        }
-                    }
-                }
-
-                //smooth fix end
-                JMeterEngine engine = getClientEngine(address.trim(),treeClone==null?tree:treeClone);
-                if (engine != null) {
-                    engines.put(address,engine);
-                    addrs.remove(address);
-                }else {
-                    println("Failed to configure " + address);
-                    idx++;
-                }
+        }
+        trees.putAll(addrTrees);
+        //smooth fix end
+
+        //每个节点一个线程，提交后同时开始，超时时间从这里计算
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, addrTrees.size()),
+                new RemoteThreadFactory("remote-init-"));
+        Map<String, Future<JMeterEngine>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, HashTree> entry : addrTrees.entrySet()) {
+            futures.put(entry.getKey(), pool.submit(() -> configureWithRetry(entry.getKey(), entry.getValue())));
+        }
+        pool.shutdown();
+
+        //每次尝试都有client.init_timeout的限制，这里只是兜底，各节点并行开始，不会互相占用时间
+        long deadline = System.currentTimeMillis() + (long) initTimeout * retriesNumber
+                + (long) retriesDelay * (retriesNumber - 1) + INIT_GRACE;
+        List<String> addrs = new LinkedList<>();
+        for (Map.Entry<String, Future<JMeterEngine>> entry : futures.entrySet()) {
+            String address = entry.getKey();
+            JMeterEngine engine = null;
+            try {
+                engine = entry.getValue().get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                println("Timed out configuring remote engine: " + address);
+                entry.getValue().cancel(true);
+            } catch (ExecutionException e) {
+                log.error("Failed to configure {}", address, e.getCause());
+            } catch (InterruptedException e) { // NOSONAR
+                pool.shutdownNow();
+                stop();
+                throw new RuntimeException("Interrupted while initializing remote",e);
             }
-            if (addrs.isEmpty()) {
-                break;
+            if (engine != null) {
+                engines.put(address,engine);
+            } else {
+                addrs.add(address);
             }
         }
 
@@ -142,8 +170,50 @@ public class LocalDistributedRunner {
 
     }
 
+    /**
+     * 单个节点的初始化，失败时只重试这个节点，每次尝试超过client.init_timeout按失败处理
+     */
+    private JMeterEngine configureWithRetry(String address, HashTree tree) throws InterruptedException {
+        ExecutorService attempts = Executors.newCachedThreadPool(new RemoteThreadFactory("remote-init-try-"));
+        try {
+            for (int tryNo = 0; tryNo < retriesNumber; tryNo++) {
+                if (tryNo > 0) {
+                    println("Remote engine " + address + " will retry configuring, pausing for " + retriesDelay + "ms");
+                    Thread.sleep(retriesDelay);
+                }
+                println("Configuring remote engine: " + address);
+                Future<JMeterEngine> attempt = attempts.submit(() -> {
+                    JMeterEngine engine = getClientEngine(address.trim(), tree);
+                    if (engine != null && Thread.currentThread().isInterrupted()) {
+                        //已经超时放弃的尝试，清除已经发送的脚本
+                        engine.reset();
+                        return null;
+                    }
+                    return engine;
+                });
+                try {
+                    JMeterEngine engine = attempt.get(initTimeout, TimeUnit.MILLISECONDS);
+                    if (engine != null) {
+                        return engine;
+                    }
+                } catch (TimeoutException e) {
+                    attempt.cancel(true);
+                    println("Timed out configuring remote engine: " + address + " after " + initTimeout + "ms");
+                } catch (ExecutionException e) {
+                    log.error("Failed to configure {}", address, e.getCause());
+                }
+                println("Failed to configure " + address);
+            }
+            return null;
+        } finally {
+            attempts.shutdownNow();
+        }
+    }
+
     /**
      * Starts a remote testing engiens
+     * <p>
+     * 脚本在init时已经发送，这里每个节点一个线程，全部就绪后同时发送启动命令，各节点开始压测的时间差只有一次网络往返。
      *
      * @Param addresses list of the DNS names or IP addresses of the remote testing engines
      */
@@ -151,18 +221,62 @@ public class LocalDistributedRunner {
         println("Starting remote engines");
         long now = System.currentTimeMillis();
         println("Starting the test @ " + new Date(now) + " (" + now + ")");
+        Map<String, JMeterEngine> targets = new LinkedHashMap<>();
         for (String address : addresses) {
+            if (engines.containsKey(address)) {
+                targets.put(address, engines.get(address));
+            } else {
+                log.warn("Host not found in list of active engines: {}",address);
+            }
+        }
+        if (targets.isEmpty()) {
+            println("Remote engines have been started");
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(targets.size(), new RemoteThreadFactory("remote-start-"));
+        CountDownLatch waiting = new CountDownLatch(targets.size());
+        CountDownLatch go = new CountDownLatch(1);
+        Map<String, Future<?>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, JMeterEngine> entry : targets.entrySet()) {
+            futures.put(entry.getKey(), pool.submit(() -> {
+                waiting.countDown();
+                go.await();
+                entry.getValue().runTest();
+                return null;
+            }));
+        }
+        pool.shutdown();
+        try {
+            //所有线程都在等待时同时放行
+            if (!waiting.await(startTimeout, TimeUnit.MILLISECONDS)) {
+                log.warn("Not all start threads are ready, starting anyway");
+            }
+        } catch (InterruptedException e) { // NOSONAR
+            Thread.currentThread().interrupt();
+        }
+        long released = System.currentTimeMillis();
+        go.countDown();
+
+        for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
             try {
-                if (engines.containsKey(address)) {
-                    engines.get(address).runTest();
+                entry.getValue().get(startTimeout, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IllegalStateException || cause instanceof JMeterEngineException) { // NOSONAR already reported to user
+                    JMeterUtils.reportErrorToUser(cause.getMessage(), JMeterUtils.getResString("remote_error_starting")); // $NON-NLS-1$
                 } else {
-                    log.warn("Host not found in list of active engines: {}",address);
+                    errln("Failed to start test on " + entry.getKey(),
+                            cause instanceof Exception ? (Exception) cause : new Exception(cause));
                 }
-            } catch (IllegalStateException | JMeterEngineException e) { // NOSONAR already reported to user
-                JMeterUtils.reportErrorToUser(e.getMessage(), JMeterUtils.getResString("remote_error_starting")); // $NON-NLS-1$
+            } catch (TimeoutException e) {
+                log.error("Timed out starting remote engine: {}", entry.getKey());
+            } catch (InterruptedException e) { // NOSONAR
+                Thread.currentThread().interrupt();
+                break;
             }
         }
-        println("Remote engines have been started");
+        println("Remote engines have been started in " + (System.currentTimeMillis() - released) + "ms");
     }
 
     /**
@@ -240,6 +354,10 @@ public class LocalDistributedRunner {
             if (!remoteProps.isEmpty()) {
                 engine.setProperties(remoteProps);
             }
+            //脚本和属性在初始化时发送，启动时只需要发送启动命令
+            if (engine instanceof LocalClientJMeterEngine) {
+                ((LocalClientJMeterEngine) engine).prepare();
+            }
             return engine;
         } catch (Exception ex) {
             log.error("Failed to create engine at {}",address,ex);
@@ -258,7 +376,7 @@ public class LocalDistributedRunner {
      * @throws MalformedURLException when address can't be converted to valid URL
      */
     protected JMeterEngine createEngine(String address) throws NotBoundException, RemoteException {
-        return new ClientJMeterEngine(address);
+        return new LocalClientJMeterEngine(address);
     }
 
 
@@ -281,6 +399,31 @@ public class LocalDistributedRunner {
         this.stderr = stdErr;
     }
 
+    /**
+     * 需要支持其他线程组、定时器插件时替换拆分负载的实现
+     */
+    public void setLoadSplitter(LoadSplitter loadSplitter) {
+        this.loadSplitter = loadSplitter;
+    }
+
+    static class RemoteThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger index = new AtomicInteger();
+
+        RemoteThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     private static class SilentOutputStream extends OutputStream {
         @Override
         public void write(int b) throws IOException {
@@ -295,4 +438,55 @@ public class LocalDistributedRunner {
         return engines.values();
     }
 
+    /**
+     * 正在使用的节点地址 -> engine
+     */
+    public Map<String, JMeterEngine> getRemoteEngines() {
+        return Collections.unmodifiableMap(engines);
+    }
+
+    /**
+     * 节点执行的脚本，init之后才有
+     */
+    public HashTree getTree(String address) {
+        return trees.get(address);
+    }
+
+    /**
+     * 压测过程中启动一个新的节点（备用节点接管失联节点的负载），初始化后立即开始。
+     *
+     * @return 启动成功的engine，失败返回null
+     */
+    public JMeterEngine takeOver(String address, HashTree tree) {
+        JMeterEngine engine;
+        try {
+            engine = configureWithRetry(address, tree);
+        } catch (InterruptedException e) { // NOSONAR
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (engine == null) {
+            return null;
+        }
+        try {
+            engine.runTest();
+        } catch (JMeterEngineException | RuntimeException e) {
+            errln("Failed to start test on " + address, e);
+            engine.reset();
+            return null;
+        }
+        engines.put(address, engine);
+        trees.put(address, tree);
+        println("Remote engine " + address + " has been started");
+        return engine;
+    }
+
+    /**
+     * 失联的节点不再参与停止、退出
+     */
+    public JMeterEngine remove(String address) {
+        trees.remove(address);
+        return engines.remove(address);
+    }
+
 }
@@ -0,0 +1,237 @@
+package io.renren.modules.test.jmeter.runner;
+
+import io.renren.modules.test.jmeter.JmeterListenToTest;
+import io.renren.modules.test.jmeter.engine.LocalClientJMeterEngine;
+import org.apache.jmeter.engine.JMeterEngine;
+import org.apache.jmeter.engine.TreeCloner;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jmeter.threads.AbstractThreadGroup;
+import org.apache.jmeter.threads.ThreadGroup;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.collections.HashTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 分布式压测过程中监控各节点机的Jmeter进程。
+ * 节点连续多次检查失败按失联处理，由备用节点（权重为-1的启用节点）接管失联节点的脚本，总负载不变；
+ * 没有可用的备用节点时记录错误，失联节点按已结束处理，压测可以正常结束。
+ * <p>
+ * 节点机上正在执行的引擎不接收新的脚本，失联节点的负载没法加到其他正在执行的节点上，只能交给空闲的备用节点。
+ * 按时间执行的线程组，备用节点只执行剩下的时间；按循环次数执行的线程组完整执行。
+ */
+public class RemoteEngineMonitor {
+
+    private static final Logger log = LoggerFactory.getLogger(RemoteEngineMonitor.class);
+
+    /**
+     * 检查节点的间隔时间
+     */
+    public static final String HEARTBEAT_INTERVAL = "client.heartbeat_interval"; // $NON-NLS-1$
+
+    /**
+     * 连续检查失败多少次按失联处理
+     */
+    public static final String HEARTBEAT_FAILURES = "client.heartbeat_failures"; // $NON-NLS-1$
+
+    private final LocalDistributedRunner runner;
+
+    private final JmeterListenToTest listener;
+
+    /**
+     * 本次执行的engines，接管的节点也加进去，停止压测时一起停止
+     */
+    private final List<JMeterEngine> engines;
+
+    /**
+     * 当前可用的备用节点地址，每次接管时重新获取，压测过程中新启用的备用节点也能用上
+     */
+    private final Supplier<List<String>> standbySupplier;
+
+    private final long interval;
+
+    private final int maxFailures;
+
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+
+    /**
+     * 本次执行用过的节点，同一个节点只用一次
+     */
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService checker;
+
+    private long startTime;
+
+    private volatile boolean closed;
+
+    public RemoteEngineMonitor(LocalDistributedRunner runner, JmeterListenToTest listener,
+                               List<JMeterEngine> engines, Supplier<List<String>> standbySupplier) {
+        this.runner = runner;
+        this.listener = listener;
+        this.engines = engines;
+        this.standbySupplier = standbySupplier;
+        this.interval = JMeterUtils.getPropDefault(HEARTBEAT_INTERVAL, 5000);
+        this.maxFailures = JMeterUtils.getPropDefault(HEARTBEAT_FAILURES, 3);
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        startTime = System.currentTimeMillis();
+        used.addAll(runner.getRemoteEngines().keySet());
+        checker = Executors.newCachedThreadPool(new LocalDistributedRunner.RemoteThreadFactory("remote-heartbeat-"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new LocalDistributedRunner.RemoteThreadFactory("remote-monitor-"));
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (Exception e) {
+                log.error("检查分布式节点出错", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 压测停止时调用，不再检查和接管
+     */
+    public synchronized void close() {
+        closed = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            checker.shutdownNow();
+        }
+    }
+
+    /**
+     * 并行检查所有还在压测的节点，单个节点的检查超过间隔时间按失败处理
+     */
+    private void check() {
+        Map<String, Future<Boolean>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, JMeterEngine> entry : runner.getRemoteEngines().entrySet()) {
+            if (entry.getValue() instanceof LocalClientJMeterEngine && !listener.hasEnded(entry.getKey())) {
+                LocalClientJMeterEngine engine = (LocalClientJMeterEngine) entry.getValue();
+                futures.put(entry.getKey(), checker.submit(engine::isAlive));
+            }
+        }
+        long deadline = System.currentTimeMillis() + interval;
+        for (Map.Entry<String, Future<Boolean>> entry : futures.entrySet()) {
+            String host = entry.getKey();
+            boolean alive;
+            try {
+                alive = entry.getValue().get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                entry.getValue().cancel(true);
+                alive = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            if (alive) {
+                failures.remove(host);
+                continue;
+            }
+            int count = failures.merge(host, 1, Integer::sum);
+            log.warn("分布式节点{}检查失败{}次", host, count);
+            if (count >= maxFailures && !listener.hasEnded(host)) {
+                lost(host);
+            }
+        }
+    }
+
+    private void lost(String host) {
+        failures.remove(host);
+        HashTree tree = runner.getTree(host);
+        engines.remove(runner.remove(host));
+        log.error("分布式节点{}失联", host);
+        if (tree != null) {
+            takeOver(host, tree);
+        }
+        //接管的节点已经计入正在压测的节点，最后一个节点失联时压测才结束
+        listener.hostLost(host);
+    }
+
+    private void takeOver(String host, HashTree tree) {
+        HashTree remaining = remainingTree(tree, System.currentTimeMillis() - startTime);
+        if (remaining == null) {
+            log.info("脚本的执行时间已经结束，不再接管节点{}的负载", host);
+            return;
+        }
+        for (String address : standbySupplier.get()) {
+            if (closed) {
+                return;
+            }
+            if (!used.add(address)) {
+                continue;
+            }
+            listener.expectHost(address);
+            JMeterEngine engine = runner.takeOver(address, remaining);
+            if (engine != null) {
+                engines.add(engine);
+                if (closed) {
+                    //接管过程中压测已经停止
+                    engine.stopTest(true);
+                }
+                log.info("备用节点{}已接管失联节点{}的负载", address, host);
+                return;
+            }
+            listener.hostLost(address);
+        }
+        log.error("没有可用的备用节点，失联节点{}的负载没有被接管，总负载减少", host);
+    }
+
+    /**
+     * 复制节点的脚本，按时间执行的线程组减去已经执行的时间，都已经执行完时返回null
+     *
+     * @param elapsed 压测已经执行的时间（毫秒）
+     */
+    static HashTree remainingTree(HashTree tree, long elapsed) {
+        TreeCloner cloner = new TreeCloner(false);
+        tree.traverse(cloner);
+        HashTree clone = cloner.getClonedTree();
+
+        long seconds = elapsed / 1000;
+        boolean finished = true;
+        for (TestElement element : LoadSplitter.collect(clone)) {
+            if (!(element instanceof AbstractThreadGroup)) {
+                continue;
+            }
+            if (!(element instanceof ThreadGroup)
+                    || !((ThreadGroup) element).getScheduler() || ((ThreadGroup) element).getDuration() <= 0) {
+                finished = false;
+                continue;
+            }
+            ThreadGroup threadGroup = (ThreadGroup) element;
+            long end = threadGroup.getDelay() + threadGroup.getDuration();
+            if (end <= seconds) {
+                threadGroup.setNumThreads(0);
+                continue;
+            }
+            long delay = Math.max(0L, threadGroup.getDelay() - seconds);
+            threadGroup.setProperty(ThreadGroup.DELAY, delay);
+            threadGroup.setProperty(ThreadGroup.DURATION, end - seconds - delay);
+            finished = false;
+        }
+        return finished ? null : clone;
+    }
+}
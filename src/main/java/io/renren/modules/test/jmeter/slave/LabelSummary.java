@@ -0,0 +1,130 @@
+package io.renren.modules.test.jmeter.slave;
+
+import java.io.Serializable;
+
+/**
+ * 节点机上单个label一秒钟的汇总数据，代替这一秒内的所有请求结果发送给master。
+ * 响应时间分布按2位有效数字归并（和master上的HdrHistogram精度相同），values和counts一一对应。
+ */
+public class LabelSummary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String label;
+
+    /**
+     * 汇总的时间戳(ms)，节点机的时间
+     */
+    private final long time;
+
+    private final long count;
+
+    private final long errorCount;
+
+    private final long elapsedTotal;
+
+    private final long sentBytes;
+
+    private final long receivedBytes;
+
+    private final long minElapsed;
+
+    private final long maxElapsed;
+
+    /**
+     * 这一秒第一个请求的开始时间和最后一个请求的结束时间
+     */
+    private final long firstTime;
+
+    private final long lastTime;
+
+    private final long[] values;
+
+    private final long[] counts;
+
+    public LabelSummary(String label, long time, long count, long errorCount, long elapsedTotal,
+                        long sentBytes, long receivedBytes, long minElapsed, long maxElapsed,
+                        long firstTime, long lastTime, long[] values, long[] counts) {
+        this.label = label;
+        this.time = time;
+        this.count = count;
+        this.errorCount = errorCount;
+        this.elapsedTotal = elapsedTotal;
+        this.sentBytes = sentBytes;
+        this.receivedBytes = receivedBytes;
+        this.minElapsed = minElapsed;
+        this.maxElapsed = maxElapsed;
+        this.firstTime = firstTime;
+        this.lastTime = lastTime;
+        this.values = values;
+        this.counts = counts;
+    }
+
+    /**
+     * 响应时间按2位有效数字向下取整，100ms以内是精确值
+     */
+    public static long roundElapsed(long elapsed) {
+        if (elapsed < 100) {
+            return Math.max(elapsed, 0L);
+        }
+        long scale = 1L;
+        long value = elapsed;
+        while (value >= 100) {
+            value /= 10;
+            scale *= 10;
+        }
+        return value * scale;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getElapsedTotal() {
+        return elapsedTotal;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public long getMinElapsed() {
+        return minElapsed;
+    }
+
+    public long getMaxElapsed() {
+        return maxElapsed;
+    }
+
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    public long[] getValues() {
+        return values;
+    }
+
+    public long[] getCounts() {
+        return counts;
+    }
+}
@@ -0,0 +1,95 @@
+package io.renren.modules.test.jmeter.slave;
+
+import io.renren.modules.test.jmeter.engine.VirtualThreadGroup;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * 把需要在节点机上执行的类打包成jar，启动节点时上传到节点机Jmeter的lib/ext下。
+ * 从master自己的classpath读取class文件，不需要单独构建；
+ * 内容和条目时间固定，master重启后MD5不变，节点机上已经是最新的就不再上传。
+ */
+public class SlaveAgentJar {
+
+    public static final String JAR_NAME = "renren-slave-agent.jar";
+
+    /**
+     * 随脚本发送到节点机的类，内部类自动包含（不能使用匿名内部类）
+     */
+    private static final Class<?>[] CLASSES = {SlaveSummaryCollector.class, LabelSummary.class, SummaryListener.class,
+            VirtualThreadGroup.class};
+
+    /**
+     * zip条目时间的最小值1980-01-01
+     */
+    private static final long ENTRY_TIME = 315532800000L;
+
+    private static File jarFile;
+
+    private static String md5;
+
+    public static synchronized File getJar() throws IOException {
+        if (jarFile == null || !jarFile.exists()) {
+            File file = File.createTempFile("slave-agent-", ".jar");
+            file.deleteOnExit();
+            build(file);
+            try (InputStream in = new FileInputStream(file)) {
+                md5 = DigestUtils.md5Hex(in);
+            }
+            jarFile = file;
+        }
+        return jarFile;
+    }
+
+    public static synchronized String getMd5() throws IOException {
+        getJar();
+        return md5;
+    }
+
+    private static void build(File file) throws IOException {
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> clazz : CLASSES) {
+            addWithNested(classes, clazz);
+        }
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file))) {
+            for (Class<?> clazz : classes) {
+                String name = clazz.getName().replace('.', '/') + ".class";
+                try (InputStream in = clazz.getClassLoader().getResourceAsStream(name)) {
+                    if (in == null) {
+                        throw new IOException("找不到class文件：" + name);
+                    }
+                    JarEntry entry = new JarEntry(name);
+                    entry.setTime(ENTRY_TIME);
+                    out.putNextEntry(entry);
+                    IOUtils.copy(in, out);
+                    out.closeEntry();
+                }
+            }
+        }
+    }
+
+    private static void addWithNested(List<Class<?>> classes, Class<?> clazz) {
+        classes.add(clazz);
+        Class<?>[] nested = clazz.getDeclaredClasses();
+        List<Class<?>> sorted = new ArrayList<>();
+        Collections.addAll(sorted, nested);
+        sorted.sort((a, b) -> a.getName().compareTo(b.getName()));
+        for (Class<?> inner : sorted) {
+            addWithNested(classes, inner);
+        }
+    }
+
+    private SlaveAgentJar() {
+    }
+}
@@ -0,0 +1,331 @@
+package io.renren.modules.test.jmeter.slave;
+
+import org.apache.jmeter.engine.util.NoThreadClone;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleListener;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.save.CSVSaveService;
+import org.apache.jmeter.testelement.AbstractTestElement;
+import org.apache.jmeter.testelement.TestStateListener;
+import org.apache.jmeter.testelement.property.ObjectProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 节点机预聚合的结果收集器，分布式压测时代替JmeterResultCollector随脚本发送到节点机上执行。
+ * <p>
+ * 原来每个请求结果都通过RMI发送到master，请求量大时master的网络和CPU先于节点机达到瓶颈。
+ * 这里请求结果留在节点机上处理：原始结果写入节点机本地的csv文件，压测结束后再取回；
+ * 监控数据按label每秒汇总一次发送给master，发送量只和label数量有关，和请求量无关。
+ * <p>
+ * 不是Remoteable，ConvertListeners不会把它替换成RMI回调。所以这个包里随脚本发送的类只能依赖Jmeter和JDK，
+ * 由SlaveAgentJar打包放到节点机的lib/ext下。配置都保存为属性，脚本克隆（TreeCloner）时不会丢失。
+ */
+public class SlaveSummaryCollector extends AbstractTestElement
+        implements SampleListener, TestStateListener, NoThreadClone {
+
+    private static final Logger log = LoggerFactory.getLogger(SlaveSummaryCollector.class);
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 节点机上原始结果文件的路径，相对于jmeter-server的启动目录，为空时不保存原始结果。
+     * 以.gz结尾时gzip压缩写入。
+     */
+    public static final String FILENAME = "SlaveSummaryCollector.filename";
+
+    /**
+     * 写入过程中的文件后缀，结束时去掉，master据此判断文件已经写完
+     */
+    public static final String PART_SUFFIX = ".part";
+
+    public static final String SAVE_CONFIG = "SlaveSummaryCollector.saveConfig";
+
+    /**
+     * master上的SummaryListener（RMI stub），为空时不发送监控数据
+     */
+    public static final String LISTENER = "SlaveSummaryCollector.listener";
+
+    private static final long INTERVAL = 1000L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private transient ConcurrentMap<String, AtomicReference<Accumulator>> accumulators;
+
+    private transient ScheduledExecutorService scheduler;
+
+    private transient Writer writer;
+
+    private transient File partFile;
+
+    private transient SampleSaveConfiguration saveConfig;
+
+    private transient SummaryListener listener;
+
+    private transient String host;
+
+    public void setFilename(String filename) {
+        setProperty(FILENAME, filename);
+    }
+
+    public String getFilename() {
+        return getPropertyAsString(FILENAME);
+    }
+
+    public void setSaveConfig(SampleSaveConfiguration saveConfig) {
+        setProperty(new ObjectProperty(SAVE_CONFIG, saveConfig));
+    }
+
+    public void setSummaryListener(SummaryListener listener) {
+        setProperty(new ObjectProperty(LISTENER, listener));
+    }
+
+    @Override
+    public void testStarted() {
+        testStarted("");
+    }
+
+    @Override
+    public void testStarted(String host) {
+        this.host = host;
+        Object config = getProperty(SAVE_CONFIG).getObjectValue();
+        saveConfig = config instanceof SampleSaveConfiguration ? (SampleSaveConfiguration) config
+                : SampleSaveConfiguration.staticConfig();
+        Object remote = getProperty(LISTENER).getObjectValue();
+        listener = remote instanceof SummaryListener ? (SummaryListener) remote : null;
+
+        String filename = getFilename();
+        if (!filename.isEmpty()) {
+            try {
+                partFile = new File(filename + PART_SUFFIX);
+                if (partFile.getParentFile() != null) {
+                    partFile.getParentFile().mkdirs();
+                }
+                OutputStream out = new FileOutputStream(partFile);
+                if (filename.endsWith(".gz")) {
+                    out = new GZIPOutputStream(out, BUFFER_SIZE);
+                }
+                writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+                if (saveConfig.saveFieldNames()) {
+                    writer.write(CSVSaveService.printableFieldNamesToString(saveConfig));
+                    writer.write(System.lineSeparator());
+                }
+                log.info("{}的原始测试结果保存到{}", host, partFile.getAbsolutePath());
+            } catch (IOException e) {
+                log.error("打开测试结果文件失败：{}", filename, e);
+                writer = null;
+            }
+        }
+
+        if (listener != null) {
+            accumulators = new ConcurrentHashMap<>();
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "slave-summary");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleAtFixedRate(this::flush, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void testEnded() {
+        testEnded("");
+    }
+
+    /**
+     * 发送最后不足一秒的汇总，关闭原始结果文件
+     */
+    @Override
+    public void testEnded(String host) {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+            scheduler = null;
+        }
+        if (writer != null) {
+            synchronized (writer) {
+                try {
+                    writer.close();
+                    File file = new File(getFilename());
+                    if (!partFile.renameTo(file)) {
+                        log.error("测试结果文件{}重命名为{}失败", partFile, file);
+                    }
+                } catch (IOException e) {
+                    log.error("关闭测试结果文件失败：{}", getFilename(), e);
+                }
+            }
+            writer = null;
+        }
+    }
+
+    @Override
+    public void sampleOccurred(SampleEvent event) {
+        SampleResult result = event.getResult();
+        Writer out = writer;
+        if (out != null) {
+            result.setSaveConfig(saveConfig);
+            String line = CSVSaveService.resultToDelimitedString(event);
+            synchronized (out) {
+                try {
+                    out.write(line);
+                    out.write(System.lineSeparator());
+                } catch (IOException e) {
+                    log.error("写入测试结果文件失败：{}", getFilename(), e);
+                }
+            }
+        }
+
+        ConcurrentMap<String, AtomicReference<Accumulator>> map = accumulators;
+        if (map != null) {
+            String label = result.getSampleLabel() == null ? "" : result.getSampleLabel();
+            AtomicReference<Accumulator> reference = map.get(label);
+            if (reference == null) {
+                reference = map.computeIfAbsent(label, key -> new AtomicReference<>(new Accumulator()));
+            }
+            //汇总时切换了新的Accumulator，加到新的里面
+            while (!reference.get().add(result)) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public void sampleStarted(SampleEvent e) {
+    }
+
+    @Override
+    public void sampleStopped(SampleEvent e) {
+    }
+
+    /**
+     * 切换各个label的Accumulator，把上一秒的汇总发送给master
+     */
+    private void flush() {
+        try {
+            long now = System.currentTimeMillis();
+            List<LabelSummary> summaries = new ArrayList<>();
+            for (Map.Entry<String, AtomicReference<Accumulator>> entry : accumulators.entrySet()) {
+                LabelSummary summary = entry.getValue().getAndSet(new Accumulator()).close(entry.getKey(), now);
+                if (summary != null) {
+                    summaries.add(summary);
+                }
+            }
+            if (!summaries.isEmpty()) {
+                listener.summaries(host, summaries);
+            }
+        } catch (RemoteException e) {
+            //只影响监控，不影响压测
+            log.warn("监控数据发送到master失败：{}", e.toString());
+        } catch (RuntimeException e) {
+            log.error("汇总监控数据出错", e);
+        }
+    }
+
+    /**
+     * 单个label一秒内的累加，采样线程之间只在同一个label上同步
+     */
+    private static class Accumulator {
+
+        private boolean closed;
+
+        private long count;
+
+        private long errorCount;
+
+        private long elapsedTotal;
+
+        private long sentBytes;
+
+        private long receivedBytes;
+
+        private long minElapsed = Long.MAX_VALUE;
+
+        private long maxElapsed = Long.MIN_VALUE;
+
+        private long firstTime = Long.MAX_VALUE;
+
+        private long lastTime;
+
+        private final Map<Long, long[]> histogram = new HashMap<>();
+
+        /**
+         * 对于聚合过的结果（sampleCount大于1），响应时间按平均值记录，和master上的LabelStats一致。
+         *
+         * @return 已经汇总过时返回false
+         */
+        synchronized boolean add(SampleResult result) {
+            if (closed) {
+                return false;
+            }
+            int samples = Math.max(1, result.getSampleCount());
+            long elapsed = result.getTime();
+            long perSample = elapsed / samples;
+            count += samples;
+            errorCount += result.getErrorCount();
+            elapsedTotal += elapsed;
+            sentBytes += result.getSentBytes();
+            receivedBytes += result.getBytesAsLong();
+            minElapsed = Math.min(minElapsed, perSample);
+            maxElapsed = Math.max(maxElapsed, perSample);
+            firstTime = Math.min(firstTime, result.getStartTime());
+            lastTime = Math.max(lastTime, result.getEndTime());
+
+            Long value = LabelSummary.roundElapsed(perSample);
+            long[] counter = histogram.get(value);
+            if (counter == null) {
+                histogram.put(value, new long[]{samples});
+            } else {
+                counter[0] += samples;
+            }
+            return true;
+        }
+
+        /**
+         * @return 这一秒没有请求时返回null
+         */
+        synchronized LabelSummary close(String label, long time) {
+            closed = true;
+            if (count == 0) {
+                return null;
+            }
+            long[] values = new long[histogram.size()];
+            long[] counts = new long[histogram.size()];
+            int i = 0;
+            for (Map.Entry<Long, long[]> entry : histogram.entrySet()) {
+                values[i] = entry.getKey();
+                counts[i] = entry.getValue()[0];
+                i++;
+            }
+            return new LabelSummary(label, time, count, errorCount, elapsedTotal, sentBytes, receivedBytes,
+                    minElapsed, maxElapsed, firstTime, lastTime, values, counts);
+        }
+    }
+}
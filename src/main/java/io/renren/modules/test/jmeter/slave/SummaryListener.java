@@ -0,0 +1,17 @@
+package io.renren.modules.test.jmeter.slave;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * master上接收节点机每秒监控汇总数据的远程接口。
+ */
+public interface SummaryListener extends Remote {
+
+    /**
+     * @param host      节点机地址
+     * @param summaries 这一秒各个label的汇总
+     */
+    void summaries(String host, List<LabelSummary> summaries) throws RemoteException;
+}
@@ -0,0 +1,223 @@
+package io.renren.modules.test.jmeter.stats;
+
+/**
+ * 单个label在某一时刻的统计快照，供前端监控读取。
+ * 快照生成后不再变化，读取时不需要任何同步。
+ */
+public class LabelSnapshot {
+
+    private final String label;
+
+    private long count;
+
+    private long errorCount;
+
+    /**
+     * 平均响应时间(ms)
+     */
+    private double mean;
+
+    private long min;
+
+    private long max;
+
+    /**
+     * 从压测开始累计的响应时间百分位(ms)
+     */
+    private long p90;
+
+    private long p95;
+
+    private long p99;
+
+    /**
+     * 最近windowSeconds秒的响应时间百分位(ms)
+     */
+    private int windowSeconds;
+
+    private long windowP90;
+
+    private long windowP95;
+
+    private long windowP99;
+
+    private long windowMax;
+
+    private long windowMin;
+
+    /**
+     * 每秒请求数
+     */
+    private double rate;
+
+    /**
+     * 每秒错误请求数
+     */
+    private double errorRate;
+
+    private double sentKBPerSecond;
+
+    private double receivedKBPerSecond;
+
+    public LabelSnapshot(String label) {
+        this.label = label;
+    }
+
+    /**
+     * 错误率，0~1之间。
+     */
+    public double getErrorPercentage() {
+        if (count == 0) {
+            return 0.0;
+        }
+        return (double) errorCount / (double) count;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public void setErrorCount(long errorCount) {
+        this.errorCount = errorCount;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public void setMean(double mean) {
+        this.mean = mean;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public void setMin(long min) {
+        this.min = min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public void setMax(long max) {
+        this.max = max;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public void setP90(long p90) {
+        this.p90 = p90;
+    }
+
+    public long getP95() {
+        return p95;
+    }
+
+    public void setP95(long p95) {
+        this.p95 = p95;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public void setP99(long p99) {
+        this.p99 = p99;
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    public void setWindowSeconds(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+    public long getWindowP90() {
+        return windowP90;
+    }
+
+    public void setWindowP90(long windowP90) {
+        this.windowP90 = windowP90;
+    }
+
+    public long getWindowP95() {
+        return windowP95;
+    }
+
+    public void setWindowP95(long windowP95) {
+        this.windowP95 = windowP95;
+    }
+
+    public long getWindowP99() {
+        return windowP99;
+    }
+
+    public void setWindowP99(long windowP99) {
+        this.windowP99 = windowP99;
+    }
+
+    public long getWindowMax() {
+        return windowMax;
+    }
+
+    public void setWindowMax(long windowMax) {
+        this.windowMax = windowMax;
+    }
+
+    public long getWindowMin() {
+        return windowMin;
+    }
+
+    public void setWindowMin(long windowMin) {
+        this.windowMin = windowMin;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public double getSentKBPerSecond() {
+        return sentKBPerSecond;
+    }
+
+    public void setSentKBPerSecond(double sentKBPerSecond) {
+        this.sentKBPerSecond = sentKBPerSecond;
+    }
+
+    public double getReceivedKBPerSecond() {
+        return receivedKBPerSecond;
+    }
+
+    public void setReceivedKBPerSecond(double receivedKBPerSecond) {
+        this.receivedKBPerSecond = receivedKBPerSecond;
+    }
+}
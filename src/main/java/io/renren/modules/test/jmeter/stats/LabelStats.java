@@ -0,0 +1,250 @@
+package io.renren.modules.test.jmeter.stats;
+
+import io.renren.modules.test.jmeter.slave.LabelSummary;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.IntCountsHistogram;
+import org.HdrHistogram.Recorder;
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个label（请求）的实时监控统计。
+ * 采样线程并发写入，不加锁：计数使用LongAdder分段累加，最大最小值使用LongAccumulator，
+ * 响应时间分布使用HdrHistogram的Recorder记录（写入无等待，可合并）。
+ * 读取只在前端监控取数时发生，不会阻塞采样线程。
+ * <p>
+ * 响应时间分布是双缓冲的：LiveStatsTicker每秒切换一次Recorder，切出来的区间数据
+ * 累加到累计分布，同时和这一秒的各项增量一起生成一个SecondBucket，
+ * 放入最近WINDOW_CAPACITY秒的环形缓冲，用于窗口百分位和按秒的监控曲线。
+ * 内存是固定的：每个分布约10KB（上限60s，2位有效数字），秒级分布使用int计数约5KB，
+ * 所以每个label大约占用 4 * 10KB + 60 * 5KB ≈ 340KB，和压测时长、请求量无关。
+ */
+public class LabelStats {
+
+    /**
+     * 响应时间记录的上限(ms)，超过的按上限记录，保证每个label的内存固定。
+     */
+    public static final long HIGHEST_TRACKABLE_MILLIS = 60_000L;
+
+    /**
+     * 响应时间分布的有效位数，2位即误差在1%以内。
+     */
+    public static final int SIGNIFICANT_DIGITS = 2;
+
+    /**
+     * 秒级数据保留的秒数，也是窗口百分位最多支持的秒数
+     */
+    public static final int WINDOW_CAPACITY = 60;
+
+    private final String label;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder elapsedTotal = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+
+    private final LongAccumulator minElapsed = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator maxElapsed = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    /**
+     * 第一个请求的开始时间和最后一个请求的结束时间，用于计算RPS及网络流量。
+     */
+    private final LongAccumulator firstTime = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator lastTime = new LongAccumulator(Math::max, 0L);
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MILLIS, SIGNIFICANT_DIGITS);
+
+    /**
+     * 读取侧累计的响应时间分布，只在tick()和snapshot()中加锁访问，和采样线程无关。
+     */
+    private final Histogram cumulative = new Histogram(HIGHEST_TRACKABLE_MILLIS, SIGNIFICANT_DIGITS);
+    private Histogram intervalHistogram;
+
+    /**
+     * 最近WINDOW_CAPACITY秒的秒级数据，环形使用。
+     */
+    private final SecondBucket[] buckets = new SecondBucket[WINDOW_CAPACITY];
+    private int bucketPosition;
+    private int bucketFilled;
+
+    /**
+     * 上一次tick时的累计值，用于计算这一秒的增量，只在tick()中访问。
+     */
+    private long lastCount;
+    private long lastErrorCount;
+    private long lastElapsedTotal;
+    private long lastSentBytes;
+    private long lastReceivedBytes;
+
+    public LabelStats(String label) {
+        this.label = label;
+    }
+
+    /**
+     * 采样线程调用，记录一个请求结果。
+     * 对于聚合过的结果（sampleCount大于1），响应时间按平均值记录。
+     */
+    public void add(SampleResult sampleResult) {
+        int samples = Math.max(1, sampleResult.getSampleCount());
+        long elapsed = sampleResult.getTime();
+        long perSample = elapsed / samples;
+
+        count.add(samples);
+        errorCount.add(sampleResult.getErrorCount());
+        elapsedTotal.add(elapsed);
+        sentBytes.add(sampleResult.getSentBytes());
+        receivedBytes.add(sampleResult.getBytesAsLong());
+
+        minElapsed.accumulate(perSample);
+        maxElapsed.accumulate(perSample);
+        firstTime.accumulate(sampleResult.getStartTime());
+        lastTime.accumulate(sampleResult.getEndTime());
+
+        recorder.recordValueWithCount(clamp(perSample), samples);
+    }
+
+    /**
+     * 记录节点机预聚合的一秒汇总，响应时间分布按汇总里的值和次数记录。
+     */
+    public void add(LabelSummary summary) {
+        count.add(summary.getCount());
+        errorCount.add(summary.getErrorCount());
+        elapsedTotal.add(summary.getElapsedTotal());
+        sentBytes.add(summary.getSentBytes());
+        receivedBytes.add(summary.getReceivedBytes());
+
+        minElapsed.accumulate(summary.getMinElapsed());
+        maxElapsed.accumulate(summary.getMaxElapsed());
+        firstTime.accumulate(summary.getFirstTime());
+        lastTime.accumulate(summary.getLastTime());
+
+        long[] values = summary.getValues();
+        long[] counts = summary.getCounts();
+        for (int i = 0; i < values.length; i++) {
+            recorder.recordValueWithCount(clamp(values[i]), counts[i]);
+        }
+    }
+
+    /**
+     * 每秒由LiveStatsTicker调用一次，切换Recorder的缓冲区。
+     * 切出来的区间数据合并到累计分布，并和这一秒的增量一起放入秒级数据。
+     * 请求是按照到达master的时间归到某一秒的。
+     *
+     * @param now 本次tick的时间戳，同一次tick所有label相同，前端的曲线也就对齐了
+     */
+    public void tick(long now) {
+        long total = count.sum();
+        long errors = errorCount.sum();
+        long elapsed = elapsedTotal.sum();
+        long sent = sentBytes.sum();
+        long received = receivedBytes.sum();
+
+        synchronized (cumulative) {
+            intervalHistogram = recorder.getIntervalHistogram(intervalHistogram);
+            cumulative.add(intervalHistogram);
+
+            //被覆盖的那一秒的分布对象重复使用
+            SecondBucket expired = buckets[bucketPosition];
+            IntCountsHistogram histogram;
+            if (expired == null) {
+                histogram = new IntCountsHistogram(HIGHEST_TRACKABLE_MILLIS, SIGNIFICANT_DIGITS);
+            } else {
+                histogram = expired.histogram();
+                histogram.reset();
+            }
+            histogram.add(intervalHistogram);
+
+            buckets[bucketPosition] = new SecondBucket(now, total - lastCount, errors - lastErrorCount,
+                    elapsed - lastElapsedTotal, sent - lastSentBytes, received - lastReceivedBytes, histogram);
+            bucketPosition = (bucketPosition + 1) % WINDOW_CAPACITY;
+            bucketFilled = Math.min(bucketFilled + 1, WINDOW_CAPACITY);
+        }
+
+        lastCount = total;
+        lastErrorCount = errors;
+        lastElapsedTotal = elapsed;
+        lastSentBytes = sent;
+        lastReceivedBytes = received;
+    }
+
+    /**
+     * 获取时间戳在since之后的秒级数据，按时间先后排列。
+     * 前端带上上次拿到的最后时间戳，就只返回新增的部分，不会重复传送整个历史。
+     */
+    public List<SecondBucket> bucketsSince(long since) {
+        List<SecondBucket> result = new ArrayList<>();
+        synchronized (cumulative) {
+            for (int i = bucketFilled; i >= 1; i--) {
+                SecondBucket bucket = buckets[(bucketPosition - i + WINDOW_CAPACITY) % WINDOW_CAPACITY];
+                if (bucket.getTime() > since) {
+                    result.add(bucket);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 生成当前的统计快照。
+     * 计数类只是读取，响应时间百分位来自已经切换出来的分布，最多延迟一秒。
+     *
+     * @param windowSeconds 窗口百分位统计最近多少秒，超过WINDOW_CAPACITY按WINDOW_CAPACITY计算
+     */
+    public LabelSnapshot snapshot(int windowSeconds) {
+        long total = count.sum();
+        long errors = errorCount.sum();
+        long elapsed = elapsedTotal.sum();
+        long howLongRunning = lastTime.get() - firstTime.get();
+
+        LabelSnapshot snapshot = new LabelSnapshot(label);
+        synchronized (cumulative) {
+            snapshot.setP90(cumulative.getValueAtPercentile(90.0));
+            snapshot.setP95(cumulative.getValueAtPercentile(95.0));
+            snapshot.setP99(cumulative.getValueAtPercentile(99.0));
+
+            int seconds = Math.min(Math.max(windowSeconds, 1), bucketFilled);
+            Histogram window = new Histogram(HIGHEST_TRACKABLE_MILLIS, SIGNIFICANT_DIGITS);
+            for (int i = 1; i <= seconds; i++) {
+                window.add(buckets[(bucketPosition - i + WINDOW_CAPACITY) % WINDOW_CAPACITY].histogram());
+            }
+            snapshot.setWindowSeconds(seconds);
+            if (window.getTotalCount() > 0) {
+                snapshot.setWindowP90(window.getValueAtPercentile(90.0));
+                snapshot.setWindowP95(window.getValueAtPercentile(95.0));
+                snapshot.setWindowP99(window.getValueAtPercentile(99.0));
+                snapshot.setWindowMax(window.getMaxValue());
+                snapshot.setWindowMin(window.getMinValue());
+            }
+        }
+
+        snapshot.setCount(total);
+        snapshot.setErrorCount(errors);
+        snapshot.setMean(total > 0 ? (double) elapsed / total : 0.0);
+        snapshot.setMin(total > 0 ? minElapsed.get() : 0L);
+        snapshot.setMax(total > 0 ? maxElapsed.get() : 0L);
+        if (howLongRunning > 0 && firstTime.get() != Long.MAX_VALUE) {
+            double seconds = howLongRunning / 1000.0;
+            snapshot.setRate(total / seconds);
+            snapshot.setErrorRate(errors / seconds);
+            snapshot.setSentKBPerSecond(sentBytes.sum() / 1024.0 / seconds);
+            snapshot.setReceivedKBPerSecond(receivedBytes.sum() / 1024.0 / seconds);
+        }
+        return snapshot;
+    }
+
+    private static long clamp(long value) {
+        if (value < 0) {
+            return 0;
+        }
+        return Math.min(value, HIGHEST_TRACKABLE_MILLIS);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,100 @@
+package io.renren.modules.test.jmeter.stats;
+
+import io.renren.modules.test.jmeter.slave.LabelSummary;
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 一个脚本文件的实时监控聚合器，替代原来的 HashMap + SamplingStatCalculator。
+ * SamplingStatCalculator.addSample内部是同步的，几千个线程时会成为master上最热的锁，
+ * 同时原来的HashMap在并发put时也不安全。
+ * 这里每个label一个LabelStats，内部全部是无锁累加，采样线程之间互不等待。
+ */
+public class LiveStatsAggregator {
+
+    /**
+     * 默认的窗口百分位秒数
+     */
+    public static final int DEFAULT_WINDOW_SECONDS = 10;
+
+    private final ConcurrentMap<String, LabelStats> labelStatsMap = new ConcurrentHashMap<>();
+
+    public LiveStatsAggregator() {
+        LiveStatsTicker.register(this);
+    }
+
+    /**
+     * 采样线程调用。
+     * 先get再computeIfAbsent，因为label已存在时computeIfAbsent也会锁住所在的桶。
+     */
+    public void addSample(SampleResult sampleResult) {
+        String label = sampleResult.getSampleLabel();
+        if (label == null) {
+            label = "";
+        }
+        LabelStats labelStats = labelStatsMap.get(label);
+        if (labelStats == null) {
+            labelStats = labelStatsMap.computeIfAbsent(label, LabelStats::new);
+        }
+        labelStats.add(sampleResult);
+    }
+
+    /**
+     * 节点机预聚合的一秒汇总，RMI线程调用
+     */
+    public void addSummary(LabelSummary summary) {
+        String label = summary.getLabel();
+        LabelStats labelStats = labelStatsMap.get(label);
+        if (labelStats == null) {
+            labelStats = labelStatsMap.computeIfAbsent(label, LabelStats::new);
+        }
+        labelStats.add(summary);
+    }
+
+    /**
+     * 每秒由LiveStatsTicker调用，切换各个label的响应时间分布缓冲区。
+     */
+    void tick(long now) {
+        labelStatsMap.values().forEach(labelStats -> labelStats.tick(now));
+    }
+
+    public Map<String, LabelSnapshot> snapshot() {
+        return snapshot(DEFAULT_WINDOW_SECONDS);
+    }
+
+    /**
+     * 获取所有label的统计快照，按label排序，前端图例的顺序也就固定了。
+     *
+     * @param windowSeconds 窗口百分位统计最近多少秒
+     */
+    public Map<String, LabelSnapshot> snapshot(int windowSeconds) {
+        Map<String, LabelSnapshot> snapshots = new TreeMap<>();
+        labelStatsMap.forEach((label, labelStats) -> snapshots.put(label, labelStats.snapshot(windowSeconds)));
+        return snapshots;
+    }
+
+    /**
+     * 获取所有label在since之后的秒级数据，按label排序。
+     */
+    public Map<String, List<SecondBucket>> series(long since) {
+        Map<String, List<SecondBucket>> series = new TreeMap<>();
+        labelStatsMap.forEach((label, labelStats) -> series.put(label, labelStats.bucketsSince(since)));
+        return series;
+    }
+
+    /**
+     * 不再需要监控数据时调用，停止每秒的分布切换。
+     */
+    public void close() {
+        LiveStatsTicker.unregister(this);
+    }
+
+    public boolean isEmpty() {
+        return labelStatsMap.isEmpty();
+    }
+}
@@ -0,0 +1,53 @@
+package io.renren.modules.test.jmeter.stats;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 前端监控的秒级时钟。
+ * 每秒一次切换所有正在使用的LiveStatsAggregator的响应时间分布缓冲区并生成秒级数据，
+ * 只有一个守护线程，和采样线程无关，master同时压测多个脚本也只有这一个线程。
+ */
+public class LiveStatsTicker {
+
+    private static Logger logger = LoggerFactory.getLogger(LiveStatsTicker.class);
+
+    private static final Set<LiveStatsAggregator> aggregators = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "live-stats-ticker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        scheduler.scheduleAtFixedRate(LiveStatsTicker::tickAll, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public static void register(LiveStatsAggregator aggregator) {
+        aggregators.add(aggregator);
+    }
+
+    public static void unregister(LiveStatsAggregator aggregator) {
+        aggregators.remove(aggregator);
+    }
+
+    private static void tickAll() {
+        long now = System.currentTimeMillis();
+        for (LiveStatsAggregator aggregator : aggregators) {
+            try {
+                aggregator.tick(now);
+            } catch (Throwable e) {
+                //不能抛出，否则定时任务会被取消
+                logger.error("前端监控数据切换异常", e);
+            }
+        }
+    }
+}
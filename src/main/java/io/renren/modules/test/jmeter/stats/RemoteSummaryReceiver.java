@@ -0,0 +1,62 @@
+package io.renren.modules.test.jmeter.stats;
+
+import io.renren.modules.test.jmeter.slave.LabelSummary;
+import io.renren.modules.test.jmeter.slave.SummaryListener;
+import org.apache.jmeter.rmi.RmiUtils;
+import org.apache.jmeter.util.JMeterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
+/**
+ * master上接收节点机预聚合的监控数据，合并到本次执行的LiveStatsAggregator。
+ * 和Jmeter的RemoteSampleListenerImpl一样导出为RMI对象，端口使用client.rmi.localport。
+ */
+public class RemoteSummaryReceiver implements SummaryListener {
+
+    private static final Logger log = LoggerFactory.getLogger(RemoteSummaryReceiver.class);
+
+    private static final int DEFAULT_LOCAL_PORT = JMeterUtils.getPropDefault("client.rmi.localport", 0); // $NON-NLS-1$
+
+    private final LiveStatsAggregator aggregator;
+
+    private final SummaryListener stub;
+
+    /**
+     * @param aggregator 不需要前端监控时为null，只导出不处理
+     */
+    public RemoteSummaryReceiver(LiveStatsAggregator aggregator) throws RemoteException {
+        this.aggregator = aggregator;
+        this.stub = (SummaryListener) UnicastRemoteObject.exportObject(this, DEFAULT_LOCAL_PORT,
+                RmiUtils.createClientSocketFactory(), RmiUtils.createServerSocketFactory());
+    }
+
+    /**
+     * 随脚本发送到节点机的远程引用
+     */
+    public SummaryListener getStub() {
+        return stub;
+    }
+
+    @Override
+    public void summaries(String host, List<LabelSummary> summaries) {
+        if (aggregator == null) {
+            return;
+        }
+        for (LabelSummary summary : summaries) {
+            aggregator.addSummary(summary);
+        }
+    }
+
+    public void close() {
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            log.debug("监控数据接收端已经注销");
+        }
+    }
+}
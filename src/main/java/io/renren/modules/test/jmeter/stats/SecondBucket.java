@@ -0,0 +1,109 @@
+package io.renren.modules.test.jmeter.stats;
+
+import org.HdrHistogram.IntCountsHistogram;
+
+/**
+ * 单个label一秒钟的监控数据，由LiveStatsTicker每秒生成一个。
+ * 数据是这一秒内新增的量，不是累计值，所以能直接反映出压测过程中的波动。
+ * 除了响应时间分布（只在LabelStats内部加锁使用）之外，生成后不再变化。
+ */
+public class SecondBucket {
+
+    /**
+     * 这一秒结束的时间戳(ms)，前端据此增量获取。
+     */
+    private final long time;
+
+    private final long count;
+
+    private final long errorCount;
+
+    private final long elapsedTotal;
+
+    private final long sentBytes;
+
+    private final long receivedBytes;
+
+    private final long p90;
+
+    private final long p95;
+
+    private final long p99;
+
+    private final long max;
+
+    private final IntCountsHistogram histogram;
+
+    public SecondBucket(long time, long count, long errorCount, long elapsedTotal,
+                        long sentBytes, long receivedBytes, IntCountsHistogram histogram) {
+        this.time = time;
+        this.count = count;
+        this.errorCount = errorCount;
+        this.elapsedTotal = elapsedTotal;
+        this.sentBytes = sentBytes;
+        this.receivedBytes = receivedBytes;
+        this.histogram = histogram;
+        if (histogram.getTotalCount() > 0) {
+            this.p90 = histogram.getValueAtPercentile(90.0);
+            this.p95 = histogram.getValueAtPercentile(95.0);
+            this.p99 = histogram.getValueAtPercentile(99.0);
+            this.max = histogram.getMaxValue();
+        } else {
+            this.p90 = 0;
+            this.p95 = 0;
+            this.p99 = 0;
+            this.max = 0;
+        }
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * 这一秒的平均响应时间(ms)
+     */
+    public double getMean() {
+        return count > 0 ? (double) elapsedTotal / count : 0.0;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP95() {
+        return p95;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getElapsedTotal() {
+        return elapsedTotal;
+    }
+
+    IntCountsHistogram histogram() {
+        return histogram;
+    }
+}
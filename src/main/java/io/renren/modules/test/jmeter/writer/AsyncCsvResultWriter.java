@@ -0,0 +1,79 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.save.CSVSaveService;
+import org.apache.jmeter.save.SaveService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 异步批量写入csv测试结果，和父类ResultCollector写出的文件内容一致。
+ * 格式化在写入线程内完成，攒够BATCH_CHARS个字符写一次文件。
+ */
+public class AsyncCsvResultWriter extends AsyncResultWriter {
+
+    /**
+     * 攒够这么多字符就写一次文件
+     */
+    private static final int BATCH_CHARS = 256 * 1024;
+
+    private final SampleSaveConfiguration saveConfig;
+
+    private final Charset charset;
+
+    private final String lineSeparator = System.lineSeparator();
+
+    private final StringBuilder batch = new StringBuilder(BATCH_CHARS + 4096);
+
+    public AsyncCsvResultWriter(File file, SampleSaveConfiguration saveConfig) throws IOException {
+        super(file);
+        this.saveConfig = saveConfig;
+        this.charset = Charset.forName(SaveService.getFileEncoding(StandardCharsets.UTF_8.name()));
+        start();
+    }
+
+    @Override
+    protected void writeHeader(boolean newFile) throws IOException {
+        //和父类的行为保持一致，新文件才写表头
+        if (newFile && saveConfig.saveFieldNames()) {
+            write(CSVSaveService.printableFieldNamesToString(saveConfig) + lineSeparator);
+        }
+    }
+
+    @Override
+    protected void append(SampleEvent sampleEvent) {
+        SampleResult result = sampleEvent.getResult();
+        //父类也是写入前才设置，格式化时用到
+        result.setSaveConfig(saveConfig);
+        batch.append(CSVSaveService.resultToDelimitedString(sampleEvent)).append(lineSeparator);
+    }
+
+    @Override
+    protected boolean isBatchFull() {
+        return batch.length() >= BATCH_CHARS;
+    }
+
+    @Override
+    protected void flushBatch() throws IOException {
+        try {
+            write(batch);
+        } finally {
+            batch.setLength(0);
+        }
+    }
+
+    @Override
+    protected void discardBatch() {
+        batch.setLength(0);
+    }
+
+    private void write(CharSequence content) throws IOException {
+        writeFully(ByteBuffer.wrap(content.toString().getBytes(charset)));
+    }
+}
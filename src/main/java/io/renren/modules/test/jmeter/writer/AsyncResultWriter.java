@@ -0,0 +1,291 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.samplers.SampleEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步批量写入测试结果。
+ * 原来是父类ResultCollector在采样线程内格式化csv，再通过有锁的PrintWriter一行一行写入，
+ * 几千个线程时采样线程都在排队等这把锁。
+ * 这里采样线程只把SampleEvent放入有界队列，由一个独立的写入线程编码，
+ * 攒够一批后通过FileChannel一次写入，记录的顺序和到达的顺序一致。
+ * 具体的文件格式（csv、二进制）由子类实现，子类的方法都只在写入线程内调用。
+ * <p>
+ * 队列满时采样线程最多等待MAX_WAIT_MILLIS毫秒（背压，降低压测速度），
+ * 仍然放不进去则丢弃这条结果，等待和丢弃的次数都会在前端监控中显示。
+ * <p>
+ * 文件名以.gz结尾时，每一批写入前压缩成一个gzip member，见CompressedResultFormat。
+ */
+public abstract class AsyncResultWriter implements SampleResultWriter, Runnable {
+
+    private static Logger logger = LoggerFactory.getLogger(AsyncResultWriter.class);
+
+    /**
+     * 队列容量，队列中只是结果的引用，足够吸收磁盘短暂的抖动。
+     */
+    public static final int QUEUE_CAPACITY = 1 << 16;
+
+    /**
+     * 队列满时采样线程最多等待的毫秒数
+     */
+    public static final long MAX_WAIT_MILLIS = 200L;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long WAIT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 30_000L;
+
+    protected final File file;
+
+    private final MpscRingBuffer<SampleEvent> queue = new MpscRingBuffer<>(QUEUE_CAPACITY);
+
+    private final FileChannel channel;
+
+    /**
+     * 压缩结果文件时使用，否则为null
+     */
+    private final CompressedResultFormat.MemberEncoder encoder;
+
+    private Thread writerThread;
+
+    private final LongAdder waited = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * 写入线程已经处理完的结果数，以及其中编码或写文件失败的数量，只有写入线程更新。
+     */
+    private volatile long processed;
+    private volatile long failedCount;
+
+    private volatile boolean closed;
+
+    private volatile SampleResultListener listener;
+
+    /**
+     * 以下只在写入线程内访问
+     */
+    private int batchCount;
+    private boolean failed;
+
+    protected AsyncResultWriter(File file) throws IOException {
+        this.file = file;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.encoder = CompressedResultFormat.isCompressed(file) ? new CompressedResultFormat.MemberEncoder() : null;
+    }
+
+    /**
+     * 子类构造完成后调用，写入文件头并启动写入线程。
+     */
+    protected void start() throws IOException {
+        try {
+            writeHeader(channel.size() == 0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        writerThread = new Thread(this, "result-writer-" + file.getName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+        logger.info("异步写入测试结果文件：" + file.getPath());
+    }
+
+    /**
+     * 打开文件时调用一次
+     *
+     * @param newFile 文件是否是新建的（空文件）
+     */
+    protected abstract void writeHeader(boolean newFile) throws IOException;
+
+    /**
+     * 把一条结果编码到当前批次中
+     */
+    protected abstract void append(SampleEvent sampleEvent) throws Exception;
+
+    /**
+     * 当前批次是否已经足够大，需要写入文件
+     */
+    protected abstract boolean isBatchFull();
+
+    /**
+     * 把当前批次写入文件，并清空批次
+     */
+    protected abstract void flushBatch() throws IOException;
+
+    /**
+     * 丢弃当前批次（写文件失败之后）
+     */
+    protected abstract void discardBatch();
+
+    @Override
+    public void write(SampleEvent sampleEvent) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        if (queue.offer(sampleEvent)) {
+            return;
+        }
+        waited.increment();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MILLIS);
+        do {
+            LockSupport.parkNanos(WAIT_PARK_NANOS);
+            if (queue.offer(sampleEvent)) {
+                return;
+            }
+        } while (!closed && System.nanoTime() < deadline);
+        dropped.increment();
+    }
+
+    /**
+     * 写入线程
+     */
+    @Override
+    public void run() {
+        while (!closed || !queue.isEmpty()) {
+            SampleEvent sampleEvent = queue.poll();
+            if (sampleEvent == null) {
+                writeBatch();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            notifyListener(sampleEvent);
+            try {
+                append(sampleEvent);
+                batchCount++;
+            } catch (Exception e) {
+                logger.error("测试结果编码失败：" + sampleEvent.getResult().getSampleLabel(), e);
+                failedCount++;
+                processed++;
+            }
+            if (isBatchFull()) {
+                writeBatch();
+            }
+        }
+        writeBatch();
+        SampleResultListener current = listener;
+        if (current != null) {
+            try {
+                current.writerClosed();
+            } catch (RuntimeException e) {
+                logger.error("测试结果监听处理失败：" + file.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * 需要在开始写入测试结果之前设置
+     */
+    public void setListener(SampleResultListener listener) {
+        this.listener = listener;
+    }
+
+    private void notifyListener(SampleEvent sampleEvent) {
+        SampleResultListener current = listener;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.sampleOccurred(sampleEvent.getResult());
+        } catch (RuntimeException e) {
+            //监听出错不影响写入文件，之后不再通知
+            listener = null;
+            logger.error("测试结果监听处理失败，不再通知：" + file.getPath(), e);
+        }
+    }
+
+    private void writeBatch() {
+        if (batchCount == 0) {
+            return;
+        }
+        if (!failed) {
+            try {
+                flushBatch();
+            } catch (IOException e) {
+                //磁盘写满等情况，后面的结果都不再写入，计为丢弃
+                failed = true;
+                logger.error("写入测试结果文件失败：" + file.getPath(), e);
+            }
+        }
+        if (failed) {
+            discardBatch();
+            failedCount += batchCount;
+        }
+        processed += batchCount;
+        batchCount = 0;
+    }
+
+    /**
+     * 子类每一批只调用一次，压缩时一批就是一个gzip member，也就是一个刷新点。
+     */
+    protected void writeFully(ByteBuffer byteBuffer) throws IOException {
+        if (encoder != null) {
+            byteBuffer = encoder.encode(byteBuffer);
+        }
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+    }
+
+    @Override
+    public void flush() {
+        long target = queue.offered();
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        while (processed < target && writerThread.isAlive() && System.currentTimeMillis() < deadline) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writerThread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            logger.error("测试结果写入线程未能按时结束：" + file.getPath());
+            return;
+        }
+        //关闭时正好放进队列的结果
+        dropped.add(queue.size());
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("关闭测试结果文件失败：" + file.getPath(), e);
+        }
+        if (encoder != null) {
+            encoder.end();
+        }
+        ResultWriterStatus status = getStatus();
+        logger.info("测试结果写入完成：" + file.getPath() + "，写入" + status.getWritten()
+                + "，等待" + status.getWaited() + "，丢弃" + status.getDropped());
+    }
+
+    @Override
+    public ResultWriterStatus getStatus() {
+        long failures = failedCount;
+        return new ResultWriterStatus(processed - failures, queue.size(), queue.capacity(), waited.sum(),
+                dropped.sum() + failures);
+    }
+}
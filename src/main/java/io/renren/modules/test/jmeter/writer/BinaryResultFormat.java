@@ -0,0 +1,176 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.assertions.AssertionResult;
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 紧凑二进制测试结果文件的格式定义。
+ * 长时间压测的csv结果文件动辄几十GB，生成测试报告时还要再按文本解析一遍。
+ * 二进制格式中数字使用变长编码，时间戳记录和上一条的差值，
+ * label、线程名、响应码等重复度很高的字符串使用字典，只在第一次出现时写入原文。
+ * <p>
+ * 文件结构：文件头(MAGIC + VERSION) + 若干个数据块。
+ * 每个数据块：数据长度(int) + 记录数(int) + CRC32(int) + 数据。
+ * 字典和时间戳差值都只在块内有效，每个块可以单独解码，
+ * 文件末尾不完整的块直接截掉即可（压测被强制停止时）。
+ * <p>
+ * 保存的列固定为Jmeter默认的csv列，和saveConfig的配置无关，时间戳固定为毫秒数。
+ * 压缩的二进制文件（.jbin.gz）每个数据块对应一个gzip member，见CompressedResultFormat。
+ */
+public class BinaryResultFormat {
+
+    /**
+     * 二进制结果文件的后缀
+     */
+    public static final String SUFFIX = "jbin";
+
+    public static final byte[] MAGIC = {'J', 'M', 'R', 'B'};
+
+    public static final byte VERSION = 1;
+
+    public static final int FILE_HEADER_LENGTH = MAGIC.length + 1;
+
+    public static final int BLOCK_HEADER_LENGTH = 12;
+
+    /**
+     * 单个数据块最大的长度，读取时超过则认为文件已经损坏。
+     */
+    public static final int MAX_BLOCK_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * 每个数据块最多的字典条数，超过后的新字符串直接写原文。
+     */
+    public static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    /**
+     * 字典编码：0表示后面跟原文（不进字典），奇数表示新的字典项后面跟原文，偶数表示引用已有的字典项。
+     */
+    public static final int STRING_LITERAL = 0;
+
+    /**
+     * 保存的列，名称和Jmeter默认的csv表头一致，测试报告按这些名称取数。
+     */
+    public static final String[] COLUMNS = {"timeStamp", "elapsed", "label", "responseCode", "responseMessage",
+            "threadName", "dataType", "success", "failureMessage", "bytes", "sentBytes", "grpThreads",
+            "allThreads", "URL", "Latency", "IdleTime", "Connect"};
+
+    public static boolean isBinary(File file) {
+        return file != null && isBinary(file.getName());
+    }
+
+    public static boolean isBinary(String fileName) {
+        return fileName != null && CompressedResultFormat.stripSuffix(fileName).endsWith("." + SUFFIX);
+    }
+
+    /**
+     * 截掉文件末尾不完整的数据块，返回截掉的字节数。
+     * 只读取每个块的块头，不读取数据，几十GB的文件也很快。
+     */
+    public static long repairTail(File file) throws IOException {
+        if (CompressedResultFormat.isCompressed(file)) {
+            return CompressedResultFormat.repairTail(file);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long valid = validLength(channel, size);
+            if (valid < size) {
+                channel.truncate(valid);
+            }
+            return size - valid;
+        }
+    }
+
+    private static long validLength(FileChannel channel, long size) throws IOException {
+        if (size < FILE_HEADER_LENGTH) {
+            return 0L;
+        }
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_LENGTH);
+        long position = FILE_HEADER_LENGTH;
+        while (position + BLOCK_HEADER_LENGTH <= size) {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) {
+                    return position;
+                }
+            }
+            int length = header.getInt(0);
+            if (length < 0 || length > MAX_BLOCK_LENGTH || position + BLOCK_HEADER_LENGTH + length > size) {
+                return position;
+            }
+            position += BLOCK_HEADER_LENGTH + length;
+        }
+        return position;
+    }
+
+    /**
+     * 按COLUMNS的顺序取出一条结果的各列
+     */
+    public static String[] toColumns(SampleResult result) {
+        return new String[]{
+                String.valueOf(result.getTimeStamp()),
+                String.valueOf(result.getTime()),
+                nullToEmpty(result.getSampleLabel()),
+                nullToEmpty(result.getResponseCode()),
+                nullToEmpty(result.getResponseMessage()),
+                nullToEmpty(result.getThreadName()),
+                nullToEmpty(result.getDataType()),
+                String.valueOf(result.isSuccessful()),
+                nullToEmpty(failureMessage(result)),
+                String.valueOf(result.getBytesAsLong()),
+                String.valueOf(result.getSentBytes()),
+                String.valueOf(result.getGroupThreads()),
+                String.valueOf(result.getAllThreads()),
+                nullToEmpty(result.getUrlAsString()),
+                String.valueOf(result.getLatency()),
+                String.valueOf(result.getIdleTime()),
+                String.valueOf(result.getConnectTime())};
+    }
+
+    /**
+     * 和CSVSaveService一致，取第一个失败的断言信息
+     */
+    static String failureMessage(SampleResult result) {
+        AssertionResult[] assertionResults = result.getAssertionResults();
+        if (assertionResults != null) {
+            for (AssertionResult assertionResult : assertionResults) {
+                if (assertionResult.isFailure() || assertionResult.isError()) {
+                    return assertionResult.getFailureMessage();
+                }
+            }
+        }
+        return "";
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * 变长编码的长整数，每个字节7位，最高位表示后面还有字节。
+     */
+    static int writeVarLong(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private BinaryResultFormat() {
+    }
+}
@@ -0,0 +1,172 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 顺序读取二进制测试结果文件，每次返回一条记录，列的顺序同BinaryResultFormat.COLUMNS。
+ * 文件末尾不完整或者校验失败的块会被忽略（记录日志），不会中断报告的生成。
+ */
+public class BinaryResultReader implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(BinaryResultReader.class);
+
+    private final File file;
+
+    private final DataInputStream in;
+
+    private final CRC32 crc32 = new CRC32();
+
+    private byte[] block = new byte[0];
+    private int blockLength;
+    private int position;
+    private int remaining;
+    private long lastTimeStamp;
+    private final List<String> dictionary = new ArrayList<>();
+
+    public BinaryResultReader(File file) throws IOException {
+        this.file = file;
+        this.in = new DataInputStream(CompressedResultFormat.openInputStream(file));
+        byte[] magic = new byte[BinaryResultFormat.MAGIC.length];
+        try {
+            in.readFully(magic);
+            byte version = in.readByte();
+            if (!Arrays.equals(magic, BinaryResultFormat.MAGIC) || version != BinaryResultFormat.VERSION) {
+                throw new IOException("不是二进制测试结果文件：" + file.getPath());
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 读取下一条记录，读完返回null。
+     */
+    public String[] next() throws IOException {
+        while (remaining == 0) {
+            if (!nextBlock()) {
+                return null;
+            }
+        }
+        String[] row = new String[BinaryResultFormat.COLUMNS.length];
+        lastTimeStamp += BinaryResultFormat.unZigZag(readLong());
+        row[0] = String.valueOf(lastTimeStamp);
+        row[1] = String.valueOf(readLong());
+        row[2] = readString();
+        row[3] = readString();
+        row[4] = readString();
+        row[5] = readString();
+        row[6] = readString();
+        row[7] = readByte() == 1 ? "true" : "false";
+        row[8] = readString();
+        row[9] = String.valueOf(readLong());
+        row[10] = String.valueOf(readLong());
+        row[11] = String.valueOf(readLong());
+        row[12] = String.valueOf(readLong());
+        row[13] = readString();
+        row[14] = String.valueOf(readLong());
+        row[15] = String.valueOf(readLong());
+        row[16] = String.valueOf(readLong());
+        remaining--;
+        return row;
+    }
+
+    private boolean nextBlock() throws IOException {
+        int length;
+        int count;
+        int crc;
+        try {
+            length = in.readInt();
+            count = in.readInt();
+            crc = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (length < 0 || length > BinaryResultFormat.MAX_BLOCK_LENGTH || count < 0) {
+            logger.error("二进制测试结果文件已损坏，忽略后面的内容：" + file.getPath());
+            return false;
+        }
+        if (block.length < length) {
+            block = new byte[length];
+        }
+        try {
+            in.readFully(block, 0, length);
+        } catch (EOFException e) {
+            logger.warn("二进制测试结果文件最后一个块不完整，已忽略：" + file.getPath());
+            return false;
+        }
+        crc32.reset();
+        crc32.update(block, 0, length);
+        if ((int) crc32.getValue() != crc) {
+            logger.error("二进制测试结果文件块校验失败，已忽略" + count + "条记录：" + file.getPath());
+            return true;
+        }
+        blockLength = length;
+        position = 0;
+        remaining = count;
+        lastTimeStamp = 0L;
+        dictionary.clear();
+        return true;
+    }
+
+    private long readLong() throws IOException {
+        long value = 0L;
+        int shift = 0;
+        while (true) {
+            byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("二进制测试结果文件变长数字错误：" + file.getPath());
+            }
+        }
+    }
+
+    private byte readByte() throws IOException {
+        if (position >= blockLength) {
+            throw new IOException("二进制测试结果文件记录越界：" + file.getPath());
+        }
+        return block[position++];
+    }
+
+    private String readString() throws IOException {
+        long code = readLong();
+        if (code != BinaryResultFormat.STRING_LITERAL && (code & 1) == 0) {
+            int id = (int) ((code - 2) / 2);
+            if (id >= dictionary.size()) {
+                throw new IOException("二进制测试结果文件字典错误：" + file.getPath());
+            }
+            return dictionary.get(id);
+        }
+        int length = (int) readLong();
+        if (length < 0 || position + length > blockLength) {
+            throw new IOException("二进制测试结果文件字符串越界：" + file.getPath());
+        }
+        String value = new String(block, position, length, StandardCharsets.UTF_8);
+        position += length;
+        if (code != BinaryResultFormat.STRING_LITERAL) {
+            dictionary.add(value);
+        }
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
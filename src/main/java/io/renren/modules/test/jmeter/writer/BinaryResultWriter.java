@@ -0,0 +1,159 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 异步写入紧凑二进制格式的测试结果，格式见BinaryResultFormat。
+ * 写入线程把一批结果编码成一个数据块，块内的字典和时间戳差值在块写出后清空。
+ */
+public class BinaryResultWriter extends AsyncResultWriter {
+
+    /**
+     * 数据块攒够这么多字节就写一次文件
+     */
+    private static final int BLOCK_BYTES = 256 * 1024;
+
+    /**
+     * 块头 + 数据，数据前面预留块头的位置，写出时一次写入。
+     */
+    private byte[] block = new byte[BLOCK_BYTES + 64 * 1024];
+    private int position = BinaryResultFormat.BLOCK_HEADER_LENGTH;
+    private int recordCount;
+    private long lastTimeStamp;
+
+    private final Map<String, Integer> dictionary = new HashMap<>();
+
+    private final CRC32 crc32 = new CRC32();
+
+    public BinaryResultWriter(File file) throws IOException {
+        super(file);
+        start();
+    }
+
+    @Override
+    protected void writeHeader(boolean newFile) throws IOException {
+        if (newFile) {
+            ByteBuffer header = ByteBuffer.allocate(BinaryResultFormat.FILE_HEADER_LENGTH);
+            header.put(BinaryResultFormat.MAGIC).put(BinaryResultFormat.VERSION).flip();
+            writeFully(header);
+        }
+    }
+
+    @Override
+    protected void append(SampleEvent sampleEvent) {
+        SampleResult result = sampleEvent.getResult();
+        int recordStart = position;
+        int dictionaryStart = dictionary.size();
+        try {
+            long timeStamp = result.getTimeStamp();
+            writeLong(BinaryResultFormat.zigZag(timeStamp - lastTimeStamp));
+            writeLong(result.getTime());
+            writeString(result.getSampleLabel());
+            writeString(result.getResponseCode());
+            writeString(result.getResponseMessage());
+            writeString(result.getThreadName());
+            writeString(result.getDataType());
+            ensureCapacity(1);
+            block[position++] = (byte) (result.isSuccessful() ? 1 : 0);
+            writeString(BinaryResultFormat.failureMessage(result));
+            writeLong(result.getBytesAsLong());
+            writeLong(result.getSentBytes());
+            writeLong(result.getGroupThreads());
+            writeLong(result.getAllThreads());
+            writeString(result.getUrlAsString());
+            writeLong(result.getLatency());
+            writeLong(result.getIdleTime());
+            writeLong(result.getConnectTime());
+            lastTimeStamp = timeStamp;
+            recordCount++;
+        } catch (RuntimeException e) {
+            //编码到一半失败，撤销这条记录，包括新加的字典项
+            position = recordStart;
+            if (dictionary.size() > dictionaryStart) {
+                dictionary.values().removeIf(id -> id >= dictionaryStart);
+            }
+            throw e;
+        }
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(10);
+        position = BinaryResultFormat.writeVarLong(block, position, value);
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            value = "";
+        }
+        Integer id = dictionary.get(value);
+        if (id != null) {
+            writeLong(id * 2L + 2);
+            return;
+        }
+        if (dictionary.size() < BinaryResultFormat.MAX_DICTIONARY_SIZE) {
+            id = dictionary.size();
+            dictionary.put(value, id);
+            writeLong(id * 2L + 1);
+        } else {
+            writeLong(BinaryResultFormat.STRING_LITERAL);
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeLong(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, block, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > block.length) {
+            block = Arrays.copyOf(block, Math.max(block.length * 2, position + length));
+        }
+    }
+
+    @Override
+    protected boolean isBatchFull() {
+        return position >= BLOCK_BYTES;
+    }
+
+    @Override
+    protected void flushBatch() throws IOException {
+        if (recordCount == 0) {
+            discardBatch();
+            return;
+        }
+        try {
+            int length = position - BinaryResultFormat.BLOCK_HEADER_LENGTH;
+            crc32.reset();
+            crc32.update(block, BinaryResultFormat.BLOCK_HEADER_LENGTH, length);
+            ByteBuffer byteBuffer = ByteBuffer.wrap(block, 0, position);
+            byteBuffer.putInt(0, length);
+            byteBuffer.putInt(4, recordCount);
+            byteBuffer.putInt(8, (int) crc32.getValue());
+            writeFully(byteBuffer);
+        } finally {
+            discardBatch();
+        }
+    }
+
+    @Override
+    protected void discardBatch() {
+        position = BinaryResultFormat.BLOCK_HEADER_LENGTH;
+        recordCount = 0;
+        lastTimeStamp = 0L;
+        dictionary.clear();
+        //偶尔的超大记录把缓冲区撑大后，还原回来
+        if (block.length > BLOCK_BYTES * 4) {
+            block = new byte[BLOCK_BYTES + 64 * 1024];
+        }
+    }
+}
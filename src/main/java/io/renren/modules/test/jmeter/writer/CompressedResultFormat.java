@@ -0,0 +1,230 @@
+package io.renren.modules.test.jmeter.writer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩的测试结果文件（csv或二进制外面再套一层gzip），文件名在原后缀后面加上.gz。
+ * 写入线程每写一批结果就生成一个完整的gzip member，多个member首尾相连仍然是合法的gzip文件，
+ * gzip命令和GZIPInputStream都可以直接读取。
+ * 每一批都是一个刷新点，压测被强制停止时最多损失最后一个不完整的member，截掉即可。
+ */
+public class CompressedResultFormat {
+
+    /**
+     * 压缩结果文件在原后缀后面追加的后缀
+     */
+    public static final String SUFFIX = "gz";
+
+    /**
+     * 写入的gzip头固定为10个字节，不带文件名等可选字段，修复文件时按此查找member的起点。
+     */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    public static boolean isCompressed(File file) {
+        return file != null && isCompressed(file.getName());
+    }
+
+    public static boolean isCompressed(String fileName) {
+        return fileName != null && fileName.endsWith("." + SUFFIX);
+    }
+
+    /**
+     * 去掉压缩后缀，得到原始格式的文件名，如xxx.csv.gz返回xxx.csv
+     */
+    public static String stripSuffix(String fileName) {
+        return isCompressed(fileName) ? fileName.substring(0, fileName.length() - SUFFIX.length() - 1) : fileName;
+    }
+
+    /**
+     * 打开结果文件，压缩的文件透明解压，调用方负责关闭。
+     */
+    public static InputStream openInputStream(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (!isCompressed(file)) {
+            return new BufferedInputStream(in, 1024 * 1024);
+        }
+        try {
+            return new GZIPInputStream(in, 256 * 1024);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 截掉文件末尾不完整的gzip member，返回截掉的字节数。
+     * 从文件末尾往前找member的起点，只需要解压最后一两个member来校验，几十GB的文件也很快。
+     */
+    public static long repairTail(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long valid = validLength(channel, size);
+            if (valid < size) {
+                channel.truncate(valid);
+            }
+            return size - valid;
+        }
+    }
+
+    private static long validLength(FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE + GZIP_HEADER.length);
+        long end = size;
+        boolean found = false;
+        while (end > 0) {
+            long start = Math.max(0L, end - SCAN_BUFFER_SIZE);
+            buffer.clear();
+            buffer.limit((int) (Math.min(size, end + GZIP_HEADER.length - 1) - start));
+            readFully(channel, buffer, start);
+            for (int i = (int) (end - start) - 1; i >= 0; i--) {
+                if (!isHeaderAt(buffer, i)) {
+                    continue;
+                }
+                found = true;
+                long memberEnd = memberEnd(channel, start + i, size);
+                if (memberEnd > 0) {
+                    return memberEnd;
+                }
+            }
+            end = start;
+        }
+        //不是本程序写入的gzip文件，不做修改
+        return found ? 0L : size;
+    }
+
+    private static boolean isHeaderAt(ByteBuffer buffer, int index) {
+        if (index + GZIP_HEADER.length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < GZIP_HEADER.length; i++) {
+            if (buffer.get(index + i) != GZIP_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 解压校验从position开始的一个member，完整则返回member结束的位置，否则返回-1。
+     */
+    private static long memberEnd(FileChannel channel, long position, long size) throws IOException {
+        Inflater inflater = new Inflater(true);
+        CRC32 crc32 = new CRC32();
+        ByteBuffer in = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] out = new byte[SCAN_BUFFER_SIZE];
+        long readPosition = position + GZIP_HEADER.length;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (readPosition >= size) {
+                        return -1L;
+                    }
+                    in.clear();
+                    in.limit((int) Math.min(SCAN_BUFFER_SIZE, size - readPosition));
+                    readFully(channel, in, readPosition);
+                    readPosition += in.limit();
+                    inflater.setInput(in.array(), 0, in.limit());
+                }
+                int n = inflater.inflate(out);
+                crc32.update(out, 0, n);
+                if (n == 0 && inflater.needsDictionary()) {
+                    return -1L;
+                }
+            }
+            long trailer = readPosition - inflater.getRemaining();
+            if (trailer + GZIP_TRAILER_LENGTH > size) {
+                return -1L;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(GZIP_TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, buffer, trailer);
+            if ((int) crc32.getValue() != buffer.getInt(0) || (int) inflater.getBytesWritten() != buffer.getInt(4)) {
+                return -1L;
+            }
+            return trailer + GZIP_TRAILER_LENGTH;
+        } catch (DataFormatException e) {
+            return -1L;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("读取压缩测试结果文件越界");
+            }
+        }
+    }
+
+    /**
+     * 把一批数据压缩成一个完整的gzip member，只在写入线程内使用。
+     */
+    static class MemberEncoder {
+
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+        private final CRC32 crc32 = new CRC32();
+
+        private byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+
+        ByteBuffer encode(ByteBuffer data) {
+            int length = data.remaining();
+            byte[] input;
+            int offset;
+            if (data.hasArray()) {
+                input = data.array();
+                offset = data.arrayOffset() + data.position();
+            } else {
+                input = new byte[length];
+                data.duplicate().get(input);
+                offset = 0;
+            }
+            crc32.reset();
+            crc32.update(input, offset, length);
+            deflater.reset();
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+
+            System.arraycopy(GZIP_HEADER, 0, buffer, 0, GZIP_HEADER.length);
+            int position = GZIP_HEADER.length;
+            while (!deflater.finished()) {
+                if (position == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                position += deflater.deflate(buffer, position, buffer.length - position);
+            }
+            if (position + GZIP_TRAILER_LENGTH > buffer.length) {
+                buffer = Arrays.copyOf(buffer, position + GZIP_TRAILER_LENGTH);
+            }
+            ByteBuffer member = ByteBuffer.wrap(buffer, 0, position + GZIP_TRAILER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            member.putInt(position, (int) crc32.getValue());
+            member.putInt(position + 4, length);
+            data.position(data.limit());
+            return member;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+
+    private CompressedResultFormat() {
+    }
+}
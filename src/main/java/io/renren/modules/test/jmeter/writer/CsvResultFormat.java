@@ -0,0 +1,186 @@
+package io.renren.modules.test.jmeter.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * csv测试结果文件的末尾检查和修复。
+ * 压测被强制停止时文件末尾可能只写了半条记录，生成测试报告会报错。
+ * 这里只读取第一条记录（表头）和文件末尾的一段数据，按csv的引号规则（引号内的分隔符、换行不算）统计列数，
+ * 末尾没有换行结束、或者列数和表头不一致的记录视为不完整，截到最后一条完整的记录为止。
+ * <p>
+ * 末尾的一段数据从任意位置开始，不知道是否在引号内，所以从其中的换行符开始尝试，
+ * 第一条记录的列数和表头一致才认为找到了记录的行首，找不到时逐步扩大读取的范围。
+ */
+public class CsvResultFormat {
+
+    /**
+     * 第一次读取文件末尾的字节数
+     */
+    private static final int TAIL_BYTES = 1024 * 1024;
+
+    /**
+     * 最多读取文件末尾的字节数，超过仍找不到完整记录则不修改文件
+     */
+    private static final int MAX_TAIL_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * 读取表头的字节数
+     */
+    private static final int HEAD_BYTES = 64 * 1024;
+
+    /**
+     * 每段数据内最多尝试的行首个数
+     */
+    private static final int MAX_SYNC_ATTEMPTS = 16;
+
+    private static final byte QUOTE = '"';
+
+    /**
+     * 检查文件末尾不完整的字节数，不修改文件，可以在生成报告前快速检查。
+     */
+    public static long invalidTailLength(File file, char separator) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            return size - validLength(channel, size, separator);
+        }
+    }
+
+    /**
+     * 截掉文件末尾不完整的记录，返回截掉的字节数。
+     */
+    public static long repairTail(File file, char separator) throws IOException {
+        if (invalidTailLength(file, separator) == 0L) {
+            return 0L;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long valid = validLength(channel, size, separator);
+            if (valid < size) {
+                channel.truncate(valid);
+            }
+            return size - valid;
+        }
+    }
+
+    private static long validLength(FileChannel channel, long size, char separator) throws IOException {
+        //多字节的分隔符无法按字节判断，不做修改
+        if (size == 0L || separator > 0x7F) {
+            return size;
+        }
+        byte sep = (byte) separator;
+        ByteBuffer head = read(channel, 0L, (int) Math.min(size, HEAD_BYTES));
+        int headerEnd = recordEnd(head, 0);
+        if (headerEnd < 0) {
+            //只有一行或者表头过长
+            return size;
+        }
+        int columns = columnCount(head, 0, headerEnd, sep);
+
+        long window = TAIL_BYTES;
+        while (true) {
+            long start = Math.max(headerEnd, size - window);
+            ByteBuffer tail = read(channel, start, (int) (size - start));
+            int valid = validEnd(tail, start == headerEnd, columns, sep);
+            if (valid >= 0) {
+                return start + valid;
+            }
+            if (start == headerEnd || window >= MAX_TAIL_BYTES) {
+                return start == headerEnd ? headerEnd : size;
+            }
+            window *= 2;
+        }
+    }
+
+    /**
+     * 最后一条完整记录结束的位置，aligned表示数据的开头就是记录的行首。
+     * 找不到记录的行首时返回-1。
+     */
+    private static int validEnd(ByteBuffer tail, boolean aligned, int columns, byte sep) {
+        if (aligned) {
+            return lastRecordEnd(tail, 0, columns, sep, false);
+        }
+        int attempts = 0;
+        for (int i = 0; i < tail.limit() && attempts < MAX_SYNC_ATTEMPTS; i++) {
+            if (tail.get(i) != '\n') {
+                continue;
+            }
+            attempts++;
+            int valid = lastRecordEnd(tail, i + 1, columns, sep, true);
+            if (valid >= 0) {
+                return valid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 从from开始逐条解析，返回最后一条列数正确的记录结束的位置。
+     * strict时第一条记录必须完整并且列数正确，否则返回-1（from不是记录的行首）。
+     */
+    private static int lastRecordEnd(ByteBuffer tail, int from, int columns, byte sep, boolean strict) {
+        int valid = strict ? -1 : from;
+        int position = from;
+        while (position < tail.limit()) {
+            int end = recordEnd(tail, position);
+            if (end < 0) {
+                break;
+            }
+            if (columnCount(tail, position, end, sep) == columns) {
+                valid = end;
+            } else if (position == from && strict) {
+                return -1;
+            }
+            position = end;
+        }
+        return valid;
+    }
+
+    /**
+     * 从行首开始找记录的结束位置（换行符之后），引号内的换行不算，没有换行结束返回-1。
+     */
+    private static int recordEnd(ByteBuffer buffer, int from) {
+        boolean quoted = false;
+        for (int i = from; i < buffer.limit(); i++) {
+            byte b = buffer.get(i);
+            if (b == QUOTE) {
+                //转义的两个引号相当于进出引号各一次
+                quoted = !quoted;
+            } else if (b == '\n' && !quoted) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int columnCount(ByteBuffer buffer, int from, int end, byte sep) {
+        int count = 1;
+        boolean quoted = false;
+        for (int i = from; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == QUOTE) {
+                quoted = !quoted;
+            } else if (b == sep && !quoted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private CsvResultFormat() {
+    }
+}
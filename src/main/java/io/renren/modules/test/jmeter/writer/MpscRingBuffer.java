@@ -0,0 +1,96 @@
+package io.renren.modules.test.jmeter.writer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界的多生产者单消费者环形队列。
+ * 生产者（采样线程）之间只CAS竞争写入位置，不加锁；消费者只有写文件的那一个线程。
+ * 容量固定为2的幂，队列满时offer直接返回false，由调用方决定等待还是丢弃。
+ */
+public class MpscRingBuffer<E> {
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final AtomicReferenceArray<E> buffer;
+
+    /**
+     * 已经被生产者占用的位置总数
+     */
+    private final AtomicLong producerIndex = new AtomicLong();
+
+    /**
+     * 已经被消费者取走的位置总数，只有消费者线程写入
+     */
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    public MpscRingBuffer(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("容量必须是2的幂：" + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * 生产者调用，队列满时返回false。
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long producer;
+        do {
+            producer = producerIndex.get();
+            if (producer - consumerIndex.get() >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(producer, producer + 1));
+        buffer.lazySet((int) producer & mask, e);
+        return true;
+    }
+
+    /**
+     * 只能由唯一的消费者线程调用，队列为空时返回null。
+     */
+    public E poll() {
+        long consumer = consumerIndex.get();
+        int offset = (int) consumer & mask;
+        E e = buffer.get(offset);
+        if (e == null) {
+            if (consumer == producerIndex.get()) {
+                return null;
+            }
+            //生产者已经占到了位置但还没有写入，稍等一下
+            do {
+                e = buffer.get(offset);
+            } while (e == null);
+        }
+        buffer.lazySet(offset, null);
+        consumerIndex.lazySet(consumer + 1);
+        return e;
+    }
+
+    public int size() {
+        long size = producerIndex.get() - consumerIndex.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() {
+        return producerIndex.get() == consumerIndex.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 从创建到现在成功放入队列的总数
+     */
+    public long offered() {
+        return producerIndex.get();
+    }
+}
@@ -0,0 +1,57 @@
+package io.renren.modules.test.jmeter.writer;
+
+/**
+ * 测试结果写入情况的快照。
+ */
+public class ResultWriterStatus {
+
+    /**
+     * 已经写入文件的结果数
+     */
+    private final long written;
+
+    /**
+     * 当前排队等待写入的结果数
+     */
+    private final int queued;
+
+    private final int capacity;
+
+    /**
+     * 队列满时采样线程等待的次数，大于0说明磁盘写入跟不上压测速度。
+     */
+    private final long waited;
+
+    /**
+     * 等待超时后被丢弃的结果数，大于0说明测试报告不完整。
+     */
+    private final long dropped;
+
+    public ResultWriterStatus(long written, int queued, int capacity, long waited, long dropped) {
+        this.written = written;
+        this.queued = queued;
+        this.capacity = capacity;
+        this.waited = waited;
+        this.dropped = dropped;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getWaited() {
+        return waited;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,20 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+/**
+ * 在写入线程内收到每一条测试结果，如增量生成测试报告。
+ * 方法都只在写入线程内调用，不需要线程安全，也不要在里面做耗时的阻塞操作。
+ */
+public interface SampleResultListener {
+
+    /**
+     * 一条测试结果（和写入文件的顺序一致）
+     */
+    void sampleOccurred(SampleResult result);
+
+    /**
+     * 写入线程结束，之后不会再有测试结果
+     */
+    void writerClosed();
+}
@@ -0,0 +1,30 @@
+package io.renren.modules.test.jmeter.writer;
+
+import org.apache.jmeter.samplers.SampleEvent;
+
+/**
+ * 测试结果文件的写入方式，JmeterResultCollector通过它保存每一个请求的结果。
+ * 一次执行对应一个实例，多个分布式节点回调的结果写到同一个实例中。
+ */
+public interface SampleResultWriter {
+
+    /**
+     * 采样线程调用，不能在这里做格式化和IO。
+     */
+    void write(SampleEvent sampleEvent);
+
+    /**
+     * 等待已经提交的结果全部写入文件，用于停止脚本时统计文件大小。
+     */
+    void flush();
+
+    /**
+     * 写完剩余的结果并关闭文件，关闭后提交的结果计为丢弃。
+     */
+    void close();
+
+    /**
+     * 写入情况的统计，给前端监控使用。
+     */
+    ResultWriterStatus getStatus();
+}
@@ -95,11 +95,24 @@ public interface StressTestFileService {
      */
     JmeterStatEntity getJmeterStatEntity(Long fileId);
 
+    /**
+     * 获取轮巡监控结果，指定窗口百分位的统计秒数，并返回since之后的秒级数据
+     */
+    JmeterStatEntity getJmeterStatEntity(Long fileId, int windowSeconds, Long since);
+
     /**
      * 同步参数化文件到节点机
      */
     void synchronizeFile(Long[] fileIds);
 
+    /**
+     * 同步参数化文件到节点机，按行拆分给各节点
+     *
+     * @param shardMode   拆分方式：weight按节点权重，even平均，为空时不拆分
+     * @param shardHeader 第一行是否为表头，是表头时每个节点都保留
+     */
+    void synchronizeFile(Long[] fileIds, String shardMode, boolean shardHeader);
+
     /**
      * 获取文件路径，是文件的真是绝对路径
      */
@@ -3,7 +3,9 @@ package io.renren.modules.test.service;
 import io.renren.modules.test.entity.StressTestReportsEntity;
 import org.springframework.core.io.FileSystemResource;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -64,6 +66,16 @@ public interface StressTestReportsService {
 
     FileSystemResource getZipFile(StressTestReportsEntity reportsEntity) throws IOException;
 
+    /**
+     * 将测试结果文件以csv格式写出，二进制结果会边读边转换。
+     */
+    void exportCsv(StressTestReportsEntity reportsEntity, OutputStream outputStream) throws IOException;
+
+    /**
+     * 测试结果文件本身就是csv时返回该文件，二进制、压缩的结果返回null（需要用exportCsv转换）。
+     */
+    File getCsvFile(StressTestReportsEntity reportsEntity);
+
 //    /**
 //     * 批量更新性能测试用例信息
 //     */
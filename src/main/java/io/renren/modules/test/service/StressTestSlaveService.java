@@ -45,6 +45,11 @@ public interface StressTestSlaveService {
      */
     void updateBatchStatus(Long slaveId, Integer status);
 
+    /**
+     * 批量更新状态，各节点并行执行
+     */
+    void updateBatchStatus(List<Long> slaveIds, Integer status);
+
     /**
      * 手工强制批量更新状态
      */
@@ -55,8 +60,15 @@ public interface StressTestSlaveService {
      */
     void restartSingle(Long slaveId);
 
+    /**
+     * 批量重启节点，各节点并行执行
+     */
+    void batchRestart(List<Long> slaveIds);
+
     /**
      * 根据后台节点进程状态，批量刷新节点状态
+     *
+     * @return 各节点执行结果的汇总
      */
-    void batchReloadStatus();
+    String batchReloadStatus();
 }
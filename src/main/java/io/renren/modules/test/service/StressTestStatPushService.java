@@ -0,0 +1,16 @@
+package io.renren.modules.test.service;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * 前端监控数据推送
+ */
+public interface StressTestStatPushService {
+
+    /**
+     * 订阅脚本文件的监控数据，每个推送周期只计算一次，推送给所有订阅者
+     *
+     * @param windowSeconds 窗口百分位统计最近多少秒，窗口相同的订阅者共用一次计算
+     */
+    SseEmitter subscribe(Long fileId, int windowSeconds);
+}
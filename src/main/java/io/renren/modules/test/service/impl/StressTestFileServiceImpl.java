@@ -10,23 +10,36 @@ import io.renren.modules.test.jmeter.JmeterListenToTest;
 import io.renren.modules.test.jmeter.JmeterResultCollector;
 import io.renren.modules.test.jmeter.JmeterRunEntity;
 import io.renren.modules.test.jmeter.JmeterStatEntity;
+import io.renren.modules.test.jmeter.JmxTreeCache;
 import io.renren.modules.test.jmeter.engine.LocalStandardJMeterEngine;
+import io.renren.modules.test.jmeter.engine.VirtualThreadGroup;
+import io.renren.modules.test.jmeter.report.LocalReportGenerator;
+import io.renren.modules.test.jmeter.report.ResultFileMerger;
 import io.renren.modules.test.jmeter.runner.LocalDistributedRunner;
+import io.renren.modules.test.jmeter.runner.RemoteEngineMonitor;
+import io.renren.modules.test.jmeter.slave.SlaveSummaryCollector;
+import io.renren.modules.test.jmeter.stats.LiveStatsAggregator;
+import io.renren.modules.test.jmeter.stats.RemoteSummaryReceiver;
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.CompressedResultFormat;
 import io.renren.modules.test.service.StressTestFileService;
 import io.renren.modules.test.service.TestStressThreadSetService;
+import io.renren.modules.test.utils.CsvSplitter;
 import io.renren.modules.test.utils.SSH2Utils;
+import io.renren.modules.test.utils.SlaveTaskRunner;
 import io.renren.modules.test.utils.StressTestUtils;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
-import org.apache.jmeter.JMeter;
 import org.apache.jmeter.config.CSVDataSet;
 import org.apache.jmeter.engine.JMeterEngine;
 import org.apache.jmeter.engine.JMeterEngineException;
-import org.apache.jmeter.save.SaveService;
+import org.apache.jmeter.report.config.ConfigurationException;
+import org.apache.jmeter.report.dashboard.GenerationException;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
 import org.apache.jmeter.services.FileServer;
 import org.apache.jmeter.threads.RemoteThreadsListenerTestElement;
 import org.apache.jmeter.threads.ThreadGroup;
@@ -41,18 +54,67 @@ import org.springframework.web.multipart.MultipartFile;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 
 @Service("stressTestFileService")
 public class StressTestFileServiceImpl implements StressTestFileService {
 
     Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * 超过这个大小的文件压缩之后再向节点机传输
+     */
+    private static final long SYNC_GZIP_MIN_SIZE = 1024 * 1024L;
+
+    /**
+     * 单个节点同步文件的超时时间
+     */
+    private static final long FILE_SYNC_TIMEOUT = 30 * 60 * 1000L;
+
+    /**
+     * 节点机上计算大文件MD5、解压的超时时间
+     */
+    private static final long FILE_COMMAND_TIMEOUT = 10 * 60 * 1000L;
+
+    /**
+     * 节点机预聚合时原始结果在节点机上的保存目录，相对于jmeter-server的启动目录
+     */
+    private static final String SLAVE_RESULT_DIR = "stressTestReports";
+
+    /**
+     * 压测停止后等待节点机写完原始结果文件的超时时间
+     */
+    private static final long SLAVE_RESULT_WAIT_TIMEOUT = 60 * 1000L;
+
+    /**
+     * 合并节点机结果时的临时文件前缀
+     */
+    private static final String MERGING_PREFIX = "merging_";
+
+    /**
+     * 取回合并节点机结果文件的线程，多个脚本同时结束时依次合并
+     */
+    private static final ExecutorService SLAVE_RESULT_MERGER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "slave-result-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private static final String JAVA_CLASS_PATH = "java.class.path";
     private static final String CLASSPATH_SEPARATOR = File.pathSeparator;
 
@@ -196,24 +258,25 @@ public class StressTestFileServiceImpl implements StressTestFileService {
     public void save(MultipartFile multipartFile, String filePath, StressTestEntity stressCase, StressTestFileEntity stressTestFile) {
         //保存文件放在这里，是因为有事务
         //保存数据放在最前，因为当前文件重名校验是根据数据库异常得到
+        //上传的内容先写入临时文件并计算MD5，入库成功后再替换正式文件
+        File tmpFile = stressTestUtils.createUploadTmpFile(filePath);
         try {
-            String fileMd5 = DigestUtils.md5Hex(multipartFile.getBytes());
-            stressTestFile.setFileMd5(fileMd5);
-        } catch (IOException e) {
-            throw new RRException("获取上传文件的MD5失败！",e);
-        }
-        if (stressTestFile.getFileId() != null && stressTestFile.getFileId() > 0L) {
-            //替换文件，同时修改添加时间，便于前端显示。
-            stressTestFile.setAddTime(new Date());
-            update(stressTestFile);
-        } else {
-            //保存文件，同时解决第一次保存文件时实体没有写入用例名称
-            stressTestFile.setCaseName(stressCase.getCaseName());
-            save(stressTestFile);
+            stressTestFile.setFileMd5(stressTestUtils.saveUploadFile(multipartFile, tmpFile));
+            if (stressTestFile.getFileId() != null && stressTestFile.getFileId() > 0L) {
+                //替换文件，同时修改添加时间，便于前端显示。
+                stressTestFile.setAddTime(new Date());
+                update(stressTestFile);
+            } else {
+                //保存文件，同时解决第一次保存文件时实体没有写入用例名称
+                stressTestFile.setCaseName(stressCase.getCaseName());
+                save(stressTestFile);
+            }
+            //肯定存在已有的用例信息
+            stressTestDao.update(stressCase);
+            stressTestUtils.moveUploadFile(tmpFile, filePath);
+        } finally {
+            FileUtils.deleteQuietly(tmpFile);
         }
-        //肯定存在已有的用例信息
-        stressTestDao.update(stressCase);
-        stressTestUtils.saveFile(multipartFile,filePath);
         //对jmx脚本将线程组配置信息入库（默认不入库）
         if(stressTestUtils.isGetThreadGroup() && filePath.substring(filePath.length()-3).equals("jmx")) {
             try {
@@ -254,15 +317,15 @@ public class StressTestFileServiceImpl implements StressTestFileService {
     @Override
     @Transactional
     public void update(MultipartFile multipartFile, String filePath, StressTestEntity stressCase, StressTestFileEntity stressTestFile) {
+        File tmpFile = stressTestUtils.createUploadTmpFile(filePath);
         try {
-            String fileMd5 = DigestUtils.md5Hex(multipartFile.getBytes());
-            stressTestFile.setFileMd5(fileMd5);
-        } catch (IOException e) {
-            throw new RRException("获取上传文件的MD5失败!",e);
+            stressTestFile.setFileMd5(stressTestUtils.saveUploadFile(multipartFile, tmpFile));
+            update(stressTestFile);
+            stressTestDao.update(stressCase);
+            stressTestUtils.moveUploadFile(tmpFile, filePath);
+        } finally {
+            FileUtils.deleteQuietly(tmpFile);
         }
-        update(stressTestFile);
-        stressTestDao.update(stressCase);
-        stressTestUtils.saveFile(multipartFile,filePath);
     }
 
     /**
@@ -276,6 +339,7 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         map.put("reportStatus", stressTestFile.getReportStatus());
         map.put("webchartStatus", stressTestFile.getWebchartStatus());
         map.put("debugStatus", stressTestFile.getDebugStatus());
+        map.put("compressStatus", stressTestFile.getCompressStatus());
         map.put("duration", stressTestFile.getDuration());
         stressTestFileDao.updateStatusBatch(map);
     }
@@ -323,8 +387,7 @@ public class StressTestFileServiceImpl implements StressTestFileService {
                 throw new RRException("删除jmx文件夹异常失败", e);
             }
             //删除缓存
-            StressTestUtils.samplingStatCalculator4File.remove(fileId);
-            StressTestUtils.jMeterEntity4file.remove(fileId);
+            StressTestUtils.removeRun((Long) fileId);
 
             //删除远程节点的同步文件，如果远程节点比较多，网络不好，执行时间会比较长
             deleteSlaveFile((Long) fileId);
@@ -370,6 +433,18 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         String jmxDir = fileName.substring(0, fileName.lastIndexOf("."));
         logger.info("测试结果保存路径jmxDir：" + jmxDir);
         String suffix = StressTestUtils.NEED_DEBUG.equals(stressTestFile.getDebugStatus()) ? "jtl" : "csv";
+        String slaveStr = getSlaveIPPort();
+        //二进制格式只有web程序进程内启动的压测才能写入，节点机预聚合时由节点机写入csv
+        boolean slaveAggregate = StringUtils.isNotEmpty(slaveStr) && stressTestUtils.isSlaveAggregate();
+        if ("csv".equals(suffix) && !stressTestUtils.isUseJmeterScript() && !slaveAggregate
+                && stressTestUtils.isResultBinary()) {
+            suffix = BinaryResultFormat.SUFFIX;
+        }
+        //压缩同样由进程内的异步写入线程完成，如case_4444.csv.gz
+        if (!"jtl".equals(suffix) && !stressTestUtils.isUseJmeterScript()
+                && StressTestUtils.NEED_COMPRESS.equals(stressTestFile.getCompressStatus())) {
+            suffix = suffix + "." + CompressedResultFormat.SUFFIX;
+        }
         logger.info("测试结果文件后缀："+suffix);
         // 测试结果文件csv文件的名称，如case20180504172207607_4444.csv
         String csvName = jmxDir.substring(jmxDir.lastIndexOf(File.separator) + 1) + StressTestUtils.getSuffix4() + "." + suffix;
@@ -409,7 +484,6 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         map.put("jmxFile",jmxFile);
         map.put("csvFile",csvFile);
 
-        String slaveStr = getSlaveIPPort();
         logger.info("分布式节点的IP地址拼装结果:" + slaveStr);
         // slaveStr 用来做脚本是否是分布式执行的判断，不入库。
         stressTestFile.setSlaveStr(slaveStr);
@@ -532,6 +606,11 @@ public class StressTestFileServiceImpl implements StressTestFileService {
                 }
                 stressTestUtils.setJmeterOutputFormat();
             }
+            //节点机预聚合：监控数据在节点机上每秒汇总后发送，原始结果保存在节点机上
+            boolean slaveAggregate = StringUtils.isNotEmpty(slaveStr) && stressTestUtils.isSlaveAggregate();
+            if (slaveAggregate && checkSlaveLocal()) {
+                throw new RRException("本机节点（127.0.0.1）启用时不能使用节点机预聚合，请先禁用本机节点！");
+            }
             //默认的FileServer.getFileServer().setBaseForScript(jmxFile);方法无法支持单进程内的
             //多脚本的同时进行，是Jmeter源生的对单进程内多执行脚本支持就不好。
             //主要原因是参数化文件会混淆，设置脚本base目录时会判断当前进程内是否存在正在使用的文件。
@@ -549,28 +628,65 @@ public class StressTestFileServiceImpl implements StressTestFileService {
                 baseField.setAccessible(true);
                 baseField.set(FileServer.getFileServer(),jmxFile.getAbsoluteFile().getParentFile());
             }
-            HashTree jmxTree = SaveService.loadTree(jmxFile);
+            //解析并转换好的脚本有缓存，这里拿到的是克隆出来的副本，可以随意修改
+            HashTree jmxTree = JmxTreeCache.load(jmxFile, stressTestFile.getFileMd5());
             logger.info("jmxTree的内容:" + jmxTree.toString());
-            //删除禁用的元素,用目标子树替换可替换控制器,克隆树以确保通常引用的NoThreadClone元素被克隆
-            JMeter.convertSubTree(jmxTree);
+
+            //在内容中保留启动信息使用。
+            //分布式执行时备用节点在压测过程中加入，要支持并发修改。
+            List<JMeterEngine> engines = new CopyOnWriteArrayList<>();
+            JmeterRunEntity jmeterRunEntity = new JmeterRunEntity();
+            jmeterRunEntity.setStressTestFile(stressTestFile);
+            jmeterRunEntity.setStressTestReports(stressTestReports);
+            jmeterRunEntity.setEngines(engines);
+            if (StressTestUtils.NEED_WEB_CHART.equals(stressTestFile.getWebchartStatus())) {
+                jmeterRunEntity.setLiveStatsAggregator(new LiveStatsAggregator());
+            }
+            //增量统计测试报告数据，压测结束后生成报告不再读取结果文件
+            if (stressTestReports != null && !(stressTestReports instanceof DebugTestReportsEntity) && !slaveAggregate
+                    && stressTestUtils.isIncrementalReport() && stressTestUtils.isMasterGenerateReport()) {
+                try {
+                    jmeterRunEntity.setIncrementalReport(LocalReportGenerator.startIncremental(csvFile.getPath()));
+                } catch (ConfigurationException | GenerationException e) {
+                    logger.error("增量统计测试报告数据初始化失败，压测结束后按结果文件生成报告", e);
+                }
+            }
 
             JmeterResultCollector jmeterResultCollector = null;
             //如果不要监控也不要测试报告，则不加自定义的Collector到文件里，让性能最大化。
-            if (StressTestUtils.NEED_REPORT.equals(stressTestFile.getReportStatus())
+            if (slaveAggregate && (StressTestUtils.NEED_REPORT.equals(stressTestFile.getReportStatus())
+                    || StressTestUtils.NEED_WEB_CHART.equals(stressTestFile.getWebchartStatus()))) {
+                logger.info("本次测试使用节点机预聚合");
+                //节点机上的收集器代替JmeterResultCollector，请求结果不再逐个发送到master
+                SlaveSummaryCollector slaveSummaryCollector = new SlaveSummaryCollector();
+                slaveSummaryCollector.setSaveConfig(new SampleSaveConfiguration());
+                if (StressTestUtils.NEED_REPORT.equals(stressTestFile.getReportStatus())) {
+                    String slaveResultFile = SLAVE_RESULT_DIR + "/" + csvFile.getName();
+                    slaveSummaryCollector.setFilename(slaveResultFile);
+                    jmeterRunEntity.setSlaveResultFile(slaveResultFile);
+                }
+                if (StressTestUtils.NEED_WEB_CHART.equals(stressTestFile.getWebchartStatus())) {
+                    RemoteSummaryReceiver summaryReceiver =
+                            new RemoteSummaryReceiver(jmeterRunEntity.getLiveStatsAggregator());
+                    slaveSummaryCollector.setSummaryListener(summaryReceiver.getStub());
+                    jmeterRunEntity.setSummaryReceiver(summaryReceiver);
+                }
+                jmxTree.add(jmxTree.getArray()[0],slaveSummaryCollector);
+            } else if (StressTestUtils.NEED_REPORT.equals(stressTestFile.getReportStatus())
                     || StressTestUtils.NEED_WEB_CHART.equals(stressTestFile.getWebchartStatus())) {
                 logger.info("本次测试需要测试报告或者Chart监控");
                 //添加收集观察监听程序。具体情况的区分在起程序内做分别，原因是情况较多，父子类的实现不现实。
                 //使用自定义的Collector,用于前端绘图的数据收集和日志收集等。
-                jmeterResultCollector = new JmeterResultCollector(stressTestFile);
+                jmeterResultCollector = new JmeterResultCollector(jmeterRunEntity);
 
-                //对调试模式的处理，让结果文件保存为xml格式
+                //对调试模式的处理，让结果文件保存为xml格式，由父类负责写入。
+                //csv格式由本次执行的异步写入负责，收集器开始时打开文件，不需要设置文件名。
                 if (StressTestUtils.NEED_DEBUG.equals(stressTestFile.getDebugStatus())) {
                     logger.info("正在使用调试模式");
                     jmeterResultCollector.getSaveConfig().setAsXml(true);
+                    logger.info("开始设置jmeterResultCollector测试结果文件名，xml文件的真实路径:" + csvFile.getPath());
+                    jmeterResultCollector.setFilename(csvFile.getPath());
                 }
-
-                logger.info("开始设置jmeterResultCollector测试结果文件名，csv文件的真实路径:" + csvFile.getPath());
-                jmeterResultCollector.setFilename(csvFile.getPath());
                 jmxTree.add(jmxTree.getArray()[0],jmeterResultCollector);
                 logger.info("已完成jmeterResultCollector添加进jmxTree");
             }
@@ -578,21 +694,16 @@ public class StressTestFileServiceImpl implements StressTestFileService {
             //增加程序执行结束的监控
             //enginess 为null停止脚本后不会直接停止远程client的JVM进程。
             //reportGenerator 为Null 停止后脚本后不会直接生成测试报告。
-            jmxTree.add(jmxTree.getArray()[0],new JmeterListenToTest(null,
-                    null,this,stressTestFile.getFileId()));
+            JmeterListenToTest jmeterListenToTest = new JmeterListenToTest(null,
+                    null,this,stressTestFile.getFileId());
+            jmxTree.add(jmxTree.getArray()[0],jmeterListenToTest);
 
             // Used for remote notification of threads start/stop,see BUG 54152
             // Summariser uses this feature to compute correctly number of threads
             // when NON GUI mode is used
             jmxTree.add(jmxTree.getArray()[0],new RemoteThreadsListenerTestElement());
 
-            //在内容中保留启动信息使用。
-            List<JMeterEngine> engines = new LinkedList<>();
-            JmeterRunEntity jmeterRunEntity = new JmeterRunEntity();
-            jmeterRunEntity.setStressTestFile(stressTestFile);
-            jmeterRunEntity.setStressTestReports(stressTestReports);
             jmeterRunEntity.setJmeterResultCollector(jmeterResultCollector);
-            jmeterRunEntity.setEngines(engines);
             jmeterRunEntity.setRunStatus(StressTestUtils.RUNNING);
             logger.info("jmeterRunEntity的内容为:" + jmeterRunEntity.toString());
 
@@ -606,8 +717,13 @@ public class StressTestFileServiceImpl implements StressTestFileService {
             jmeterRunEntity.setFileAliaList(fileAliaList);
 
             jmxTree = fixHashTreeDuration(jmxTree,stressTestFile);
+            if (stressTestUtils.isVirtualThreads()) {
+                int count = VirtualThreadGroup.replaceThreadGroups(jmxTree);
+                logger.info("使用虚拟线程执行的线程组数量：" + count + "，虚拟线程可用：" + VirtualThreadGroup.Factory.isVirtual());
+            }
 
-            StressTestUtils.jMeterEntity4file.put(stressTestFile.getFileId(),jmeterRunEntity);
+            //注册后分布式回调的结果收集器才能找到本次执行
+            StressTestUtils.registerRun(jmeterRunEntity);
             if (StringUtils.isNotEmpty(slaveStr)) { //分布式的方式启动
                 logger.info("本测试使用分布式方式启动");
                 java.util.StringTokenizer st = new java.util.StringTokenizer(slaveStr, ",");//$NON-NLS-1$
@@ -622,6 +738,12 @@ public class StressTestFileServiceImpl implements StressTestFileService {
                 engines.addAll(localDistributedRunner.getEngines());
                 localDistributedRunner.start();
 
+                //压测过程中监控节点机，失联节点的负载由备用节点接管
+                RemoteEngineMonitor remoteEngineMonitor = new RemoteEngineMonitor(localDistributedRunner,
+                        jmeterListenToTest, engines, this::getStandbySlaveAddrs);
+                jmeterRunEntity.setRemoteEngineMonitor(remoteEngineMonitor);
+                remoteEngineMonitor.start();
+
                 //如果配置了，则将本机节点也增加进去
                 //当前只有本地运行的方式支持本机master节点的添加
                 if (checkSlaveLocal()) {
@@ -736,25 +858,56 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         StressTestReportsEntity stressTestReports = jmeterRunEntity.getStressTestReports();
         JmeterResultCollector jmeterResultCollector = jmeterRunEntity.getJmeterResultCollector();
 
-        //只处理了成功的情况，失败的情况当前捕获不到
-        stressTestFile.setStatus(StressTestUtils.RUN_SUCCESS);
         //全面停止之前将测试报告文件从缓存刷到磁盘上去。
         //避免多脚本执行时停止其中一个脚本而测试报告文件不完整。
         if (jmeterResultCollector != null) {
             logger.info("jmeterResultCollector不为空");
             //如果关闭报告，则为null
             jmeterResultCollector.flushFile();
+            jmeterRunEntity.flushResultWriter();
         }
+        //节点机预聚合时原始结果在节点机上，合并完成之前保持运行中，避免用不完整的结果文件生成测试报告
+        String slaveResultFile = stressTestReports != null ? jmeterRunEntity.takeSlaveResultFile() : null;
+        if (!jmeterRunEntity.isSlaveResultMerging()) {
+            updateEndStatus(stressTestFile, stressTestReports);
+        }
+
+        jmeterRunEntity.stop();
+
+        if (slaveResultFile != null) {
+            //压测结束时是在RMI回调线程上调用的，取回合并放到单独的线程中
+            SLAVE_RESULT_MERGER.execute(() -> finishSlaveResults(jmeterRunEntity, slaveResultFile));
+        }
+
+        //需要将结果收集的部分干掉
+        jmeterRunEntity.closeLiveStats();
+    }
+
+    /**
+     * 只处理了成功的情况，失败的情况当前捕获不到
+     */
+    private void updateEndStatus(StressTestFileEntity stressTestFile, StressTestReportsEntity stressTestReports) {
+        stressTestFile.setStatus(StressTestUtils.RUN_SUCCESS);
         if (stressTestReports != null && stressTestReports.getFile().exists()) {
             logger.debug("测试报告不为空并且文件存在：" + stressTestReports.getFile().getAbsolutePath());
             stressTestReports.setFileSize(FileUtils.sizeOf(stressTestReports.getFile()));
         }
         update(stressTestFile,stressTestReports);
+    }
 
-        jmeterRunEntity.stop();
-
-        //需要将结果收集的部分干掉
-        StressTestUtils.samplingStatCalculator4File.remove(fileId);
+    /**
+     * 取回合并节点机的结果文件，完成后（包括失败）才更新为执行成功及结果文件大小
+     */
+    private void finishSlaveResults(JmeterRunEntity jmeterRunEntity, String slaveResultFile) {
+        StressTestReportsEntity stressTestReports = jmeterRunEntity.getStressTestReports();
+        try {
+            mergeSlaveResults(slaveResultFile, stressTestReports.getFile());
+        } catch (RuntimeException e) {
+            logger.error("取回合并节点机测试结果失败", e);
+        } finally {
+            jmeterRunEntity.slaveResultMerged();
+            updateEndStatus(jmeterRunEntity.getStressTestFile(), stressTestReports);
+        }
     }
 
     /**
@@ -798,7 +951,7 @@ public class StressTestFileServiceImpl implements StressTestFileService {
             }
 
             //对于全部停止，再次全部移除统计数据
-            StressTestUtils.samplingStatCalculator4File.clear();
+            jMeterEntity4file.values().forEach(JmeterRunEntity::closeLiveStats);
 
             resetRunningStatus(jMeterEntity4file);
 
@@ -834,13 +987,15 @@ public class StressTestFileServiceImpl implements StressTestFileService {
 
     @Override
     public JmeterStatEntity getJmeterStatEntity(Long fileId) {
+        return getJmeterStatEntity(fileId, LiveStatsAggregator.DEFAULT_WINDOW_SECONDS, null);
+    }
+
+    @Override
+    public JmeterStatEntity getJmeterStatEntity(Long fileId, int windowSeconds, Long since) {
         logger.debug("进入：getJmeterStatEntity,fileId:" + fileId);
         //每次调用都是一个全新的对象。不过这个对象仅用于前端返回，直接可以垃圾回收掉。
-        if (StringUtils.isNotEmpty(getSlaveIPPort())) {
-            logger.debug("getSlaveIPPort不为空");
-            return new JmeterStatEntity(fileId,0L);
-        }
-        return new JmeterStatEntity(fileId,null);
+        //分布式和单机都是按照脚本最近一次的执行取监控数据，不再查询数据库。
+        return new JmeterStatEntity(fileId,windowSeconds,since);
     }
 
     /**
@@ -849,25 +1004,75 @@ public class StressTestFileServiceImpl implements StressTestFileService {
     @Override
     @Transactional
     public void synchronizeFile(Long[] fileIds) {
-        //当前是向所有的分布式节点推送这个，阻塞操作+轮询，并非多线程，因为本地同步网卡会是瓶颈。
+        synchronizeFile(fileIds, null, false);
+    }
+
+    /**
+     * 向子节点同步参数化文件，可以按行拆分，每个节点只拿到其中的一份。
+     */
+    @Override
+    @Transactional
+    public void synchronizeFile(Long[] fileIds, String shardMode, boolean shardHeader) {
+        //向所有的分布式节点并行推送，同时推送的节点数由SlaveTaskRunner限制。
         Map query = new HashMap<>();
         query.put("status",StressTestUtils.ENABLE);
         List<StressTestSlaveEntity> stressTestSlaveList = stressTestSlaveDao.queryList(query);
-        //采用了先给同一个节点机传送多个文件的方式，因为数据库的连接消耗优于节点机的链接消耗
-        for (StressTestSlaveEntity slave : stressTestSlaveList) {
-
-            //不向本地节点传送文件
-            if ("127.0.0.1".equals(slave.getIp().trim())) {
-                continue;
-            }
+        boolean shard = StressTestUtils.SHARD_WEIGHT.equals(shardMode) || StressTestUtils.SHARD_EVEN.equals(shardMode);
+        if (shard && checkSlaveLocal()) {
+            //本机使用的是原文件，拆分后本机的数据会和其他节点重复
+            throw new RRException("本机节点（127.0.0.1）启用时不能拆分文件，请先禁用本机节点！");
+        }
+        //不向本地节点传送文件
+        stressTestSlaveList.removeIf(slave -> "127.0.0.1".equals(slave.getIp().trim()));
+        //备用节点不参与拆分，同步完整的原文件
+        List<StressTestSlaveEntity> shardSlaveList = new ArrayList<>(stressTestSlaveList);
+        shardSlaveList.removeIf(StressTestFileServiceImpl::isStandby);
+        if (shard && shardSlaveList.isEmpty()) {
+            throw new RRException("没有启用的分布式节点，无法拆分文件！");
+        }
 
-            SSH2Utils ssh2Util = new SSH2Utils(slave.getIp(), slave.getUserName(),
-                    slave.getPasswd(), Integer.parseInt(slave.getSshPort()));
+        //MD5和压缩只在本机做一次，各节点共用
+        List<SyncFile> syncFiles = new ArrayList<>(fileIds.length);
+        try {
             for (Long fileId : fileIds) {
                 StressTestFileEntity stressTestFile = queryObject(fileId);
-                putFileToSlave(slave,ssh2Util,stressTestFile);
+                SyncFile syncFile = prepareSyncFile(stressTestFile, getFilePath(stressTestFile));
+                syncFiles.add(syncFile);
+                //脚本文件不拆分
+                if (shard && !stressTestFile.getOriginName().toLowerCase().endsWith(".jmx")) {
+                    shardSyncFile(syncFile, shardSlaveList, StressTestUtils.SHARD_WEIGHT.equals(shardMode),
+                            shardHeader);
+                }
+            }
+            //采用了先给同一个节点机传送多个文件的方式，同一个节点机上的文件共用一个SSH连接
+            //工作线程只传文件，不在当前事务中，数据库记录回到当前线程再写
+            SlaveTaskRunner.Report report = SlaveTaskRunner.run("同步文件", stressTestSlaveList,
+                    FILE_SYNC_TIMEOUT, slave -> {
+                        SSH2Utils ssh2Util = new SSH2Utils(slave.getIp(), slave.getUserName(),
+                                slave.getPasswd(), Integer.parseInt(slave.getSshPort()));
+                        for (SyncFile syncFile : syncFiles) {
+                            putFileToSlave(slave, ssh2Util, syncFile.forSlave(slave.getSlaveId()));
+                        }
+                    });
+            if (!report.getFailed().isEmpty()) {
+                throw new RRException(report.toString());
+            }
+            for (StressTestSlaveEntity slave : stressTestSlaveList) {
+                for (SyncFile syncFile : syncFiles) {
+                    saveSlaveFile(slave, syncFile.forSlave(slave.getSlaveId()));
+                }
+            }
+        } finally {
+            for (SyncFile syncFile : syncFiles) {
+                syncFile.deleteTmpFiles();
             }
         }
+
+        //全部节点同步完成后每个文件只更新一次状态
+        for (SyncFile syncFile : syncFiles) {
+            syncFile.stressTestFile.setStatus(StressTestUtils.RUN_SUCCESS);
+            update(syncFile.stressTestFile);
+        }
     }
 
     @Override
@@ -878,32 +1083,114 @@ public class StressTestFileServiceImpl implements StressTestFileService {
     }
 
     /**
-     * 将文件上传到节点机目录上。
+     * 计算要同步文件的MD5，较大的文件先压缩，传输压缩后的文件。
      */
-    public void putFileToSlave(StressTestSlaveEntity slave, SSH2Utils ssh2Util, StressTestFileEntity stressTestFile) {
-        String casePath = stressTestUtils.getCasePath();
-        String fileNameSave = stressTestFile.getFileName();
-        String filePath = casePath + File.separator + fileNameSave;
-        String fileSaveMD5 = "";
+    private SyncFile prepareSyncFile(StressTestFileEntity stressTestFile, String filePath) {
+        SyncFile syncFile = new SyncFile(stressTestFile, filePath);
         try {
-            fileSaveMD5 = stressTestUtils.getMd5ByFile(filePath);
+            syncFile.md5 = stressTestUtils.getMd5ByFile(filePath);
         } catch (IOException e) {
             throw new RRException(stressTestFile.getOriginName() + "生成MD5失败 !",e);
         }
+        File file = new File(filePath);
+        if (file.length() < SYNC_GZIP_MIN_SIZE) {
+            return syncFile;
+        }
+        File gzFile = null;
+        try {
+            gzFile = File.createTempFile("sync-", ".gz");
+            try (InputStream in = new FileInputStream(file);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(gzFile), 64 * 1024)) {
+                IOUtils.copyLarge(in, out, new byte[64 * 1024]);
+            }
+            //压缩效果不明显的文件（图片、压缩包等）直接传输
+            if (gzFile.length() < file.length() * 9 / 10) {
+                syncFile.gzFile = gzFile;
+                logger.info("同步文件压缩：" + stressTestFile.getOriginName() + " " + file.length() + " -> " + gzFile.length());
+                return syncFile;
+            }
+        } catch (IOException e) {
+            logger.error("同步文件压缩失败，直接传输：" + stressTestFile.getOriginName(), e);
+        }
+        FileUtils.deleteQuietly(gzFile);
+        return syncFile;
+    }
+
+    /**
+     * 按节点的权重（或者平均）把文件按行拆分，拆分后的文件在节点机上和原文件同名，脚本不需要修改。
+     */
+    private void shardSyncFile(SyncFile syncFile, List<StressTestSlaveEntity> slaves, boolean byWeight,
+                               boolean header) {
+        File[] targets = new File[slaves.size()];
+        int[] weights = new int[slaves.size()];
+        try {
+            for (int i = 0; i < slaves.size(); i++) {
+                targets[i] = File.createTempFile("shard-", ".csv");
+                syncFile.shards.put(slaves.get(i).getSlaveId(), new SyncFile(syncFile.stressTestFile,
+                        targets[i].getAbsolutePath()));
+                //权重0和压测时一样按不拆分负载（100）处理
+                int weight = Integer.parseInt(slaves.get(i).getWeight().trim());
+                weights[i] = byWeight ? (weight > 0 ? weight : 100) : 1;
+            }
+            long[] counts = CsvSplitter.split(new File(syncFile.filePath), targets, weights, header);
+            for (int i = 0; i < slaves.size(); i++) {
+                SyncFile shard = syncFile.shards.get(slaves.get(i).getSlaveId());
+                syncFile.shards.put(slaves.get(i).getSlaveId(), prepareSyncFile(shard.stressTestFile, shard.filePath));
+                logger.info(syncFile.stressTestFile.getOriginName() + "拆分给" + slaves.get(i).getSlaveName()
+                        + "：" + counts[i] + "行");
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new RRException(syncFile.stressTestFile.getOriginName() + "拆分文件失败！", e);
+        }
+    }
 
+    /**
+     * 将文件上传到节点机目录上。
+     * 节点机上已经存在相同MD5的文件时不再上传；上传时先写入临时文件，校验MD5后再替换，
+     * 节点机上正在使用的文件不会读到传了一半的内容。
+     */
+    private void putFileToSlave(StressTestSlaveEntity slave, SSH2Utils ssh2Util, SyncFile syncFile) {
+        StressTestFileEntity stressTestFile = syncFile.stressTestFile;
         //避免跨系统的问题，远端由于都是linux服务器，则文件分隔符统一为/,不然同步文件会报错。
         String caseFileHome = slave.getHomeDir() + "/bin/stressTestCases";
-        String MD5 = ssh2Util.runCommand("md5sum" + getSlaveFileName(stressTestFile, slave) + "|cut -d ' ' -f1");
-        if (fileSaveMD5.equals(MD5)) {//说明目标服务器已经存在相同文件不再重复上传
-            return;
+        String fileName = stressTestFile.getOriginName();
+        String slaveFileName = getSlaveFileName(stressTestFile, slave);
+        String MD5 = ssh2Util.runCommand("md5sum " + quote(slaveFileName) + "|cut -d ' ' -f1",
+                FILE_COMMAND_TIMEOUT);
+        if (!syncFile.md5.equals(MD5)) {//说明目标服务器已经存在相同文件不再重复上传
+            ssh2Util.runCommand("mkdir -p " + quote(caseFileHome));
+            boolean uploaded = false;
+            if (syncFile.gzFile != null
+                    && ssh2Util.scpPutFile(syncFile.gzFile.getAbsolutePath(), fileName + ".gz", caseFileHome)) {
+                //节点机上解压到临时文件再替换
+                MD5 = ssh2Util.runCommand("gzip -dc " + quote(slaveFileName + ".gz") + " > " + quote(slaveFileName + ".part")
+                        + " && mv -f " + quote(slaveFileName + ".part") + " " + quote(slaveFileName)
+                        + "; rm -f " + quote(slaveFileName + ".gz") + " " + quote(slaveFileName + ".part")
+                        + "; md5sum " + quote(slaveFileName) + "|cut -d ' ' -f1", FILE_COMMAND_TIMEOUT);
+                uploaded = syncFile.md5.equals(MD5);
+                if (!uploaded) {
+                    logger.error(slave.getSlaveName() + "节点解压文件失败，直接传输：" + fileName);
+                }
+            }
+            if (!uploaded) {
+                if (!ssh2Util.scpPutFile(syncFile.filePath, fileName + ".part", caseFileHome)) {
+                    throw new RRException(slave.getSlaveName() + "节点上传文件失败：" + fileName);
+                }
+                MD5 = ssh2Util.runCommand("mv -f " + quote(slaveFileName + ".part") + " " + quote(slaveFileName)
+                        + "; md5sum " + quote(slaveFileName) + "|cut -d ' ' -f1", FILE_COMMAND_TIMEOUT);
+                if (!syncFile.md5.equals(MD5)) {
+                    throw new RRException(slave.getSlaveName() + "节点文件MD5校验失败：" + fileName);
+                }
+            }
         }
+    }
 
-        //上传文件
-        ssh2Util.scpPutFile(filePath,caseFileHome);
-
-        stressTestFile.setStatus(StressTestUtils.RUN_SUCCESS);
-        //由于事务性，这个地方不好批量更新。
-        update(stressTestFile);
+    /**
+     * 记录文件已经同步到节点机，删除文件时据此删除节点机上的文件。
+     */
+    private void saveSlaveFile(StressTestSlaveEntity slave, SyncFile syncFile) {
+        StressTestFileEntity stressTestFile = syncFile.stressTestFile;
+        String slaveFileName = getSlaveFileName(stressTestFile, slave);
         Map fileQuery = new HashMap<>();
         fileQuery.put("originName",stressTestFile.getOriginName() + "_slaveId" + slave.getSlaveId());
         fileQuery.put("slaveId",slave.getSlaveId().toString());
@@ -911,17 +1198,62 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         if (newStressTestFile == null) {
             newStressTestFile = stressTestFile.clone();
             newStressTestFile.setStatus(-1);
-            newStressTestFile.setFileName(getSlaveFileName(stressTestFile,slave));
+            newStressTestFile.setFileName(slaveFileName);
             newStressTestFile.setOriginName(stressTestFile.getOriginName() + "_slaveId" + slave.getSlaveId());
-            newStressTestFile.setFileMd5(fileSaveMD5);
+            newStressTestFile.setFileMd5(syncFile.md5);
             //最重要是保存分布式子节点的ID
             newStressTestFile.setSlaveId(slave.getSlaveId());
             save(newStressTestFile);
-        } else {
-            newStressTestFile.setFileMd5(fileSaveMD5);
+        } else if (!syncFile.md5.equals(newStressTestFile.getFileMd5())) {
+            newStressTestFile.setFileMd5(syncFile.md5);
             update(newStressTestFile);
         }
+    }
+
+    /**
+     * 远程命令中的文件路径加上单引号，文件名中有空格等字符时不会出错
+     */
+    private static String quote(String path) {
+        return "'" + path.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * 待同步的文件，MD5和压缩后的文件各节点共用，拆分后的文件各节点单独使用
+     */
+    private static class SyncFile {
+
+        private final StressTestFileEntity stressTestFile;
+
+        private final String filePath;
+
+        private String md5;
+
+        /**
+         * 压缩后的临时文件，不压缩时为null
+         */
+        private File gzFile;
+
+        /**
+         * 按行拆分时各节点的文件，节点ID -> 拆分后的文件
+         */
+        private final Map<Long, SyncFile> shards = new HashMap<>();
+
+        SyncFile(StressTestFileEntity stressTestFile, String filePath) {
+            this.stressTestFile = stressTestFile;
+            this.filePath = filePath;
+        }
 
+        SyncFile forSlave(Long slaveId) {
+            return shards.getOrDefault(slaveId, this);
+        }
+
+        void deleteTmpFiles() {
+            FileUtils.deleteQuietly(gzFile);
+            for (SyncFile shard : shards.values()) {
+                FileUtils.deleteQuietly(new File(shard.filePath));
+                shard.deleteTmpFiles();
+            }
+        }
     }
 
     /**
@@ -997,8 +1329,8 @@ public class StressTestFileServiceImpl implements StressTestFileService {
 
         StringBuilder stringBuilder = new StringBuilder();
         for (StressTestSlaveEntity slave : stressTestSlaveList) {
-            //本级部包含在内
-            if ("127.0.0.1".equals(slave.getIp().trim())) {
+            //本级部包含在内，备用节点压测开始时不使用
+            if ("127.0.0.1".equals(slave.getIp().trim()) || isStandby(slave)) {
                 continue;
             }
 
@@ -1010,6 +1342,89 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         return stringBuilder.toString();
     }
 
+    /**
+     * 从各节点机取回原始结果文件，按时间戳归并成一个结果文件。
+     * 包括接管过负载的备用节点，节点机上没有结果文件（没有参与本次压测）时跳过。
+     * 取回成功后删除节点机上的文件，部分节点失败时用取回的文件合并，并记录失败的节点。
+     * 先合并到同目录的临时文件再整体替换，生成测试报告时不会读到合并了一半的文件。
+     *
+     * @param slaveResultFile 节点机上结果文件的相对路径
+     * @param target          测试报告使用的结果文件
+     */
+    private void mergeSlaveResults(String slaveResultFile, File target) {
+        Map query = new HashMap<>();
+        query.put("status", StressTestUtils.ENABLE);
+        List<StressTestSlaveEntity> stressTestSlaveList = stressTestSlaveDao.queryList(query);
+        stressTestSlaveList.removeIf(slave -> "127.0.0.1".equals(slave.getIp().trim()));
+
+        List<File> downloads = Collections.synchronizedList(new ArrayList<>());
+        SlaveTaskRunner.Report report = SlaveTaskRunner.run("取回节点机测试结果", stressTestSlaveList,
+                FILE_SYNC_TIMEOUT, slave -> {
+                    SSH2Utils ssh2Util = new SSH2Utils(slave.getIp(), slave.getUserName(),
+                            slave.getPasswd(), Integer.parseInt(slave.getSshPort()));
+                    String remoteFile = slave.getHomeDir() + "/bin/stressTestCases/" + slaveResultFile;
+                    if (!waitSlaveResult(slave, ssh2Util, remoteFile)) {
+                        return;
+                    }
+                    File localFile = new File(target.getParentFile(), target.getName() + "."
+                            + slave.getIp().trim() + "_" + slave.getJmeterPort().trim());
+                    if (!ssh2Util.scpGetFile(remoteFile, localFile)) {
+                        FileUtils.deleteQuietly(localFile);
+                        throw new RRException(slave.getSlaveName() + "取回测试结果文件失败！");
+                    }
+                    downloads.add(localFile);
+                    ssh2Util.runCommand("rm -f " + remoteFile);
+                });
+
+        List<File> inputs = new ArrayList<>(downloads);
+        if (inputs.isEmpty()) {
+            logger.error("没有取回任何节点机的测试结果：" + report);
+            return;
+        }
+        //临时文件保留原来的后缀，合并时按后缀决定是否压缩
+        File merging = new File(target.getParentFile(), MERGING_PREFIX + target.getName());
+        try {
+            char delimiter = new SampleSaveConfiguration().getDelimiter().charAt(0);
+            long count = new ResultFileMerger(delimiter).merge(inputs, merging);
+            Files.move(merging.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            logger.info("合并" + inputs.size() + "个节点机的测试结果，共" + count + "条，失败节点："
+                    + report.getFailed().keySet());
+        } catch (IOException e) {
+            logger.error("合并节点机测试结果文件失败：" + target.getAbsolutePath(), e);
+        } finally {
+            FileUtils.deleteQuietly(merging);
+            inputs.forEach(FileUtils::deleteQuietly);
+        }
+    }
+
+    /**
+     * 等待节点机的结果文件写完（.part后缀去掉）
+     *
+     * @return 节点机上没有这次压测的结果文件时返回false
+     */
+    private boolean waitSlaveResult(StressTestSlaveEntity slave, SSH2Utils ssh2Util, String remoteFile) {
+        String partFile = remoteFile + SlaveSummaryCollector.PART_SUFFIX;
+        long deadline = System.currentTimeMillis() + SLAVE_RESULT_WAIT_TIMEOUT;
+        while (true) {
+            String state = ssh2Util.runCommand("if [ -f " + remoteFile + " ]; then echo done; elif [ -f "
+                    + partFile + " ]; then echo part; fi");
+            if ("done".equals(state)) {
+                return true;
+            }
+            if ("null".equals(state)) {
+                return false;
+            }
+            if (!"part".equals(state)) {
+                throw new RRException(slave.getSlaveName() + "节点连接失败！");
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new RRException(slave.getSlaveName() + "测试结果文件没有写完！");
+            }
+            stressTestUtils.pause(1000);
+        }
+    }
+
     /**
      * master节点是否被使用为压力节点
      */
@@ -1039,8 +1454,8 @@ public class StressTestFileServiceImpl implements StressTestFileService {
 
         Map<String, Integer> resultMap = new HashMap<String, Integer>();
         for (StressTestSlaveEntity slave : stressTestSlaveList) {
-            //本机不包含在内
-            if ("127.0.0.1".equals(slave.getIp().trim())) {
+            //本机不包含在内，备用节点压测开始时不使用
+            if ("127.0.0.1".equals(slave.getIp().trim()) || isStandby(slave)) {
                 continue;
             }
 
@@ -1048,4 +1463,28 @@ public class StressTestFileServiceImpl implements StressTestFileService {
         }
         return resultMap;
     }
+
+    /**
+     * 备用节点（权重为-1的启用节点），分布式压测过程中有节点失联时接管它的负载。
+     * 每次都重新查询，压测过程中新启用的备用节点也能用上。
+     *
+     * @return 备用节点的IP:端口，不包含本地127.0.0.1
+     */
+    public List<String> getStandbySlaveAddrs() {
+        Map query = new HashMap<>();
+        query.put("status", StressTestUtils.ENABLE);
+        List<StressTestSlaveEntity> stressTestSlaveList = stressTestSlaveDao.queryList(query);
+
+        List<String> addrs = new ArrayList<>();
+        for (StressTestSlaveEntity slave : stressTestSlaveList) {
+            if (!"127.0.0.1".equals(slave.getIp().trim()) && isStandby(slave)) {
+                addrs.add(slave.getIp().trim() + ":" + slave.getJmeterPort().trim());
+            }
+        }
+        return addrs;
+    }
+
+    private static boolean isStandby(StressTestSlaveEntity slave) {
+        return StressTestUtils.STANDBY_WEIGHT.equals(slave.getWeight().trim());
+    }
 }
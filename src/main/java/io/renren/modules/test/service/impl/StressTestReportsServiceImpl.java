@@ -4,13 +4,20 @@ import io.renren.common.exception.RRException;
 import io.renren.modules.test.dao.StressTestReportsDao;
 import io.renren.modules.test.entity.StressTestReportsEntity;
 import io.renren.modules.test.handler.ReportCreateResultHandler;
+import io.renren.modules.test.jmeter.report.BinaryResultCsvExporter;
+import io.renren.modules.test.jmeter.report.IncrementalReport;
 import io.renren.modules.test.jmeter.report.LocalReportGenerator;
+import io.renren.modules.test.jmeter.report.ReportZipBuilder;
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.CompressedResultFormat;
+import io.renren.modules.test.jmeter.writer.CsvResultFormat;
 import io.renren.modules.test.service.StressTestReportsService;
 import io.renren.modules.test.utils.StressTestUtils;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.jmeter.report.config.ConfigurationException;
 import org.apache.jmeter.report.dashboard.GenerationException;
 import org.slf4j.Logger;
@@ -22,13 +29,10 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.io.*;
-import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 @Service("stressTestReportsService")
 public class StressTestReportsServiceImpl implements StressTestReportsService {
@@ -77,7 +81,7 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
             //csv结果文件路径
             String csvPath = casePath + File.separator + reportName;
             //测试报告文件目录
-            String reportPath = csvPath.substring(0,csvPath.lastIndexOf("."));
+            String reportPath = getReportPathDir(csvPath);
             try {
                 FileUtils.forceDelete(new File(reportPath));
             } catch (FileNotFoundException e) {
@@ -119,6 +123,29 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
         } catch (IOException e) {
             throw new RRException("删除测试报告来源文件异常失败", e);
         }
+        IncrementalReport incrementalReport = StressTestUtils.takeIncrementalReport(new File(csvPath));
+        if (incrementalReport != null) {
+            incrementalReport.discard();
+        }
+        //二进制、压缩的结果使用Jmeter命令行生成报告时转换出来的csv
+        if (isBlockResultFile(csvPath)) {
+            FileUtils.deleteQuietly(new File(getReportPathDir(csvPath) + ".csv"));
+        }
+    }
+
+    /**
+     * 测试报告目录和结果文件同名，压缩的结果文件（xxx.csv.gz）去掉两层后缀。
+     */
+    private String getReportPathDir(String csvPath) {
+        String path = CompressedResultFormat.stripSuffix(csvPath);
+        return path.substring(0, path.lastIndexOf("."));
+    }
+
+    /**
+     * 二进制和压缩的结果文件都是按块写入的，不是Jmeter能直接读取的csv
+     */
+    private boolean isBlockResultFile(String csvPath) {
+        return BinaryResultFormat.isBinary(csvPath) || CompressedResultFormat.isCompressed(csvPath);
     }
 
     public void deleteReportZip(StressTestReportsEntity stressCaseReports) {
@@ -127,7 +154,7 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
         //csv结果文件路径
         String csvPath = casePath + File.separator + reportName;
         //测试报告文件目录
-        String reportPathDir = csvPath.substring(0, csvPath.lastIndexOf("."));
+        String reportPathDir = getReportPathDir(csvPath);
         //zip文件名
         String reportZipPath = reportPathDir + ".zip";
 
@@ -152,7 +179,7 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
         //csv文件路径
         String csvPath = casePath + File.separator + reportName;
         //测试报告文件目录
-        String reportPathDir = csvPath.substring(0, csvPath.lastIndexOf("."));
+        String reportPathDir = getReportPathDir(csvPath);
 
         //如果测试报告文件目录不存在，直接打断
         File reportDir = new File(reportPathDir);
@@ -160,48 +187,9 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
             throw new RRException("请先生成测试报告！");
         }
 
-        //zip文件名
-        String reportZipPath = reportPathDir + ".zip";
-
-        FileSystemResource zipFileResource = new FileSystemResource(reportZipPath);
-
-        if (!zipFileResource.exists()) {
-            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(reportZipPath), Charset.forName("GBK"));
-            try {
-                File zipFile = new File(reportPathDir);
-                zip(out,zipFile,zipFile.getName());
-            } finally {
-                out.close();
-            }
-        }
-        return zipFileResource;
-    }
-
-    /**
-     * 递归打包文件夹/文件
-     */
-    public void zip(ZipOutputStream zOut, File file, String name) throws IOException {
-        if (file.isDirectory()) {
-            File[] listFiles = file.listFiles();
-            name +="/";
-            zOut.putNextEntry(new ZipEntry(name));
-            for (File listFile : listFiles) {
-                zip(zOut,listFile,name+listFile.getName());
-            }
-        }else {
-            FileInputStream in = new FileInputStream(file);
-            try {
-                zOut.putNextEntry(new ZipEntry(name));
-                byte[] buffer = new byte[8192];
-                int len;
-                while ((len = in.read(buffer)) > 0) {
-                    zOut.write(buffer,0,len);
-                    zOut.flush();
-                }
-            } finally {
-                in.close();
-            }
-        }
+        //zip文件名，报告目录有变化时重新打包
+        File zipFile = ReportZipBuilder.getOrBuild(reportDir, new File(reportPathDir + ".zip"));
+        return new FileSystemResource(zipFile);
     }
 
     /**
@@ -233,12 +221,16 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
         String csvPath = casePath + File.separator + reportName;
         logger.debug("csv结果文件路径:" + csvPath);
         //测试报告文件目录
-        String reportPathDir = csvPath.substring(0, csvPath.lastIndexOf("."));
+        String reportPathDir = getReportPathDir(csvPath);
         logger.debug("测试报告文件目录:" + reportPathDir);
 
         //修复csv文件
         logger.debug("开始修复csv文件");
-        fixReportFile(csvPath);
+        if (isBlockResultFile(csvPath)) {
+            fixBlockReportFile(csvPath);
+        } else {
+            fixReportFile(csvPath);
+        }
         logger.debug("结束修复csv文件");
 
         //设置开始执行命令生成报告
@@ -260,6 +252,23 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
     public void generateReportLocal(StressTestReportsEntity stressTestReport, String csvPath, String reportPathDir) {
         logger.info("使用本进程多线程生成测试报告");
         stressTestUtils.setJmeterProperties();
+        //压测过程中已经增量统计过的，直接导出
+        IncrementalReport incrementalReport = StressTestUtils.takeIncrementalReport(new File(csvPath));
+        if (incrementalReport != null) {
+            if (incrementalReport.isCompleted()) {
+                try {
+                    incrementalReport.generate(reportPathDir);
+                    stressTestReport.setStatus(StressTestUtils.RUN_SUCCESS);
+                    update(stressTestReport);
+                    return;
+                } catch (GenerationException e) {
+                    logger.error("导出增量统计的测试报告失败，重新读取结果文件生成", e);
+                    FileUtils.deleteQuietly(new File(reportPathDir));
+                }
+            } else {
+                incrementalReport.discard();
+            }
+        }
         LocalReportGenerator generator = null;
         try {
              generator = new LocalReportGenerator(csvPath, null);
@@ -279,6 +288,10 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
      * 使用Jmeter_home中的命令生成测试报告。
      */
     public void generateReportByScript(StressTestReportsEntity stressTestReport, String csvPath, String reportPathDir) {
+        //Jmeter命令行只认识csv，二进制、压缩的结果先转换成csv放在同一目录下
+        if (isBlockResultFile(csvPath)) {
+            csvPath = convertToCsv(stressTestReport, csvPath);
+        }
 
         //开始执行命令行
         String jmeterHomeBin = stressTestUtils.getJmeterHomeBin();
@@ -322,86 +335,106 @@ public class StressTestReportsServiceImpl implements StressTestReportsService {
     }
 
     /**
-     * 测试报告文件如果最后一行不完整，会报生成报告的错误。
-     * 所以每次生成报告之前，如果不完整则删除最后一行记录，让测试报告生成，没有这类文件不完整的错误。
-     *
-     * @param fileName csv 文件
+     * 把二进制、压缩的测试结果转换成csv文件，返回csv文件的路径。
      */
-    public void fixReportFile(String fileName) {
-        //需要增加判断，如果是不完整的最后一行，属于脏数据，则删除这条数据
-        //如果是完整的，则直接跳出不执行删除操作。
-        try {
-            RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
-            if (raf.length() == 0L) {
-                logger.error("测试报告原始csv文件为空，可以删除！");
-                throw new RRException("测试报告原始文件找不到，请删除");
-            }
-            //获取倒数第一行的数据
-            long pos = raf.length() -1;
-            pos = getPos(raf,pos);
-            String lastLine = getLineStr(raf,raf.length(),pos);
-
-            //获取倒数第二行的数据
-            long posSec = pos -1;
-            posSec = getPos(raf,posSec);
-            String lastSecLine = getLineStr(raf,pos,posSec);
-
-            //是否删除最后一行，可以通过最后一行的数据结构是否和倒数第二行相同来判断。
-            //csv文件都是英文逗号，做分割
-            String[] theLast = lastLine.split(",");
-            String[] theLastSec = lastSecLine.split(",");
-            if (theLast.length != theLastSec.length) {
-                //这会删除最后一行
-                if (pos <= 0) {
-                    raf.setLength(pos);
-                } else {
-                    raf.setLength(pos +1);
-                }
-            }
-
-            //关闭回收
-            raf.close();
-        } catch (FileNotFoundException e) {
-            logger.error("测试报告原始csv文件找不到！",e);
-            throw new RRException("测试报告原始文件找不到");
+    private String convertToCsv(StressTestReportsEntity stressTestReport, String resultPath) {
+        String csvPath = getReportPathDir(resultPath) + ".csv";
+        try (OutputStream out = new FileOutputStream(csvPath)) {
+            writeCsv(new File(resultPath), out);
         } catch (IOException e) {
-            logger.error("测试报告原始文件修复时，IO错误！",e);
-            throw new RRException("测试报告原始文件修复时出错！");
+            stressTestReport.setStatus(StressTestUtils.RUN_ERROR);
+            update(stressTestReport);
+            throw new RRException("测试结果转换csv失败！", e);
         }
+        return csvPath;
     }
 
     /**
-     * 获取文件中的某一段数据，这里是以\n做分割的。
-     * 本身文件是从后向前做循环，所以多次调用并不会增加过多的性能时间损耗。
-     * 默认是UTF-8de编码
-     *
-     * @param raf      原始文件
-     * @param posEnd   要截取数据行的在文件中结束的位置
-     * @param posStart 要截取数据行的开始的位置
-     * @return 返回一行数据
-     * @throw IOException
+     * 下载测试结果文件，二进制格式的边读边转换成csv，压缩的边读边解压，不生成临时文件。
      */
-    public String getLineStr(RandomAccessFile raf, long posEnd, long posStart) throws IOException {
-        byte[] bytes = new byte[(int) (posEnd - posStart)];
-        raf.read(bytes);
-        return new String(bytes,Charset.forName("UTF-8"));
+    @Override
+    public void exportCsv(StressTestReportsEntity reportsEntity, OutputStream outputStream) throws IOException {
+        String csvPath = stressTestUtils.getCasePath() + File.separator + reportsEntity.getReportName();
+        File resultFile = new File(csvPath);
+        if (!resultFile.exists()) {
+            throw new RRException("测试结果文件不存在或已删除！");
+        }
+        writeCsv(resultFile, outputStream);
+        outputStream.flush();
+    }
+
+    @Override
+    public File getCsvFile(StressTestReportsEntity reportsEntity) {
+        String csvPath = stressTestUtils.getCasePath() + File.separator + reportsEntity.getReportName();
+        File resultFile = new File(csvPath);
+        if (!resultFile.exists()) {
+            throw new RRException("测试结果文件不存在或已删除！");
+        }
+        return isBlockResultFile(csvPath) ? null : resultFile;
+    }
+
+    private void writeCsv(File resultFile, OutputStream outputStream) throws IOException {
+        if (BinaryResultFormat.isBinary(resultFile)) {
+            stressTestUtils.setJmeterProperties();
+            new BinaryResultCsvExporter(LocalReportGenerator.getCsvDefaultSeparator()).export(resultFile, outputStream);
+        } else if (CompressedResultFormat.isCompressed(resultFile)) {
+            try (InputStream in = CompressedResultFormat.openInputStream(resultFile)) {
+                IOUtils.copyLarge(in, outputStream);
+            } catch (EOFException e) {
+                //末尾不完整的压缩块（压测还没有结束）
+                logger.warn("压缩测试结果文件末尾不完整：" + resultFile.getPath());
+            }
+        } else {
+            FileUtils.copyFile(resultFile, outputStream);
+        }
     }
 
     /**
-     * 获取要截取数据行的开始的位置
-     * 是从文本的最后开始向前找，找到换行符\n之后即停止，返回位置。
-     * 该位置其他调用方法会遇到，会作为起点。
-     * <p>
-     * 同时由于是从文本的最后向前寻找，所以csv文本是脏数据，最后一行不包含\n，也会找到最后一行。
+     * 二进制、压缩的测试结果文件只需要截掉末尾不完整的数据块。
      */
-    public long getPos(RandomAccessFile raf, long posStart) throws IOException {
-        while (posStart > 0) {
-            posStart--;
-            raf.seek(posStart);
-            if (raf.readByte() == '\n') {
-                break;
+    public void fixBlockReportFile(String fileName) {
+        File file = new File(fileName);
+        if (!file.exists() || file.length() == 0L) {
+            logger.error("测试报告原始文件为空，可以删除！");
+            throw new RRException("测试报告原始文件找不到，请删除");
+        }
+        try {
+            long truncated = BinaryResultFormat.isBinary(file) ? BinaryResultFormat.repairTail(file)
+                    : CompressedResultFormat.repairTail(file);
+            if (truncated > 0) {
+                logger.info("测试报告原始文件截掉了末尾不完整的" + truncated + "字节");
             }
+        } catch (IOException e) {
+            logger.error("测试报告原始文件修复时，IO错误！", e);
+            throw new RRException("测试报告原始文件修复时出错！");
+        }
+    }
+
+    /**
+     * 测试报告文件如果最后一行不完整，会报生成报告的错误。
+     * 所以每次生成报告之前，截掉末尾不完整的记录（没有换行结束或者列数和表头不一致），
+     * 只读取文件末尾的一段数据，引号内的分隔符、换行不会误判。
+     *
+     * @param fileName csv 文件
+     */
+    public void fixReportFile(String fileName) {
+        File file = new File(fileName);
+        if (!file.exists()) {
+            logger.error("测试报告原始csv文件找不到！");
+            throw new RRException("测试报告原始文件找不到");
+        }
+        if (file.length() == 0L) {
+            logger.error("测试报告原始csv文件为空，可以删除！");
+            throw new RRException("测试报告原始文件找不到，请删除");
+        }
+        try {
+            long truncated = CsvResultFormat.repairTail(file, LocalReportGenerator.getCsvDefaultSeparator());
+            if (truncated > 0) {
+                logger.info("测试报告原始csv文件截掉了末尾不完整的" + truncated + "字节");
+            }
+        } catch (IOException e) {
+            logger.error("测试报告原始文件修复时，IO错误！", e);
+            throw new RRException("测试报告原始文件修复时出错！");
         }
-        return posStart;
     }
 }
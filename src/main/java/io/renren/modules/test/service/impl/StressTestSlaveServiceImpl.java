@@ -3,8 +3,10 @@ package io.renren.modules.test.service.impl;
 import io.renren.common.exception.RRException;
 import io.renren.modules.test.dao.StressTestSlaveDao;
 import io.renren.modules.test.entity.StressTestSlaveEntity;
+import io.renren.modules.test.jmeter.slave.SlaveAgentJar;
 import io.renren.modules.test.service.StressTestSlaveService;
 import io.renren.modules.test.utils.SSH2Utils;
+import io.renren.modules.test.utils.SlaveTaskRunner;
 import io.renren.modules.test.utils.StressTestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +14,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +26,18 @@ public class StressTestSlaveServiceImpl implements StressTestSlaveService {
 
     Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * 查询节点机jmeter-server进程号
+     */
+    private static final String PS_COMMAND = "ps -efww|grep -w 'jmeter-server'|grep -v grep|cut -c 9-15";
+
+    private static final String KILL_COMMAND = "ps -efww|grep -w 'jmeter-server'|grep -v grep|cut -c 9-18|xargs kill -9";
+
+    /**
+     * 停止节点时最多kill的次数
+     */
+    private static final int KILL_TIMES = 3;
+
     @Autowired
     private StressTestSlaveDao stressTestSlaveDao;
 
@@ -64,8 +80,19 @@ public class StressTestSlaveServiceImpl implements StressTestSlaveService {
     @Override
     @Async("asyncServiceExecutor")
     public void restartSingle(Long slaveId) {
-        StressTestSlaveEntity slave = queryObject(slaveId);
+        restart(queryObject(slaveId));
+    }
+
+    /**
+     * 批量重启节点，各节点并行执行
+     */
+    @Override
+    @Async("asyncServiceExecutor")
+    public void batchRestart(List<Long> slaveIds) {
+        SlaveTaskRunner.run("重启节点", querySlaves(slaveIds), SlaveTaskRunner.DEFAULT_TIMEOUT, this::restart);
+    }
 
+    private void restart(StressTestSlaveEntity slave) {
         //跳过本机节点 和 已经禁用的节点
         if (!"127.0.0.1".equals(slave.getIp().trim()) && !StressTestUtils.DISABLE.equals(slave.getStatus())) {
             //更新数据库为进行中
@@ -110,23 +137,42 @@ public class StressTestSlaveServiceImpl implements StressTestSlaveService {
     @Override
     @Async("asyncServiceExecutor")
     public void updateBatchStatus(Long slaveId, Integer status) {
-        //当前是向所有的分布式节点推送这个，阻塞操作+轮询，并非多线程，因为本地同步网卡会是瓶颈。
-        //采用了先给同一个节点机传送多个文件的方式，因为数据库的连接消耗由于节点机的链接消耗
-        StressTestSlaveEntity slave = queryObject(slaveId);
+        changeStatus(queryObject(slaveId), status);
+    }
+
+    /**
+     * 批量切换节点的状态，各节点并行执行，汇总结果记录在日志中
+     */
+    @Override
+    @Async("asyncServiceExecutor")
+    public void updateBatchStatus(List<Long> slaveIds, Integer status) {
+        String action = StressTestUtils.ENABLE.equals(status) ? "启动节点" : "停止节点";
+        SlaveTaskRunner.run(action, querySlaves(slaveIds), SlaveTaskRunner.DEFAULT_TIMEOUT,
+                slave -> changeStatus(slave, status));
+    }
+
+    private void changeStatus(StressTestSlaveEntity slave, Integer status) {
         //跳过本机节点
         if (!"127.0.0.1".equals(slave.getIp().trim())) {
             //更新数据库为进行中
             slave.setStatus(StressTestUtils.PROGRESSING);
             update(slave);
 
+            boolean confirmed;
             try {
-                runOrDownSlave(slave, status);
+                confirmed = runOrDownSlave(slave, status);
             } catch (RRException e) {
                 //更新为异常状态（这是异步更新需要）
                 slave.setStatus(StressTestUtils.RUN_ERROR);
                 update(slave);
                 throw e;
             }
+            if (!confirmed) {
+                //和原来一样按已停止处理，只是记录到批量执行的结果中
+                slave.setStatus(status);
+                update(slave);
+                throw new RRException(slave.getSlaveName() + "节点jmeter-server进程停止失败，已按停止处理，请先校准！");
+            }
         }
 
         //更新数据库
@@ -134,18 +180,30 @@ public class StressTestSlaveServiceImpl implements StressTestSlaveService {
         update(slave);
     }
 
+    private List<StressTestSlaveEntity> querySlaves(List<Long> slaveIds) {
+        List<StressTestSlaveEntity> slaves = new ArrayList<>(slaveIds.size());
+        for (Long slaveId : slaveIds) {
+            StressTestSlaveEntity slave = queryObject(slaveId);
+            if (slave != null) {
+                slaves.add(slave);
+            }
+        }
+        return slaves;
+    }
+
     /**
      * 启动/停止单节点
      *
      * @param slave 节点对象
+     * @return 停止节点时进程还在返回false，其他情况返回true
      */
-    private void runOrDownSlave(StressTestSlaveEntity slave, Integer status) {
+    private boolean runOrDownSlave(StressTestSlaveEntity slave, Integer status) {
         SSH2Utils ssh2Util = new SSH2Utils(slave.getIp(), slave.getUserName(),
                 slave.getPasswd(), Integer.parseInt(slave.getSshPort()));
         //如果是启用节点
         if (StressTestUtils.ENABLE.equals(status)) {
             //启动前先检查进程，避免重复启动导致端口占用 [cut -c 9-15是截取输入行的第9个字符到第15个字符，而这正好是进程号PID]
-            String psStr = ssh2Util.runCommand("ps -efww|grep -w 'jmeter-server'|grep -v grep|cut -c 9-15");
+            String psStr = ssh2Util.runCommand(PS_COMMAND);
             if (psStr.equals("")) throw new RRException(slave.getSlaveName() + "节点连接失败！");
             if (!psStr.equals("null")) {
                 //本身已经是启用状态，由进行中更新为启动状态（这是异步更新需要）
@@ -165,6 +223,8 @@ public class StressTestSlaveServiceImpl implements StressTestSlaveService {
             }
             //首先创建目录，会遇到重复创建
             ssh2Util.runCommand("mkdir " + slave.getHomeDir() + "/bin/stressTestCases");
+            //节点机预聚合需要的类，jmeter-server启动时加载
+            deployAgent(slave, ssh2Util);
             //启动节点
             String enableResult = ssh2Util.runCommand("cd " + slave.getHomeDir() + "/bin/stressTestCases/" + "\n"
                     + "sh " + "../jmeter-server -Djava.rmi.server.hostname=" + slave.getIp());
@@ -178,13 +238,53 @@ public class StressTestSlaveServiceImpl implements StressTestSlaveService {
         }
         //禁用节点
         if (StressTestUtils.DISABLE.equals(status)) {
-            //禁用远程节点，当前是直接kill掉
-            //kill掉就不用判断结果了，不抛异常即OK
-            //考虑到网络的操作容易失败，执行2次kill
-            ssh2Util.runCommand("ps -efww|grep -w 'jmeter-server'|grep -v grep|cut -c 9-18|xargs kill -9");
-            stressTestUtils.pause(2000);
-            ssh2Util.runCommand("ps -efww|grep -w 'jmeter-server'|grep -v grep|cut -c 9-18|xargs kill -9");
+            return killSlave(slave, ssh2Util);
         }
+        return true;
+    }
+
+    /**
+     * 上传SlaveAgentJar到节点机Jmeter的lib/ext下，MD5相同时不重复上传。
+     * 上传失败只影响节点机预聚合，不影响节点启动。
+     */
+    private void deployAgent(StressTestSlaveEntity slave, SSH2Utils ssh2Util) {
+        String extDir = slave.getHomeDir() + "/lib/ext";
+        try {
+            String md5Str = ssh2Util.runCommand("md5sum " + extDir + "/" + SlaveAgentJar.JAR_NAME + " | cut -d ' ' -f1");
+            if (SlaveAgentJar.getMd5().equalsIgnoreCase(md5Str.trim())) {
+                return;
+            }
+            if (!ssh2Util.scpPutFile(SlaveAgentJar.getJar().getAbsolutePath(), SlaveAgentJar.JAR_NAME, extDir)) {
+                logger.error(slave.getSlaveName() + "上传" + SlaveAgentJar.JAR_NAME + "失败，节点机预聚合不可用！");
+            }
+        } catch (IOException e) {
+            logger.error(slave.getSlaveName() + "生成" + SlaveAgentJar.JAR_NAME + "失败！", e);
+        }
+    }
+
+    /**
+     * 停止节点机进程，当前是直接kill掉。
+     * 考虑到网络的操作容易失败，kill之后检查进程是否还在，还在时再次kill，不再固定等待。
+     * 多次kill之后进程还在时只记录日志，和原来一样不中断后续的操作。
+     *
+     * @return 进程还在返回false
+     */
+    private boolean killSlave(StressTestSlaveEntity slave, SSH2Utils ssh2Util) {
+        for (int i = 0; i < KILL_TIMES; i++) {
+            ssh2Util.runCommand(KILL_COMMAND);
+            String psStr = ssh2Util.runCommand(PS_COMMAND);
+            if (psStr.equals("null")) {
+                return true;
+            }
+            if (psStr.equals("")) {
+                //连接失败无法确认，和原来一样按已停止处理
+                logger.error(slave.getSlaveName() + "节点连接失败，无法确认进程是否已经停止！");
+                return true;
+            }
+            stressTestUtils.pause(200);
+        }
+        logger.error(slave.getSlaveName() + "节点jmeter-server进程停止失败！");
+        return false;
     }
 
     /**
@@ -198,39 +298,36 @@ public class StressTestSlaveServiceImpl implements StressTestSlaveService {
      * 根据数据库中各节点状态，重置一遍后台进程状态
      */
     @Override
-    public void batchReloadStatus() {
-        //当前是向所有的分布式节点推送这个，阻塞操作+轮询，并非多线程，因为本地同步网卡会是瓶颈。
-        //先处理已禁用的进程
-        Map query = new HashMap<>();
-        query.put("status",StressTestUtils.DISABLE);
-        List<StressTestSlaveEntity> stressTestSlaveList = stressTestSlaveDao.queryList(query);
-        for (StressTestSlaveEntity slave : stressTestSlaveList) {
-            //本机配置IP为127.0.0.1，没配置localhost
-            if ("127.0.0.1".equals(slave.getIp().trim())) {
-                continue;
-            }else {
-                SSH2Utils ssh2Util = new SSH2Utils(slave.getIp(), slave.getUserName(),
-                        slave.getPasswd(),Integer.parseInt(slave.getSshPort()));
-                //界面状态显示禁用，重置过程就是杀死节点已存在的进程
-                ssh2Util.runCommand("ps -efww|grep -w 'jmeter-server'|grep -v grep|cut -c 9-15|xargs kill -9");
-            }
-        }
-        //再处理已启用的进程
-        query.put("stauts",StressTestUtils.ENABLE);
-        List<StressTestSlaveEntity> stressTestSlaveList2 = stressTestSlaveDao.queryList(query);
-        for (StressTestSlaveEntity slave : stressTestSlaveList2) {
-            //本机配置IP为127.0.0.1，没配置localhost
-            if ("127.0.0.1".equals(slave.getIp().trim())) {
-                continue;
-            } else {
-                SSH2Utils ssh2Util = new SSH2Utils(slave.getIp(), slave.getUserName(),
-                        slave.getPasswd(), Integer.parseInt(slave.getSshPort()));
-                //界面状态显示启用，后台不存在进程就远程启动
-                String psStr = ssh2Util.runCommand("ps -efww|grep -w 'jmeter-server'|grep -v grep|cut -c 9-15");
-                if (psStr.equals("null")) {
-                    runOrDownSlave(slave,1);
-                }
-            }
-        }
+    public String batchReloadStatus() {
+        //已禁用的节点杀死进程，已启用的节点不存在进程就启动，各节点并行执行
+        Map<String, Object> query = new HashMap<>();
+        query.put("status", StressTestUtils.DISABLE);
+        List<StressTestSlaveEntity> slaveList = new ArrayList<>(stressTestSlaveDao.queryList(query));
+        query.put("status", StressTestUtils.ENABLE);
+        slaveList.addAll(stressTestSlaveDao.queryList(query));
+        //本机配置IP为127.0.0.1，没配置localhost
+        slaveList.removeIf(slave -> "127.0.0.1".equals(slave.getIp().trim()));
+
+        SlaveTaskRunner.Report report = SlaveTaskRunner.run("校准节点", slaveList, SlaveTaskRunner.DEFAULT_TIMEOUT,
+                slave -> {
+                    SSH2Utils ssh2Util = new SSH2Utils(slave.getIp(), slave.getUserName(),
+                            slave.getPasswd(), Integer.parseInt(slave.getSshPort()));
+                    if (StressTestUtils.DISABLE.equals(slave.getStatus())) {
+                        //界面状态显示禁用，重置过程就是杀死节点已存在的进程
+                        if (!killSlave(slave, ssh2Util)) {
+                            throw new RRException(slave.getSlaveName() + "节点jmeter-server进程停止失败！");
+                        }
+                        return;
+                    }
+                    //界面状态显示启用，后台不存在进程就远程启动
+                    String psStr = ssh2Util.runCommand(PS_COMMAND);
+                    if (psStr.equals("")) {
+                        throw new RRException(slave.getSlaveName() + "节点连接失败！");
+                    }
+                    if (psStr.equals("null")) {
+                        runOrDownSlave(slave, StressTestUtils.ENABLE);
+                    }
+                });
+        return report.toString();
     }
 }
@@ -0,0 +1,298 @@
+package io.renren.modules.test.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.renren.modules.test.jmeter.JmeterRunEntity;
+import io.renren.modules.test.jmeter.JmeterStatEntity;
+import io.renren.modules.test.jmeter.stats.LabelStats;
+import io.renren.modules.test.jmeter.stats.SecondBucket;
+import io.renren.modules.test.service.StressTestFileService;
+import io.renren.modules.test.service.StressTestStatPushService;
+import io.renren.modules.test.utils.StressTestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 前端监控数据的推送（Server-Sent Events）。
+ * 原来每个浏览器每2秒轮询一次statInfo，每次都要重新计算、格式化并查询数据库，
+ * 多人同时观看一个大的压测时，这部分压力是加在正在产生流量的master上的。
+ * 现在每个推送周期，每个有订阅者的脚本文件只计算一次，序列化一次，推送给所有订阅者。
+ * 推送的内容是增量的：只包含和上一次推送相比有变化的值，以及新增的秒级数据，
+ * 已经不存在的值以null推送，前端收到后删除；新的订阅者第一次收到的是全量数据。
+ * 窗口百分位的秒数不同时结果不同，按脚本文件和窗口秒数分别计算、推送。
+ */
+@Service("stressTestStatPushService")
+public class StressTestStatPushServiceImpl implements StressTestStatPushService {
+
+    Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * 推送周期，和原来前端的轮询周期一致
+     */
+    private static final long PUSH_INTERVAL_MILLIS = 2000L;
+
+    /**
+     * 连接超时时间，超时后浏览器的EventSource会自动重连
+     */
+    private static final long EMITTER_TIMEOUT_MILLIS = 30 * 60 * 1000L;
+
+    /**
+     * 没有数据推送时，心跳的间隔，避免连接被中间的代理断开
+     */
+    private static final long HEARTBEAT_MILLIS = 15000L;
+
+    @Autowired
+    private StressTestFileService stressTestFileService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * 脚本文件ID_窗口秒数 -> 订阅者
+     */
+    private final ConcurrentMap<String, StatChannel> channels = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stat-push");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::pushAll, PUSH_INTERVAL_MILLIS, PUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+        channels.values().forEach(StatChannel::completeAll);
+        channels.clear();
+    }
+
+    @Override
+    public SseEmitter subscribe(Long fileId, int windowSeconds) {
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MILLIS);
+        //超过统计的容量时结果都一样，限制一下窗口的种类
+        int window = Math.min(Math.max(windowSeconds, 1), LabelStats.WINDOW_CAPACITY);
+        //和pushAll中的移除使用同一个原子操作，不会加到已经被移除的channel上
+        StatChannel channel = channels.compute(fileId + "_" + window, (key, existing) -> {
+            StatChannel statChannel = existing == null ? new StatChannel(fileId, window) : existing;
+            statChannel.newSubscribers.add(emitter);
+            return statChannel;
+        });
+        emitter.onCompletion(() -> channel.remove(emitter));
+        emitter.onTimeout(() -> channel.remove(emitter));
+        logger.debug("前端监控订阅，fileId：" + fileId);
+        return emitter;
+    }
+
+    /**
+     * 推送线程调用，所有的发送都在这一个线程内完成。
+     */
+    private void pushAll() {
+        for (String channelKey : channels.keySet()) {
+            StatChannel channel = channels.computeIfPresent(channelKey, (key, existing) -> existing.isEmpty() ? null : existing);
+            if (channel == null) {
+                continue;
+            }
+            try {
+                push(channel);
+            } catch (Throwable e) {
+                //不能抛出，否则定时任务会被取消
+                logger.error("前端监控推送异常，fileId：" + channel.fileId, e);
+            }
+        }
+    }
+
+    private void push(StatChannel channel) throws JsonProcessingException {
+        long now = System.currentTimeMillis();
+        JmeterRunEntity jmeterRunEntity = StressTestUtils.jMeterEntity4file.get(channel.fileId);
+        Integer runStatus = jmeterRunEntity == null ? StressTestUtils.INITIAL : jmeterRunEntity.getRunStatus();
+
+        //不在运行中的脚本，不再计算，只在状态变化时通知一次
+        if (!StressTestUtils.RUNNING.equals(runStatus) && channel.lastMaps != null
+                && runStatus.equals(channel.lastRunStatus) && channel.newSubscribers.isEmpty()) {
+            if (now - channel.lastSendTime > HEARTBEAT_MILLIS) {
+                channel.send(channel.subscribers, null);
+                channel.lastSendTime = now;
+            }
+            return;
+        }
+
+        //since传0，拿到窗口内全部的秒级数据，增量部分在这里过滤。
+        JmeterStatEntity entity = stressTestFileService.getJmeterStatEntity(channel.fileId,
+                channel.windowSeconds, 0L);
+        Map<String, Map<String, String>> maps = new LinkedHashMap<>();
+        maps.put("responseTimesMap", entity.getresponseTimesMap());
+        maps.put("percentilesMap", entity.getPercentilesMap());
+        maps.put("cumulativePercentilesMap", entity.getCumulativePercentilesMap());
+        maps.put("throughputMap", entity.getThroughputMap());
+        maps.put("networkSentMap", entity.getNetworkSentMap());
+        maps.put("networkReceiveMap", entity.getNetworkReceiveMap());
+        maps.put("successPercentageMap", entity.getSuccessPercentageMap());
+        maps.put("errorPercentageMap", entity.getErrorPercentageMap());
+        maps.put("threadCountsMap", entity.getThreadCountsMap());
+        maps.put("totalCountsMap", entity.getTotalCountsMap());
+        maps.put("resultWriterMap", entity.getResultWriterMap());
+        Map<String, List<SecondBucket>> seriesMap = entity.getSeriesMap();
+
+        //先给已有的订阅者推送增量，再给新的订阅者推送全量
+        Map<String, Map<String, String>> changedMaps = diff(maps, channel.lastMaps);
+        Map<String, List<SecondBucket>> newSeriesMap = since(seriesMap, channel.lastBucketTime);
+        if (!channel.subscribers.isEmpty() && (!changedMaps.isEmpty() || !newSeriesMap.isEmpty()
+                || !runStatus.equals(channel.lastRunStatus))) {
+            String delta = objectMapper.writeValueAsString(frame(now, entity, false, changedMaps, newSeriesMap));
+            channel.send(channel.subscribers, delta);
+        }
+
+        if (!channel.newSubscribers.isEmpty()) {
+            List<SseEmitter> newSubscribers = new ArrayList<>(channel.newSubscribers);
+            String full = objectMapper.writeValueAsString(frame(now, entity, true, maps, seriesMap));
+            channel.send(newSubscribers, full);
+            channel.newSubscribers.removeAll(newSubscribers);
+            channel.subscribers.addAll(newSubscribers);
+        }
+
+        channel.lastMaps = maps;
+        channel.lastRunStatus = runStatus;
+        channel.lastSendTime = now;
+        if (entity.getLastBucketTime() != null) {
+            channel.lastBucketTime = entity.getLastBucketTime();
+        }
+    }
+
+    private Map<String, Object> frame(long now, JmeterStatEntity entity, boolean full,
+                                      Map<String, Map<String, String>> maps, Map<String, List<SecondBucket>> seriesMap) {
+        Map<String, Object> frame = new HashMap<>();
+        frame.put("time", now);
+        frame.put("full", full);
+        frame.put("runStatus", entity.getRunStatus());
+        frame.put("windowSeconds", entity.getWindowSeconds());
+        frame.put("maps", maps);
+        frame.put("seriesMap", seriesMap);
+        frame.put("lastBucketTime", entity.getLastBucketTime());
+        return frame;
+    }
+
+    /**
+     * 只保留和上一次推送相比新增或者变化了的值，上一次有这一次没有的值为null
+     */
+    private Map<String, Map<String, String>> diff(Map<String, Map<String, String>> maps,
+                                                  Map<String, Map<String, String>> lastMaps) {
+        if (lastMaps == null) {
+            return maps;
+        }
+        Map<String, Map<String, String>> changedMaps = new LinkedHashMap<>();
+        maps.forEach((name, map) -> {
+            Map<String, String> lastMap = lastMaps.get(name);
+            Map<String, String> changed = new HashMap<>();
+            map.forEach((key, value) -> {
+                if (lastMap == null || !value.equals(lastMap.get(key))) {
+                    changed.put(key, value);
+                }
+            });
+            if (lastMap != null) {
+                lastMap.keySet().forEach(key -> {
+                    if (!map.containsKey(key)) {
+                        changed.put(key, null);
+                    }
+                });
+            }
+            if (!changed.isEmpty()) {
+                changedMaps.put(name, changed);
+            }
+        });
+        return changedMaps;
+    }
+
+    private Map<String, List<SecondBucket>> since(Map<String, List<SecondBucket>> seriesMap, long lastBucketTime) {
+        Map<String, List<SecondBucket>> newSeriesMap = new LinkedHashMap<>();
+        seriesMap.forEach((label, buckets) -> {
+            List<SecondBucket> newBuckets = new ArrayList<>();
+            for (SecondBucket bucket : buckets) {
+                if (bucket.getTime() > lastBucketTime) {
+                    newBuckets.add(bucket);
+                }
+            }
+            if (!newBuckets.isEmpty()) {
+                newSeriesMap.put(label, newBuckets);
+            }
+        });
+        return newSeriesMap;
+    }
+
+    /**
+     * 一个脚本文件的订阅者及上一次推送的内容，除了订阅和取消订阅，只在推送线程中访问。
+     */
+    private class StatChannel {
+        private final Long fileId;
+        private final int windowSeconds;
+        private final List<SseEmitter> subscribers = new CopyOnWriteArrayList<>();
+        private final List<SseEmitter> newSubscribers = new CopyOnWriteArrayList<>();
+        private Map<String, Map<String, String>> lastMaps;
+        private Integer lastRunStatus;
+        private long lastBucketTime;
+        private long lastSendTime;
+
+        private StatChannel(Long fileId, int windowSeconds) {
+            this.fileId = fileId;
+            this.windowSeconds = windowSeconds;
+        }
+
+        private boolean isEmpty() {
+            return subscribers.isEmpty() && newSubscribers.isEmpty();
+        }
+
+        private void remove(SseEmitter emitter) {
+            subscribers.remove(emitter);
+            newSubscribers.remove(emitter);
+        }
+
+        /**
+         * 数据已经序列化好了，每个订阅者只是写出。
+         * SseEventBuilder不能重复使用，所以每个订阅者新建一个。
+         *
+         * @param data 为null时发送心跳
+         */
+        private void send(List<SseEmitter> emitters, String data) {
+            for (SseEmitter emitter : emitters) {
+                try {
+                    if (data == null) {
+                        emitter.send(SseEmitter.event().comment("heartbeat"));
+                    } else {
+                        emitter.send(SseEmitter.event().name("stat").data(data));
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    //浏览器关闭了页面，或者连接已经结束
+                    logger.debug("前端监控连接已断开，fileId：" + fileId);
+                    remove(emitter);
+                }
+            }
+        }
+
+        private void completeAll() {
+            subscribers.forEach(SseEmitter::complete);
+            newSubscribers.forEach(SseEmitter::complete);
+        }
+    }
+}
@@ -6,7 +6,6 @@ import io.renren.modules.test.entity.StressTestFileEntity;
 import io.renren.modules.test.entity.TestStressThreadSetEntity;
 import io.renren.modules.test.service.TestStressThreadSetService;
 import io.renren.modules.test.utils.StressTestUtils;
-import org.dom4j.Attribute;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
@@ -16,8 +15,15 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -88,27 +94,44 @@ public class TestStressThreadSetServiceImpl implements TestStressThreadSetServic
     }
 
 
+    /**
+     * 线程组的配置项，属性名对应显示的名称，按顺序预先建好，解析每个节点时直接查找。
+     */
+    private static final Map<String, String> THREAD_GROUP_PROPS = new HashMap<>();
+
+    static {
+        String[][] props = {
+                {"ThreadGroup.on_sample_error", "取样器报错后动作"},
+                {"ThreadGroup.num_threads", "线程组线程数"},
+                {"Threads initial delay", "初始等待时间(s)"},
+                {"Start users count", "每次启动线程数"},
+                {"Start users count burst", "初次启动线程数"},
+                {"Start users period", "每次启动线程数间隔时间(s)"},
+                {"Stop users count", "每次停止线程数"},
+                {"Stop users period", "每次停止线程数间隔时间(s)"},
+                {"flighttime", "峰值压力持续时间(s)"},
+                {"rampUp", "线程启动完毕时间/加压时间(s)"},
+                {"LoopController.loops", "循环次数(-1为永远循环)"},
+                {"ThreadGroup.ramp_time", "Ramp-Up Period(s)"},
+                {"ThreadGroup.scheduler", "开启调度器"},
+                {"ThreadGroup.duration", "调度持续时间(s)"},
+                {"ThreadGroup.delay", "调度启动延迟(s)"}};
+        for (String[] prop : props) {
+            THREAD_GROUP_PROPS.put(prop[0], prop[1]);
+        }
+    }
+
     /**
      * 获取脚本的线程组配置数据入库
+     * 使用StAX逐个节点读取，不构建整个文档，几十MB的录制脚本内存占用也很小。
      * @throws DocumentException
      */
-    int k;//线程组配置编号（确保入库与同步脚本的相对位置顺序）
-    String uuid_p = "";//线程组主键ID编号
-
-    //@Override
+    @Override
     public void jmxSaveNodes(String filePath, StressTestFileEntity stressTestFile) throws DocumentException {
-        //解析xml文件
-        SAXReader reader = new SAXReader();
-        File file = new File(filePath);
         Long fileId = stressTestFile.getFileId();
         String uuid = UUID.randomUUID().toString().replaceAll("-", "");
-        //从xml文件获取数据
-        Document document = reader.read(file);
-        //获取根节点
-        Element root = document.getRootElement();
         List<TestStressThreadSetEntity> tThreadSetEntityList = new ArrayList<TestStressThreadSetEntity>();
-        TestStressThreadSetEntity stressThreadSetEntity = null;
-        stressThreadSetEntity = setSThreadSetEntity(
+        TestStressThreadSetEntity stressThreadSetEntity = setSThreadSetEntity(
                 uuid,
                 "0",
                 stressTestFile.getOriginName(),
@@ -119,108 +142,236 @@ public class TestStressThreadSetServiceImpl implements TestStressThreadSetServic
                 0,
                 fileId);
         tThreadSetEntityList.add(stressThreadSetEntity);
-        getNodes(root,fileId,uuid,tThreadSetEntityList);//从根节点开始遍历所有节点
+        try (InputStream in = new BufferedInputStream(new FileInputStream(filePath))) {
+            new JmxNodesReader(fileId, uuid, tThreadSetEntityList).read(in);
+        } catch (IOException | XMLStreamException e) {
+            throw new DocumentException("读取脚本的线程组配置失败：" + filePath, e);
+        }
         saveBatch(tThreadSetEntityList);
     }
 
     /**
-     * 从指定节点开始，递归遍历所有子节点
+     * 单次读取脚本时的状态，每次调用新建，多个脚本同时上传时互不影响。
+     * 只保留从根节点到当前节点这一条路径上的节点信息。
      */
-    public void getNodes(Element node, Long fileId, String uuid, List<TestStressThreadSetEntity> tThreadSetEntityList) {
-        if (node.getName().equals("TestPlan")) {//jmx脚本的测试计划属性值
-            List<Element> listElem = node.elements("boolProp");
-            String TestPlanValue = "";
-            for (Element TestPlanElem : listElem) {
-                if(TestPlanElem.getTextTrim().equals("true")) TestPlanValue += TestPlanElem.attributeValue("name")+";";
+    private class JmxNodesReader {
+
+        private final Long fileId;
+
+        private final String uuid;
+
+        private final List<TestStressThreadSetEntity> tThreadSetEntityList;
+
+        private final Deque<Node> path = new ArrayDeque<>();
+
+        /**
+         * 线程组配置编号（确保入库与同步脚本的相对位置顺序）
+         */
+        private int k;
+
+        /**
+         * 当前线程组主键ID编号
+         */
+        private String uuidP = "";
+
+        JmxNodesReader(Long fileId, String uuid, List<TestStressThreadSetEntity> tThreadSetEntityList) {
+            this.fileId = fileId;
+            this.uuid = uuid;
+            this.tThreadSetEntityList = tThreadSetEntityList;
+        }
+
+        void read(InputStream in) throws XMLStreamException {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            startElement(reader);
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            Node node = path.peek();
+                            if (node != null && node.text != null) {
+                                node.text.append(reader.getText());
+                            }
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            endElement(path.pop());
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
             }
-            //如果没有boolProp属性为true，则value放空，否则上传脚本无法成功。
-            if (TestPlanValue.length() > 0) {
-                tThreadSetEntityList.get(0).setValue(TestPlanValue.substring(0,TestPlanValue.length()-1));
+        }
+
+        private void startElement(XMLStreamReader reader) {
+            Node parent = path.peek();
+            Node grandParent = parent == null ? null : parent.parent;
+            Node node = new Node(reader.getLocalName(), parent, parent == null ? 0 : parent.children++);
+            node.testName = reader.getAttributeValue(null, "testname");
+            node.enabled = reader.getAttributeValue(null, "enabled");
+            node.nameAttr = reader.getAttributeValue(null, "name");
+            path.push(node);
+
+            if (parent != null && "TestPlan".equals(parent.name) && "boolProp".equals(node.name)) {
+                //jmx脚本的测试计划属性值
+                node.text = new StringBuilder();
+            }
+            //jp@gc - Ultimate Thread Group的线程计划，在线程组第一个子节点（collectionProp）内
+            if ("collectionProp".equals(node.name) && grandParent != null && parent.index == 0
+                    && grandParent.name.endsWith("UltimateThreadGroup")) {
+                node.scheduleValues = new StringBuilder();
+            }
+            if ("stringProp".equals(node.name) && parent != null && parent.scheduleValues != null) {
+                node.text = new StringBuilder();
+            }
+
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                String keyName = reader.getAttributeValue(i);
+                if ("ThreadGroup.on_sample_error".equals(keyName) && parent != null) {
+                    //jmx脚本的线程组属性值
+                    startThreadGroup(parent);
+                }
+                String name = THREAD_GROUP_PROPS.get(keyName);
+                if (name != null && parent != null && !"LoopController".equals(parent.name) &&
+                        (!"intProp".equals(node.name) || (grandParent != null && "ThreadGroup".equals(grandParent.name)))) {
+                    //jmx脚本的线程组具体配置项，值在节点结束时填入
+                    node.entity = setSThreadSetEntity(
+                            UUID.randomUUID().toString().replaceAll("-", ""),
+                            uuidP,
+                            name,
+                            keyName,
+                            "",
+                            2,
+                            "配置项",
+                            ++k,
+                            fileId);
+                    tThreadSetEntityList.add(node.entity);
+                    node.text = new StringBuilder();
+                    break;
+                }
             }
         }
-        TestStressThreadSetEntity stressThreadSetEntity = null;
-        //当前节点的名称、文本内容和属性
-        //System.out.println("当前节点名称："+node.getName());//当前节点名称
-        //System.out.println("当前节点的内容："+node.getTextTrim());//当前节点内容
-        List<Attribute> listAttr = node.attributes();
-        String keyValueStr = "ThreadGroup.on_sample_error;ThreadGroup.num_threads;"
-                + "Threads initial delay;Start users count;Start users count burst;"
-                + "Start users period;Stop users count;Stop users period;flighttime;rampUp;"
-                + "LoopController.loops;ThreadGroup.ramp_time;ThreadGroup.scheduler;"
-                + "ThreadGroup.duration;ThreadGroup.delay";
-        String namesStr = "取样器报错后动作;线程组线程数"
-                + "初始等待时间(s);每次启动线程数;初次启动线程数"
-                + "每次启动线程数间隔时间(s);每次停止线程数;每次停止线程数间隔时间(s);峰值压力持续时间(s);线程启动完毕时间/加压时间(s);"
-                + "循环次数(-1为永远循环);Ramp-Up Period(s);开启调度器;"
-                + "调度持续时间(s);调度启动延迟(s)";
-        String[] keyStr = keyValueStr.split(";");
-        String[] nameStr = namesStr.split(";");
-        attrfor: for (Attribute attr : listAttr) { //遍历当前节点的所有属性
-            //String attrName = attr.getName();//属性名称
-            String keyName = attr.getValue();//属性的值
-            //System.out.println("属性名称：" + attrName + "属性值：" + keyName);
-            if (keyName.equals("ThreadGroup.on_sample_error")) { //jmx脚本的线程组属性值
-                uuid_p = UUID.randomUUID().toString().replaceAll("-","");
-                stressThreadSetEntity = setSThreadSetEntity(
-                    uuid_p,
-                    uuid,node.getParent().attribute(2).getValue(),
+
+        private void startThreadGroup(Node threadGroup) {
+            uuidP = UUID.randomUUID().toString().replaceAll("-", "");
+            tThreadSetEntityList.add(setSThreadSetEntity(
+                    uuidP,
+                    uuid,
+                    threadGroup.testName,
                     "enabled",
-                    node.getParent().attributeValue("enabled"),
+                    threadGroup.enabled,
                     1,
-                    "线程组类别："+node.getParent().getName(),
+                    "线程组类别：" + threadGroup.name,
                     ++k,
-                    fileId);
-                tThreadSetEntityList.add(stressThreadSetEntity);
-                System.out.println("---------线程组"+k+"-----------");
-                if (node.getParent().getName().endsWith("UltimateThreadGroup")) {//jp@gc - Ultimate Thread Group类别
-                    //UltimateThreadGroup线程组太特殊，不适合循环逐个配置
-                    List<Element> elistElem = node.getParent().elements().get(0).elements("collectionProp");
-                    for (Element elem : elistElem) {
-                        String skeyName = elem.attributeValue("name");
-                        String skeyValue="";
-                        List<Element> slistElem = elem.elements("stringProp");
-                        for (Element selem : slistElem) {
-                            skeyValue+=selem.getTextTrim()+ ";";
-                        }
-                        stressThreadSetEntity = setSThreadSetEntity(
+                    fileId));
+            if (threadGroup.name.endsWith("UltimateThreadGroup") && threadGroup.schedules != null) {
+                //UltimateThreadGroup线程组太特殊，不适合循环逐个配置
+                for (String[] schedule : threadGroup.schedules) {
+                    tThreadSetEntityList.add(setSThreadSetEntity(
                             UUID.randomUUID().toString().replaceAll("-", ""),
-                            uuid_p,
-                            "线程计划"+skeyName,
-                            skeyName,
-                            skeyValue.substring(0,skeyValue.length() - 1),
+                            uuidP,
+                            "线程计划" + schedule[0],
+                            schedule[0],
+                            schedule[1],
                             2,
                             "配置项",
                             ++k,
-                            fileId);
-                        tThreadSetEntityList.add(stressThreadSetEntity);
-                    }
+                            fileId));
                 }
             }
-            for (int i = 0; i < keyStr.length; i++) { //jmx脚本的线程组具体配置项
-                if (keyName.equals(keyStr[i]) && !node.getParent().getName().equals("LoopController") &&
-                        (!node.getName().equals("intProp") || (node.getName().equals("intProp") &&
-                                node.getParent().getParent().getName().equals("ThreadGroup")))) {
-                    stressThreadSetEntity = setSThreadSetEntity(
-                        UUID.randomUUID().toString().replaceAll("-", ""),
-                        uuid_p,
-                        nameStr[i],
-                        keyName,
-                        node.getTextTrim(),
-                        2,
-                        "配置项",
-                        ++k,
-                        fileId);
-                    tThreadSetEntityList.add(stressThreadSetEntity);
-                    System.out.println(nameStr[i] + ":" + keyName + "=" + node.getTextTrim() + "\n");
-                    break attrfor;
+        }
+
+        private void endElement(Node node) {
+            Node parent = node.parent;
+            if (node.entity != null) {
+                node.entity.setValue(textTrim(node.text));
+            }
+            if (parent != null && "TestPlan".equals(parent.name) && "boolProp".equals(node.name)
+                    && "true".equals(textTrim(node.text))) {
+                parent.trueProps = parent.trueProps == null ? new StringBuilder() : parent.trueProps.append(";");
+                parent.trueProps.append(node.nameAttr);
+            }
+            if ("TestPlan".equals(node.name) && node.trueProps != null) {
+                //如果没有boolProp属性为true，则value放空，否则上传脚本无法成功。
+                tThreadSetEntityList.get(0).setValue(node.trueProps.toString());
+            }
+            if ("stringProp".equals(node.name) && parent != null && parent.scheduleValues != null) {
+                parent.scheduleValues.append(textTrim(node.text)).append(";");
+            }
+            if ("collectionProp".equals(node.name) && node.scheduleValues != null && node.scheduleValues.length() > 0) {
+                Node threadGroup = parent.parent;
+                if (threadGroup.schedules == null) {
+                    threadGroup.schedules = new ArrayList<>();
                 }
+                node.scheduleValues.setLength(node.scheduleValues.length() - 1);
+                threadGroup.schedules.add(new String[]{node.nameAttr, node.scheduleValues.toString()});
             }
         }
 
-        //递归遍历当前节点所有的子节点
-        List<Element> listElement = node.elements();//所有一级子节点的list
-        for (Element e : listElement) { //遍历所有一级子节点
-            getNodes(e,fileId,uuid,tThreadSetEntityList);//递归
+        /**
+         * 和dom4j的getTextTrim一致：去掉首尾空白，中间连续的空白合并成一个空格
+         */
+        private String textTrim(StringBuilder text) {
+            return text == null ? "" : text.toString().trim().replaceAll("\\s+", " ");
+        }
+    }
+
+    /**
+     * 当前节点到根节点路径上的一个节点，只保留用到的属性
+     */
+    private static class Node {
+
+        private final String name;
+
+        private final Node parent;
+
+        /**
+         * 在父节点中是第几个子节点
+         */
+        private final int index;
+
+        private int children;
+
+        private String testName;
+
+        private String enabled;
+
+        private String nameAttr;
+
+        /**
+         * 需要节点的文本时才不为空
+         */
+        private StringBuilder text;
+
+        /**
+         * 测试计划中为true的属性名
+         */
+        private StringBuilder trueProps;
+
+        /**
+         * 线程计划的各个值，只在UltimateThreadGroup的线程计划（collectionProp）上不为空
+         */
+        private StringBuilder scheduleValues;
+
+        /**
+         * UltimateThreadGroup的线程计划，线程组节点上收集，遇到线程组的属性时入库
+         */
+        private List<String[]> schedules;
+
+        private TestStressThreadSetEntity entity;
+
+        Node(String name, Node parent, int index) {
+            this.name = name;
+            this.parent = parent;
+            this.index = index;
         }
     }
 
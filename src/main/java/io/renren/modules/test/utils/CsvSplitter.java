@@ -0,0 +1,168 @@
+package io.renren.modules.test.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 参数化文件按行拆分成多份，分给不同的节点机，各节点使用不同的数据（如用户账号）。
+ * <p>
+ * 只顺序读取一遍文件，按平滑加权轮询（和nginx的算法相同）把每一行分到各份文件中，
+ * 不需要预先知道总行数，任意一段连续的行里各份的比例都接近权重的比例。
+ * 按字节拆分，不关心文件编码，和CSVDataSet默认（不处理引号）一样一行就是一条数据。
+ */
+public class CsvSplitter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 拆分文件
+     *
+     * @param source  原文件
+     * @param targets 拆分后的文件，和weights一一对应
+     * @param weights 各份的权重，都要大于0
+     * @param header  第一行是表头时每份文件都保留表头
+     * @return 各份文件的数据行数（不含表头）
+     */
+    public static long[] split(File source, File[] targets, int[] weights, boolean header) throws IOException {
+        if (targets.length != weights.length || targets.length == 0) {
+            throw new IllegalArgumentException("拆分文件的个数和权重不一致");
+        }
+        int total = 0;
+        for (int weight : weights) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("权重必须大于0");
+            }
+            total += weight;
+        }
+
+        OutputStream[] outs = new OutputStream[targets.length];
+        long[] counts = new long[targets.length];
+        int[] current = new int[targets.length];
+        try (InputStream in = new FileInputStream(source)) {
+            for (int i = 0; i < targets.length; i++) {
+                outs[i] = new BufferedOutputStream(new FileOutputStream(targets[i]), BUFFER_SIZE);
+            }
+            LineBuffer line = new LineBuffer();
+            if (header && line.read(in)) {
+                for (OutputStream out : outs) {
+                    line.writeTo(out);
+                }
+            }
+            while (line.read(in)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                //平滑加权轮询：各份加上自己的权重，选当前值最大的，再减去总权重
+                int selected = 0;
+                for (int i = 0; i < current.length; i++) {
+                    current[i] += weights[i];
+                    if (current[i] > current[selected]) {
+                        selected = i;
+                    }
+                }
+                current[selected] -= total;
+                line.writeTo(outs[selected]);
+                counts[selected]++;
+            }
+        } finally {
+            IOException error = null;
+            for (OutputStream out : outs) {
+                if (out == null) {
+                    continue;
+                }
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * 读取一行的缓冲，行很长时自动扩大
+     */
+    private static class LineBuffer {
+
+        private byte[] bytes = new byte[1024];
+
+        private int length;
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private int position;
+
+        private int limit;
+
+        /**
+         * 读取一行（包含换行符），文件结束返回false
+         */
+        boolean read(InputStream in) throws IOException {
+            length = 0;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return length > 0;
+                    }
+                }
+                int end = position;
+                while (end < limit && buffer[end] != '\n') {
+                    end++;
+                }
+                boolean found = end < limit;
+                if (found) {
+                    end++;
+                }
+                append(end - position);
+                if (found) {
+                    return true;
+                }
+            }
+        }
+
+        private void append(int count) {
+            if (length + count > bytes.length) {
+                byte[] larger = new byte[Math.max(bytes.length * 2, length + count)];
+                System.arraycopy(bytes, 0, larger, 0, length);
+                bytes = larger;
+            }
+            System.arraycopy(buffer, position, bytes, length, count);
+            length += count;
+            position += count;
+        }
+
+        boolean isBlank() {
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != '\r' && bytes[i] != '\n') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 最后一行没有换行符时补上，拆分后的数据不会连在一起
+         */
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+            if (bytes[length - 1] != '\n') {
+                out.write('\n');
+            }
+        }
+    }
+
+    private CsvSplitter() {
+    }
+}
@@ -1,19 +1,33 @@
 package io.renren.modules.test.utils;
 
+import ch.ethz.ssh2.ChannelCondition;
 import ch.ethz.ssh2.Connection;
 import ch.ethz.ssh2.SCPClient;
 import ch.ethz.ssh2.Session;
-import ch.ethz.ssh2.StreamGobbler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 
+/**
+ * 节点机的远程命令和文件上传、下载。
+ * 连接由SSHConnectionPool管理，每次执行命令、上传文件只打开新的session。
+ */
 public class SSH2Utils {
     Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * 命令默认的超时时间，超时还没有输出时返回空字符串（和连接失败一样）
+     */
+    public static final long COMMAND_TIMEOUT = 30 * 1000L;
+
     private String host;
     private String user;
     private String password;
@@ -38,25 +52,57 @@ public class SSH2Utils {
      * 上传文件，使用ssh方式
      * @param filePath 本地文件完整路径，若为空，表示当前路径
      * @param remotePath  远程路径，若为空，表示当前路径，若服务器上无此目录，则会自动创建
+     * @return 是否上传成功
      */
-    public void scpPutFile(String filePath, String remotePath) {
-        //文件scp到数据服务器
-        Connection conn = new Connection(host, port);
+    public boolean scpPutFile(String filePath, String remotePath) {
+        return scpPutFile(filePath, new File(filePath).getName(), remotePath);
+    }
+
+    /**
+     * 上传文件并指定远程的文件名
+     * @param filePath 本地文件完整路径
+     * @param remoteFileName 远程文件名
+     * @param remotePath 远程路径
+     * @return 是否上传成功
+     */
+    public boolean scpPutFile(String filePath, String remoteFileName, String remotePath) {
+        logger.error("scp文件开始：" + filePath);
         try {
-            conn.connect();
-            boolean isAuthenticated = conn.authenticateWithPassword(user, password);
-            if (isAuthenticated == false)
-                    throw new IOException("Authentication failed.文件scp到数据服务器时发生异常");
-            SCPClient client = new SCPClient(conn);
-            logger.error("scp文件开始：" + filePath);
-            client.put(filePath,remotePath);//本地文件scp到远程目录
-            //            client.get(dataServerDestDir + "00审计.zip", localDir);//远程的文件scp到本地目录
+            execute(conn -> {
+                SCPClient client = new SCPClient(conn);
+                client.put(filePath, remoteFileName, remotePath, "0600");//本地文件scp到远程目录
+                return null;
+            });
+            logger.error("scp文件结束：" + filePath);
+            return true;
         } catch (IOException e) {
             logger.error("文件scp到数据服务器时发生异常", e);
-        } finally {
-            conn.close();
+            return false;
+        }
+    }
+
+    /**
+     * 下载远程文件到本地，本地文件已存在时覆盖
+     * @param remoteFile 远程文件完整路径
+     * @param localFile 本地文件
+     * @return 是否下载成功
+     */
+    public boolean scpGetFile(String remoteFile, File localFile) {
+        logger.error("scp下载文件开始：" + remoteFile);
+        try {
+            execute(conn -> {
+                SCPClient client = new SCPClient(conn);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(localFile), 256 * 1024)) {
+                    client.get(remoteFile, out);
+                }
+                return null;
+            });
+            logger.error("scp下载文件结束：" + remoteFile);
+            return true;
+        } catch (IOException e) {
+            logger.error("从数据服务器scp下载文件时发生异常", e);
+            return false;
         }
-        logger.error("scp文件结束：" + filePath);
     }
 
     /**
@@ -65,44 +111,106 @@ public class SSH2Utils {
      * @param command 命令
      */
     public String runCommand(String command) {
-        StringBuilder returnLine = new StringBuilder();
-        //文件scp到数据服务器
-        Connection conn = new Connection(host, port);
-        Session sess = null;
+        return runCommand(command, COMMAND_TIMEOUT);
+    }
+
+    /**
+     * 远程执行命令，返回显示结果的第一行。
+     * 没有输出时返回"null"，连接失败或者超时返回空字符串。
+     *
+     * @param command 命令
+     * @param timeout 等待输出的超时时间（毫秒）
+     */
+    public String runCommand(String command, long timeout) {
+        String returnLine = "";
         try {
-            conn.connect();
-            boolean isAuthenticated = conn.authenticateWithPassword(user, password);
-            if (isAuthenticated == false) {
-                throw new IOException("Authentication failed.执行命令时发生异常");
-            }
-            //打开一个会话session,执行linux命令
-            sess = conn.openSession();
-            sess.execCommand(command);
+            returnLine = execute(conn -> {
+                //打开一个会话session,执行linux命令
+                Session sess = conn.openSession();
+                try {
+                    sess.execCommand(command);
+                    return readFirstLine(sess, command, System.currentTimeMillis() + timeout);
+                } finally {
+                    sess.close();
+                }
+            });
+        } catch (IOException e) {
+            logger.error("执行命令时发生异常：" + command, e);
+        }
 
-            //接受目标服务器上的控制台返回结果，输出结果。
-            StreamGobbler stdout = new StreamGobbler(sess.getStdout());
-            BufferedReader br = new BufferedReader(new InputStreamReader(stdout));
+        logger.error("执行命令结束：" + command + "\n返回值：" + returnLine);
+        return returnLine;
+    }
 
-            //仅要第一行即可
-            //多行读取对某些命令会有未知原因的卡顿
-            returnLine.append(br.readLine());
+    /**
+     * 在连接池的连接上执行，连接已经失效（服务器重启、网络中断等）时换一个新的连接重试一次。
+     */
+    private <T> T execute(SessionCallback<T> callback) throws IOException {
+        for (int i = 0; ; i++) {
+            Connection conn = SSHConnectionPool.acquire(host, port, user, password);
+            try {
+                return callback.doInConnection(conn);
+            } catch (IOException e) {
+                //连接本身正常时是命令或者文件的问题，不重试
+                if (i > 0 || isAlive(conn)) {
+                    throw e;
+                }
+                SSHConnectionPool.invalidate(host, port, user, conn);
+                logger.error("SSH连接已失效，重新连接：" + host);
+            } finally {
+                SSHConnectionPool.release(host, port, user, conn);
+            }
+        }
+    }
 
-            //得到脚本运行成功与否的标志：0-成功 非0-失败
-            //logger.error("ExitCode:" + sess.getExitStatus());
+    /**
+     * 只读取第一行，整个读取过程都受超时限制（命令输出了半行后卡住时readLine会一直阻塞）。
+     * 多行读取对某些命令会有未知原因的卡顿。
+     */
+    private String readFirstLine(Session sess, String command, long deadline) throws IOException {
+        InputStream stdout = sess.getStdout();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (true) {
+            int available;
+            while ((available = stdout.available()) > 0) {
+                int read = stdout.read(buffer, 0, Math.min(available, buffer.length));
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        return toLine(line);
+                    }
+                    line.write(buffer[i]);
+                }
+            }
 
-            //关闭session和connection
-            sess.close();
-            conn.close();
-        } catch (IOException e) {
-            logger.error("文件scp到数据服务器时发生异常",e);
-        } finally {
-            if (sess != null) {
-                sess.close();
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                logger.error("执行命令超时：" + command);
+                return "";
+            }
+            int condition = sess.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.EOF
+                    | ChannelCondition.CLOSED, remaining);
+            if ((condition & ChannelCondition.TIMEOUT) != 0) {
+                logger.error("执行命令超时：" + command);
+                return "";
+            }
+            if ((condition & ChannelCondition.STDOUT_DATA) == 0 && stdout.available() <= 0) {
+                //输出已经结束，没有换行时返回已经读到的内容
+                return line.size() > 0 ? toLine(line) : "null";
             }
-            conn.close();
         }
+    }
 
-        logger.error("执行命令结束：" + command + "\n返回值：" + returnLine);
-        return returnLine.toString();
+    private String toLine(ByteArrayOutputStream line) {
+        String text = new String(line.toByteArray(), Charset.defaultCharset());
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private boolean isAlive(Connection conn) {
+        return SSHConnectionPool.isAlive(conn);
+    }
+
+    private interface SessionCallback<T> {
+        T doInConnection(Connection conn) throws IOException;
     }
 }
@@ -0,0 +1,201 @@
+package io.renren.modules.test.utils;
+
+import ch.ethz.ssh2.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 节点机的SSH连接池。
+ * 每个节点（用户名@地址:端口）保持一个已经认证的连接，执行命令、上传文件时在这个连接上打开新的session，
+ * 不再每条命令都重新建立TCP连接、密钥交换和密码认证。
+ * <p>
+ * 后台线程定时发送心跳保持连接，空闲过久的连接关闭；连接断开、密码修改后下次使用时重新建立。
+ */
+public class SSHConnectionPool {
+
+    private static final Logger log = LoggerFactory.getLogger(SSHConnectionPool.class);
+
+    /**
+     * 建立TCP连接的超时时间
+     */
+    public static final int CONNECT_TIMEOUT = 5 * 1000;
+
+    /**
+     * 密钥交换的超时时间
+     */
+    public static final int KEX_TIMEOUT = 10 * 1000;
+
+    /**
+     * 空闲超过这个时间的连接关闭
+     */
+    private static final long IDLE_TIMEOUT = 10 * 60 * 1000L;
+
+    /**
+     * 心跳间隔
+     */
+    private static final long KEEP_ALIVE_INTERVAL = 60 * 1000L;
+
+    private static final Map<String, PooledConnection> POOL = new ConcurrentHashMap<>();
+
+    private static final Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService KEEP_ALIVE = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ssh-keep-alive");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        KEEP_ALIVE.scheduleWithFixedDelay(SSHConnectionPool::keepAlive,
+                KEEP_ALIVE_INTERVAL, KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取已经认证的连接，没有或者已经断开时新建。使用完之后调用release。
+     */
+    public static Connection acquire(String host, int port, String user, String password) throws IOException {
+        String key = key(host, port, user);
+        synchronized (LOCKS.computeIfAbsent(key, k -> new Object())) {
+            PooledConnection pooled = POOL.get(key);
+            if (pooled != null && pooled.alive && Objects.equals(pooled.password, password)) {
+                pooled.lastUsed = System.currentTimeMillis();
+                pooled.inUse.incrementAndGet();
+                return pooled.connection;
+            }
+            if (pooled != null) {
+                remove(key, pooled.connection);
+            }
+
+            Connection conn = new Connection(host, port);
+            try {
+                conn.connect(null, CONNECT_TIMEOUT, KEX_TIMEOUT);
+                if (!conn.authenticateWithPassword(user, password)) {
+                    throw new IOException("Authentication failed." + key + "认证失败");
+                }
+            } catch (IOException e) {
+                conn.close();
+                throw e;
+            }
+            PooledConnection created = new PooledConnection(conn, password);
+            created.inUse.incrementAndGet();
+            conn.addConnectionMonitor(reason -> {
+                created.alive = false;
+                POOL.remove(key, created);
+                log.info("SSH连接已断开：" + key);
+            });
+            POOL.put(key, created);
+            log.info("SSH连接已建立：" + key);
+            return conn;
+        }
+    }
+
+    /**
+     * 使用完连接，空闲时间从这里开始计算
+     */
+    public static void release(String host, int port, String user, Connection connection) {
+        PooledConnection pooled = POOL.get(key(host, port, user));
+        if (pooled != null && pooled.connection == connection) {
+            pooled.lastUsed = System.currentTimeMillis();
+            pooled.inUse.decrementAndGet();
+        }
+    }
+
+    /**
+     * 连接不可用时（打开session失败等）从连接池移除并关闭。
+     */
+    public static void invalidate(String host, int port, String user, Connection connection) {
+        remove(key(host, port, user), connection);
+    }
+
+    /**
+     * 关闭所有连接
+     */
+    public static void closeAll() {
+        for (String key : POOL.keySet()) {
+            PooledConnection pooled = POOL.remove(key);
+            if (pooled != null) {
+                pooled.connection.close();
+            }
+        }
+    }
+
+    private static void remove(String key, Connection connection) {
+        PooledConnection pooled = POOL.get(key);
+        if (pooled != null && pooled.connection == connection) {
+            pooled.alive = false;
+            POOL.remove(key, pooled);
+        }
+        connection.close();
+    }
+
+    private static void keepAlive() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, PooledConnection>> it = POOL.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, PooledConnection> entry = it.next();
+            PooledConnection pooled = entry.getValue();
+            if (pooled.inUse.get() <= 0 && now - pooled.lastUsed > IDLE_TIMEOUT) {
+                it.remove();
+                pooled.alive = false;
+                pooled.connection.close();
+                continue;
+            }
+            if (!isAlive(pooled.connection)) {
+                log.info("SSH连接心跳失败，关闭连接：" + entry.getKey());
+                it.remove();
+                pooled.alive = false;
+                pooled.connection.close();
+            }
+        }
+    }
+
+    /**
+     * ganymed没有单独的心跳包，打开再关闭一个session，走一次完整的请求应答
+     */
+    static boolean isAlive(Connection connection) {
+        try {
+            connection.openSession().close();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static String key(String host, int port, String user) {
+        return user + "@" + host + ":" + port;
+    }
+
+    private static class PooledConnection {
+
+        private final Connection connection;
+
+        private final String password;
+
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private volatile boolean alive = true;
+
+        /**
+         * 正在使用的次数，上传大文件等长时间使用的连接不会被当作空闲关闭
+         */
+        private final AtomicInteger inUse = new AtomicInteger();
+
+        PooledConnection(Connection connection, String password) {
+            this.connection = connection;
+            this.password = password;
+        }
+    }
+
+    private SSHConnectionPool() {
+    }
+}
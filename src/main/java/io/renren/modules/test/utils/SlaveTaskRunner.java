@@ -0,0 +1,173 @@
+package io.renren.modules.test.utils;
+
+import io.renren.modules.test.entity.StressTestSlaveEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在多个节点机上并行执行同一个操作（启动、停止、校准、同步文件等）。
+ * 同时执行的节点数有上限，每个节点从开始执行计算超时时间，超时的节点不再等待，
+ * 最后汇总每个节点的执行结果。
+ */
+public class SlaveTaskRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(SlaveTaskRunner.class);
+
+    /**
+     * 单个节点默认的超时时间
+     */
+    public static final long DEFAULT_TIMEOUT = 60 * 1000L;
+
+    /**
+     * 最多同时操作的节点数
+     */
+    private static final int MAX_THREADS = 16;
+
+    private static final ThreadPoolExecutor POOL;
+
+    static {
+        AtomicInteger index = new AtomicInteger();
+        POOL = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "slave-task-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 在每个节点上执行task，等待全部完成或者超时。
+     *
+     * @param action  操作名称，用于汇总结果
+     * @param timeout 单个节点的超时时间（毫秒）
+     */
+    public static Report run(String action, List<StressTestSlaveEntity> slaves, long timeout, SlaveTask task) {
+        long start = System.currentTimeMillis();
+        List<Future<?>> futures = new ArrayList<>(slaves.size());
+        List<AtomicLong> startTimes = new ArrayList<>(slaves.size());
+        for (StressTestSlaveEntity slave : slaves) {
+            AtomicLong startTime = new AtomicLong();
+            startTimes.add(startTime);
+            futures.add(POOL.submit(() -> {
+                startTime.set(System.currentTimeMillis());
+                task.run(slave);
+                return null;
+            }));
+        }
+
+        //排队的节点也不能无限等待，前面的节点全部超时的情况下也会结束
+        int waves = (slaves.size() + MAX_THREADS - 1) / MAX_THREADS;
+        long deadline = start + timeout * (waves + 1);
+        Report report = new Report(action);
+        for (int i = 0; i < slaves.size(); i++) {
+            String name = slaves.get(i).getSlaveName();
+            Future<?> future = futures.get(i);
+            AtomicLong startTime = startTimes.get(i);
+            while (true) {
+                long now = System.currentTimeMillis();
+                long started = startTime.get();
+                long wait = started == 0L ? deadline - now : Math.min(started + timeout, deadline) - now;
+                try {
+                    //已经完成的节点即使超过了时间也直接取结果
+                    future.get(Math.max(wait, 0L), TimeUnit.MILLISECONDS);
+                    report.succeeded.add(name);
+                    break;
+                } catch (TimeoutException e) {
+                    if (startTime.get() != started && System.currentTimeMillis() < deadline) {
+                        //等待期间开始执行，从开始执行重新计算超时
+                        continue;
+                    }
+                    future.cancel(true);
+                    report.failed.put(name, "超时");
+                    break;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    report.failed.put(name, cause.getMessage() == null ? cause.toString() : cause.getMessage());
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    future.cancel(true);
+                    report.failed.put(name, "等待被中断");
+                    break;
+                }
+            }
+        }
+        report.elapsed = System.currentTimeMillis() - start;
+        if (report.failed.isEmpty()) {
+            log.info(report.toString());
+        } else {
+            log.error(report.toString());
+        }
+        return report;
+    }
+
+    /**
+     * 单个节点上的操作，抛出异常表示失败，异常信息记录在汇总结果中
+     */
+    public interface SlaveTask {
+        void run(StressTestSlaveEntity slave) throws Exception;
+    }
+
+    /**
+     * 执行结果汇总
+     */
+    public static class Report {
+
+        private final String action;
+
+        private final List<String> succeeded = new ArrayList<>();
+
+        /**
+         * 节点名称 -> 失败原因
+         */
+        private final Map<String, String> failed = new LinkedHashMap<>();
+
+        private long elapsed;
+
+        Report(String action) {
+            this.action = action;
+        }
+
+        public List<String> getSucceeded() {
+            return succeeded;
+        }
+
+        public Map<String, String> getFailed() {
+            return failed;
+        }
+
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(action).append("：共")
+                    .append(succeeded.size() + failed.size()).append("个节点，成功")
+                    .append(succeeded.size()).append("个，失败").append(failed.size())
+                    .append("个，耗时").append(elapsed).append("ms");
+            if (!failed.isEmpty()) {
+                builder.append("；失败节点：");
+                failed.forEach((name, reason) -> builder.append(name).append("(").append(reason).append(") "));
+            }
+            return builder.toString().trim();
+        }
+    }
+
+    private SlaveTaskRunner() {
+    }
+}
@@ -4,11 +4,11 @@ import io.renren.common.exception.RRException;
 import io.renren.common.utils.SpringContextUtils;
 import io.renren.modules.sys.service.SysConfigService;
 import io.renren.modules.test.jmeter.JmeterRunEntity;
+import io.renren.modules.test.jmeter.report.IncrementalReport;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.jmeter.util.JMeterUtils;
-import org.apache.jmeter.visualizers.SamplingStatCalculator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
@@ -17,10 +17,18 @@ import org.springframework.web.multipart.MultipartFile;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import static io.renren.common.utils.ConfigConstant.OS_NAME_LC;
@@ -38,6 +46,11 @@ public class StressTestUtils {
     private static SysConfigService sysConfigService = (SysConfigService) SpringContextUtils.getBean("sysConfigService");
     public static String xslFilePath = "classpath:config/jmeter.results.zyanycall.xsl";
 
+    /**
+     * 计算MD5、保存上传文件时的缓冲区大小
+     */
+    private static final int MD5_BUFFER_SIZE = 64 * 1024;
+
     //0：初始状态  1：正在运行  2：成功执行  3：运行出现异常
     public static final Integer INITIAL = 0;
     public static final Integer RUNNING = 1;
@@ -65,28 +78,51 @@ public class StressTestUtils {
     public static final Integer NO_NEED_DEBUG = 0;
     public static final Integer NEED_DEBUG = 1;
 
+    /**
+     * 是否压缩测试结果文件的状态标识
+     */
+    //0：不压缩  1：压缩测试结果文件
+    public static final Integer NO_NEED_COMPRESS = 0;
+    public static final Integer NEED_COMPRESS = 1;
+
     //0：禁用  1：启用   2：进行中
     public static final Integer DISABLE = 0;
     public static final Integer ENABLE = 1;
     public static final Integer PROGRESSING = 2;
 
     /**
-     * 针对每一个fileId，存储一份
-     * 用于存储每一个用例的计算结果集合。
+     * 权重为-1的启用节点是备用节点，压测开始时不使用，其他节点失联时接管它的负载。
+     * 权重0原来就表示不按权重拆分（全量负载），所以用一个原来存不进去的值。
      */
-    public static Map<Long, Map<String, SamplingStatCalculator>> samplingStatCalculator4File = new HashMap<>();
+    public static final String STANDBY_WEIGHT = "-1";
 
     /**
-     * 针对每一个fileId，存储一份Jmeter的Engines，用于指定的用例启动和停止。
+     * 参数化文件同步到节点机时按行拆分的方式
+     */
+    //weight：按节点权重拆分  even：平均拆分
+    public static final String SHARD_WEIGHT = "weight";
+    public static final String SHARD_EVEN = "even";
+
+    /**
+     * 正在使用的执行的注册表，key是每次执行生成的runId。
+     * 每次执行有自己的结果收集及监控数据，分布式回调时据此找到所属的执行，
+     * 所以master上可以同时执行多个分布式脚本并分别监控。
+     */
+    public static Map<String, JmeterRunEntity> jMeterRuns = new ConcurrentHashMap<>();
+
+    /**
+     * 针对每一个fileId，存储该脚本最近一次的执行，用于指定的用例启动和停止及前端监控。
      * 如果不使用分布式节点，则Engines仅包含master主节点。
      * 默认是使用分布式的，则Engines会包含所有有效的分布式节点的Engine。
      */
-    public static Map<Long, JmeterRunEntity> jMeterEntity4file = new HashMap<>();
+    public static Map<Long, JmeterRunEntity> jMeterEntity4file = new ConcurrentHashMap<>();
 
     /**
-     * 主进程Master内保存的一些状态，主要用于分布式的压测操作服务。
+     * 增量统计的测试报告数据，key是结果文件的绝对路径，生成报告时取出。
+     * 一直不生成报告的会占用内存，超过数量时丢弃最早的。
      */
-    public static Map<String, String> jMeterStatuses = new HashMap<>();
+    private static final int MAX_INCREMENTAL_REPORTS = 10;
+    private static final Map<String, IncrementalReport> incrementalReports = new LinkedHashMap<>();
 
     //private static String jmeterHome;
 
@@ -142,6 +178,33 @@ public class StressTestUtils {
      */
     public final static String JMETER_THREADGROUP_SET_KEY = "JMETER_THREADGROUP_SET_KEY";
 
+    /**
+     * 测试结果文件是否保存为紧凑的二进制格式，默认是false即csv格式。
+     * 二进制格式文件小很多，生成报告时直接读取，下载时按需转换为csv。
+     * 仅对web程序进程内启动的压测生效，Jmeter脚本启动和调试模式仍然是csv/jtl。
+     */
+    public final static String MASTER_JMETER_RESULT_BINARY_KEY = "MASTER_JMETER_RESULT_BINARY_KEY";
+
+    /**
+     * 是否在压测过程中增量统计测试报告数据，默认是false。
+     * 开启后压测结束生成报告时直接导出内存中的统计数据，不再读取结果文件，但压测期间会多占用内存和CPU。
+     * 仅对web程序进程内启动、本进程生成报告的压测生效。
+     */
+    public final static String MASTER_JMETER_INCREMENTAL_REPORT_KEY = "MASTER_JMETER_INCREMENTAL_REPORT_KEY";
+
+    /**
+     * 分布式压测时是否在节点机上预聚合，默认是false。
+     * 开启后节点机只把每个label每秒的汇总发送给master用于监控，原始结果保存在节点机上，压测结束后取回。
+     * 节点机需要重启一次（启动时上传预聚合的组件），本机节点（127.0.0.1）启用时不能使用。
+     */
+    public final static String MASTER_JMETER_SLAVE_AGGREGATE_KEY = "MASTER_JMETER_SLAVE_AGGREGATE_KEY";
+
+    /**
+     * 普通线程组是否使用虚拟线程执行，默认是false。
+     * JDK不支持虚拟线程时使用线程栈较小的平台线程。分布式压测时节点机需要重启一次（启动时上传线程组的类）。
+     */
+    public final static String MASTER_JMETER_VIRTUAL_THREADS_KEY = "MASTER_JMETER_VIRTUAL_THREADS_KEY";
+
     public static String getJmeterHome() {
         return sysConfigService.getValue(MASTER_JMETER_HOME_KEY);
     }
@@ -166,6 +229,22 @@ public class StressTestUtils {
         return Boolean.parseBoolean(sysConfigService.getValue(JMETER_THREADGROUP_SET_KEY));
     }
 
+    public boolean isResultBinary() {
+        return Boolean.parseBoolean(sysConfigService.getValue(MASTER_JMETER_RESULT_BINARY_KEY));
+    }
+
+    public boolean isIncrementalReport() {
+        return Boolean.parseBoolean(sysConfigService.getValue(MASTER_JMETER_INCREMENTAL_REPORT_KEY));
+    }
+
+    public boolean isSlaveAggregate() {
+        return Boolean.parseBoolean(sysConfigService.getValue(MASTER_JMETER_SLAVE_AGGREGATE_KEY));
+    }
+
+    public boolean isVirtualThreads() {
+        return Boolean.parseBoolean(sysConfigService.getValue(MASTER_JMETER_VIRTUAL_THREADS_KEY));
+    }
+
     public boolean isScriptSchedulerDurationEffect() {
         return Boolean.parseBoolean(sysConfigService.getValue(SCRIPT_SCHEDULER_DURATION_KEY));
     }
@@ -234,30 +313,125 @@ public class StressTestUtils {
      * 获取上传文件的md5
      */
     public String getMd5(MultipartFile file) throws IOException {
-        return DigestUtils.md5Hex(file.getBytes());
+        try (InputStream in = file.getInputStream()) {
+            return md5Hex(in, null);
+        }
     }
 
     /**
      * 获取文件的MD5值，远程节点机也是通过MD5值来判断文件是否重复及存在，所以就不使用其他算法了。
      */
     public String getMd5ByFile(String filePath) throws IOException {
-        FileInputStream fis = new FileInputStream(filePath);
-        return DigestUtils.md5Hex(IOUtils.toByteArray(fis));
+        try (InputStream in = new FileInputStream(filePath)) {
+            return md5Hex(in, null);
+        }
     }
 
     /**
-     * 保存文件
+     * 在正式文件的同目录下创建上传用的临时文件，入库成功后再替换正式文件，原有的文件不受失败的上传影响。
      */
-    public void saveFile(MultipartFile multipartFile, String filePath) {
+    public File createUploadTmpFile(String filePath) {
+        File file = new File(filePath);
         try {
-            File file = new File(filePath);
             FileUtils.forceMkdirParent(file);
-            multipartFile.transferTo(file);
+            return File.createTempFile("upload-", ".tmp", file.getParentFile());
         } catch (IOException e) {
             throw new RRException("保存文件异常失败", e);
         }
     }
 
+    /**
+     * 上传文件写入临时文件，写入的同时计算MD5，上传的内容只读取一遍，内存占用和文件大小无关。
+     *
+     * @return 文件的MD5
+     */
+    public String saveUploadFile(MultipartFile multipartFile, File tmpFile) {
+        try (InputStream in = multipartFile.getInputStream();
+             OutputStream out = new FileOutputStream(tmpFile)) {
+            return md5Hex(in, out);
+        } catch (IOException e) {
+            throw new RRException("保存文件异常失败", e);
+        }
+    }
+
+    /**
+     * 用上传的临时文件替换正式文件
+     */
+    public void moveUploadFile(File tmpFile, String filePath) {
+        try {
+            Files.move(tmpFile.toPath(), new File(filePath).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RRException("保存文件异常失败", e);
+        }
+    }
+
+    /**
+     * 读取全部内容计算MD5，out不为空时同时写入out
+     */
+    private static String md5Hex(InputStream in, OutputStream out) throws IOException {
+        MessageDigest digest = DigestUtils.getMd5Digest();
+        byte[] buffer = new byte[MD5_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, n);
+            if (out != null) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * 登记一次新的执行，同一个脚本上一次的执行不再保留。
+     */
+    public static void registerRun(JmeterRunEntity jmeterRunEntity) {
+        jMeterRuns.put(jmeterRunEntity.getRunId(), jmeterRunEntity);
+        JmeterRunEntity previous = jMeterEntity4file.put(jmeterRunEntity.getStressTestFile().getFileId(), jmeterRunEntity);
+        if (previous != null && previous != jmeterRunEntity) {
+            jMeterRuns.remove(previous.getRunId());
+            previous.closeLiveStats();
+            previous.closeResultWriter();
+        }
+    }
+
+    /**
+     * 移除脚本的执行，如删除脚本文件时。
+     */
+    public static void removeRun(Long fileId) {
+        JmeterRunEntity jmeterRunEntity = jMeterEntity4file.remove(fileId);
+        if (jmeterRunEntity != null) {
+            jMeterRuns.remove(jmeterRunEntity.getRunId());
+            jmeterRunEntity.closeLiveStats();
+            jmeterRunEntity.closeResultWriter();
+        }
+    }
+
+    public static void registerIncrementalReport(File resultFile, IncrementalReport incrementalReport) {
+        IncrementalReport eldest = null;
+        synchronized (incrementalReports) {
+            IncrementalReport previous = incrementalReports.put(resultFile.getAbsolutePath(), incrementalReport);
+            if (previous != null && previous != incrementalReport) {
+                eldest = previous;
+            } else if (incrementalReports.size() > MAX_INCREMENTAL_REPORTS) {
+                Iterator<Map.Entry<String, IncrementalReport>> iterator = incrementalReports.entrySet().iterator();
+                eldest = iterator.next().getValue();
+                iterator.remove();
+            }
+        }
+        if (eldest != null) {
+            eldest.discard();
+        }
+    }
+
+    /**
+     * 取出结果文件对应的增量统计数据，没有则返回null
+     */
+    public static IncrementalReport takeIncrementalReport(File resultFile) {
+        synchronized (incrementalReports) {
+            return incrementalReports.remove(resultFile.getAbsolutePath());
+        }
+    }
+
     /**
      * 判断当前是否存在正在执行的脚本
      */
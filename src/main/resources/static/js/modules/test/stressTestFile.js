@@ -104,6 +104,9 @@ $(function () {
                     var btn = '';
                     if (!(getExtension(row.originName) && /^(jmx)$/.test(getExtension(row.originName).toLowerCase()))) {
                         btn = "<a href='#' class='btn btn-primary' onclick='synchronizeFile(" + row.fileId + ")' ><i class='fa fa-arrow-circle-right'></i>&nbsp;同步文件</a>";
+                        if (/^(csv|txt|dat)$/.test((getExtension(row.originName) || '').toLowerCase())) {
+                            btn += "&nbsp;<a href='#' class='btn btn-primary' onclick='shardFile(" + row.fileId + ")' ><i class='fa fa-random'></i>&nbsp;拆分同步</a>";
+                        }
                     } else {
                         if (row.status == 1) {
                             btn = "<a href='#' class='btn btn-danger' onclick='stopOnce(" + row.fileId + ")' ><i class='fa fa-stop-circle'></i>&nbsp;停止</a>";
@@ -145,6 +148,9 @@ $(function () {
     });
 });
 
+// 响应时间百分位统计最近多少秒，后台最多支持60秒
+var percentileWindow = 10;
+
 var vm = new Vue({
     el: '#rrapp',
     data: {
@@ -154,6 +160,8 @@ var vm = new Vue({
         stressTestFile: {},
         title: null,
         showChart: false,
+        percentileWindow: percentileWindow,
+        resultWriter: {},
         showList: true,
         showEdit: false,
         showTask: false,
@@ -195,6 +203,7 @@ var vm = new Vue({
                 vm.stressTestFile.reportStatus = 0;
                 vm.stressTestFile.webchartStatus = 0;
                 vm.stressTestFile.debugStatus = 0;
+                vm.stressTestFile.compressStatus = 0;
                 vm.stressTestFile.duration = 14400;
                 vm.stressTestFile.fileIdList = fileIds;
             } else {
@@ -349,8 +358,7 @@ var vm = new Vue({
                 postData: {'caseId': vm.q.caseId},
                 page: page
             }).trigger("reloadGrid");
-            // clearInterval 是自带的函数。
-            clearInterval(timeTicket);
+            stopInterval();
         },
         validator: function () {
             if(isBlank(vm.stressTestFile.params)){
@@ -374,7 +382,7 @@ var vm = new Vue({
             }
         },
         suspendEcharts: function (event) {
-            clearInterval(timeTicket);
+            stopInterval();
         },
         startEcharts: function (event) {
             startInterval(fileIdData);
@@ -500,21 +508,55 @@ function synchronizeFile(fileIds) {
         return;
     }
     confirm('确定向所有"启用的"分布式节点机推送该文件？文件越大同步时间越长', function () {
-        $.ajax({
-            type: "POST",
-            url: baseURL + "test/stressFile/synchronizeFile",
-            contentType: "application/json",
-            data: JSON.stringify(numberToArray(fileIds)),
-            success: function (r) {
-                if (r.code == 0) {
-                    vm.reload();
-                    alert('操作成功', function () {
-                    });
-                } else {
-                    alert(r.msg);
-                }
-            }
+        postSynchronizeFile(fileIds, "");
+    });
+}
+
+function shardFile(fileIds) {
+    if (!fileIds) {
+        return;
+    }
+    // 按行拆分，每个启用的节点只拿到其中一份，避免各节点使用相同的数据
+    parent.layer.confirm('确定按行拆分后推送该文件到各"启用的"分布式节点机？<br/>按权重：按各节点的权重比例拆分<br/>平均：每个节点分到的行数相同',
+        {btn: ['按权重', '平均', '取消']},
+        function (index) {
+            parent.layer.close(index);
+            shardFileHeader(fileIds, "weight");
+        },
+        function (index) {
+            parent.layer.close(index);
+            shardFileHeader(fileIds, "even");
         });
+}
+
+function shardFileHeader(fileIds, shardMode) {
+    parent.layer.confirm('文件第一行是否为表头？是表头时每个节点都会保留表头',
+        {btn: ['有表头', '无表头', '取消']},
+        function (index) {
+            parent.layer.close(index);
+            postSynchronizeFile(fileIds, "?shardMode=" + shardMode + "&shardHeader=true");
+        },
+        function (index) {
+            parent.layer.close(index);
+            postSynchronizeFile(fileIds, "?shardMode=" + shardMode + "&shardHeader=false");
+        });
+}
+
+function postSynchronizeFile(fileIds, params) {
+    $.ajax({
+        type: "POST",
+        url: baseURL + "test/stressFile/synchronizeFile" + params,
+        contentType: "application/json",
+        data: JSON.stringify(numberToArray(fileIds)),
+        success: function (r) {
+            if (r.code == 0) {
+                vm.reload();
+                alert('操作成功', function () {
+                });
+            } else {
+                alert(r.msg);
+            }
+        }
     });
 }
 
@@ -527,8 +569,12 @@ function getQueryString (name) {
 }
 
 var timeTicket;
+var statSource;
+var statState = {};
 var responseTimeDataObj = {};
 var responseTimeLegendData = [];
+var percentilesDataObj = {};
+var percentilesLegendData = [];
 var throughputDataObj = {};
 var throughputLegendData = [];
 var networkSentDataObj = {};
@@ -554,52 +600,113 @@ function startInterval(fileId) {
         clearEcharts();
     }
     fileIdData = fileId;
-    timeTicket = setInterval(function () {
-        $.get(baseURL + "test/stressFile/statInfo/" + fileId, function (r) {
-            var responseTimeMap = r.statInfo.responseTimesMap;
-            //拿其中的一个值尝试一下，没有则不刷新option了。
-            // if (Object.keys(responseTimeMap).length  === 0) {
-            //     return;
-            // }
-            // console.log("responseTimeMap: " + responseTimeMap);
+    stopInterval();
+    // 浏览器支持EventSource时使用服务端推送，否则退回到轮询。
+    if (window.EventSource) {
+        startStream(fileId);
+    } else {
+        startPolling(fileId);
+    }
+}
+
+function stopInterval() {
+    // clearInterval 是自带的函数。
+    clearInterval(timeTicket);
+    if (statSource) {
+        statSource.close();
+        statSource = null;
+    }
+}
+
+// 服务端推送，每次推送的是增量数据，合并到statState后再刷新图表。
+function startStream(fileId) {
+    statState = {};
+    statSource = new EventSource(baseURL + "test/stressFile/statStream/" + fileId + "?window=" + percentileWindow);
+    statSource.addEventListener('stat', function (e) {
+        var frame = JSON.parse(e.data);
+        if (frame.full) {
+            statState = {};
+        }
+        for (var name in frame.maps) {
+            if (!statState[name]) {
+                statState[name] = {};
+            }
+            var map = frame.maps[name];
+            for (var key in map) {
+                // null表示这个值已经不存在了
+                if (map[key] === null) {
+                    delete statState[name][key];
+                } else {
+                    statState[name][key] = map[key];
+                }
+            }
+        }
+        statState.runStatus = frame.runStatus;
+
+        // 如果不是正在执行，则不再刷新前端
+        if (frame.runStatus !== 1) {
+            return;
+        }
+        refreshEcharts(statState, new Date(frame.time));
+    });
+    statSource.onerror = function () {
+        // 连接断开时EventSource会自动重连，如果被关闭（如代理不支持长连接）则退回到轮询。
+        if (statSource && statSource.readyState === EventSource.CLOSED) {
+            statSource.close();
+            statSource = null;
+            startPolling(fileId);
+        }
+    };
+}
 
+function startPolling(fileId) {
+    timeTicket = setInterval(function () {
+        $.get(baseURL + "test/stressFile/statInfo/" + fileId, {window: percentileWindow}, function (r) {
             // 如果不是正在执行，则不再刷新前端
             if (r.statInfo.runStatus !== 1) {
                 // console.log("没有正在执行的测试");
                 return;
             }
-
-            var throughputMap = r.statInfo.throughputMap;
-            var networkSentMap = r.statInfo.networkSentMap;
-            var networkReceiveMap = r.statInfo.networkReceiveMap;
-            var successPercentageMap = r.statInfo.successPercentageMap;
-            var errorPercentageMap = r.statInfo.errorPercentageMap;
-            var threadCountsMap = r.statInfo.threadCountsMap;
-            var totalCountsMap = r.statInfo.totalCountsMap;
-            xAxisData.push(new Date().toLocaleTimeString());
-            // console.log("throughputMap: " + throughputMap);
-
-            var responseTimesEChartOption = getOptionLine(responseTimeMap, responseTimeLegendData, responseTimeDataObj, null);
-            var getThroughputMapOption = getOptionLine(throughputMap, throughputLegendData, throughputDataObj, null);
-            var networkSentMapOption = getOptionLine(networkSentMap, networkSentLegendData, networkSentDataObj, 'sent');
-            var networkReceiveMapOption = getOptionLine(networkReceiveMap, networkReceiveLegendData, networkReceiveDataObj, 'received');
-            var successPercentageMapOption = getOptionLine(successPercentageMap, successPercentageLegendData, successPercentageDataObj, 'successPercentage');
-            var errorPercentageMapOption = getOptionLine(errorPercentageMap, errorPercentageLegendData, errorPercentageDataObj, null);
-            var threadCountsMapOption = getOptionLine(threadCountsMap, threadCountsLegendData, threadCountsDataObj, null);
-            var totalCountsMapOption = getOptionPie(totalCountsMap, totalCountsLegendData, totalCountsDataObj, null);
-
-            responseTimesEChart.setOption(responseTimesEChartOption);
-            throughputEChart.setOption(getThroughputMapOption);
-            networkSentEChart.setOption(networkSentMapOption);
-            networkReceivedEChart.setOption(networkReceiveMapOption);
-            successPercentageEChart.setOption(successPercentageMapOption);
-            errorPercentageEChart.setOption(errorPercentageMapOption);
-            threadCountsEChart.setOption(threadCountsMapOption);
-            totalCountsEChart.setOption(totalCountsMapOption);
+            refreshEcharts(r.statInfo, new Date());
         });
     }, 2000);
 }
 
+function refreshEcharts(statInfo, time) {
+    var responseTimeMap = statInfo.responseTimesMap;
+    var percentilesMap = statInfo.percentilesMap;
+    var throughputMap = statInfo.throughputMap;
+    var networkSentMap = statInfo.networkSentMap;
+    var networkReceiveMap = statInfo.networkReceiveMap;
+    var successPercentageMap = statInfo.successPercentageMap;
+    var errorPercentageMap = statInfo.errorPercentageMap;
+    var threadCountsMap = statInfo.threadCountsMap;
+    var totalCountsMap = statInfo.totalCountsMap;
+    xAxisData.push(time.toLocaleTimeString());
+    // 测试结果文件的写入情况，丢弃大于0说明测试报告不完整
+    vm.resultWriter = statInfo.resultWriterMap || {};
+
+    var responseTimesEChartOption = getOptionLine(responseTimeMap, responseTimeLegendData, responseTimeDataObj, null);
+    var percentilesEChartOption = getOptionLine(percentilesMap, percentilesLegendData, percentilesDataObj, null);
+    var getThroughputMapOption = getOptionLine(throughputMap, throughputLegendData, throughputDataObj, null);
+    var networkSentMapOption = getOptionLine(networkSentMap, networkSentLegendData, networkSentDataObj, 'sent');
+    var networkReceiveMapOption = getOptionLine(networkReceiveMap, networkReceiveLegendData, networkReceiveDataObj, 'received');
+    var successPercentageMapOption = getOptionLine(successPercentageMap, successPercentageLegendData, successPercentageDataObj, 'successPercentage');
+    var errorPercentageMapOption = getOptionLine(errorPercentageMap, errorPercentageLegendData, errorPercentageDataObj, null);
+    var threadCountsMapOption = getOptionLine(threadCountsMap, threadCountsLegendData, threadCountsDataObj, null);
+    var totalCountsMapOption = getOptionPie(totalCountsMap, totalCountsLegendData, totalCountsDataObj, null);
+
+    responseTimesEChart.setOption(responseTimesEChartOption);
+    percentilesEChart.setOption(percentilesEChartOption);
+    throughputEChart.setOption(getThroughputMapOption);
+    networkSentEChart.setOption(networkSentMapOption);
+    networkReceivedEChart.setOption(networkReceiveMapOption);
+    successPercentageEChart.setOption(successPercentageMapOption);
+    errorPercentageEChart.setOption(errorPercentageMapOption);
+    threadCountsEChart.setOption(threadCountsMapOption);
+    totalCountsEChart.setOption(totalCountsMapOption);
+}
+
 function ShowRunning(fileId) {
     vm.showChart = true;
     vm.showEdit = false;
@@ -610,6 +717,8 @@ function ShowRunning(fileId) {
 function clearEcharts() {
     responseTimeDataObj = {};
     responseTimeLegendData = [];
+    percentilesDataObj = {};
+    percentilesLegendData = [];
     throughputDataObj = {};
     throughputLegendData = [];
     networkSentDataObj = {};
@@ -625,9 +734,11 @@ function clearEcharts() {
     totalCountsDataObj = {};
     totalCountsLegendData = [];
     xAxisData = [];
+    vm.resultWriter = {};
 
     // 清空数据
     responseTimesEChart.setOption(optionLine, true);
+    percentilesEChart.setOption(optionLine, true);
     throughputEChart.setOption(optionLine, true);
     networkSentEChart.setOption(optionLine, true);
     networkReceivedEChart.setOption(optionLine, true);
@@ -731,6 +842,7 @@ function getOptionPie(map, legendData, dataObj, areaStyle) {
 
 setEChartSize();
 var responseTimesEChart = echarts.init(document.getElementById('responseTimesChart'), 'shine');
+var percentilesEChart = echarts.init(document.getElementById('percentilesChart'), 'shine');
 var throughputEChart = echarts.init(document.getElementById('throughputChart'), 'shine');
 var networkSentEChart = echarts.init(document.getElementById('networkSentChart'), 'shine');
 var networkReceivedEChart = echarts.init(document.getElementById('networkReceivedChart'), 'shine');
@@ -743,6 +855,7 @@ var totalCountsEChart = echarts.init(document.getElementById('totalCountsChart')
 window.onresize = function () {
     setEChartSize();
     responseTimesEChart.resize();
+    percentilesEChart.resize();
     throughputEChart.resize();
     networkSentEChart.resize();
     networkReceivedEChart.resize();
@@ -755,6 +868,7 @@ window.onresize = function () {
 function setEChartSize() {
     //重置容器高宽
     $("#responseTimesChart").css('width', $("#rrapp").width() * 0.95).css('height', $("#rrapp").width() / 3);
+    $("#percentilesChart").css('width', $("#rrapp").width() * 0.95).css('height', $("#rrapp").width() / 3);
     $("#throughputChart").css('width', $("#rrapp").width() * 0.95).css('height', $("#rrapp").width() / 3);
     $("#networkSentChart").css('width', $("#rrapp").width() * 0.95).css('height', $("#rrapp").width() / 3);
     $("#networkReceivedChart").css('width', $("#rrapp").width() * 0.95).css('height', $("#rrapp").width() / 3);
@@ -854,6 +968,7 @@ var optionPie = {
 
 // 使用刚指定的配置项和数据显示图表。
 responseTimesEChart.setOption(optionLine);
+percentilesEChart.setOption(optionLine);
 throughputEChart.setOption(optionLine);
 networkSentEChart.setOption(optionLine);
 networkReceivedEChart.setOption(optionLine);
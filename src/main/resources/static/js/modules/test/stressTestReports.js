@@ -39,7 +39,8 @@ $(function () {
                 label: '执行操作', name: '', width: 80, sortable: false, formatter: function (value, options, row) {
                     var createReportBtn = "<a href='#' class='btn btn-primary' onclick='createReport(" + row.reportId + ")' ><i class='fa fa-plus'></i>&nbsp;生成报告</a>";
                     var downloadReportBtn = "&nbsp;&nbsp;<a href='" + baseURL + "test/stressReports/downloadReport/" + row.reportId + "' class='btn btn-primary' onclick='return checkStatus(" + row.status + ")'><i class='fa fa-download'></i>&nbsp;下载</a>";
-                    return createReportBtn + downloadReportBtn;
+                    var downloadCsvBtn = "&nbsp;&nbsp;<a href='" + baseURL + "test/stressReports/downloadCsv/" + row.reportId + "' class='btn btn-default' onclick='return checkCsv(" + row.fileSize + ")'><i class='fa fa-file-text-o'></i>&nbsp;结果文件</a>";
+                    return createReportBtn + downloadReportBtn + downloadCsvBtn;
                 }
             }
             // 当前不做更新，页面复杂性价比不高。
@@ -259,6 +260,14 @@ function createReport(reportIds) {
     });*/
 }
 
+function checkCsv(fileSize) {
+    if (!fileSize) {
+        alert("测试结果文件不存在或已删除！");
+        return false;
+    }
+    return true;
+}
+
 function checkStatus(status) {
     if (status != 2) {
         alert('没有测试报告！');
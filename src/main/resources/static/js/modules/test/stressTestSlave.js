@@ -280,8 +280,9 @@ var vm = new Vue({
                 return true;
             }
 
-            if (!isDigits(vm.stressTestSlave.weight)) {
-                alert("权重输入不合法，请输入1-99999的整数!");
+            //-1表示备用节点
+            if (String(vm.stressTestSlave.weight) !== "-1" && !isDigits(vm.stressTestSlave.weight)) {
+                alert("权重输入不合法，请输入1-99999的整数，或者-1（备用节点）!");
                 return true;
             }
         }
@@ -0,0 +1,107 @@
+package io.renren.renrenfast;
+
+import io.renren.common.utils.SpringContextUtils;
+import io.renren.modules.sys.service.SysConfigService;
+import io.renren.modules.test.entity.StressTestFileEntity;
+import io.renren.modules.test.entity.StressTestReportsEntity;
+import io.renren.modules.test.jmeter.JmeterListenToTest;
+import io.renren.modules.test.jmeter.JmeterRunEntity;
+import io.renren.modules.test.jmeter.writer.BinaryResultFormat;
+import io.renren.modules.test.jmeter.writer.SampleResultWriter;
+import io.renren.modules.test.utils.StressTestUtils;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.samplers.SampleSaveConfiguration;
+import org.apache.jmeter.util.JMeterUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.context.support.StaticApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 分布式节点失联时收不到它的结果收集器的testEnded，其他节点都结束后测试结果文件也要关闭。
+ */
+public class HostLostResultWriterTest {
+
+    private static final Long FILE_ID = -1L;
+
+    private File resultFile;
+
+    private JmeterRunEntity runEntity;
+
+    /**
+     * StressTestUtils初始化时要从Spring容器中取sysConfigService，保存格式要用到Jmeter的配置
+     */
+    @BeforeClass
+    public static void initContext() throws IOException {
+        File properties = Files.createTempFile("jmeter-", ".properties").toFile();
+        properties.deleteOnExit();
+        JMeterUtils.loadJMeterProperties(properties.getPath());
+
+        StaticApplicationContext context = new StaticApplicationContext();
+        //用不到配置，返回null
+        Object sysConfigService = Proxy.newProxyInstance(SysConfigService.class.getClassLoader(),
+                new Class[]{SysConfigService.class}, (proxy, method, args) -> null);
+        context.getBeanFactory().registerSingleton("sysConfigService", sysConfigService);
+        new SpringContextUtils().setApplicationContext(context);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        //二进制格式不依赖Jmeter的saveservice配置
+        resultFile = Files.createTempFile("host-lost-", "." + BinaryResultFormat.SUFFIX).toFile();
+        StressTestFileEntity stressTestFile = new StressTestFileEntity();
+        stressTestFile.setReportStatus(StressTestUtils.NEED_REPORT);
+        StressTestReportsEntity stressTestReports = new StressTestReportsEntity();
+        stressTestReports.setFile(resultFile);
+
+        runEntity = new JmeterRunEntity();
+        runEntity.setStressTestFile(stressTestFile);
+        runEntity.setStressTestReports(stressTestReports);
+        StressTestUtils.jMeterEntity4file.put(FILE_ID, runEntity);
+    }
+
+    @After
+    public void tearDown() {
+        runEntity.closeResultWriter();
+        StressTestUtils.jMeterEntity4file.remove(FILE_ID);
+        resultFile.delete();
+    }
+
+    @Test
+    public void lostHostClosesResultWriter() {
+        //第三个节点一直在压测，监听器不会走到停止脚本
+        JmeterListenToTest listener = new JmeterListenToTest(null, null, null, FILE_ID);
+        SampleSaveConfiguration saveConfig = new SampleSaveConfiguration();
+        for (String host : new String[]{"10.0.0.1:1099", "10.0.0.2:1099", "10.0.0.3:1099"}) {
+            listener.testStarted(host);
+        }
+        runEntity.collectorStarted("10.0.0.1:1099", saveConfig);
+        runEntity.collectorStarted("10.0.0.2:1099", saveConfig);
+        SampleResultWriter writer = runEntity.getResultWriter();
+        assertNotNull(writer);
+
+        runEntity.collectorEnded("10.0.0.1:1099");
+        assertEquals(0L, writeOne(writer));
+
+        listener.hostLost("10.0.0.2:1099");
+        //关闭后提交的结果计为丢弃
+        assertEquals(1L, writeOne(writer));
+    }
+
+    private long writeOne(SampleResultWriter writer) {
+        long dropped = writer.getStatus().getDropped();
+        writer.write(new SampleEvent(new SampleResult(), "线程组"));
+        writer.flush();
+        return writer.getStatus().getDropped() - dropped;
+    }
+}
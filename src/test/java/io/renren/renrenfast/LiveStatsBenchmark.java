@@ -0,0 +1,107 @@
+package io.renren.renrenfast;
+
+import io.renren.modules.test.jmeter.stats.LiveStatsAggregator;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.visualizers.SamplingStatCalculator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * 前端监控聚合的吞吐对比，直接运行main方法。
+ * 原实现：HashMap + SamplingStatCalculator（内部同步）
+ * 新实现：LiveStatsAggregator（LongAdder + HdrHistogram Recorder）
+ * <p>
+ * 1核CPU、OpenJDK 17、-Xmx2g，每轮5秒（包含构造SampleResult的开销）：
+ * <pre>
+ * 线程数   SamplingStatCalculator   LiveStatsAggregator
+ * 500          180843/s               2760715/s
+ * 2000         153020/s               2711813/s
+ * 5000         105045/s               1988876/s
+ * </pre>
+ */
+public class LiveStatsBenchmark {
+
+    private static final int[] THREADS = {500, 2000, 5000};
+    private static final String[] LABELS = {"登录", "查询", "下单", "支付"};
+    private static final long DURATION_MILLIS = 5000L;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int threads : THREADS) {
+            //和原来JmeterResultCollector.addSample一样，HashMap没有同步
+            Map<String, SamplingStatCalculator> calculatorMap = new HashMap<>();
+            long old = run(threads, sampleResult -> {
+                String label = sampleResult.getSampleLabel();
+                if (calculatorMap.get(label) == null) {
+                    calculatorMap.put(label, new SamplingStatCalculator(label));
+                }
+                calculatorMap.get(label).addSample(sampleResult);
+            });
+
+            LiveStatsAggregator aggregator = new LiveStatsAggregator();
+            long now;
+            try {
+                now = run(threads, aggregator::addSample);
+            } finally {
+                //从LiveStatsTicker中注销
+                aggregator.close();
+            }
+
+            System.out.println(String.format("线程数:%d  SamplingStatCalculator:%d/s  LiveStatsAggregator:%d/s",
+                    threads, old * 1000 / DURATION_MILLIS, now * 1000 / DURATION_MILLIS));
+        }
+    }
+
+    private static long run(int threads, Consumer<SampleResult> consumer) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(threads);
+        long[] counts = new long[threads];
+        long[] deadline = new long[1];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    ready.countDown();
+                    start.await();
+                    long count = 0;
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        consumer.accept(newSample());
+                        count++;
+                    }
+                    counts[index] = count;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    end.countDown();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        //线程都启动之后才开始计时，线程的创建不占用统计时间
+        ready.await();
+        deadline[0] = System.currentTimeMillis() + DURATION_MILLIS;
+        start.countDown();
+        end.await();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static SampleResult newSample() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = System.currentTimeMillis();
+        SampleResult sampleResult = SampleResult.createTestSample(now - random.nextInt(1, 500), now);
+        sampleResult.setSampleLabel(LABELS[random.nextInt(LABELS.length)]);
+        sampleResult.setSuccessful(random.nextInt(100) > 0);
+        sampleResult.setBytes(1024L);
+        sampleResult.setSentBytes(256L);
+        return sampleResult;
+    }
+}
@@ -0,0 +1,291 @@
+package io.renren.renrenfast;
+
+import io.renren.modules.test.jmeter.runner.LoadScaler;
+import io.renren.modules.test.jmeter.runner.LoadSplitter;
+import org.apache.jmeter.config.ConfigTestElement;
+import org.apache.jmeter.control.LoopController;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jmeter.testelement.TestPlan;
+import org.apache.jmeter.testelement.property.CollectionProperty;
+import org.apache.jmeter.testelement.property.DoubleProperty;
+import org.apache.jmeter.testelement.property.IntegerProperty;
+import org.apache.jmeter.threads.SetupThreadGroup;
+import org.apache.jmeter.threads.ThreadGroup;
+import org.apache.jorphan.collections.HashTree;
+import org.apache.jorphan.collections.ListedHashTree;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按权重拆分脚本负载，各节点加起来要等于脚本负载乘以比例之和。
+ */
+public class LoadSplitterTest {
+
+    private static final double DELTA = 1e-6;
+
+    @Test
+    public void apportionKeepsTotal() {
+        assertArrayEquals(new long[]{4, 3, 3}, LoadSplitter.apportion(10, new double[]{1 / 3d, 1 / 3d, 1 / 3d}));
+        assertArrayEquals(new long[]{7, 4, 3}, LoadSplitter.apportion(7, new double[]{1d, 0.5d, 0.5d}));
+        assertArrayEquals(new long[]{3, 3, 4}, LoadSplitter.apportion(10, new double[]{0.29d, 0.29d, 0.42d}));
+        assertArrayEquals(new long[]{1, 0, 0}, LoadSplitter.apportion(1, new double[]{0.34d, 0.33d, 0.33d}));
+        for (int total = 0; total < 200; total++) {
+            assertEquals(total, sum(LoadSplitter.apportion(total, new double[]{0.17d, 0.33d, 0.5d})));
+        }
+    }
+
+    @Test
+    public void threadGroup() {
+        ThreadGroup threadGroup = threadGroup("线程组", "10", "30");
+        SetupThreadGroup setup = new SetupThreadGroup();
+        setup.setName("登录");
+        setup.setProperty(ThreadGroup.NUM_THREADS, "1");
+        HashTree tree = testPlan(threadGroup, setup);
+
+        Map<String, HashTree> trees = new LoadSplitter().split(tree, shares(34, 33, 33));
+
+        List<TestElement> groups = find(trees, "线程组");
+        assertEquals(10, sumInt(groups, ThreadGroup.NUM_THREADS));
+        for (TestElement group : groups) {
+            assertEquals("30", group.getPropertyAsString(ThreadGroup.RAMP_TIME));
+        }
+        //setUp线程组每个节点都执行
+        for (TestElement group : find(trees, "登录")) {
+            assertEquals("1", group.getPropertyAsString(ThreadGroup.NUM_THREADS));
+        }
+        //原脚本不变
+        assertEquals("10", threadGroup.getPropertyAsString(ThreadGroup.NUM_THREADS));
+    }
+
+    @Test
+    public void fullWeightSlavesRunWholeScript() {
+        HashTree tree = testPlan(threadGroup("线程组", "5", "0"));
+
+        Map<String, HashTree> trees = new LoadSplitter().split(tree, shares(100, 50, 50));
+
+        List<TestElement> groups = find(trees, "线程组");
+        assertEquals(10, sumInt(groups, ThreadGroup.NUM_THREADS));
+        assertEquals("5", groups.get(0).getPropertyAsString(ThreadGroup.NUM_THREADS));
+    }
+
+    @Test
+    public void constantThroughputTimer() {
+        TestElement shared = plugin("共享吞吐量", "org.apache.jmeter.timers.ConstantThroughputTimer");
+        shared.setProperty(new DoubleProperty("throughput", 600d));
+        shared.setProperty(new IntegerProperty("calcMode", 1));
+        TestElement perThread = plugin("单线程吞吐量", "org.apache.jmeter.timers.ConstantThroughputTimer");
+        perThread.setProperty(new DoubleProperty("throughput", 60d));
+        perThread.setProperty(new IntegerProperty("calcMode", 0));
+        HashTree tree = testPlan(threadGroup("线程组", "10", "0"), shared, perThread);
+
+        Map<String, HashTree> trees = new LoadSplitter().split(tree, shares(50, 30, 20));
+
+        List<TestElement> timers = find(trees, "共享吞吐量");
+        assertEquals(600d, sumDouble(timers, "throughput"), DELTA);
+        assertTrue(timers.get(0).getProperty("throughput") instanceof DoubleProperty);
+        //按线程计算的吞吐量随线程数拆分
+        for (TestElement timer : find(trees, "单线程吞吐量")) {
+            assertEquals(60d, timer.getPropertyAsDouble("throughput"), DELTA);
+        }
+    }
+
+    @Test
+    public void ultimateThreadGroup() {
+        TestElement group = plugin("阶梯线程组", "kg.apc.jmeter.threads.UltimateThreadGroup");
+        group.setProperty(table("ultimatethreadgroupdata",
+                row("100", "0", "60", "600", "10"),
+                row("25", "300", "30", "120", "10")));
+        HashTree tree = testPlan(group);
+
+        Map<String, HashTree> trees = new LoadSplitter().split(tree, shares(40, 40, 20));
+
+        List<TestElement> groups = find(trees, "阶梯线程组");
+        assertEquals(100, sumCell(groups, "ultimatethreadgroupdata", 0, 0));
+        assertEquals(25, sumCell(groups, "ultimatethreadgroupdata", 1, 0));
+        for (TestElement element : groups) {
+            assertEquals("600", cell(element, "ultimatethreadgroupdata", 0, 3));
+        }
+    }
+
+    @Test
+    public void concurrencyThreadGroupAndShapingTimer() {
+        TestElement group = plugin("并发线程组", "com.blazemeter.jmeter.threads.concurrency.ConcurrencyThreadGroup");
+        group.setProperty("TargetLevel", "50");
+        TestElement timer = plugin("吞吐量计划", "kg.apc.jmeter.timers.VariableThroughputTimer");
+        timer.setProperty(table("load_profile", row("10", "200", "300")));
+        HashTree tree = testPlan(group, timer);
+
+        Map<String, HashTree> trees = new LoadSplitter().split(tree, shares(70, 30));
+
+        assertEquals(50, sumInt(find(trees, "并发线程组"), "TargetLevel"));
+        List<TestElement> timers = find(trees, "吞吐量计划");
+        double start = 0d;
+        double end = 0d;
+        for (TestElement element : timers) {
+            start += Double.parseDouble(cell(element, "load_profile", 0, 0));
+            end += Double.parseDouble(cell(element, "load_profile", 0, 1));
+            assertEquals("300", cell(element, "load_profile", 0, 2));
+        }
+        assertEquals(10d, start, DELTA);
+        assertEquals(200d, end, DELTA);
+    }
+
+    @Test
+    public void expressionIsKept() {
+        HashTree tree = testPlan(threadGroup("线程组", "${__P(threads,10)}", "0"));
+
+        Map<String, HashTree> trees = new LoadSplitter().split(tree, shares(50, 50));
+
+        for (TestElement group : find(trees, "线程组")) {
+            assertEquals("${__P(threads,10)}", group.getPropertyAsString(ThreadGroup.NUM_THREADS));
+        }
+    }
+
+    @Test
+    public void customScaler() {
+        TestElement element = plugin("自定义", "com.example.CustomThreadGroup");
+        element.setProperty("users", "9");
+        HashTree tree = testPlan(element);
+
+        LoadSplitter splitter = new LoadSplitter().register(new LoadSplitter.PropertyScaler("com.example.CustomThreadGroup")
+                .intProperties("users"));
+        Map<String, HashTree> trees = splitter.split(tree, shares(50, 50));
+
+        assertEquals(9, sumInt(find(trees, "自定义"), "users"));
+
+        //register的优先于内置的处理
+        LoadSplitter keep = new LoadSplitter().register(new LoadScaler() {
+            @Override
+            public boolean supports(TestElement element) {
+                return element instanceof ThreadGroup;
+            }
+
+            @Override
+            public void scale(List<TestElement> elements, double[] shares) {
+            }
+        });
+        trees = keep.split(testPlan(threadGroup("线程组", "8", "0")), shares(50, 50));
+        assertEquals(16, sumInt(find(trees, "线程组"), ThreadGroup.NUM_THREADS));
+    }
+
+    private static HashTree testPlan(TestElement... elements) {
+        HashTree tree = new ListedHashTree();
+        HashTree planTree = tree.add(new TestPlan("测试计划"));
+        HashTree current = null;
+        for (TestElement element : elements) {
+            if (element instanceof ThreadGroup || current == null) {
+                current = planTree.add(element);
+            } else {
+                current.add(element);
+            }
+        }
+        return tree;
+    }
+
+    private static ThreadGroup threadGroup(String name, String threads, String rampTime) {
+        LoopController loop = new LoopController();
+        loop.setLoops(10);
+        ThreadGroup threadGroup = new ThreadGroup();
+        threadGroup.setName(name);
+        threadGroup.setProperty(ThreadGroup.NUM_THREADS, threads);
+        threadGroup.setProperty(ThreadGroup.RAMP_TIME, rampTime);
+        threadGroup.setSamplerController(loop);
+        return threadGroup;
+    }
+
+    /**
+     * 插件的类不在classpath中，用TEST_CLASS模拟脚本中的元素
+     */
+    private static TestElement plugin(String name, String testClass) {
+        ConfigTestElement element = new ConfigTestElement();
+        element.setName(name);
+        element.setProperty(TestElement.TEST_CLASS, testClass);
+        return element;
+    }
+
+    private static CollectionProperty table(String name, CollectionProperty... rows) {
+        return new CollectionProperty(name, new ArrayList<>(Arrays.asList(rows)));
+    }
+
+    private static CollectionProperty row(String... values) {
+        return new CollectionProperty(String.valueOf(Arrays.hashCode(values)), new ArrayList<>(Arrays.asList(values)));
+    }
+
+    private static String cell(TestElement element, String table, int row, int column) {
+        CollectionProperty rows = (CollectionProperty) element.getProperty(table);
+        return ((CollectionProperty) rows.get(row)).get(column).getStringValue();
+    }
+
+    private static Map<String, Double> shares(int... weights) {
+        Map<String, Double> shares = new LinkedHashMap<>();
+        for (int i = 0; i < weights.length; i++) {
+            shares.put("192.168.0." + (i + 1) + ":1099", weights[i] / 100d);
+        }
+        return shares;
+    }
+
+    private static List<TestElement> find(Map<String, HashTree> trees, String name) {
+        List<TestElement> result = new ArrayList<>();
+        for (HashTree tree : trees.values()) {
+            tree.traverse(new org.apache.jorphan.collections.HashTreeTraverser() {
+                @Override
+                public void addNode(Object node, HashTree subTree) {
+                    if (node instanceof TestElement && name.equals(((TestElement) node).getName())) {
+                        result.add((TestElement) node);
+                    }
+                }
+
+                @Override
+                public void subtractNode() {
+                }
+
+                @Override
+                public void processPath() {
+                }
+            });
+        }
+        assertEquals(trees.size(), result.size());
+        return result;
+    }
+
+    private static long sumInt(List<TestElement> elements, String property) {
+        long sum = 0L;
+        for (TestElement element : elements) {
+            sum += Long.parseLong(element.getPropertyAsString(property));
+        }
+        return sum;
+    }
+
+    private static double sumDouble(List<TestElement> elements, String property) {
+        double sum = 0d;
+        for (TestElement element : elements) {
+            sum += element.getPropertyAsDouble(property);
+        }
+        return sum;
+    }
+
+    private static long sumCell(List<TestElement> elements, String table, int row, int column) {
+        long sum = 0L;
+        for (TestElement element : elements) {
+            sum += Long.parseLong(cell(element, table, row, column));
+        }
+        return sum;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0L;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,172 @@
+package io.renren.renrenfast;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.renren.modules.test.jmeter.engine.VirtualThreadGroup;
+import org.apache.jmeter.control.LoopController;
+import org.apache.jmeter.engine.StandardJMeterEngine;
+import org.apache.jmeter.protocol.http.sampler.HTTPSamplerProxy;
+import org.apache.jmeter.testelement.TestPlan;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jmeter.threads.ThreadGroup;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.collections.HashTree;
+import org.apache.jorphan.collections.ListedHashTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 普通线程组和VirtualThreadGroup每GB内存能支持的HTTP用户数，直接运行main方法，每种模式单独启动一个JVM：
+ * <pre>
+ * java -Xmx4g -cp ... io.renren.renrenfast.VirtualThreadBenchmark /opt/apache-jmeter-5.1.1 platform 5000
+ * java -Xmx4g -cp ... io.renren.renrenfast.VirtualThreadBenchmark /opt/apache-jmeter-5.1.1 virtual 5000
+ * </pre>
+ * 本机启动一个延迟响应的HTTP服务，所有用户都阻塞在等待响应上，稳定后统计每个用户占用的堆内存和进程内存（RSS）。
+ * 平台线程的栈不在堆里，虚拟线程的栈在堆里，所以两种模式要比较进程内存，堆内存只作参考。
+ * <p>
+ * 1核5G、OpenJDK 17、-Xmx2g、所有用户都已启动后的结果（JDK 17没有虚拟线程，virtual模式实际是小栈平台线程）：
+ * <pre>
+ * 模式      用户数  堆内存/用户  进程内存/用户  每GB进程内存
+ * platform   500     133KB        349KB          2999用户
+ * platform  2000      86KB        318KB          3296用户
+ * platform  5000      74KB        283KB          3698用户
+ * virtual    500     118KB        371KB          2825用户
+ * virtual   2000     115KB        322KB          3249用户
+ * virtual   5000      81KB        292KB          3586用户
+ * </pre>
+ * 小栈平台线程的栈只是预留，实际占用的页和普通平台线程差不多，所以两种模式基本持平。
+ * 虚拟线程的收益要在JDK 21及以上运行才能测出来。
+ */
+public class VirtualThreadBenchmark {
+
+    private static final long RESPONSE_DELAY_MILLIS = 1000L;
+    private static final int RAMP_UP_SECONDS = 10;
+    private static final long SETTLE_MILLIS = 10000L;
+    private static final long START_TIMEOUT_MILLIS = 120000L;
+    private static final long GB = 1024L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("参数：<jmeter_home> <platform|virtual> <用户数>");
+            return;
+        }
+        String mode = args[1];
+        int users = Integer.parseInt(args[2]);
+        JMeterUtils.loadJMeterProperties(args[0] + File.separator + "bin" + File.separator + "jmeter.properties");
+        JMeterUtils.setJMeterHome(args[0]);
+        JMeterUtils.initLocale();
+
+        HttpServer server = startServer();
+        long heapBefore = usedHeap();
+        long rssBefore = rss();
+
+        StandardJMeterEngine engine = new StandardJMeterEngine();
+        engine.configure(testPlan(server.getAddress().getPort(), users, "virtual".equals(mode)));
+        engine.runTest();
+        //单核机器上启动线程比爬坡慢，等所有用户都启动后再稳定一段时间
+        long deadline = System.currentTimeMillis() + RAMP_UP_SECONDS * 1000L + START_TIMEOUT_MILLIS;
+        while (JMeterContextService.getNumberOfThreads() < users && System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+        }
+        Thread.sleep(SETTLE_MILLIS);
+
+        long heap = Math.max(1L, (usedHeap() - heapBefore) / users);
+        long rss = rssBefore > 0 ? Math.max(1L, (rss() - rssBefore) / users) : 0L;
+        System.out.println(String.format("模式:%s(虚拟线程可用:%s) 用户数:%d 已启动用户:%d 堆内存/用户:%dKB 每GB堆:%d用户 "
+                        + "进程内存/用户:%dKB 每GB进程内存:%s用户", mode, VirtualThreadGroup.Factory.isVirtual(), users,
+                JMeterContextService.getNumberOfThreads(), heap / 1024, GB / heap, rss / 1024, rss > 0 ? String.valueOf(GB / rss) : "-"));
+
+        engine.stopTest(true);
+        server.stop(0);
+        System.exit(0);
+    }
+
+    private static HashTree testPlan(int port, int users, boolean virtual) {
+        HTTPSamplerProxy sampler = new HTTPSamplerProxy();
+        sampler.setName("HTTP请求");
+        sampler.setDomain("127.0.0.1");
+        sampler.setPort(port);
+        sampler.setPath("/");
+        sampler.setMethod("GET");
+        sampler.setUseKeepAlive(true);
+
+        LoopController loopController = new LoopController();
+        loopController.setLoops(-1);
+        loopController.setContinueForever(true);
+        loopController.initialize();
+
+        ThreadGroup threadGroup = new ThreadGroup();
+        threadGroup.setName("用户");
+        threadGroup.setNumThreads(users);
+        threadGroup.setRampUp(RAMP_UP_SECONDS);
+        threadGroup.setSamplerController(loopController);
+
+        HashTree tree = new ListedHashTree();
+        TestPlan testPlan = new TestPlan("VirtualThreadBenchmark");
+        tree.add(testPlan);
+        tree.getTree(testPlan).add(threadGroup).add(sampler);
+        if (virtual) {
+            VirtualThreadGroup.replaceThreadGroups(tree);
+        }
+        return tree;
+    }
+
+    /**
+     * 响应在定时线程里延迟发送，处理请求的线程不阻塞，服务端本身的线程数和用户数无关
+     */
+    private static HttpServer startServer() throws IOException {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 8192);
+        server.createContext("/", exchange -> scheduler.schedule(() -> respond(exchange),
+                RESPONSE_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange) {
+        byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+        try {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 只支持Linux，其他系统返回0
+     */
+    private static long rss() throws IOException {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return 0L;
+        }
+        for (String line : Files.readAllLines(Paths.get(status.getPath()))) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        return 0L;
+    }
+}